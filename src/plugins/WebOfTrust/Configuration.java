@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.util.CurrentTimeUTC;
+import freenet.support.Logger;
 import freenet.support.codeshortification.IfNull;
 
 /* ATTENTION: This code is a duplicate of plugins.Freetalk.Config. Any changes there should also be done here! */
@@ -52,6 +53,69 @@ public final class Configuration extends Persistent {
 	 * static final variables and also disallow compiler optimizations.) */
 	public final static transient boolean IS_UNIT_TEST = Boolean.getBoolean("is_WOT_unit_test");
 
+	/**
+	 * Name of the String configuration parameter which selects the {@link IdentityFileQueue}
+	 * implementation, see {@link #getIdentityFileQueueFormat()}.<br>
+	 * Changes take effect after a restart. Files which were queued in the other format are not
+	 * converted: They stay on disk unused, and the Identitys are fetched again. */
+	public final static transient String IDENTITY_FILE_QUEUE_FORMAT = "IdentityFileQueueFormat";
+
+	/** The values of {@link #IDENTITY_FILE_QUEUE_FORMAT}. */
+	public static enum IdentityFileQueueFormat {
+		/** {@link IdentityFileDiskQueue}: One file per queued identity file. */
+		Directory,
+		/** {@link IdentityFileLogQueue}: Append-only segment files. */
+		SegmentLog;
+	}
+
+	/** @see #IDENTITY_FILE_QUEUE_FORMAT */
+	public final static transient IdentityFileQueueFormat DEFAULT_IDENTITY_FILE_QUEUE_FORMAT
+		= IdentityFileQueueFormat.Directory;
+
+	/**
+	 * Name of the Integer configuration parameter which is used as
+	 * {@link WebOfTrust#setTrustListFullScoreComputationThreshold(int)}.<br>
+	 * Changes take effect after a restart.
+	 * @see WebOfTrust#DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD */
+	public final static transient String TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD
+		= "TrustListFullScoreComputationThreshold";
+
+	/**
+	 * Name of the boolean configuration parameter which enables measuring the time FCP messages
+	 * wait for locks, see
+	 * {@link plugins.WebOfTrust.ui.fcp.FCPInterface.MessageStatistics#mLockWaitTimeNanoseconds}.
+	 * <br>Disabled by default: It enables thread contention monitoring for the whole JVM, and
+	 * costs two {@link java.lang.management.ThreadMXBean#getThreadInfo(long)} calls per FCP
+	 * message.<br>
+	 * Changes take effect after a restart. */
+	public final static transient String MEASURE_FCP_LOCK_WAIT_TIME = "MeasureFCPLockWaitTime";
+
+	/**
+	 * Name of the Integer configuration parameter which is used as
+	 * {@link IdentityFetcher#setStartupBatchSize(int)}.<br>
+	 * Changes take effect after a restart. If it is not set,
+	 * {@link IdentityFetcher#DEFAULT_STARTUP_BATCH_SIZE} is used. */
+	public final static transient String IDENTITY_FETCHER_STARTUP_BATCH_SIZE
+		= "IdentityFetcherStartupBatchSize";
+
+	/**
+	 * Name of the Integer configuration parameter which is used as
+	 * {@link IdentityFetcher#setStartupBatchDelay(long)}, in milliseconds.<br>
+	 * Changes take effect after a restart. If it is not set,
+	 * {@link IdentityFetcher#DEFAULT_STARTUP_BATCH_DELAY} is used. It is not stored by
+	 * {@link #setDefaultValues(boolean)} because the default is 0 in unit tests. */
+	public final static transient String IDENTITY_FETCHER_STARTUP_BATCH_DELAY
+		= "IdentityFetcherStartupBatchDelay";
+
+	/**
+	 * Name of the Integer configuration parameter which is used as
+	 * {@link IdentityFileProcessor#setParserThreads(int)}.<br>
+	 * Changes take effect after a restart. If it is not set,
+	 * {@link IdentityFileProcessor#DEFAULT_PARSER_THREADS} is used. It is not stored by
+	 * {@link #setDefaultValues(boolean)} because the default depends on the number of CPUs. */
+	public final static transient String IDENTITY_FILE_PROCESSOR_PARSER_THREADS
+		= "IdentityFileProcessorParserThreads";
+
 	/**
 	 * The database format version of this WoT-database.
 	 * Stored in a primitive integer field to ensure that db4o does not lose it - I've observed the HashMaps to be null suddenly sometimes :(
@@ -328,6 +392,16 @@ public final class Configuration extends Persistent {
 		return mIntParams.get(key);
 	}
 
+	/**
+	 * Gets an Integer configuration parameter, or the given default value if it does not exist.
+	 * Useful for parameters which databases created by older versions do not contain.
+	 */
+	public synchronized int getInt(String key, int defaultValue) {
+		activateIntParams();
+		Integer value = mIntParams.get(key);
+		return value != null ? value : defaultValue;
+	}
+
     /**
      * Gets a boolean configuration parameter.
      */
@@ -336,6 +410,25 @@ public final class Configuration extends Persistent {
         return Boolean.valueOf( mStringParams.get(key) );
     }
 
+	/**
+	 * Gets the {@link #IDENTITY_FILE_QUEUE_FORMAT}.<br>
+	 * Databases which were created before the parameter existed do not contain it, the default
+	 * {@link #DEFAULT_IDENTITY_FILE_QUEUE_FORMAT} is returned then.
+	 */
+	public synchronized IdentityFileQueueFormat getIdentityFileQueueFormat() {
+		String value = getString(IDENTITY_FILE_QUEUE_FORMAT);
+		
+		if(value == null)
+			return DEFAULT_IDENTITY_FILE_QUEUE_FORMAT;
+		
+		try {
+			return IdentityFileQueueFormat.valueOf(value);
+		} catch(IllegalArgumentException e) {
+			Logger.error(this, "Invalid " + IDENTITY_FILE_QUEUE_FORMAT + ": " + value);
+			return DEFAULT_IDENTITY_FILE_QUEUE_FORMAT;
+		}
+	}
+
 	/**
 	 * Check wheter a String config parameter exists.
 	 */
@@ -402,7 +495,16 @@ public final class Configuration extends Persistent {
 	 * @param overwrite If true, overwrite already set values with the default value.
 	 */
 	public synchronized void setDefaultValues(boolean overwrite) {
-
+		if(overwrite || !containsString(IDENTITY_FILE_QUEUE_FORMAT))
+			set(IDENTITY_FILE_QUEUE_FORMAT, DEFAULT_IDENTITY_FILE_QUEUE_FORMAT.toString());
+		
+		if(overwrite || !containsInt(TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD)) {
+			set(TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD,
+				WebOfTrust.DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD);
+		}
+		
+		if(overwrite || !containsString(MEASURE_FCP_LOCK_WAIT_TIME))
+			set(MEASURE_FCP_LOCK_WAIT_TIME, false);
 	}
 
 	@Override
@@ -0,0 +1,537 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.UUID;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Base64;
+import freenet.support.IllegalBase64Exception;
+
+/**
+ * Compact binary format for {@link Persistent#serialize()} of the {@link EventSource}s
+ * {@link Identity}, {@link OwnIdentity}, {@link Trust} and {@link Score}.<br>
+ * The {@link SubscriptionManager} stores a serialized copy of them for each change it notifies
+ * its clients about. Standard Java serialization writes the class descriptors and field names
+ * of all classes into each of those copies, and is slow to encode and decode. This format only
+ * contains the values of the fields:<br>
+ * - {@link Identity#getID()} is stored as the raw routing key instead of Base64.<br>
+ * - USK {@link FreenetURI}s are stored as their raw keys and edition.<br>
+ * - Numbers are stored as variable length integers, so small values such as editions and
+ *   dates of {@link Trust} values use few bytes.<br>
+ * - Contexts and property names are stored once per serialized object and then referenced by
+ *   index, see {@link Output#writeDictionaryString(String)}.<br>
+ * - Objects which are referenced multiple times, such as the truster and trustee of the
+ *   {@link Score} of an {@link OwnIdentity} in itself, are stored once.<br><br>
+ *
+ * Each serialized object starts with {@link #MAGIC} and {@link #FORMAT_VERSION}. Java
+ * serialization always starts with the byte 0xAC, so {@link #isEncoded(byte[])} can tell the
+ * formats apart, and {@link Persistent#deserialize(WebOfTrustInterface, byte[])} can still read
+ * data which was stored by previous versions of WOT.<br><br>
+ *
+ * The classes implement the format themselves as they have final and private fields:
+ * Each has a function writeCompact(Output) and a constructor which takes an {@link Input} and
+ * reads the fields in the same order. When changing the fields which they write, or
+ * {@link #WELL_KNOWN_STRINGS}, you must increment {@link #FORMAT_VERSION} and make the
+ * constructors check {@link Input#getFormatVersion()} to keep reading the previous format.
+ */
+final class EventSourceCodec {
+
+	/** First byte of data of this format. */
+	static final byte MAGIC = 0x57;
+
+	/** Second byte of data of this format. */
+	static final byte FORMAT_VERSION = 1;
+
+	/** Type marker of an object which was already written, followed by its index. */
+	private static final byte TYPE_REFERENCE = 0;
+
+	private static final byte TYPE_IDENTITY = 1;
+
+	private static final byte TYPE_OWN_IDENTITY = 2;
+
+	private static final byte TYPE_TRUST = 3;
+
+	private static final byte TYPE_SCORE = 4;
+
+	/** {@link Output#writeURI(String, String)}: The URI is stored as a String. */
+	private static final byte URI_LITERAL = 0;
+
+	/** {@link Output#writeURI(String, String)}: The URI is a WOT USK, its keys are stored. */
+	private static final byte URI_USK = 1;
+
+	/**
+	 * {@link Output#writeURI(String, String)}: The URI is a WOT USK, its keys are stored except
+	 * for the routing key, which is the one of the {@link Identity#getID()}. */
+	private static final byte URI_USK_OF_ID = 2;
+
+	/**
+	 * Strings which are in the dictionary of {@link Output#writeDictionaryString(String)} from
+	 * the beginning so they never have to be written.<br>
+	 * Must not be changed without incrementing {@link #FORMAT_VERSION}. */
+	private static final String[] WELL_KNOWN_STRINGS = {
+		"Introduction",
+		"IntroductionPuzzleCount",
+		"Freetalk",
+		"Sone",
+		"Freemail"
+	};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	private EventSourceCodec() {
+	}
+
+	/** @return True if this format can store the given object. */
+	static boolean isSupported(final Persistent object) {
+		final Class<? extends Persistent> c = object.getClass();
+		return c == Identity.class || c == OwnIdentity.class || c == Trust.class
+			|| c == Score.class;
+	}
+
+	/**
+	 * @return True if the given data was produced by {@link #encode(Persistent)}, false if it is
+	 *     standard Java serialization. */
+	static boolean isEncoded(final byte[] data) {
+		return data.length > 0 && data[0] == MAGIC;
+	}
+
+	/**
+	 * Inverse of {@link #decode(byte[])}.
+	 *
+	 * @throws IllegalArgumentException If {@link #isSupported(Persistent)} is false. */
+	static byte[] encode(final Persistent object) {
+		try {
+			final Output out = new Output();
+			out.writeObject(object);
+			return out.toByteArray();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Inverse of {@link #encode(Persistent)}.<br>
+	 * The caller must call {@link Persistent#initializeTransient(WebOfTrustInterface)} on the
+	 * returned object. */
+	static Persistent decode(final byte[] data) throws IOException {
+		final Input in = new Input(data);
+		final Persistent result = in.readObject();
+
+		if(!in.isAtEnd())
+			throw new IOException("Trailing data after object");
+
+		return result;
+	}
+
+	/** @return The routing key which the given {@link Identity#getID()} encodes. */
+	private static byte[] decodeIdentityID(final String id) throws IOException {
+		try {
+			return Base64.decode(id);
+		} catch(IllegalBase64Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Writes the format of {@link EventSourceCodec}. Not thread-safe. */
+	static final class Output {
+		private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(256);
+
+		private final DataOutputStream mData = new DataOutputStream(mBytes);
+
+		/** @see #writeDictionaryString(String) */
+		private final HashMap<String, Integer> mDictionary = new HashMap<String, Integer>();
+
+		/** @see #writeObject(Persistent) */
+		private final IdentityHashMap<Persistent, Integer> mWrittenObjects
+			= new IdentityHashMap<Persistent, Integer>();
+
+		private Output() throws IOException {
+			mData.writeByte(MAGIC);
+			mData.writeByte(FORMAT_VERSION);
+
+			for(String string : WELL_KNOWN_STRINGS)
+				mDictionary.put(string, mDictionary.size());
+		}
+
+		/**
+		 * Writes the given object and the objects it refers to. If the object was already
+		 * written, only writes a reference to it so {@link Input#readObject()} returns the same
+		 * object for both. */
+		void writeObject(final Persistent object) throws IOException {
+			final Integer index = mWrittenObjects.get(object);
+			if(index != null) {
+				mData.writeByte(TYPE_REFERENCE);
+				writeVarInt(index);
+				return;
+			}
+
+			mWrittenObjects.put(object, mWrittenObjects.size());
+			// The writeCompact() functions rely on this.
+			object.activateFully();
+
+			final Class<? extends Persistent> c = object.getClass();
+			if(c == Identity.class)
+				mData.writeByte(TYPE_IDENTITY);
+			else if(c == OwnIdentity.class)
+				mData.writeByte(TYPE_OWN_IDENTITY);
+			else if(c == Trust.class)
+				mData.writeByte(TYPE_TRUST);
+			else if(c == Score.class)
+				mData.writeByte(TYPE_SCORE);
+			else
+				throw new IllegalArgumentException("Class not supported: " + c);
+
+			// The mCreationDate of Persistent is the same for all classes.
+			writeDate(object.mCreationDate);
+
+			if(object instanceof Identity)
+				((Identity)object).writeCompact(this);
+			else if(object instanceof Trust)
+				((Trust)object).writeCompact(this);
+			else
+				((Score)object).writeCompact(this);
+		}
+
+		void writeBoolean(final boolean value) throws IOException {
+			mData.writeBoolean(value);
+		}
+
+		void writeByte(final int value) throws IOException {
+			mData.writeByte(value);
+		}
+
+		/** Writes a non-negative int with 1 byte per 7 bits. */
+		void writeVarInt(int value) throws IOException {
+			assert(value >= 0);
+
+			while((value & ~0x7F) != 0) {
+				mData.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			mData.writeByte(value);
+		}
+
+		/**
+		 * Writes a long with 1 byte per 7 bits. Negative values are ZigZag-encoded, so values
+		 * of small magnitude use few bytes no matter their sign. */
+		void writeVarLong(final long value) throws IOException {
+			long zigZag = (value << 1) ^ (value >> 63);
+
+			while((zigZag & ~0x7FL) != 0) {
+				mData.writeByte((int)((zigZag & 0x7F) | 0x80));
+				zigZag >>>= 7;
+			}
+			mData.writeByte((int)zigZag);
+		}
+
+		void writeBytes(final byte[] bytes) throws IOException {
+			writeVarInt(bytes.length);
+			mData.write(bytes);
+		}
+
+		/** @param string May be null. */
+		void writeString(final String string) throws IOException {
+			if(string == null) {
+				writeVarInt(0);
+				return;
+			}
+
+			final byte[] bytes = string.getBytes(UTF8);
+			writeVarInt(bytes.length + 1);
+			mData.write(bytes);
+		}
+
+		/**
+		 * Writes a String which is likely to appear multiple times in the same serialized
+		 * object, or which is in {@link #WELL_KNOWN_STRINGS}: If it was written before, only its
+		 * index is written.
+		 *
+		 * @param string Must not be null. */
+		void writeDictionaryString(final String string) throws IOException {
+			final Integer index = mDictionary.get(string);
+			if(index != null) {
+				writeVarInt(index + 1);
+				return;
+			}
+
+			mDictionary.put(string, mDictionary.size());
+			writeVarInt(0);
+			writeString(string);
+		}
+
+		/** @param date Must not be null. */
+		void writeDate(final Date date) throws IOException {
+			writeVarLong(date.getTime());
+		}
+
+		/** @param uuid A {@link UUID#toString()}, may be null. */
+		void writeUUID(final String uuid) throws IOException {
+			writeBoolean(uuid != null);
+
+			if(uuid != null) {
+				final UUID parsed = UUID.fromString(uuid);
+				assert(parsed.toString().equals(uuid));
+				mData.writeLong(parsed.getMostSignificantBits());
+				mData.writeLong(parsed.getLeastSignificantBits());
+			}
+		}
+
+		/** Writes an {@link Identity#getID()} as the raw routing key it encodes. */
+		void writeIdentityID(final String id) throws IOException {
+			final byte[] routingKey = decodeIdentityID(id);
+			assert(Base64.encode(routingKey).equals(id));
+			writeBytes(routingKey);
+		}
+
+		/**
+		 * Writes a {@link FreenetURI} which was stored as String. If it is a WOT USK as
+		 * produced by {@link Identity#testAndNormalizeRequestURI(FreenetURI)} and
+		 * {@link OwnIdentity#testAndNormalizeInsertURI(FreenetURI)}, only its raw keys and
+		 * edition are written.
+		 *
+		 * @param identityID The {@link Identity#getID()} if the URI is its request URI. Its
+		 *     routing key is not written then. Null for other URIs. */
+		void writeURI(final String uri, final String identityID) throws IOException {
+			final FreenetURI parsed = new FreenetURI(uri);
+
+			if(parsed.isUSK()) {
+				final FreenetURI rebuilt = new FreenetURI("USK", WebOfTrustInterface.WOT_NAME,
+					(String[])null, parsed.getRoutingKey(), parsed.getCryptoKey(),
+					parsed.getExtra(), parsed.getEdition());
+
+				// Only the parts we write are kept, so this can only be used if the URI does
+				// not have any others.
+				if(rebuilt.toString().equals(uri)) {
+					final boolean routingKeyIsID = identityID != null
+						&& Arrays.equals(parsed.getRoutingKey(), decodeIdentityID(identityID));
+
+					writeByte(routingKeyIsID ? URI_USK_OF_ID : URI_USK);
+					if(!routingKeyIsID)
+						writeBytes(parsed.getRoutingKey());
+					writeBytes(parsed.getCryptoKey());
+					writeBytes(parsed.getExtra());
+					writeVarLong(parsed.getEdition());
+					return;
+				}
+			}
+
+			writeByte(URI_LITERAL);
+			writeString(uri);
+		}
+
+		private byte[] toByteArray() throws IOException {
+			mData.flush();
+			return mBytes.toByteArray();
+		}
+	}
+
+	/** Reads the format of {@link EventSourceCodec}. Not thread-safe. */
+	static final class Input {
+		private final DataInputStream mData;
+
+		private final byte mFormatVersion;
+
+		/** @see Output#mDictionary */
+		private final ArrayList<String> mDictionary
+			= new ArrayList<String>(Arrays.asList(WELL_KNOWN_STRINGS));
+
+		/** @see Output#mWrittenObjects */
+		private final ArrayList<Persistent> mReadObjects = new ArrayList<Persistent>(3);
+
+		private Input(final byte[] data) throws IOException {
+			mData = new DataInputStream(new ByteArrayInputStream(data));
+
+			if(mData.readByte() != MAGIC)
+				throw new IOException("Wrong magic");
+
+			mFormatVersion = mData.readByte();
+			if(mFormatVersion < 1 || mFormatVersion > FORMAT_VERSION)
+				throw new IOException("Unknown format version: " + mFormatVersion);
+		}
+
+		/** @return The {@link #FORMAT_VERSION} of the data. */
+		byte getFormatVersion() {
+			return mFormatVersion;
+		}
+
+		private boolean isAtEnd() throws IOException {
+			return mData.available() == 0;
+		}
+
+		/** Inverse of {@link Output#writeObject(Persistent)}. */
+		Persistent readObject() throws IOException {
+			final byte type = mData.readByte();
+
+			if(type == TYPE_REFERENCE) {
+				final int index = readVarInt();
+				if(index >= mReadObjects.size() || mReadObjects.get(index) == null)
+					throw new IOException("Invalid reference: " + index);
+				return mReadObjects.get(index);
+			}
+
+			// Reserve the index before reading the object to number the objects in the same
+			// order as the Output, which numbers them before writing the objects they refer to.
+			final int index = mReadObjects.size();
+			mReadObjects.add(null);
+
+			final Date creationDate = readDate();
+			final Persistent result;
+			switch(type) {
+				case TYPE_IDENTITY:
+					result = new Identity(this);
+					break;
+				case TYPE_OWN_IDENTITY:
+					result = new OwnIdentity(this);
+					break;
+				case TYPE_TRUST:
+					result = new Trust(this);
+					break;
+				case TYPE_SCORE:
+					result = new Score(this);
+					break;
+				default:
+					throw new IOException("Unknown type: " + type);
+			}
+			result.mCreationDate = creationDate;
+
+			mReadObjects.set(index, result);
+			return result;
+		}
+
+		boolean readBoolean() throws IOException {
+			return mData.readBoolean();
+		}
+
+		byte readByte() throws IOException {
+			return mData.readByte();
+		}
+
+		/** Inverse of {@link Output#writeVarInt(int)}. */
+		int readVarInt() throws IOException {
+			int result = 0;
+
+			for(int shift = 0; shift < 32; shift += 7) {
+				final byte b = mData.readByte();
+				result |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					if(result < 0)
+						throw new IOException("Negative varint");
+					return result;
+				}
+			}
+
+			throw new IOException("Varint too long");
+		}
+
+		/** Inverse of {@link Output#writeVarLong(long)}. */
+		long readVarLong() throws IOException {
+			long zigZag = 0;
+
+			for(int shift = 0; shift < 64; shift += 7) {
+				final byte b = mData.readByte();
+				zigZag |= (long)(b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return (zigZag >>> 1) ^ -(zigZag & 1);
+			}
+
+			throw new IOException("Varlong too long");
+		}
+
+		byte[] readBytes() throws IOException {
+			final byte[] result = new byte[readVarInt()];
+			mData.readFully(result);
+			return result;
+		}
+
+		/** Inverse of {@link Output#writeString(String)}. May return null. */
+		String readString() throws IOException {
+			final int length = readVarInt();
+			if(length == 0)
+				return null;
+
+			final byte[] bytes = new byte[length - 1];
+			mData.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+
+		/** Inverse of {@link Output#writeDictionaryString(String)}. */
+		String readDictionaryString() throws IOException {
+			final int index = readVarInt();
+			if(index > 0) {
+				if(index > mDictionary.size())
+					throw new IOException("Invalid dictionary index: " + index);
+				return mDictionary.get(index - 1);
+			}
+
+			final String string = readString();
+			if(string == null)
+				throw new IOException("Dictionary strings must not be null");
+
+			mDictionary.add(string);
+			return string;
+		}
+
+		/** Inverse of {@link Output#writeDate(Date)}. */
+		Date readDate() throws IOException {
+			return new Date(readVarLong());
+		}
+
+		/** Inverse of {@link Output#writeUUID(String)}. May return null. */
+		String readUUID() throws IOException {
+			if(!readBoolean())
+				return null;
+
+			return new UUID(mData.readLong(), mData.readLong()).toString();
+		}
+
+		/** Inverse of {@link Output#writeIdentityID(String)}. */
+		String readIdentityID() throws IOException {
+			return Base64.encode(readBytes());
+		}
+
+		/** Inverse of {@link Output#writeURI(String, String)}. */
+		String readURI(final String identityID) throws IOException {
+			final byte type = readByte();
+
+			if(type == URI_LITERAL) {
+				final String uri = readString();
+				if(uri == null)
+					throw new IOException("URI must not be null");
+				return uri;
+			}
+
+			final byte[] routingKey;
+			if(type == URI_USK_OF_ID) {
+				if(identityID == null)
+					throw new IOException("URI refers to unknown ID");
+
+				routingKey = decodeIdentityID(identityID);
+			} else if(type == URI_USK)
+				routingKey = readBytes();
+			else
+				throw new IOException("Unknown URI type: " + type);
+
+			final byte[] cryptoKey = readBytes();
+			final byte[] extra = readBytes();
+			final long edition = readVarLong();
+
+			return new FreenetURI("USK", WebOfTrustInterface.WOT_NAME, (String[])null,
+				routingKey, cryptoKey, extra, edition).toString();
+		}
+	}
+
+}
@@ -115,6 +115,25 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 	/** A list of this Identity's custom properties */
 	protected HashMap<String, String> mProperties;
 	
+	/**
+	 * The best {@link Score#getScore()} of all {@link Score}s this Identity has received, or
+	 * {@link Integer#MIN_VALUE} if it has received none.
+	 * Cache for {@link WebOfTrust#getBestScore(Identity)}, maintained by
+	 * {@link WebOfTrust#updateBestScoreWithoutCommit(Score, int, int)}. */
+	protected int mBestScore = Integer.MIN_VALUE;
+	
+	/**
+	 * The best {@link Score#getCapacity()} of all {@link Score}s this Identity has received, or 0
+	 * if it has received none.
+	 * Cache for {@link WebOfTrust#getBestCapacity(Identity)}, see {@link #mBestScore}. */
+	protected int mBestCapacity = 0;
+	
+	/**
+	 * Cache for {@link WebOfTrust#shouldFetchIdentity(Identity)}, see {@link #mBestScore}.
+	 * Indexed for {@link WebOfTrust#getNumberOfUnfetchedIdentities()}. */
+	@IndexedField
+	protected boolean mShouldFetch = false;
+	
 	/**
 	 * @see Identity#activateProperties()
 	 */
@@ -607,6 +626,42 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		updated();
 	}
 
+	/** @see #mBestScore */
+	final int getBestScore() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mBestScore;
+	}
+	
+	/** @see #mBestCapacity */
+	final int getBestCapacity() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mBestCapacity;
+	}
+	
+	/** @see #mShouldFetch */
+	final boolean shouldFetch() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mShouldFetch;
+	}
+	
+	/**
+	 * Sets the values of {@link #mBestScore}, {@link #mBestCapacity} and {@link #mShouldFetch}.
+	 * Does not change the date of last change: They are not data of the Identity itself but a
+	 * cache of the Scores it has received.
+	 * 
+	 * @return True if any of the values changed. The caller must then store the Identity. */
+	final boolean setBestScore(int bestScore, int bestCapacity, boolean shouldFetch) {
+		checkedActivate(1);
+		
+		if(mBestScore == bestScore && mBestCapacity == bestCapacity && mShouldFetch == shouldFetch)
+			return false;
+		
+		mBestScore = bestScore;
+		mBestCapacity = bestCapacity;
+		mShouldFetch = shouldFetch;
+		return true;
+	}
+
 	/**
 	 * @return The Identity's nickName
 	 */
@@ -994,6 +1049,9 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		     + "; mDoesPublishTrustList: " + mDoesPublishTrustList
 		     + "; mContexts: " + mContexts
 		     + "; mProperties: " + mProperties
+		     + "; mBestScore: " + mBestScore
+		     + "; mBestCapacity: " + mBestCapacity
+		     + "; mShouldFetch: " + mShouldFetch
 		     + "]";
 	}
 
@@ -1100,6 +1158,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 			clone.mLatestEditionHint = getLatestEditionHint(); // Don't use the setter since it won't lower the current edition hint.
 			clone.setContexts(getContexts());
 			clone.setProperties(getProperties());
+			clone.setBestScore(getBestScore(), getBestCapacity(), shouldFetch());
 			// Clone it because date is mutable. Set it *after* calling all setters since they would
 			// update it to the current time otherwise.
 	        clone.mLastChangedDate = (Date)mLastChangedDate.clone();
@@ -1300,6 +1359,14 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		
 		if(mProperties.size() > MAX_PROPERTY_AMOUNT)
 			throw new IllegalStateException("Too many properties: " + mProperties.size());
+		
+		if(Arrays.binarySearch(WebOfTrust.VALID_CAPACITIES, mBestCapacity) < 0)
+			throw new IllegalStateException("Illegal mBestCapacity: " + mBestCapacity);
+		
+		if(mBestScore == Integer.MIN_VALUE && (mBestCapacity != 0 || mShouldFetch)) {
+			throw new IllegalStateException("Identity without Scores: mBestCapacity: "
+				+ mBestCapacity + "; mShouldFetch: " + mShouldFetch);
+		}
 			
 		// TODO: Verify context/property names/values 
 	}
@@ -1310,6 +1377,70 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * Writes the member variables for {@link Persistent#serialize()}, see
+	 * {@link EventSourceCodec}. Inverse of {@link #Identity(EventSourceCodec.Input)}.<br>
+	 * The caller must have called {@link #activateFully()}. */
+	void writeCompact(EventSourceCodec.Output out) throws IOException {
+		out.writeIdentityID(mID);
+		out.writeURI(mRequestURIString, mID);
+		out.writeByte(mCurrentEditionFetchState.ordinal());
+		out.writeVarLong(mLatestEditionHint);
+		out.writeDate(mLastFetchedDate);
+		out.writeDate(mLastChangedDate);
+		out.writeString(mNickname);
+		out.writeBoolean(mDoesPublishTrustList);
+		
+		out.writeVarInt(mContexts.size());
+		for(String context : mContexts)
+			out.writeDictionaryString(context);
+		
+		out.writeVarInt(mProperties.size());
+		for(Entry<String, String> property : mProperties.entrySet()) {
+			out.writeDictionaryString(property.getKey());
+			out.writeString(property.getValue());
+		}
+		
+		out.writeVarLong(mBestScore);
+		out.writeVarInt(mBestCapacity);
+		out.writeBoolean(mShouldFetch);
+		out.writeUUID(mVersionID);
+	}
+
+	/**
+	 * Constructor for {@link Persistent#deserialize(WebOfTrustInterface, byte[])}, see
+	 * {@link EventSourceCodec}. Inverse of {@link #writeCompact(EventSourceCodec.Output)}. */
+	Identity(EventSourceCodec.Input in) throws IOException {
+		mID = in.readIdentityID();
+		mRequestURIString = in.readURI(mID);
+		
+		final int fetchState = in.readByte();
+		if(fetchState < 0 || fetchState >= FetchState.values().length)
+			throw new IOException("Invalid FetchState: " + fetchState);
+		mCurrentEditionFetchState = FetchState.values()[fetchState];
+		
+		mLatestEditionHint = in.readVarLong();
+		mLastFetchedDate = in.readDate();
+		mLastChangedDate = in.readDate();
+		mNickname = in.readString();
+		mDoesPublishTrustList = in.readBoolean();
+		
+		final int contextCount = in.readVarInt();
+		mContexts = new ArrayList<String>(contextCount);
+		for(int i = 0; i < contextCount; ++i)
+			mContexts.add(in.readDictionaryString());
+		
+		final int propertyCount = in.readVarInt();
+		mProperties = new HashMap<String, String>();
+		for(int i = 0; i < propertyCount; ++i)
+			mProperties.put(in.readDictionaryString(), in.readString());
+		
+		mBestScore = (int)in.readVarLong();
+		mBestCapacity = in.readVarInt();
+		mShouldFetch = in.readBoolean();
+		mVersionID = in.readUUID();
+	}
+
 	/** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
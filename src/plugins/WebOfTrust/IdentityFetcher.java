@@ -6,17 +6,29 @@
 
 package plugins.WebOfTrust;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
 
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.util.CurrentTimeUTC;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
@@ -67,7 +79,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	
     /**
      * Will be used as delay for the {@link DelayedBackgroundJob} which schedules processing of
-     * {@link IdentityFetcherCommand}s. */
+     * the commands in the {@link CommandBuffer}. */
 	private static final long PROCESS_COMMANDS_DELAY =
 		IS_UNIT_TEST ? SECONDS.toMillis(1) : MINUTES.toMillis(1);
 
@@ -102,6 +114,30 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	 * This sucks: We always request ALL identities to allow ULPRs so we must assume that those HashSets will not fit into memory
 	 * if the WoT becomes large. We should instead ask the node whether we already have a request for the given SSK URI. So how to do that??? */
 	private final HashMap<String, USKRetriever> mRequests = new HashMap<String, USKRetriever>(128); /* TODO: profile & tweak */
+
+	/**
+	 * Maps the IDs of the Identitys in {@link #mRequests} to the
+	 * {@link IdentityFileStream#mPriority} which {@link #onFound(USK, long, FetchResult)} passes
+	 * to the {@link IdentityFileQueue}.<br>
+	 * Computed by {@link #getFilePriority(WebOfTrust, Identity)} when the fetch is started.<br><br>
+	 * 
+	 * Concurrent since onFound() must not synchronize on this IdentityFetcher: {@link #run()}
+	 * holds the lock for a long time, which would block the fetching threads of Freenet. */
+	private final ConcurrentHashMap<String, Integer> mFilePriorities
+		= new ConcurrentHashMap<String, Integer>(128);
+
+	/**
+	 * The {@link PollingTier} at which the fetches of the Identitys in {@link #mRequests} were
+	 * started. Concurrent for the same reason as {@link #mFilePriorities}. */
+	private final ConcurrentHashMap<String, PollingTier> mPollingTiers
+		= new ConcurrentHashMap<String, PollingTier>(128);
+
+	/**
+	 * The {@link EditionHistory} of each Identity which was fetched since startup. Not removed
+	 * when a fetch is aborted so it is not lost when it is started again.<br>
+	 * Concurrent for the same reason as {@link #mFilePriorities}. */
+	private final ConcurrentHashMap<String, EditionHistory> mEditionHistories
+		= new ConcurrentHashMap<String, EditionHistory>(128);
 	
     /**
      * The IdentityFetcher schedules execution of its command processing thread on this
@@ -128,6 +164,47 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
     /** Fetched identity files are stored for processing at this {@link IdentityFileQueue}. */
     private final IdentityFileQueue mQueue;
 
+	/**
+	 * The commands which {@link #run()} processes. They follow the database transactions of the
+	 * callers of the store*CommandWithoutCommit() functions, see {@link CommandBuffer}. */
+	private final CommandBuffer mCommands = new CommandBuffer(new Runnable() {
+		@Override public void run() {
+			scheduleCommandProcessing();
+		}
+	});
+
+	/** Default value of {@link #setStartupBatchSize(int)}. */
+	public static final int DEFAULT_STARTUP_BATCH_SIZE = 64;
+
+	/** Default value of {@link #setStartupBatchDelay(long)}. */
+	public static final long DEFAULT_STARTUP_BATCH_DELAY = IS_UNIT_TEST ? 0 : SECONDS.toMillis(1);
+
+	/** @see #setStartupBatchSize(int) */
+	private volatile int mStartupBatchSize = DEFAULT_STARTUP_BATCH_SIZE;
+
+	/** @see #setStartupBatchDelay(long) */
+	private volatile long mStartupBatchDelay = DEFAULT_STARTUP_BATCH_DELAY;
+
+	/**
+	 * IDs of the Identitys which {@link #start()} determined to be fetched, ordered by their
+	 * trust proximity, see {@link #getIdentitiesToFetch()}. {@link #startFetchBatch()} starts
+	 * their fetches beginning at {@link #mStartupPosition}.<br>
+	 * Null once all of them have been processed.<br>
+	 * Guarded by synchronized(this). */
+	private String[] mStartupIdentities = null;
+
+	/** @see #mStartupIdentities */
+	private int mStartupPosition = 0;
+
+	/**
+	 * Runs {@link #startFetchBatch()} until all {@link #mStartupIdentities} are processed.
+	 * Same lifecycle as {@link #mJob}.<br>
+	 * Volatile since {@link #stop()} needs to use it without synchronization. */
+	private volatile DelayedBackgroundJob mStartupJob = MockDelayedBackgroundJob.DEFAULT;
+
+	/** Progress of starting the fetches of all Identitys. Guarded by synchronized on itself. */
+	private final StartupStatistics mStartupStatistics = new StartupStatistics();
+
 
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -139,6 +216,41 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	}
 	
 	
+	/**
+	 * Progress of {@link IdentityFetcher#start()} starting the fetches of all Identitys in batches
+	 * in the background.<br>
+	 * All fields are public and mutable, use {@link IdentityFetcher#getStartupStatistics()} to
+	 * obtain a copy which is safe to use. */
+	public static final class StartupStatistics implements Cloneable {
+		/** Number of Identitys which start() determined to be fetched. */
+		public int mIdentitysToFetch = 0;
+
+		/** Number of the {@link #mIdentitysToFetch} which have been processed yet. */
+		public int mProcessedIdentitys = 0;
+
+		/**
+		 * Number of the {@link #mProcessedIdentitys} whose fetch was started. The others were
+		 * deleted meanwhile or are not to be fetched anymore. */
+		public int mStartedFetches = 0;
+
+		/** Number of batches in which the {@link #mProcessedIdentitys} were processed. */
+		public int mBatches = 0;
+
+		/** {@link CurrentTimeUTC#getInMillis()} when start() was called, or 0 if it wasn't. */
+		public long mStartTime = 0;
+
+		/** {@link CurrentTimeUTC#getInMillis()} when all Identitys were processed, or 0. */
+		public long mFinishTime = 0;
+
+		@Override public StartupStatistics clone() {
+			try {
+				return (StartupStatistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	/**
 	 * Creates a new IdentityFetcher. You must call {@link #start()} before expecting any commands to have an effect.
 	 * 
@@ -150,6 +262,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		mQueue = queue;
 		
 		mDB = mWoT.getDatabase();
+		Persistent.addTransactionListener(mDB, mCommands);
 		
 		if(respirator != null) { // We are connected to a node
 			mUSKManager = respirator.getNode().clientCore.uskManager;
@@ -167,6 +280,12 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
         // RequestClient for them.
 		mRequestClient = mWoT.getRequestClient();
 		
+		final Configuration config = mWoT.getConfig();
+		setStartupBatchSize(config.getInt(
+			Configuration.IDENTITY_FETCHER_STARTUP_BATCH_SIZE, DEFAULT_STARTUP_BATCH_SIZE));
+		setStartupBatchDelay(config.getInt(
+			Configuration.IDENTITY_FETCHER_STARTUP_BATCH_DELAY, (int)DEFAULT_STARTUP_BATCH_DELAY));
+		
 		if(DEBUG__NETWORK_DUMP_MODE) {
 			Logger.warning(
 				this, "IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: Will fetch old editions "
@@ -174,6 +293,11 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		}
 	}
 	
+	/**
+	 * Commands used to be stored in the database as objects of this class. They are not created
+	 * anymore, the {@link CommandBuffer} replaced them. The class and its child classes are only
+	 * kept so databases of older versions can still be opened, {@link #deleteAllCommands()}
+	 * deletes the remaining objects at {@link #start()}. */
 	@SuppressWarnings("serial")
 	public static class IdentityFetcherCommand extends Persistent {
 		
@@ -244,36 +368,144 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		
 	}
 	
-	private static final class NoSuchCommandException extends Exception {
-		private static final long serialVersionUID = 1L;
-	}
-	
-	private static final class DuplicateCommandException extends RuntimeException {
-		private static final long serialVersionUID = 1L;
+	/** The types of commands which {@link #run()} processes. */
+	enum Command {
+		StartFetch,
+		AbortFetch,
+		UpdateEditionHint
 	}
 	
-	private IdentityFetcherCommand getCommand(Class<? extends IdentityFetcherCommand> commandType, Identity identity)
-		throws NoSuchCommandException {
+	/**
+	 * Transactional in-memory buffer of the {@link Command}s for the {@link IdentityFetcher}.
+	 * <br><br>
+	 * 
+	 * Commands are stored in a buffer of the current transaction first. When the transaction is
+	 * committed, they are merged into the buffer of committed commands, which {@link #drain()}
+	 * hands out in bulk. When it is rolled back, they are discarded. For each Identity only the
+	 * last command is kept: A StartFetch makes a pending AbortFetch obsolete and vice versa,
+	 * and an UpdateEditionHint is implied by a pending StartFetch.<br><br>
+	 * 
+	 * The commands do not need to survive restarts: {@link IdentityFetcher#start()} computes
+	 * the set of Identitys to fetch from the {@link Score} database anyway. Thus, this avoids the
+	 * database queries and stores which {@link IdentityFetcherCommand} caused for every change of
+	 * {@link WebOfTrust#shouldFetchIdentity(Identity)}, thousands of them during a large trust
+	 * list import.<br><br>
+	 * 
+	 * Synchronization: All functions synchronize on the CommandBuffer. It must be the last lock
+	 * in the locking order, after the {@link Persistent#transactionLock(ExtObjectContainer)}.
+	 */
+	static final class CommandBuffer implements Persistent.TransactionListener {
 		
-		return getCommand(commandType, identity.getID());
-	}
-	
-	private IdentityFetcherCommand getCommand(final Class<? extends IdentityFetcherCommand> commandType, final String identityID)
-		throws NoSuchCommandException {
+		/** Commands of the current transaction. Key = {@link Identity#getID()}. */
+		private HashMap<String, Command> mUncommitted = new HashMap<String, Command>();
 		
-		final Query q = mDB.query();
-		q.constrain(commandType);
-		q.descend("mIdentityID").constrain(identityID);
-		final ObjectSet<IdentityFetcherCommand> result = new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
+		/** Committed commands which were not handed out by {@link #drain()} yet. */
+		private HashMap<String, Command> mCommitted = new HashMap<String, Command>();
+		
+		/** Executed after a commit added commands to {@link #mCommitted}. */
+		private final Runnable mOnCommandsCommitted;
+		
+		
+		CommandBuffer(Runnable onCommandsCommitted) {
+			mOnCommandsCommitted = onCommandsCommitted;
+		}
+		
+		/**
+		 * Gets the command which will be processed for the given Identity, considering both the
+		 * current transaction and the committed commands.
+		 * @return Null if there is none. */
+		synchronized Command get(String identityID) {
+			final Command uncommitted = mUncommitted.get(identityID);
+			return uncommitted != null ? uncommitted : mCommitted.get(identityID);
+		}
+		
+		/** @return False if a StartFetch was pending already. */
+		synchronized boolean storeStartFetch(String identityID) {
+			if(get(identityID) == Command.StartFetch)
+				return false;
+			
+			mUncommitted.put(identityID, Command.StartFetch);
+			return true;
+		}
+		
+		/** @return False if an AbortFetch was pending already. */
+		synchronized boolean storeAbortFetch(String identityID) {
+			if(get(identityID) == Command.AbortFetch)
+				return false;
+			
+			mUncommitted.put(identityID, Command.AbortFetch);
+			return true;
+		}
+		
+		/**
+		 * @return False if any command was pending already: An UpdateEditionHint or StartFetch
+		 *     makes it unnecessary, an AbortFetch makes it useless. */
+		synchronized boolean storeUpdateEditionHint(String identityID) {
+			if(get(identityID) != null)
+				return false;
+			
+			mUncommitted.put(identityID, Command.UpdateEditionHint);
+			return true;
+		}
+		
+		/**
+		 * Removes all committed commands and returns them. Commands of the current transaction
+		 * are not returned. */
+		synchronized HashMap<String, Command> drain() {
+			final HashMap<String, Command> result = mCommitted;
+			mCommitted = new HashMap<String, Command>();
+			return result;
+		}
+		
+		/**
+		 * Re-adds commands which were obtained from {@link #drain()} but not processed. Commands
+		 * which were committed meanwhile take precedence. */
+		synchronized void requeue(HashMap<String, Command> commands) {
+			for(Entry<String, Command> command : commands.entrySet()) {
+				if(!mCommitted.containsKey(command.getKey()))
+					mCommitted.put(command.getKey(), command.getValue());
+			}
+		}
+		
+		/** Deletes all commands, including the ones of the current transaction. */
+		synchronized void clear() {
+			mUncommitted.clear();
+			mCommitted.clear();
+		}
+		
+		/** Gets the number of committed commands. */
+		synchronized int size() {
+			return mCommitted.size();
+		}
 		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NoSuchCommandException();
-			default: throw new DuplicateCommandException();
+		@Override public void onCommit() {
+			synchronized(this) {
+				if(mUncommitted.isEmpty())
+					return;
+				
+				if(mCommitted.isEmpty()) {
+					final HashMap<String, Command> committed = mCommitted;
+					mCommitted = mUncommitted;
+					mUncommitted = committed;
+				} else {
+					mCommitted.putAll(mUncommitted);
+					mUncommitted.clear();
+				}
+			}
+			
+			// Outside of synchronized(this) to not hold the lock while the callback runs.
+			mOnCommandsCommitted.run();
+		}
+		
+		@Override public synchronized void onRollback() {
+			mUncommitted.clear();
 		}
 	}
 	
-	private ObjectSet<IdentityFetcherCommand> getCommands(final Class<? extends IdentityFetcherCommand> commandType) {
+	/** Gets the legacy {@link IdentityFetcherCommand}s of the given type from the database. */
+	private ObjectSet<IdentityFetcherCommand> getCommands(
+			final Class<? extends IdentityFetcherCommand> commandType) {
+		
 		final Query q = mDB.query();
 		q.constrain(commandType);
 		return new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
@@ -288,24 +520,11 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	 * 
 	 * You must synchronize upon this IdentityFetcher while calling this function. */
 	final boolean getShouldFetchState(final String identityID) {
-		boolean abortFetchScheduled = false;
-		try {
-			getCommand(AbortFetchCommand.class, identityID);
-			abortFetchScheduled = true;
-		} catch(NoSuchCommandException e) {}
-		
-		boolean startFetchScheduled = false;
-		try {
-			getCommand(StartFetchCommand.class, identityID);
-			startFetchScheduled = true;
-		} catch(NoSuchCommandException e) {}
+		// The CommandBuffer keeps only one command per Identity, so there cannot be contradictory
+		// commands anymore.
+		final Command command = mCommands.get(identityID);
 		
-		if(abortFetchScheduled && startFetchScheduled) {
-			assert(false);
-			throw new IllegalStateException("Contradictory commands stored");
-		}
-		
-		if(abortFetchScheduled) {
+		if(command == Command.AbortFetch) {
 			// This assert() would currently fail since storeAbortFetchCommandWithoutCommit()
 			// will currently store a command even if mRequests.containsKey(identityID) == false.
 			// See the TODO there.
@@ -314,7 +533,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			return false;
 		}
 		
-		if(startFetchScheduled) {
+		if(command == Command.StartFetch) {
 			// Similar to the above: Current implementation of storeStartFetchCommandWithoutCommit()
 			// would cause this to fail
 			
@@ -333,8 +552,10 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			try {
 				if(logDEBUG) Logger.debug(this, "Deleting all identity fetcher commands ...");
 				
-				int amount = 0;
+				int amount = mCommands.size();
+				mCommands.clear();
 				
+				// Databases of older versions may still contain commands.
 				for(IdentityFetcherCommand command : getCommands(IdentityFetcherCommand.class)) {
 					command.deleteWithoutCommit();
 					++amount;
@@ -350,6 +571,14 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		}
 	}
 	
+	/**
+	 * Unregisters the {@link CommandBuffer} from the database and deletes its commands.
+	 * For use by {@link WebOfTrust#terminate()} once the database was closed. */
+	void discardCommands() {
+		Persistent.removeTransactionListener(mDB, mCommands);
+		mCommands.clear();
+	}
+	
     /**
      * Synchronization:<br>
      * This function does neither lock the database nor commit the transaction. You have to surround
@@ -380,22 +609,11 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	public void storeStartFetchCommandWithoutCommit(String identityID) {
 		if(logDEBUG) Logger.debug(this, "Start fetch command received for " + identityID);
 		
-		try {
-			getCommand(AbortFetchCommand.class, identityID).deleteWithoutCommit();
-			if(logDEBUG) Logger.debug(this, "Deleting abort fetch command for " + identityID);
-		}
-		catch(NoSuchCommandException e) { }
-		
-		try {
-			getCommand(StartFetchCommand.class, identityID);
+		// Replaces a pending AbortFetch command.
+		if(!mCommands.storeStartFetch(identityID))
 			if(logDEBUG) Logger.debug(this, "Start fetch command already in queue!");
-		}
-		catch(NoSuchCommandException e) {
-			final StartFetchCommand cmd = new StartFetchCommand(identityID);
-			cmd.initializeTransient(mWoT);
-			cmd.storeWithoutCommit();
-			scheduleCommandProcessing();
-		}
+		
+		// scheduleCommandProcessing() is called by mCommands once the transaction is committed.
 	}
 
     /**
@@ -410,15 +628,14 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
      * }}}
      * </code>
      * 
-     * <br><br>TODO: Performance: The backend database query doesn't require the identity, it merely
+     * <br><br>TODO: Code quality: The {@link CommandBuffer} doesn't require the identity, it merely
      * needs its ID. Thus, make this function only consume the ID & adapt the callers.
      */
 	public void storeAbortFetchCommandWithoutCommit(Identity identity) {
 		if(logDEBUG) Logger.debug(this, "Abort fetch command received for " + identity);
 		
-		try {
-			getCommand(StartFetchCommand.class, identity).deleteWithoutCommit();
-			if(logDEBUG) Logger.debug(this, "Deleting start fetch command for " + identity);
+		if(mCommands.get(identity.getID()) == Command.StartFetch) {
+			if(logDEBUG) Logger.debug(this, "Replacing start fetch command for " + identity);
 			
 			// TODO: Performance: The following assert failed randomly, especially when using
 			// WebOfTrust.deleteOwnIdentity() via the web interface. I currently cannot reproduce
@@ -448,18 +665,9 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			return;
 			*/
 		}
-		catch(NoSuchCommandException e) { }
 		
-		try {
-			getCommand(AbortFetchCommand.class, identity);
+		if(!mCommands.storeAbortFetch(identity.getID()))
 			if(logDEBUG) Logger.debug(this, "Abort fetch command already in queue!");
-		}
-		catch(NoSuchCommandException e) {
-			final AbortFetchCommand cmd = new AbortFetchCommand(identity);
-			cmd.initializeTransient(mWoT);
-			cmd.storeWithoutCommit();
-			scheduleCommandProcessing();
-		}
 	}
 	
     /**
@@ -477,20 +685,13 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	public void storeUpdateEditionHintCommandWithoutCommit(String identityID) {
 		if(logDEBUG) Logger.debug(this, "Update edition hint command received for " + identityID);
 		
-		try {
-			getCommand(AbortFetchCommand.class, identityID);
-			Logger.error(this, "Update edition hint command is useless, an abort fetch command is queued!");
-		}
-		catch(NoSuchCommandException e1) {
-			try {
-				getCommand(UpdateEditionHintCommand.class, identityID);
-				if(logDEBUG) Logger.debug(this, "Update edition hint command already in queue!");
-			}
-			catch(NoSuchCommandException e2) {
-				final UpdateEditionHintCommand cmd = new UpdateEditionHintCommand(identityID);
-				cmd.initializeTransient(mWoT);
-				cmd.storeWithoutCommit();
-				scheduleCommandProcessing();
+		if(!mCommands.storeUpdateEditionHint(identityID)) {
+			if(mCommands.get(identityID) == Command.AbortFetch) {
+				Logger.error(this,
+					"Update edition hint command is useless, an abort fetch command is queued!");
+			} else if(logDEBUG) {
+				Logger.debug(this,
+					"Update edition hint command or start fetch command already in queue!");
 			}
 		}
 	}
@@ -526,60 +727,57 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 
 		synchronized(mWoT) { // Lock needed because we do getIdentityByID() in fetch()
 		synchronized(this) {
+		// Nothing is stored, but other threads must not modify the Identitys while we read them.
 		synchronized(Persistent.transactionLock(mDB)) {
-			try  {
-				if(logDEBUG) Logger.debug(this, "Processing identity fetcher commands ...");
+			final HashMap<String, Command> commands = mCommands.drain();
+			
+			if(logDEBUG) {
+				Logger.debug(this,
+					"Processing " + commands.size() + " identity fetcher commands ...");
+			}
+			
+			final Iterator<Entry<String, Command>> iterator = commands.entrySet().iterator();
+			while(iterator.hasNext()) {
+				final Entry<String, Command> command = iterator.next();
+				final String identityID = command.getKey();
 				
-				for(IdentityFetcherCommand command : getCommands(AbortFetchCommand.class)) {
-					try {
-						abortFetch(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch(Exception e) {
-						Logger.error(this, "Aborting fetch failed", e);
+				try {
+					switch(command.getValue()) {
+						case AbortFetch:
+							abortFetch(identityID);
+							break;
+						case StartFetch:
+							fetch(identityID);
+							break;
+						case UpdateEditionHint:
+							editionHintUpdated(identityID);
+							break;
 					}
-					
-					if(thread.isInterrupted())
-					    break;
+				} catch(Exception e) {
+					Logger.error(this, "Processing " + command.getValue() + " command failed for "
+						+ identityID, e);
 				}
 				
-				for(IdentityFetcherCommand command : getCommands(StartFetchCommand.class)) {
-					try {
-						fetch(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch (Exception e) {
-						Logger.error(this, "Fetching identity failed", e);
-					}
-					
-                    if(thread.isInterrupted())
-                        break;
-				}
+				iterator.remove();
 				
-				for(IdentityFetcherCommand command : getCommands(UpdateEditionHintCommand.class)) {
-					try {
-						editionHintUpdated(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch (Exception e) { 
-						Logger.error(this, "Updating edition hint failed", e);
-					}
-					
-                    if(thread.isInterrupted())
-                        break;
+				if(thread.isInterrupted()) {
+					Logger.normal(this, "Shutdown requested, aborting command processing...");
+					mCommands.requeue(commands);
+					break;
 				}
-				
-				// isInterrupted() does not clear the interruption flag, so we do the logging here
-				// instead of duplicating it at each of the above "if(thread.isInterrupted())"
-				if(thread.isInterrupted())
-				    Logger.normal(this, "Shutdown requested, aborting command processing...");
-				
-				if(logDEBUG) Logger.debug(this, "Processing finished.");
-				
-				Persistent.checkedCommit(mDB, this);
-			} catch(RuntimeException e) {
-				Persistent.checkedRollback(mDB, this, e);
 			}
+			
+			if(!thread.isInterrupted())
+				updatePollingTiers();
+			
+			if(logDEBUG) Logger.debug(this, "Processing finished.");
 		}
 		}
 		}
+		
+		// The tiers depend on the time which has passed since the last edition of each Identity.
+		if(!thread.isInterrupted())
+			mJob.triggerExecution(POLLING_TIER_UPDATE_DELAY);
 	}
 	
 	private void fetch(String identityID) throws Exception {
@@ -624,10 +822,32 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 				}
 			}
 
+			final int filePriority = getFilePriority(mWoT, identity);
+			final PollingTier tier = getPollingTier(filePriority,
+				getEditionHistory(identity.getID(), identity.getLastFetchedDate().getTime()),
+				CurrentTimeUTC.getInMillis());
+			
+			if(retriever != null && mPollingTiers.get(identity.getID()) != tier) {
+				// The polling priority is passed to the node when subscribing.
+				if(logMINOR) {
+					Logger.minor(this, "Polling tier changed to " + tier
+						+ ", re-creating the USKRetriever for " + usk);
+				}
+				abortFetch(identity.getID());
+				retriever = null;
+			}
+			
 			if(retriever == null)
-				mRequests.put(identity.getID(), fetch(usk));
+				mRequests.put(identity.getID(), fetch(usk, tier));
+			
+			mPollingTiers.put(identity.getID(), tier);
+			
+			// Also update the priority for existing fetches, it may have changed since they were
+			// started.
+			mFilePriorities.put(identity.getID(), filePriority);
 
-			if(!DEBUG__NETWORK_DUMP_MODE)
+			// mUSKManager is null in unit tests, see fetch(USK, PollingTier).
+			if(!DEBUG__NETWORK_DUMP_MODE && mUSKManager != null)
 				mUSKManager.hintUpdate(usk, identity.getLatestEditionHint(), mClientContext);
 	}
 	
@@ -664,6 +884,8 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	
 	private synchronized void abortFetch(String identityID) {
 		USKRetriever retriever = mRequests.remove(identityID);
+		mFilePriorities.remove(identityID);
+		mPollingTiers.remove(identityID);
 
 		if(retriever == null) {
 			Logger.error(this, "Aborting fetch failed (no fetch found) for identity " + identityID);
@@ -677,8 +899,10 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	
 	/**
 	 * Fetches the given USK and returns the new USKRetriever. Does not check whether there is already a fetch for that USK.
+	 * 
+	 * @param tier Determines the polling priority of the subscription, see {@link TierCallback}.
 	 */
-	private USKRetriever fetch(USK usk) throws MalformedURLException {
+	private USKRetriever fetch(USK usk, PollingTier tier) throws MalformedURLException {
 		if(mUSKManager == null) {
 			Logger.warning(this, "mUSKManager==null, not fetching anything! Only valid in tests!");
 			return null;
@@ -695,36 +919,349 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		if(logDEBUG) Logger.debug(this, "Trying to start fetching uri " + usk); 
 		
 		if(fetchLatestOnly)
-			return mUSKManager.subscribeContent(usk, this, true, fetchContext, RequestStarter.UPDATE_PRIORITY_CLASS, mRequestClient);
+			return mUSKManager.subscribeContent(usk, new TierCallback(tier), true, fetchContext,
+				RequestStarter.UPDATE_PRIORITY_CLASS, mRequestClient);
 		else {
 			// There is no version of subscribeContent() which supports disabling using a
 			// USKSparseProxyCallback, so we manually do what suscribeContent() does except for
 			// using a sparse proxy.
 			// FIXME: Code quality: File a fred pull request which adds such a subscribeContent()
-			USKRetriever ret = new USKRetriever(
-				fetchContext, RequestStarter.UPDATE_PRIORITY_CLASS, mRequestClient, this, usk);
+			USKRetriever ret = new USKRetriever(fetchContext, RequestStarter.UPDATE_PRIORITY_CLASS,
+				mRequestClient, new TierCallback(tier), usk);
 			mUSKManager.subscribe(usk, ret, true, fetchContext.ignoreUSKDatehints, mRequestClient);
 			return ret;
 		}
 	}
 	
+	/** The largest value which {@link #getFilePriority(WebOfTrust, Identity)} returns. */
+	static final int LOWEST_FILE_PRIORITY = WebOfTrust.VALID_CAPACITIES.length - 1;
+
+	/**
+	 * Computes the {@link IdentityFileStream#mPriority} of the files of the given Identity from
+	 * its best capacity, see {@link WebOfTrust#getBestCapacity(Identity)}:<br>
+	 * The files of {@link OwnIdentity}s get 0, the highest priority. Identitys trusted by them
+	 * directly get 1, and so on. Identitys without capacity get {@link #LOWEST_FILE_PRIORITY}.
+	 * <br><br>
+	 * 
+	 * You must synchronize on the WebOfTrust when calling this. */
+	static int getFilePriority(WebOfTrust wot, Identity identity) {
+		int capacity;
+		
+		try {
+			capacity = wot.getBestCapacity(identity);
+		} catch(NotInTrustTreeException e) {
+			capacity = 0;
+		}
+		
+		int index = Arrays.binarySearch(WebOfTrust.VALID_CAPACITIES, capacity);
+		assert(index >= 0);
+		return LOWEST_FILE_PRIORITY - index;
+	}
+
+	/**
+	 * Tiers of the polling priority of the USK subscriptions of Identitys, see
+	 * {@link IdentityFetcher#getPollingTier(int, EditionHistory, long)}.<br>
+	 * The node polls subscriptions of a numerically lower {@link RequestStarter} priority class
+	 * first, so the few Identitys which publish frequently do not have to wait for the polling of
+	 * the many which have not published for months. */
+	enum PollingTier {
+		/**
+		 * Identitys which publish frequently, and the Identitys close to the {@link OwnIdentity}s
+		 * in the trust graph. Polled at the priority which all Identitys used to get. */
+		Active(RequestStarter.UPDATE_PRIORITY_CLASS,
+			RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS),
+		
+		/** Identitys which publish rarely, or whose history is not known yet. */
+		Normal(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS,
+			RequestStarter.UPDATE_PRIORITY_CLASS),
+		
+		/** Identitys which did not publish for {@link IdentityFetcher#DORMANT_AGE}. */
+		Dormant(RequestStarter.PREFETCH_PRIORITY_CLASS,
+			RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+		
+		/** @see USKRetrieverCallback#getPollingPriorityNormal() */
+		final short mPriorityNormal;
+		
+		/** @see USKRetrieverCallback#getPollingPriorityProgress() */
+		final short mPriorityProgress;
+		
+		private PollingTier(short priorityNormal, short priorityProgress) {
+			mPriorityNormal = priorityNormal;
+			mPriorityProgress = priorityProgress;
+		}
+	}
+
+	/**
+	 * The times at which the last new editions of an Identity were found, used to estimate how
+	 * often it publishes.<br>
+	 * Only kept in memory: After a restart, {@link Identity#getLastFetchedDate()} is used as the
+	 * time of the last edition until new ones are found.<br><br>
+	 * 
+	 * Thread-safe, all functions synchronize on the EditionHistory. */
+	static final class EditionHistory {
+		/** Amount of intervals between editions which are kept. */
+		static final int SIZE = 8;
+		
+		/**
+		 * Editions which are found less than this apart are counted as one: When the node was
+		 * offline, several editions are found at once once it comes back. */
+		static final long MIN_INTERVAL = MINUTES.toMillis(10);
+		
+		/** Ring buffer of the last {@link #mIntervalCount} intervals in milliseconds. */
+		private final long[] mIntervals = new long[SIZE];
+		
+		private int mIntervalCount = 0;
+		
+		/** Index in {@link #mIntervals} where the next interval is stored. */
+		private int mNextInterval = 0;
+		
+		/** Time of the last edition in milliseconds. 0 if it is not known. */
+		private long mLastEdition;
+		
+		
+		EditionHistory(long lastEdition) {
+			mLastEdition = lastEdition;
+		}
+		
+		synchronized void onEditionFound(long time) {
+			if(mLastEdition != 0) {
+				final long interval = time - mLastEdition;
+				
+				if(interval < MIN_INTERVAL)
+					return;
+				
+				mIntervals[mNextInterval] = interval;
+				mNextInterval = (mNextInterval + 1) % SIZE;
+				mIntervalCount = Math.min(mIntervalCount + 1, SIZE);
+			}
+			
+			mLastEdition = time;
+		}
+		
+		/** @return The time of the last edition in milliseconds. 0 if it is not known. */
+		synchronized long getLastEdition() {
+			return mLastEdition;
+		}
+		
+		/**
+		 * The median is used instead of the average so a single long pause of an otherwise
+		 * active Identity does not affect its tier for a long time.
+		 * @return The median of the kept intervals between editions, -1 if there is none. */
+		synchronized long getMedianInterval() {
+			if(mIntervalCount == 0)
+				return -1;
+			
+			final long[] intervals = Arrays.copyOf(mIntervals, mIntervalCount);
+			Arrays.sort(intervals);
+			return intervals[intervals.length / 2];
+		}
+	}
+
+	/**
+	 * Identitys with a {@link #getFilePriority(WebOfTrust, Identity)} of at most this are
+	 * always {@link PollingTier#Active}: The {@link OwnIdentity}s and the Identitys they trust
+	 * directly. */
+	static final int ACTIVE_FILE_PRIORITY = 1;
+
+	/**
+	 * Identitys whose {@link EditionHistory#getMedianInterval()} is at most this, and whose
+	 * last edition is at most {@link #ACTIVE_AGE} old, are {@link PollingTier#Active}. */
+	static final long ACTIVE_INTERVAL = DAYS.toMillis(2);
+
+	/** @see #ACTIVE_INTERVAL */
+	static final long ACTIVE_AGE = DAYS.toMillis(7);
+
+	/** Identitys whose last edition is older than this are {@link PollingTier#Dormant}. */
+	static final long DORMANT_AGE = DAYS.toMillis(30);
+
+	/**
+	 * Delay after which {@link #run()} executes {@link #updatePollingTiers()} again: Identitys
+	 * which stop publishing do not cause any events which would change their tier. */
+	private static final long POLLING_TIER_UPDATE_DELAY = HOURS.toMillis(1);
+
+	/**
+	 * @param filePriority The {@link #getFilePriority(WebOfTrust, Identity)} of the Identity.
+	 * @param now The current time in milliseconds. */
+	static PollingTier getPollingTier(int filePriority, EditionHistory history, long now) {
+		if(filePriority <= ACTIVE_FILE_PRIORITY)
+			return PollingTier.Active;
+		
+		final long lastEdition = history.getLastEdition();
+		
+		if(lastEdition == 0) // Was never fetched, so we know nothing about it.
+			return PollingTier.Normal;
+		
+		final long age = now - lastEdition;
+		
+		if(age > DORMANT_AGE)
+			return PollingTier.Dormant;
+		
+		final long interval = history.getMedianInterval();
+		
+		if(interval != -1 && interval <= ACTIVE_INTERVAL && age <= ACTIVE_AGE)
+			return PollingTier.Active;
+		
+		return PollingTier.Normal;
+	}
+
+	/**
+	 * Gets the {@link EditionHistory} of the given Identity from {@link #mEditionHistories},
+	 * creating it if it does not exist yet.
+	 * @param lastEdition See {@link EditionHistory#EditionHistory(long)}. */
+	private EditionHistory getEditionHistory(String identityID, long lastEdition) {
+		final EditionHistory history = mEditionHistories.get(identityID);
+		if(history != null)
+			return history;
+		
+		final EditionHistory newHistory = new EditionHistory(lastEdition);
+		final EditionHistory existing = mEditionHistories.putIfAbsent(identityID, newHistory);
+		return existing != null ? existing : newHistory;
+	}
+
+	/**
+	 * Adds a new edition of the given Identity to its {@link EditionHistory}. If this changes
+	 * its {@link PollingTier}, schedules {@link #updatePollingTiers()}.<br>
+	 * Does not synchronize on this IdentityFetcher, see {@link #mFilePriorities}. */
+	private void onEditionFound(String identityID) {
+		final long now = CurrentTimeUTC.getInMillis();
+		final EditionHistory history = getEditionHistory(identityID, 0);
+		history.onEditionFound(now);
+		
+		final Integer filePriority = mFilePriorities.get(identityID);
+		final PollingTier tier = mPollingTiers.get(identityID);
+		
+		if(filePriority != null && tier != null
+				&& getPollingTier(filePriority, history, now) != tier) {
+			
+			scheduleCommandProcessing();
+		}
+	}
+
+	/**
+	 * Restarts the fetches of the Identitys whose {@link PollingTier} has changed since their
+	 * fetch was started, so the node uses the new polling priority.<br><br>
+	 * 
+	 * You have to synchronize on the WebOfTrust and then on this IdentityFetcher before calling
+	 * this function! */
+	private void updatePollingTiers() {
+		final Thread thread = Thread.currentThread();
+		final long now = CurrentTimeUTC.getInMillis();
+		int changed = 0;
+		
+		for(String identityID : new ArrayList<String>(mRequests.keySet())) {
+			final Integer filePriority = mFilePriorities.get(identityID);
+			final EditionHistory history = mEditionHistories.get(identityID);
+			
+			if(filePriority == null || history == null
+					|| getPollingTier(filePriority, history, now) == mPollingTiers.get(identityID))
+				continue;
+			
+			try {
+				// Recomputes the tier and re-creates the USKRetriever.
+				fetch(identityID);
+				++changed;
+			} catch(Exception e) {
+				Logger.error(this, "Updating polling tier failed for " + identityID, e);
+			}
+			
+			if(thread.isInterrupted())
+				break;
+		}
+		
+		if(logDEBUG) Logger.debug(this, "Updated polling tiers of " + changed + " identities.");
+	}
+
+	/**
+	 * Callback of the USK subscription of a single Identity: Passes the found editions to
+	 * {@link IdentityFetcher#onFound(USK, long, FetchResult)}, and tells the node the polling
+	 * priority of the {@link PollingTier} of the Identity. */
+	private final class TierCallback implements USKRetrieverCallback {
+		private final PollingTier mTier;
+		
+		TierCallback(PollingTier tier) {
+			mTier = tier;
+		}
+		
+		@Override public void onFound(USK origUSK, long edition, FetchResult data) {
+			IdentityFetcher.this.onFound(origUSK, edition, data);
+		}
+		
+		@Override public short getPollingPriorityNormal() {
+			return mTier.mPriorityNormal;
+		}
+		
+		@Override public short getPollingPriorityProgress() {
+			return mTier.mPriorityProgress;
+		}
+	}
+
+	/**
+	 * The subscriptions do not use the IdentityFetcher as callback anymore but a
+	 * {@link TierCallback}, so this merely returns the priority of {@link PollingTier#Active}. */
 	@Override
 	public short getPollingPriorityNormal() {
-		return RequestStarter.UPDATE_PRIORITY_CLASS;
+		return PollingTier.Active.mPriorityNormal;
 	}
 
+	/** @see #getPollingPriorityNormal() */
 	@Override
 	public short getPollingPriorityProgress() {
-		return RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS;
+		return PollingTier.Active.mPriorityProgress;
 	}
 
 	
+	/**
+	 * Sets the maximal amount of Identitys whose fetches {@link #start()} starts at once, i.e.
+	 * while holding the lock of the {@link WebOfTrust}.<br>
+	 * The constructor sets it from {@link Configuration#IDENTITY_FETCHER_STARTUP_BATCH_SIZE}.
+	 * Changes take effect at the next batch. */
+	public void setStartupBatchSize(int batchSize) {
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Illegal batch size: " + batchSize);
+		
+		mStartupBatchSize = batchSize;
+	}
+
+	/**
+	 * Sets the delay in milliseconds between the batches of {@link #setStartupBatchSize(int)}.
+	 * This frees the lock of the {@link WebOfTrust} for other threads, and avoids flooding the
+	 * request starters of Freenet with thousands of new requests at once.<br>
+	 * The constructor sets it from {@link Configuration#IDENTITY_FETCHER_STARTUP_BATCH_DELAY}.
+	 * Must be called before {@link #start()}. */
+	public void setStartupBatchDelay(long delayMillis) {
+		if(delayMillis < 0)
+			throw new IllegalArgumentException("Illegal delay: " + delayMillis);
+		
+		mStartupBatchDelay = delayMillis;
+	}
+
+	/** Gets a copy of the progress of starting the fetches of all Identitys at startup. */
+	public StartupStatistics getStartupStatistics() {
+		synchronized(mStartupStatistics) {
+			return mStartupStatistics.clone();
+		}
+	}
+
 	/**
 	 * Deletes all existing commands using {@link #deleteAllCommands()}. Enables usage of {@link #scheduleCommandProcessing()}.
+	 * 
+	 * Starts fetching all Identitys for which {@link WebOfTrust#shouldFetchIdentity(Identity)} is
+	 * true. This is done in batches in the background to not block the WebOfTrust for a long
+	 * time, see {@link #startFetchBatch()}. Identitys close to the {@link OwnIdentity}s in the
+	 * trust graph are fetched first, see {@link #getIdentitiesToFetch()}.
 	 */
 	protected void start() {
         Logger.normal(this, "start()...");
 
+        final PluginRespirator respirator = mWoT.getPluginRespirator();
+        final Ticker ticker;
+        final Runnable jobRunnable;
+        final Runnable startupJobRunnable = new Runnable() { @Override public void run() {
+                if(startFetchBatch())
+                    mStartupJob.triggerExecution(mStartupBatchDelay);
+            }
+        };
+
         synchronized (mWoT) {
         synchronized (this) {
 
@@ -742,23 +1279,11 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
          // scheduleCommandProcessing() is functioning at the moment a command is created.
 		deleteAllCommands();
 
-        Logger.normal(this, "Starting fetches of all identities...");
-        for(Identity identity : mWoT.getAllIdentities()) {
-            if(mWoT.shouldFetchIdentity(identity)) {
-                try {
-                    fetch(identity);
-                }
-                catch(Exception e) {
-                    Logger.error(this, "Fetching identity failed!", e);
-                }
-            }
-        }
+        // Commands which are created from now on are not lost even though the fetches of the
+        // startup batches are not started yet: startFetchBatch() checks whether each Identity
+        // is still to be fetched, and fetch(Identity) handles Identitys being fetched already.
+        initializeStartupBatches();
 
-
-        final PluginRespirator respirator = mWoT.getPluginRespirator();
-        final Ticker ticker;
-        final Runnable jobRunnable;
-        
         if(respirator != null) { // We are connected to a node
             ticker = respirator.getNode().getTicker();
             jobRunnable = this;
@@ -783,14 +1308,186 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
         
         // Set the volatile mJob after all of startup is finished to ensure that stop() can use it
         // *without* synchronization to check whether start() was called already.
+        mStartupJob = new TickerDelayedBackgroundJob(startupJobRunnable,
+            "WoT IdentityFetcher startup", mStartupBatchDelay, ticker);
         mJob = new TickerDelayedBackgroundJob(
             jobRunnable, "WoT IdentityFetcher", PROCESS_COMMANDS_DELAY, ticker);
         
         } // synchronized(this)
         } // synchronized(mWoT)
 
+        if(respirator != null) {
+            mStartupJob.triggerExecution(0);
+            mJob.triggerExecution(POLLING_TIER_UPDATE_DELAY);
+        } else {
+            // For the same reason as for mJob we do not use the job in unit tests. As the tests
+            // expect the fetches to be started once start() returns, we do it synchronously.
+            while(startFetchBatch()) { }
+        }
+
         Logger.normal(this, "start() finished.");
 	}
+
+	/**
+	 * Gets the IDs of all Identitys for which {@link WebOfTrust#shouldFetchIdentity(Identity)}
+	 * is true, ordered by their best {@link Score#getRank()} ascending and then by their best
+	 * {@link Score#getCapacity()} descending. Thus the {@link OwnIdentity}s come first, then the
+	 * Identitys which they trust directly, and so on.<br><br>
+	 * 
+	 * Uses the {@link WebOfTrust#getScoreSnapshot()} so it does not need to activate each
+	 * Identity in the database. If it is not available, falls back to the database, and orders
+	 * by {@link #getFilePriority(WebOfTrust, Identity)} only.<br><br>
+	 * 
+	 * You must synchronize on the WebOfTrust when calling this. */
+	String[] getIdentitiesToFetch() {
+		final ScoreTable.Snapshot scores = mWoT.getScoreSnapshot();
+		
+		if(scores == null) {
+			// The priorities are small integers, so we sort using one list per priority.
+			final ArrayList<ArrayList<String>> byPriority = new ArrayList<ArrayList<String>>();
+			for(int priority = 0; priority <= LOWEST_FILE_PRIORITY; ++priority)
+				byPriority.add(new ArrayList<String>());
+			
+			for(Identity identity : mWoT.getAllIdentities()) {
+				if(mWoT.shouldFetchIdentity(identity))
+					byPriority.get(getFilePriority(mWoT, identity)).add(identity.getID());
+			}
+			
+			final ArrayList<String> result = new ArrayList<String>();
+			for(ArrayList<String> ids : byPriority)
+				result.addAll(ids);
+			return result.toArray(new String[result.size()]);
+		}
+		
+		final int vertexCount = scores.getVertexCount();
+		final int[] bestRank = new int[vertexCount];
+		final int[] bestCapacity = new int[vertexCount];
+		final boolean[] shouldFetch = new boolean[vertexCount];
+		Arrays.fill(bestRank, Integer.MAX_VALUE);
+		
+		// Same criteria as WebOfTrust.setBestScoreWithoutCommit()
+		for(ScoreTable.Tree tree : scores.getTrees()) {
+			final int owner = scores.getVertex(tree.getOwnerID());
+			if(tree.hasScore(owner))
+				shouldFetch[owner] = true;
+			
+			for(int vertex = 0; vertex < vertexCount; ++vertex) {
+				if(!tree.hasScore(vertex))
+					continue;
+				
+				final int capacity = tree.getCapacity(vertex);
+				bestRank[vertex] = Math.min(bestRank[vertex], tree.getRank(vertex));
+				bestCapacity[vertex] = Math.max(bestCapacity[vertex], capacity);
+				
+				if(capacity > 0 || tree.getValue(vertex) >= 0)
+					shouldFetch[vertex] = true;
+			}
+		}
+		
+		final ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int vertex = 0; vertex < vertexCount; ++vertex) {
+			if(shouldFetch[vertex])
+				order.add(vertex);
+		}
+		
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override public int compare(Integer v1, Integer v2) {
+				if(bestRank[v1] != bestRank[v2])
+					return bestRank[v1] < bestRank[v2] ? -1 : 1;
+				
+				return Integer.compare(bestCapacity[v2], bestCapacity[v1]);
+			}
+		});
+		
+		final String[] result = new String[order.size()];
+		for(int i = 0; i < result.length; ++i)
+			result[i] = scores.getIdentityID(order.get(i));
+		return result;
+	}
+
+	/**
+	 * Sets the {@link #mStartupIdentities} to {@link #getIdentitiesToFetch()} and resets the
+	 * {@link StartupStatistics}, so {@link #startFetchBatch()} processes them from the beginning.
+	 * <br>
+	 * Called by {@link #start()}. Package-private so unit tests can repeat the startup.
+	 * 
+	 * You must synchronize on the WebOfTrust and then on this IdentityFetcher when calling this.
+	 */
+	void initializeStartupBatches() {
+		mStartupIdentities = getIdentitiesToFetch();
+		mStartupPosition = 0;
+		
+		synchronized(mStartupStatistics) {
+			mStartupStatistics.mIdentitysToFetch = mStartupIdentities.length;
+			mStartupStatistics.mProcessedIdentitys = 0;
+			mStartupStatistics.mStartedFetches = 0;
+			mStartupStatistics.mBatches = 0;
+			mStartupStatistics.mStartTime = CurrentTimeUTC.getInMillis();
+			mStartupStatistics.mFinishTime = 0;
+		}
+	}
+
+	/**
+	 * Starts the fetches of the next {@link #setStartupBatchSize(int)} of the
+	 * {@link #mStartupIdentities}.<br>
+	 * Only holds the locks for the duration of a single batch.<br>
+	 * Package-private for unit tests.
+	 * 
+	 * @return True if there are Identitys left to process. */
+	boolean startFetchBatch() {
+		final Thread thread = Thread.currentThread();
+		
+		synchronized(mWoT) {
+		synchronized(this) {
+			if(mStartupIdentities == null)
+				return false;
+			
+			final int end = Math.min(mStartupIdentities.length,
+				mStartupPosition + mStartupBatchSize);
+			int started = 0;
+			
+			for(int i = mStartupPosition; i < end; ++i) {
+				try {
+					final Identity identity = mWoT.getIdentityByID(mStartupIdentities[i]);
+					
+					// Commands may have been processed since start(), see there.
+					if(mWoT.shouldFetchIdentity(identity)) {
+						fetch(identity);
+						++started;
+					}
+				} catch(UnknownIdentityException e) {
+					// Was deleted meanwhile
+				} catch(Exception e) {
+					Logger.error(this, "Fetching identity failed!", e);
+				}
+			}
+			
+			final int processed = end - mStartupPosition;
+			mStartupPosition = end;
+			final boolean finished = mStartupPosition == mStartupIdentities.length;
+			if(finished)
+				mStartupIdentities = null;
+			
+			synchronized(mStartupStatistics) {
+				mStartupStatistics.mProcessedIdentitys += processed;
+				mStartupStatistics.mStartedFetches += started;
+				++mStartupStatistics.mBatches;
+				if(finished)
+					mStartupStatistics.mFinishTime = CurrentTimeUTC.getInMillis();
+			}
+			
+			if(finished)
+				Logger.normal(this, "Started fetches of all identities.");
+			
+			if(thread.isInterrupted()) {
+				Logger.normal(this, "Shutdown requested, aborting starting fetches...");
+				return false;
+			}
+			
+			return !finished;
+		}
+		}
+	}
 	
 	/**
      * Stops all running requests.<br><br>
@@ -832,11 +1529,13 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		// succeed silently if called multiple times.
 		assert !mJob.isTerminated() : "stop() called already";
 		
+		mStartupJob.terminate();
 		mJob.terminate();
         try {
             // We must wait without timeout since we need to cancel our requests at the core of
-            // Freenet (see below synchronized(this)) and the job thread might create requests until
-            // it is terminated.
+            // Freenet (see below synchronized(this)) and the job threads might create requests
+            // until they are terminated.
+            mStartupJob.waitForTermination(Long.MAX_VALUE);
             mJob.waitForTermination(Long.MAX_VALUE);
         } catch (InterruptedException e) {
             // We are a shutdown function, there is no sense in sending a shutdown signal to us.
@@ -845,9 +1544,10 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
         
         // We are safe now to terminate all existing Freenet requests since no new ones can be
         // created anymore:
-        // - only start() and run() do so.
+        // - only start(), startFetchBatch() and run() do so.
         // - start() is not possible anymore
-        // - run() can only be executed by mJob, and it will not do so after waitForTermination().
+        // - run() and startFetchBatch() can only be executed by mJob and mStartupJob, and they
+        //   will not do so after waitForTermination().
         // 
         // Nevertheless, all access to mRequests needs to be guarded by synchronized(this):
         // - It is also accessed by our Freenet callback handlers which might be called by fred at
@@ -866,6 +1566,9 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			 ++counter;
 		}
 		mRequests.clear();
+		mFilePriorities.clear();
+		mPollingTiers.clear();
+		mEditionHistories.clear();
 		
 		if(logDEBUG) Logger.debug(this, "Stopped " + counter + " current requests");
 		}
@@ -889,7 +1592,16 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			bucket = result.asBucket();
 			inputStream = bucket.getInputStream();
 			
-			mQueue.add(new IdentityFileStream(realURI, inputStream));
+			final String identityID
+				= IdentityID.constructAndValidateFromURI(realURI).toString();
+			onEditionFound(identityID);
+			
+			Integer priority = mFilePriorities.get(identityID);
+			
+			// The fetch might have been aborted meanwhile: Use the lowest priority since the
+			// IdentityFileProcessor will then not import the file anyway.
+			mQueue.add(new IdentityFileStream(realURI, inputStream,
+				priority != null ? priority : LOWEST_FILE_PRIORITY));
 		}
 		catch(Exception e) {
 			Logger.error(this, "Queueing identity XML failed: " + realURI, e);
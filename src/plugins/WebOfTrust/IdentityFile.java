@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.zip.CRC32;
 
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
@@ -42,6 +44,9 @@ import freenet.support.io.LineReadingInputStream;
  * </Identity>
  * </WebOfTrust>
  * 
+ * The values of CRC32 and DataLength may be padded with leading zeros, see
+ * {@link #write(IdentityFileStream, File, byte[])}.
+ * 
  * REASONS FOR CHOICE OF FILE FORMAT:
  * 
  * The human readable file format is a combination of {@link SimpleFieldSet} and XML:
@@ -73,6 +78,15 @@ final class IdentityFile {
 	
 	public static transient final int FILE_FORMAT_VERSION = 6;
 
+	/**
+	 * Value which {@link #write(IdentityFileStream, File, byte[])} writes for the CRC32 before it
+	 * knows it. Has the width of the largest value so the actual one can be written over it.
+	 * {@link #read(File)} accepts the leading zeros. */
+	private static transient final String CRC32_PLACEHOLDER = "00000000";
+
+	/** Same as {@link #CRC32_PLACEHOLDER} for the DataLength, which is an int. */
+	private static transient final String DATA_LENGTH_PLACEHOLDER = "0000000000";
+
 	/** @see #getURI() */
 	private final FreenetURI mURI;
 
@@ -93,7 +107,9 @@ final class IdentityFile {
 		
 		ByteArrayOutputStream bos = null;
 		try {
-			bos = new ByteArrayOutputStream(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1);
+			// Not sized to XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE: Most files are much smaller,
+			// so that would allocate far more memory than needed.
+			bos = new ByteArrayOutputStream();
 			FileUtil.copy(source.mXMLInputStream, bos, -1);
 			xml = bos.toByteArray();
 			assert(xml.length <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
@@ -137,6 +153,96 @@ final class IdentityFile {
 		}
 	}
 
+	/**
+	 * Writes the given stream to the given file in the same format as {@link #write(File)}, but
+	 * without loading the XML into memory as a whole as {@link #read(IdentityFileStream)} does:
+	 * The XML is copied in chunks of the size of the given buffer, and the CRC32 is computed
+	 * while copying. The header values which are only known afterwards are then written over
+	 * placeholders.<br>
+	 * Thus the memory usage does not depend on the file size, which is what the
+	 * {@link IdentityFileDiskQueue} needs: It must store fetched files quickly, and many of them.
+	 * <br><br>
+	 * 
+	 * Closes the {@link IdentityFileStream#mXMLInputStream}.
+	 * 
+	 * @param buffer
+	 *     Used for copying. Can be re-used for multiple calls, but not by concurrent ones. */
+	static void write(IdentityFileStream source, File file, byte[] buffer) {
+		final String uri = source.mURI.toString();
+		final InputStream xmlInputStream = source.mXMLInputStream;
+		
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		// Metadata
+		sfs.setHeader("IdentityFile");
+		sfs.put("Version", FILE_FORMAT_VERSION);
+		// Data
+		sfs.putOverwrite("SourceURI", uri);
+		sfs.putOverwrite("CRC32", CRC32_PLACEHOLDER);
+		sfs.putOverwrite("DataLength", DATA_LENGTH_PLACEHOLDER);
+		// XML follows after SimpleFieldSet dump
+		sfs.setEndMarker("Data");
+		
+		RandomAccessFile raf = null;
+		
+		try {
+			// See write(File) concerning the Charset.
+			assert(XMLTransformer.XML_CHARSET.name().equals("UTF-8"));
+			ByteArrayOutputStream headerBos = new ByteArrayOutputStream(256 + uri.length());
+			sfs.writeTo(headerBos);
+			final byte[] header = headerBos.toByteArray();
+			final int crcOffset = getValueOffset(header, "CRC32", CRC32_PLACEHOLDER);
+			final int lengthOffset
+				= getValueOffset(header, "DataLength", DATA_LENGTH_PLACEHOLDER);
+			
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0);
+			raf.write(header);
+			
+			// Same as crc32()
+			CRC32 crc = new CRC32();
+			crc.update(uri.getBytes(XMLTransformer.XML_CHARSET));
+			long length = 0;
+			
+			int read;
+			while((read = xmlInputStream.read(buffer)) != -1) {
+				length += read;
+				if(length > XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE)
+					throw new IOException("File is too large: " + uri);
+				
+				crc.update(buffer, 0, read);
+				raf.write(buffer, 0, read);
+			}
+			
+			raf.seek(crcOffset);
+			raf.write(String.format("%08x", crc.getValue()).getBytes(XMLTransformer.XML_CHARSET));
+			raf.seek(lengthOffset);
+			raf.write(String.format("%010d", length).getBytes(XMLTransformer.XML_CHARSET));
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Closer.close(raf);
+			Closer.close(xmlInputStream);
+		}
+	}
+
+	/**
+	 * Gets the offset of the value of the given key in the serialized {@link SimpleFieldSet}.
+	 * For {@link #write(IdentityFileStream, File, byte[])}. */
+	private static int getValueOffset(byte[] sfs, String key, String value) throws IOException {
+		final String serialized = new String(sfs, XMLTransformer.XML_CHARSET);
+		final String line = "\n" + key + "=" + value + "\n";
+		final int index = serialized.indexOf(line);
+		if(index == -1)
+			throw new IOException("Key not found: " + key);
+		
+		// The String must not contain multi-byte characters before the value, otherwise the
+		// index of the character would not be the index of the byte.
+		final int offset = index + 1 + key.length() + 1;
+		assert(serialized.substring(0, offset).getBytes(XMLTransformer.XML_CHARSET).length
+			== offset) : "Multi-byte characters in the header: " + serialized;
+		return offset;
+	}
+
 	public static IdentityFile read(File source) {
 		FileInputStream fis = null;
 		LineReadingInputStream lris = null;
@@ -8,7 +8,10 @@ import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
@@ -22,7 +25,10 @@ import freenet.support.Logger.LogLevel;
  * 
  * Deduplicating queue: Only the latest edition of each file is returned; see
  * {@link IdentityFileQueue} for details.<br>
- * The order of files is not preserved.<br>
+ * Files are returned in the order of their {@link IdentityFileStream#mPriority}, with aging to
+ * prevent starvation, see {@link #mPriorityAging}. Files of equal priority are returned in the
+ * order in which they were queued. A deduplicated file takes the place of the file it replaced.
+ * Across restarts the order is not preserved.<br>
  */
 final class IdentityFileDiskQueue implements IdentityFileQueue {
 	/** Subdirectory of WOT data directory where we put our data dirs. */
@@ -44,6 +50,33 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
 	private final boolean mDeduplicationEnabled;
 
+	/**
+	 * In-memory index of the files in {@link #mQueueDir}: Maps the filename of each queued file
+	 * to its {@link QueuedFile} entry.<br><br>
+	 * 
+	 * Built once by {@link #cleanDirectories()}, then kept in sync with the disk by add() and
+	 * poll(). This prevents them from having to list or parse the queue directory, which would
+	 * make them slow down as the amount of queued files grows. */
+	private final HashMap<String, QueuedFile> mQueueIndex = new HashMap<String, QueuedFile>();
+
+	/** Contains the same {@link QueuedFile}s as {@link #mQueueIndex}, in the order of poll(). */
+	private final PriorityQueue<QueuedFile> mPollOrder = new PriorityQueue<QueuedFile>();
+
+	/** Amount of files which were added to {@link #mQueueIndex}. Used for QueuedFile#mIndex. */
+	private long mQueueIndexCounter = 0;
+
+	/**
+	 * A file of {@link IdentityFileStream#mPriority} P is polled as if it had been queued after the
+	 * next P * mPriorityAging files.<br>
+	 * In other words: At most P * mPriorityAging files which arrive after a file can overtake it.
+	 * This is the aging which prevents files of low priority from starving.<br><br>
+	 * 
+	 * 0 disables prioritization, files are then polled in the order they were queued. */
+	private int mPriorityAging = DEFAULT_PRIORITY_AGING;
+
+	/** @see #mPriorityAging */
+	public static final int DEFAULT_PRIORITY_AGING = 128;
+
 	/**
 	 * Amount of old files in {@link #mFinishedDir}, i.e. files from a previous session.<br>
 	 * We use this to ensure that filename index prefixes of new files do not collide.<br><br>
@@ -55,6 +88,16 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 
 	/** @see #getStatistics() */
 	private final IdentityFileQueueStatistics mStatistics = new IdentityFileQueueStatistics();
+
+	/**
+	 * Buffer for copying the files passed to {@link #add(IdentityFileStream)} to disk, see
+	 * {@link IdentityFile#write(IdentityFileStream, File, byte[])}.<br>
+	 * Allocated once since add() is called for each fetched file. Guarded by synchronized(this).
+	 */
+	private final byte[] mCopyBuffer = new byte[COPY_BUFFER_SIZE];
+
+	/** @see #mCopyBuffer */
+	private static final int COPY_BUFFER_SIZE = 32 * 1024;
 	
 	/** @see #registerEventHandler(BackgroundJob) */
 	private BackgroundJob mEventHandler;
@@ -115,12 +158,19 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		// Queue dir policy:
 		// - Keep all queued files so we don't have to download them again.
 		// - Count them so mStatistics.mQueuedFiles is correct.
-		for(File file : mQueueDir.listFiles()) {
+		// - Add them to mQueueIndex. Sort them first so they are polled in a reproducible
+		//   order, which is useful for debugging. Their priority was not stored, so we give them
+		//   the highest one: They have been waiting since the previous session already.
+		File[] queue = mQueueDir.listFiles();
+		Arrays.sort(queue);
+		
+		for(File file : queue) {
 			if(!file.getName().endsWith(IdentityFile.FILE_EXTENSION)) {
 				Logger.warning(this, "cleanDirectories(): Unexpected file type: " + file);
 				continue;
 			}
 
+			addToQueueIndex(file.getName(), null, 0);
 			++mStatistics.mQueuedFiles;
 			++mStatistics.mTotalQueuedFiles;
 		}
@@ -199,15 +249,23 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			++mStatistics.mTotalQueuedFiles;
 			
 			File filename = getQueueFilename(identityFileStream.mURI);
+			long givenEdition = identityFileStream.mURI.getEdition();
 			// Delete for deduplication
-			if(filename.exists()) {
-				IdentityFile existingQueuedData = IdentityFile.read(filename);
-				assert(IdentityID.constructAndValidateFromURI(existingQueuedData.getURI())
-					   .equals(IdentityID.constructAndValidateFromURI(identityFileStream.mURI)))
-					: "Filenames should only collide for the same Identity, see getQueueFilename()";
+			QueuedFile existingQueuedFile = mQueueIndex.get(filename.getName());
+			if(existingQueuedFile != null) {
+				Long existingQueuedEdition = existingQueuedFile.mEdition;
 				
-				long existingQueuedEdition = existingQueuedData.getURI().getEdition();
-				long givenEdition = identityFileStream.mURI.getEdition();
+				if(existingQueuedEdition == null) {
+					// File from a previous session, see QueuedFile.mEdition
+					IdentityFile existingQueuedData = IdentityFile.read(filename);
+					assert(IdentityID.constructAndValidateFromURI(existingQueuedData.getURI())
+						.equals(IdentityID.constructAndValidateFromURI(identityFileStream.mURI)))
+						: "Filenames should only collide for the same Identity, "
+						+ "see getQueueFilename()";
+					
+					existingQueuedEdition = existingQueuedData.getURI().getEdition();
+					existingQueuedFile.mEdition = existingQueuedEdition;
+				}
 				
 				// Make sure that we do not delete a queued new edition in favor of an old one
 				// passed to us. This can happen because:
@@ -231,7 +289,9 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					assert(checkDiskConsistency());
 					return;
 				} else {
-					// Queued file *is* old, deduplicate it
+					// Queued file *is* old, deduplicate it.
+					// We keep its QueuedFile so the new file takes its place in the poll() order:
+					// Otherwise Identitys which publish often would starve.
 					if(filename.delete()) {
 						if(logMINOR) {
 							Logger.minor(this, "Deduplicating edition " + existingQueuedEdition
@@ -251,7 +311,26 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			
 			// FIXME: Measure how long this takes. The IdentityFileProcessor contains code which
 			// could be recycled for that.
-			IdentityFile.read(identityFileStream).write(filename);
+			boolean written = false;
+			try {
+				IdentityFile.write(identityFileStream, filename, mCopyBuffer);
+				written = true;
+			} finally {
+				if(!written) {
+					// Keep mQueueIndex in sync with the disk: Remove the entry of a deduplicated
+					// file, and any partially written file.
+					if(existingQueuedFile != null) {
+						mQueueIndex.remove(filename.getName());
+						mPollOrder.remove(existingQueuedFile);
+					}
+					filename.delete();
+				}
+			}
+			
+			if(existingQueuedFile != null)
+				existingQueuedFile.mEdition = givenEdition;
+			else
+				addToQueueIndex(filename.getName(), givenEdition, identityFileStream.mPriority);
 			
 			++mStatistics.mQueuedFiles;
 			assert(mStatistics.checkConsistency());
@@ -319,22 +398,35 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		return IdentityID.constructAndValidateFromURI(identityURI).toStringBase32();
 	}
 
-	@Override public synchronized IdentityFileStream poll() {
-		File[] queue = mQueueDir.listFiles();
-		assert(queue.length == mStatistics.mQueuedFiles);
+	/**
+	 * Adds a file to {@link #mQueueIndex} and {@link #mPollOrder}.<br>
+	 * Does NOT add it to the disk or increment {@link IdentityFileQueueStatistics#mQueuedFiles}.
+	 */
+	private void addToQueueIndex(String filename, Long edition, int priority) {
+		QueuedFile queuedFile = new QueuedFile(filename, edition,
+			mQueueIndexCounter++, (long)priority * mPriorityAging);
 		
-		if(logDEBUG) {
-			Logger.debug(this, "poll(): DEBUG logging enabled, sorting files alphabetically...");
-			Arrays.sort(queue);
-		}
+		QueuedFile previous = mQueueIndex.put(filename, queuedFile);
+		assert(previous == null);
+		mPollOrder.add(queuedFile);
+	}
 
-		// In theory, we should not have to loop over the result of listFiles(), we could always
-		// return the first slot in its resulting array: poll() is not required to return any
-		// specific selection of files.
-		// However, to be robust against things such as the user sticking arbitrary files in the
-		// directory, we loop over the files in the queue dir nevertheless:
-		// If processing a file fails, we try the others until we succeed. 
-		for(File queuedFile : queue) {
+	@Override public synchronized IdentityFileStream poll() {
+		assert(mQueueIndex.size() == mStatistics.mQueuedFiles);
+		assert(mPollOrder.size() == mQueueIndex.size());
+
+		// In theory, we should not have to loop over mPollOrder, we could always return its
+		// first entry.
+		// However, to be robust against things such as files being corrupted on disk, we loop
+		// over the queue nevertheless: If processing a file fails, we try the others until we
+		// succeed.
+		// Files which fail but are kept on disk, e.g. for debugging, are put back into
+		// mPollOrder before we return so they are retried by the next poll().
+		ArrayList<QueuedFile> keptFailedFiles = new ArrayList<QueuedFile>(0);
+		QueuedFile queued;
+		while((queued = mPollOrder.poll()) != null) {
+			File queuedFile = new File(mQueueDir, queued.mFilename);
+			
 			try {
 				IdentityFile fileData = IdentityFile.read(queuedFile);
 				
@@ -347,6 +439,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			                                 + "; dest: " + dequeuedFile);
 				}
 				
+				mQueueIndex.remove(queued.mFilename);
+				
 				// The InputStreamWithCleanup wrapper will remove the file from mProcessingDir once
 				// the stream is close()d.
 				// TODO: Code quality: Close inner streams upon construction failure of outer ones.
@@ -364,6 +458,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 				assert(mStatistics.checkConsistency());
 				assert(checkDiskConsistency());
 				
+				mPollOrder.addAll(keptFailedFiles);
+				
 				if(logDEBUG) Logger.debug(this, "poll(): Yielded " + queuedFile.getName());
 				return result;
 			} catch(RuntimeException e) {
@@ -376,22 +472,71 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					Logger.error(this, "logDEBUG is false, deleting erroneous file: " + queuedFile);
 					
 					if(queuedFile.delete()) {
+						mQueueIndex.remove(queued.mFilename);
 						--mStatistics.mQueuedFiles;
 						assert(mStatistics.checkConsistency());
 						assert(checkDiskConsistency());
-					} else
+					} else {
 						Logger.error(this, "Cannot delete file: " + queuedFile);
-				}
+						keptFailedFiles.add(queued);
+					}
+				} else
+					keptFailedFiles.add(queued);
 				
 				// Try whether we can process the next file
 				continue;
 			}
 		}
+		
+		mPollOrder.addAll(keptFailedFiles);
 
 		if(logDEBUG) Logger.debug(this, "poll(): Yielded no file" );
 		return null; // Queue is empty
 	}
 
+	/**
+	 * Entry of {@link IdentityFileDiskQueue#mQueueIndex} and
+	 * {@link IdentityFileDiskQueue#mPollOrder}. */
+	private static final class QueuedFile implements Comparable<QueuedFile> {
+		/** Name of the file in {@link IdentityFileDiskQueue#mQueueDir}. */
+		final String mFilename;
+
+		/**
+		 * The {@link FreenetURI#getEdition()} the file was downloaded from.<br>
+		 * Null for files which were queued in a previous session: Reading each of them at startup
+		 * would slow it down, so {@link IdentityFileDiskQueue#add(IdentityFileStream)} reads the
+		 * edition from disk only once a file of the same {@link Identity} arrives, which may never
+		 * happen. */
+		Long mEdition;
+
+		/** Value of {@link IdentityFileDiskQueue#mQueueIndexCounter} when the file was queued. */
+		final long mIndex;
+
+		/**
+		 * The poll() order is ascending by mIndex + mPriorityPenalty.<br>
+		 * See {@link IdentityFileDiskQueue#mPriorityAging}. */
+		final long mPriorityPenalty;
+
+
+		QueuedFile(String filename, Long edition, long index, long priorityPenalty) {
+			mFilename = filename;
+			mEdition = edition;
+			mIndex = index;
+			mPriorityPenalty = priorityPenalty;
+		}
+
+		@Override public int compareTo(QueuedFile other) {
+			long key = mIndex + mPriorityPenalty;
+			long otherKey = other.mIndex + other.mPriorityPenalty;
+			
+			if(key != otherKey)
+				return key < otherKey ? -1 : 1;
+			
+			// Ensure FIFO for equal keys
+			return mIndex < other.mIndex ? -1 : (mIndex == other.mIndex ? 0 : 1);
+		}
+	}
+
 	/**
 	 * When we return {@link IdentityFileStream} objects from {@link IdentityFileDiskQueue#poll()},
 	 * we wrap their {@link InputStream} in this wrapper. Its purpose is to hook {@link #close()} to
@@ -514,6 +659,16 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		return result;
 	}
 
+	/**
+	 * Sets {@link #mPriorityAging}. Only affects files which are queued afterwards.<br>
+	 * For benchmarks and tests. */
+	synchronized void setPriorityAging(int priorityAging) {
+		if(priorityAging < 0)
+			throw new IllegalArgumentException("priorityAging must not be negative");
+		
+		mPriorityAging = priorityAging;
+	}
+
 	@Override public synchronized void registerEventHandler(BackgroundJob handler) {
 		if(mEventHandler != null) {
 			throw new UnsupportedOperationException(
@@ -537,14 +692,18 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	
 	/**
 	 * Returns true if the numbers in {@link #mStatistics} match the amount of files in the on-disk
-	 * directories. */
+	 * directories, and if {@link #mQueueIndex} contains exactly the files in {@link #mQueueDir}.
+	 */
 	private synchronized boolean checkDiskConsistency() {
-		int queued = mQueueDir.listFiles().length;
+		String[] queuedFilenames = mQueueDir.list();
+		int queued = queuedFilenames.length;
 		int processing = mProcessingDir.listFiles().length;
 		int finished = mFinishedDir.listFiles().length;
 		
 		return (
 				(queued == mStatistics.mQueuedFiles)
+			 && (queued == mQueueIndex.size())
+			 && mQueueIndex.keySet().containsAll(Arrays.asList(queuedFilenames))
 			 && (processing == mStatistics.mProcessingFiles)
 			 && (finished ==
 					(logDEBUG == false ?
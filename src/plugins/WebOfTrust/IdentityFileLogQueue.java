@@ -0,0 +1,980 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+
+/**
+ * {@link IdentityFileQueue} implementation which appends the files to a log of segment files
+ * instead of storing each of them as a separate file as {@link IdentityFileDiskQueue} does.<br>
+ * This avoids the file creations, renames, deletions and directory listings of the
+ * IdentityFileDiskQueue, which are slow on spinning disks and network filesystems.<br><br>
+ *
+ * Format: The log is a sequence of segment files in {@link #mDataDir}, named by their ascending
+ * number. Each segment is a sequence of records of the form:<br>
+ *     {@link #RECORD_MAGIC} (int), type (byte), body length (int), body, CRC32 (int)<br>
+ * where the CRC32 covers the type, the body length and the body.<br>
+ * The body of a {@link #RECORD_ADD} is the {@link IdentityFileStream#mPriority} (int), the URI
+ * (UTF) and the XML. The body of a {@link #RECORD_DONE} is the key of the processed file in
+ * {@link #mQueueIndex} (UTF), and the segment number (int) and offset (long) of its ADD record.
+ * <br><br>
+ *
+ * Records are never modified: A file which is deduplicated or processed merely makes its ADD
+ * record dead. Once at most {@link #COMPACTION_THRESHOLD} percent of the bytes of the oldest
+ * segment are live, its live records are copied to the end of the log and it is deleted, see
+ * {@link #compact()}. Only the oldest segment is compacted: The DONE records in a segment can only
+ * refer to ADD records in the same or older segments, so deleting the oldest one cannot cause
+ * processed files to be queued again at restart.<br>
+ * At startup the segments are scanned sequentially to rebuild the in-memory index, see
+ * {@link #recover()}. A record which is incomplete or fails the CRC check, e.g. because the node
+ * crashed while writing it, ends its segment: The segment is truncated to before the record.
+ * <br><br>
+ *
+ * Deduplicating queue: Only the latest edition of each file is returned; see
+ * {@link IdentityFileQueue} for details.<br>
+ * The order in which files are returned is the same as with {@link IdentityFileDiskQueue}. Unlike
+ * there, the priority of queued files is preserved across restarts.<br>
+ * Processed files are not archived for debugging if {@link #logDEBUG} is true, use the
+ * IdentityFileDiskQueue for that.
+ */
+final class IdentityFileLogQueue implements IdentityFileQueue {
+	/** Subdirectory of WOT data directory where we put the segment files. */
+	private final File mDataDir;
+
+	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
+	private final boolean mDeduplicationEnabled;
+
+	/**
+	 * Once {@link #mActiveSegment} is at least this large, a new segment is started.
+	 * @see #DEFAULT_SEGMENT_SIZE */
+	private final long mSegmentSize;
+
+	/** @see #mSegmentSize */
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/** The segments of the log, by their number. The last one is {@link #mActiveSegment}. */
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+	/** The segment to which records are appended. */
+	private Segment mActiveSegment;
+
+	/** The file of {@link #mActiveSegment}, kept open for appending. Null after close(). */
+	private RandomAccessFile mActiveSegmentFile;
+
+	/**
+	 * In-memory index of the queued files: Maps the key of each queued file, see
+	 * {@link #getKey(FreenetURI)}, to the {@link QueuedRecord} of its live ADD record.<br>
+	 * Built once by {@link #recover()}, then kept in sync with the log by add() and poll(). */
+	private final HashMap<String, QueuedRecord> mQueueIndex = new HashMap<String, QueuedRecord>();
+
+	/** Contains the same {@link QueuedRecord}s as {@link #mQueueIndex}, in the order of poll(). */
+	private final PriorityQueue<QueuedRecord> mPollOrder = new PriorityQueue<QueuedRecord>();
+
+	/** Amount of files which were added to {@link #mQueueIndex}. Used for QueuedRecord#mIndex. */
+	private long mQueueIndexCounter = 0;
+
+	/** @see IdentityFileDiskQueue#mPriorityAging */
+	private int mPriorityAging = IdentityFileDiskQueue.DEFAULT_PRIORITY_AGING;
+
+	/**
+	 * The record of the file which {@link #poll()} returned and whose stream was not closed yet.
+	 * <br>
+	 * Its ADD record is still live as it must be processed again after a restart if the node
+	 * crashes during processing. Thus {@link #compact()} must not delete its segment. */
+	private QueuedRecord mProcessingRecord = null;
+
+	/** @see #getStatistics() */
+	private final IdentityFileQueueStatistics mStatistics = new IdentityFileQueueStatistics();
+
+	/**
+	 * Buffer for copying the files passed to {@link #add(IdentityFileStream)} into ADD records.
+	 * <br>
+	 * Allocated once since add() is called for each fetched file. Guarded by synchronized(this).
+	 */
+	private final byte[] mCopyBuffer = new byte[COPY_BUFFER_SIZE];
+
+	/** @see #mCopyBuffer */
+	private static final int COPY_BUFFER_SIZE = 32 * 1024;
+
+	/** @see #registerEventHandler(BackgroundJob) */
+	private BackgroundJob mEventHandler;
+
+	/**
+	 * A segment which is not the {@link #mActiveSegment} is compacted once at most this percentage
+	 * of its bytes belongs to live records. */
+	static final int COMPACTION_THRESHOLD = 50;
+
+	static final String SEGMENT_EXTENSION = ".wot-segment";
+
+	/** Marks the beginning of each record. "WOTQ" in ASCII. */
+	private static final int RECORD_MAGIC = 0x574f5451;
+
+	/** Type of the records which contain a queued file. */
+	private static final byte RECORD_ADD = 1;
+
+	/** Type of the records which mark the ADD record of a file as processed. */
+	private static final byte RECORD_DONE = 2;
+
+	/** Size of magic, type and body length of a record. */
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 4;
+
+	/** Size of the CRC32 at the end of a record. */
+	private static final int RECORD_TRAILER_SIZE = 4;
+
+	/**
+	 * Upper limit of the body length of records, used to detect corrupted records before
+	 * allocating memory for them. The priority and URI are far smaller than the added margin. */
+	private static final int MAX_BODY_SIZE = XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 64 * 1024;
+
+
+	/**
+	 * Automatically set to true by {@link Logger} if the log level is set to
+	 * {@link LogLevel#DEBUG} for this class. Used as performance optimization to prevent
+	 * construction of the log strings if it is not necessary. */
+	private static transient volatile boolean logDEBUG = false;
+
+	/**
+	 * Automatically set to true by {@link Logger} if the log level is set to
+	 * {@link LogLevel#MINOR} for this class. Used as performance optimization to prevent
+	 * construction of the log strings if it is not necessary. */
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		// Necessary for automatic setting of logDEBUG and logMINOR
+		Logger.registerClass(IdentityFileLogQueue.class);
+	}
+
+
+	public IdentityFileLogQueue(File parentDirectory) {
+		this(parentDirectory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/** For tests which need segments to be compacted without adding lots of files. */
+	IdentityFileLogQueue(File parentDirectory, long segmentSize) {
+		mDataDir = new File(parentDirectory, "IdentityFileLogQueue");
+		mSegmentSize = segmentSize;
+
+		if(!mDataDir.exists() && !mDataDir.mkdir())
+			throw new RuntimeException("Cannot create " + mDataDir);
+
+		if(!IdentityFetcher.DEBUG__NETWORK_DUMP_MODE) {
+			mDeduplicationEnabled = true;
+		} else {
+			Logger.warning(this,
+				"IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: Disabling deduplication!");
+
+			mDeduplicationEnabled = false;
+		}
+
+		recover();
+	}
+
+	/**
+	 * Used at startup to rebuild {@link #mQueueIndex} and {@link #mSegments} by scanning the
+	 * segments sequentially.<br>
+	 * Files of which the ADD record is live are queued again, including the file which was being
+	 * processed when the node was shut down. */
+	private synchronized void recover() {
+		Logger.normal(this, "recover(): Scanning segments...");
+
+		for(File file : mDataDir.listFiles()) {
+			String name = file.getName();
+
+			if(!name.endsWith(SEGMENT_EXTENSION)) {
+				Logger.warning(this, "recover(): Unexpected file type: " + file);
+				continue;
+			}
+
+			try {
+				int number = Integer.parseInt(
+					name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+				mSegments.put(number, new Segment(number, file));
+			} catch(NumberFormatException e) {
+				Logger.warning(this, "recover(): Cannot parse file name: " + file);
+				continue;
+			}
+		}
+
+		try {
+			// TreeMap iterates in ascending order of the segment numbers, which is the order in
+			// which the records were appended.
+			for(Segment segment : mSegments.values())
+				scanSegment(segment);
+
+			if(!mSegments.isEmpty()) {
+				mActiveSegment = mSegments.lastEntry().getValue();
+				mActiveSegmentFile = new RandomAccessFile(mActiveSegment.mFile, "rw");
+			} else
+				startNewSegment();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Not done by scanSegment() since PriorityQueue.remove() is O(N), and many queued files
+		// may have been processed already.
+		mPollOrder.addAll(mQueueIndex.values());
+
+		mStatistics.mQueuedFiles = mQueueIndex.size();
+		mStatistics.mTotalQueuedFiles = mQueueIndex.size();
+
+		Logger.normal(this, "recover(): Segments: " + mSegments.size()
+		                  + "; old queued files: " + mStatistics.mQueuedFiles);
+
+		compact();
+
+		assert(mStatistics.checkConsistency());
+		assert(checkLogConsistency());
+
+		// We cannot trigger the event handler now since we have no event handler yet.
+		// registerEventHandler() does it for us.
+
+		Logger.normal(this, "recover(): Finished.");
+	}
+
+	/**
+	 * Reads all records of the given segment into {@link #mQueueIndex} and computes its
+	 * {@link Segment#mSize} and {@link Segment#mLiveBytes}.<br>
+	 * Truncates the segment at the first invalid record. */
+	private void scanSegment(Segment segment) throws IOException {
+		long length = segment.mFile.length();
+		long offset = 0;
+
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(segment.mFile), COPY_BUFFER_SIZE));
+		try {
+			while(offset < length) {
+				Record record;
+				try {
+					record = readRecord(in);
+				} catch(IOException e) {
+					Logger.warning(this, "recover(): Invalid record in " + segment.mFile
+					                   + " at offset " + offset + ", truncating", e);
+					break;
+				}
+
+				try {
+					if(record.mType == RECORD_ADD)
+						recoverAddRecord(segment, offset, record);
+					else
+						recoverDoneRecord(record);
+				} catch(IOException e) {
+					// Valid CRC but invalid content, e.g. a FreenetURI which cannot be parsed:
+					// Truncating would not help since the record was written like this.
+					Logger.error(this, "recover(): Ignoring invalid record in " + segment.mFile
+					                 + " at offset " + offset, e);
+				} catch(RuntimeException e) {
+					// E.g. IdentityID.constructAndValidateFromURI() failing.
+					Logger.error(this, "recover(): Ignoring invalid record in " + segment.mFile
+					                 + " at offset " + offset, e);
+				}
+
+				offset += record.getLength();
+			}
+		} finally {
+			Closer.close(in);
+		}
+
+		if(offset < length) {
+			RandomAccessFile file = new RandomAccessFile(segment.mFile, "rw");
+			try {
+				file.setLength(offset);
+			} finally {
+				Closer.close(file);
+			}
+		}
+
+		segment.mSize = offset;
+	}
+
+	/** Same deduplication as {@link #add(IdentityFileStream)}. */
+	private void recoverAddRecord(Segment segment, long offset, Record record)
+			throws IOException {
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.mBody));
+		int priority = in.readInt();
+		FreenetURI uri = new FreenetURI(in.readUTF());
+		String key = getKey(uri);
+		long edition = uri.getEdition();
+		int length = record.getLength();
+
+		QueuedRecord existing = mQueueIndex.get(key);
+		if(existing == null) {
+			QueuedRecord queued = new QueuedRecord(key, mQueueIndexCounter++,
+				(long)priority * mPriorityAging);
+			queued.setLocation(segment, offset, length, edition);
+			mQueueIndex.put(key, queued);
+		} else if(existing.mEdition > edition) {
+			return;
+		} else {
+			existing.mSegment.mLiveBytes -= existing.mLength;
+			existing.setLocation(segment, offset, length, edition);
+		}
+
+		segment.mLiveBytes += length;
+	}
+
+	private void recoverDoneRecord(Record record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.mBody));
+		String key = in.readUTF();
+		int segmentNumber = in.readInt();
+		long offset = in.readLong();
+
+		QueuedRecord queued = mQueueIndex.get(key);
+		// The file may have been queued again after it was polled, in which case the DONE record
+		// refers to an ADD record which is dead already.
+		if(queued != null && queued.mSegment.mNumber == segmentNumber && queued.mOffset == offset) {
+			mQueueIndex.remove(key);
+			queued.mSegment.mLiveBytes -= queued.mLength;
+		}
+	}
+
+	@Override public synchronized void add(IdentityFileStream identityFileStream) {
+		try {
+			// We increment the counter before errors could occur so erroneously dropped files are
+			// included: This ensures that the user might notice dropped files from the statistics
+			// in the UI.
+			++mStatistics.mTotalQueuedFiles;
+
+			FreenetURI uri = identityFileStream.mURI;
+			String key = getKey(uri);
+			long givenEdition = uri.getEdition();
+
+			// See IdentityFileDiskQueue.add() for why this is a ">" check.
+			QueuedRecord existing = mQueueIndex.get(key);
+			if(existing != null && existing.mEdition > givenEdition) {
+				if(logMINOR) {
+					Logger.minor(this, "Fetched edition which is older than queued file, "
+									 + "dropping: " + givenEdition);
+				}
+
+				++mStatistics.mDeduplicatedFiles;
+				assert(mStatistics.checkConsistency());
+				assert(checkLogConsistency());
+				return;
+			}
+
+			long offset;
+			int length;
+			try {
+				offset = appendAddRecord(identityFileStream);
+				length = (int)(mActiveSegment.mSize - offset);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			if(existing != null) {
+				// Queued file *is* old, deduplicate it.
+				// We keep its QueuedRecord so the new file takes its place in the poll() order:
+				// Otherwise Identitys which publish often would starve.
+				if(logMINOR) {
+					Logger.minor(this, "Deduplicating edition " + existing.mEdition
+					                 + " with edition " + givenEdition + " for: " + uri);
+				}
+
+				existing.mSegment.mLiveBytes -= existing.mLength;
+				existing.setLocation(mActiveSegment, offset, length, givenEdition);
+				++mStatistics.mDeduplicatedFiles;
+			} else {
+				QueuedRecord queued = new QueuedRecord(key, mQueueIndexCounter++,
+					(long)identityFileStream.mPriority * mPriorityAging);
+				queued.setLocation(mActiveSegment, offset, length, givenEdition);
+				mQueueIndex.put(key, queued);
+				mPollOrder.add(queued);
+				++mStatistics.mQueuedFiles;
+			}
+
+			mActiveSegment.mLiveBytes += length;
+
+			if(existing != null)
+				compact();
+
+			assert(mStatistics.checkConsistency());
+			assert(checkLogConsistency());
+
+			// Not having an event handler yet is not an error, see IdentityFileDiskQueue.add().
+			if(mEventHandler != null)
+				mEventHandler.triggerExecution();
+		} catch(RuntimeException e) {
+			++mStatistics.mFailedFiles;
+			assert(mStatistics.checkConsistency());
+			throw e;
+		} catch(Error e) { // TODO: Java 7: Merge with above to catch(RuntimeException | Error e)
+			++mStatistics.mFailedFiles;
+			assert(mStatistics.checkConsistency());
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the key of the given file in {@link #mQueueIndex}.<br>
+	 * Files of the same {@link Identity} have the same key so they are deduplicated, unless
+	 * deduplication is disabled. */
+	private String getKey(FreenetURI identityFileURI) {
+		String id = IdentityID.constructAndValidateFromURI(identityFileURI).toString();
+
+		return mDeduplicationEnabled ? id : (id + "@" + identityFileURI.getEdition());
+	}
+
+	/**
+	 * Appends an ADD record for the given file to {@link #mActiveSegment}, after starting a new
+	 * segment if it is full. Closes the stream of the file.<br>
+	 * As {@link IdentityFile#write(IdentityFileStream, File, byte[])} does, the XML is streamed
+	 * into the segment and the body length and CRC are filled in afterwards so the file is not
+	 * copied in memory. The CRC covers the body length, which is only known at the end, so the
+	 * body is read back from the segment to compute it.<br>
+	 * Returns the offset of the record in the then {@link #mActiveSegment}. Its
+	 * {@link Segment#mSize} grows by the length of the record. */
+	private long appendAddRecord(IdentityFileStream file) throws IOException {
+		try {
+			prepareAppend();
+
+			long offset = mActiveSegment.mSize;
+			long bodyOffset = offset + RECORD_HEADER_SIZE;
+			boolean success = false;
+			try {
+				ByteArrayOutputStream headerBos = new ByteArrayOutputStream(256);
+				DataOutputStream header = new DataOutputStream(headerBos);
+				header.writeInt(RECORD_MAGIC);
+				header.writeByte(RECORD_ADD);
+				header.writeInt(0); // Body length placeholder, see below
+				header.writeInt(file.mPriority);
+				header.writeUTF(file.mURI.toString());
+
+				// See append() for why we seek.
+				mActiveSegmentFile.seek(offset);
+				mActiveSegmentFile.write(headerBos.toByteArray());
+
+				int xmlLength = 0;
+				int read;
+				while((read = file.mXMLInputStream.read(mCopyBuffer)) != -1) {
+					xmlLength += read;
+					if(xmlLength > XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE)
+						throw new IOException("File is too large: " + file.mURI);
+
+					mActiveSegmentFile.write(mCopyBuffer, 0, read);
+				}
+
+				int bodyLength = (int)(mActiveSegmentFile.getFilePointer() - bodyOffset);
+				CRC32 crc = crc32(RECORD_ADD, bodyLength);
+				mActiveSegmentFile.seek(bodyOffset);
+				for(int remaining = bodyLength; remaining > 0; remaining -= read) {
+					read = Math.min(remaining, mCopyBuffer.length);
+					mActiveSegmentFile.readFully(mCopyBuffer, 0, read);
+					crc.update(mCopyBuffer, 0, read);
+				}
+				mActiveSegmentFile.writeInt((int)crc.getValue());
+
+				// The length is written last: If the node crashes before, the record fails the CRC
+				// check at restart and recover() truncates it.
+				mActiveSegmentFile.seek(offset + RECORD_HEADER_SIZE - 4);
+				mActiveSegmentFile.writeInt(bodyLength);
+
+				mActiveSegment.mSize = bodyOffset + bodyLength + RECORD_TRAILER_SIZE;
+				success = true;
+				return offset;
+			} finally {
+				// Remove the partial record so the file length matches Segment.mSize again.
+				if(!success)
+					mActiveSegmentFile.setLength(offset);
+			}
+		} finally {
+			Closer.close(file.mXMLInputStream);
+		}
+	}
+
+	private static byte[] encodeRecord(byte type, byte[] body) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(
+			RECORD_HEADER_SIZE + body.length + RECORD_TRAILER_SIZE);
+		DataOutputStream out = new DataOutputStream(bos);
+
+		try {
+			out.writeInt(RECORD_MAGIC);
+			out.writeByte(type);
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeInt(crc32(type, body));
+		} catch(IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new RuntimeException(e);
+		}
+
+		return bos.toByteArray();
+	}
+
+	/** Reads and validates the record at the current position of the given input. */
+	private static Record readRecord(DataInput in) throws IOException {
+		if(in.readInt() != RECORD_MAGIC)
+			throw new IOException("Record magic not found!");
+
+		byte type = in.readByte();
+		int bodyLength = in.readInt();
+		if(bodyLength < 0 || bodyLength > MAX_BODY_SIZE)
+			throw new IOException("Invalid body length: " + bodyLength);
+
+		byte[] body = new byte[bodyLength];
+		in.readFully(body);
+
+		if(in.readInt() != crc32(type, body))
+			throw new IOException("CRC mismatch!");
+
+		if(type != RECORD_ADD && type != RECORD_DONE)
+			throw new IOException("Unknown record type: " + type);
+
+		return new Record(type, body);
+	}
+
+	private static int crc32(byte type, byte[] body) {
+		CRC32 crc = crc32(type, body.length);
+		crc.update(body);
+		return (int)crc.getValue();
+	}
+
+	/** Returns a CRC32 of the given type and body length, to be updated with the body. */
+	private static CRC32 crc32(byte type, int bodyLength) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(bodyLength >>> 24);
+		crc.update(bodyLength >>> 16);
+		crc.update(bodyLength >>> 8);
+		crc.update(bodyLength);
+		return crc;
+	}
+
+	/**
+	 * Appends the given record to {@link #mActiveSegment}, after starting a new segment if it is
+	 * full.<br>
+	 * Returns the offset of the record in the then {@link #mActiveSegment}. */
+	private long append(byte[] record) throws IOException {
+		prepareAppend();
+
+		// Seek instead of relying on the file pointer: If a previous append() failed in the middle
+		// of the record, this overwrites the partial record.
+		long offset = mActiveSegment.mSize;
+		mActiveSegmentFile.seek(offset);
+		mActiveSegmentFile.write(record);
+		mActiveSegment.mSize += record.length;
+		return offset;
+	}
+
+	/**
+	 * Starts a new segment if {@link #mActiveSegment} is full.<br>
+	 * Throws if {@link #close()} was called already. */
+	private void prepareAppend() throws IOException {
+		if(mActiveSegmentFile == null)
+			throw new IOException("The queue was closed");
+
+		if(mActiveSegment.mSize >= mSegmentSize)
+			startNewSegment();
+	}
+
+	private void startNewSegment() throws IOException {
+		int number = mSegments.isEmpty() ? 0 : (mSegments.lastKey() + 1);
+		Segment segment = new Segment(number,
+			new File(mDataDir, String.format("%09d" + SEGMENT_EXTENSION, number)));
+		RandomAccessFile file = new RandomAccessFile(segment.mFile, "rw");
+
+		if(mActiveSegmentFile != null) {
+			// compact() deletes segments once their live records were copied to newer segments,
+			// so the newer segments must be on disk first.
+			mActiveSegmentFile.getFD().sync();
+			mActiveSegmentFile.close();
+		}
+
+		mSegments.put(number, segment);
+		mActiveSegment = segment;
+		mActiveSegmentFile = file;
+	}
+
+	/**
+	 * Compacts the oldest segment as long as it is not the {@link #mActiveSegment} and at most
+	 * {@link #COMPACTION_THRESHOLD} percent of its bytes are live: Copies its live records to the
+	 * end of the log and deletes it.<br>
+	 * See the class-level JavaDoc for why only the oldest segment is compacted. */
+	private void compact() {
+		while(mSegments.size() > 1) {
+			Segment oldest = mSegments.firstEntry().getValue();
+			assert(oldest != mActiveSegment);
+
+			if(oldest.mLiveBytes * 100 > oldest.mSize * COMPACTION_THRESHOLD)
+				return;
+
+			// Will be compacted once the stream of the record is closed.
+			if(mProcessingRecord != null && mProcessingRecord.mSegment == oldest)
+				return;
+
+			try {
+				compact(oldest);
+			} catch(IOException e) {
+				Logger.error(this, "Cannot compact " + oldest.mFile, e);
+				return;
+			}
+		}
+	}
+
+	/** Must only be called by {@link #compact()}. */
+	private void compact(Segment segment) throws IOException {
+		if(logMINOR) {
+			Logger.minor(this, "Compacting " + segment.mFile + ": Live bytes: "
+			                 + segment.mLiveBytes + " of " + segment.mSize);
+		}
+
+		if(segment.mLiveBytes > 0) {
+			RandomAccessFile source = new RandomAccessFile(segment.mFile, "r");
+			try {
+				for(QueuedRecord queued : mQueueIndex.values()) {
+					if(queued.mSegment != segment)
+						continue;
+
+					byte[] record = new byte[queued.mLength];
+					source.seek(queued.mOffset);
+					source.readFully(record);
+
+					long offset = append(record);
+					segment.mLiveBytes -= queued.mLength;
+					queued.setLocation(mActiveSegment, offset, queued.mLength, queued.mEdition);
+					mActiveSegment.mLiveBytes += queued.mLength;
+				}
+			} finally {
+				Closer.close(source);
+			}
+
+			// The copies must be on disk before the original is deleted.
+			mActiveSegmentFile.getFD().sync();
+		}
+
+		assert(segment.mLiveBytes == 0);
+
+		if(!segment.mFile.delete())
+			throw new IOException("Cannot delete " + segment.mFile);
+
+		mSegments.remove(segment.mNumber);
+	}
+
+	/**
+	 * Appends a DONE record for the given record so its file is not queued again at restart, and
+	 * marks its ADD record as dead.<br>
+	 * The record must not be in {@link #mQueueIndex} or be the {@link #mProcessingRecord}. */
+	private void markDone(QueuedRecord queued) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+
+		try {
+			out.writeUTF(queued.mKey);
+			out.writeInt(queued.mSegment.mNumber);
+			out.writeLong(queued.mOffset);
+			append(encodeRecord(RECORD_DONE, bos.toByteArray()));
+		} catch(IOException e) {
+			// The file will be processed again after a restart, which is harmless.
+			Logger.error(this, "Cannot append DONE record for: " + queued.mKey, e);
+		}
+
+		queued.mSegment.mLiveBytes -= queued.mLength;
+		compact();
+	}
+
+	@Override public synchronized IdentityFileStream poll() {
+		assert(mQueueIndex.size() == mStatistics.mQueuedFiles);
+		assert(mPollOrder.size() == mQueueIndex.size());
+
+		// As in IdentityFileDiskQueue.poll(), we loop to be robust against corrupted records: If
+		// reading one fails, we try the others until we succeed. Unlike there, failed files are
+		// never kept: A record which failed its CRC check will not become valid again.
+		QueuedRecord queued;
+		while((queued = mPollOrder.poll()) != null) {
+			mQueueIndex.remove(queued.mKey);
+			--mStatistics.mQueuedFiles;
+
+			try {
+				RandomAccessFile file = new RandomAccessFile(queued.mSegment.mFile, "r");
+				Record record;
+				try {
+					file.seek(queued.mOffset);
+					record = readRecord(file);
+				} finally {
+					Closer.close(file);
+				}
+
+				if(record.mType != RECORD_ADD)
+					throw new IOException("Not an ADD record!");
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.mBody));
+				in.readInt(); // Priority
+				FreenetURI uri = new FreenetURI(in.readUTF());
+
+				// The remainder of the body is the XML, so we can return the stream as is.
+				IdentityFileStream result
+					= new IdentityFileStream(uri, new InputStreamWithCleanup(queued, in));
+
+				mProcessingRecord = queued;
+				++mStatistics.mProcessingFiles;
+				assert(mStatistics.mProcessingFiles == 1);
+				assert(mStatistics.checkConsistency());
+				assert(checkLogConsistency());
+
+				if(logDEBUG) Logger.debug(this, "poll(): Yielded " + uri);
+				return result;
+			} catch(IOException e) {
+				Logger.error(this, "Error in poll() for queued file: " + queued.mKey, e);
+
+				++mStatistics.mFailedFiles;
+				assert(mStatistics.checkConsistency());
+
+				markDone(queued);
+
+				// Try whether we can process the next file
+				continue;
+			}
+		}
+
+		if(logDEBUG) Logger.debug(this, "poll(): Yielded no file" );
+		return null; // Queue is empty
+	}
+
+	/** A segment file of the log. */
+	private static final class Segment {
+		/** The number in the filename, the position of the segment in the log. */
+		final int mNumber;
+
+		final File mFile;
+
+		/** Amount of bytes of valid records in the file. */
+		long mSize = 0;
+
+		/** Amount of bytes of the ADD records in the file which are not dead yet. */
+		long mLiveBytes = 0;
+
+
+		Segment(int number, File file) {
+			mNumber = number;
+			mFile = file;
+		}
+	}
+
+	/**
+	 * Entry of {@link IdentityFileLogQueue#mQueueIndex} and
+	 * {@link IdentityFileLogQueue#mPollOrder}: The location of the live ADD record of a queued
+	 * file.
+	 */
+	private static final class QueuedRecord implements Comparable<QueuedRecord> {
+		/** @see IdentityFileLogQueue#getKey(FreenetURI) */
+		final String mKey;
+
+		Segment mSegment;
+
+		long mOffset;
+
+		/** Length of the whole record, including header and trailer. */
+		int mLength;
+
+		/** The {@link FreenetURI#getEdition()} the file was downloaded from. */
+		long mEdition;
+
+		/** Value of {@link IdentityFileLogQueue#mQueueIndexCounter} when the file was queued. */
+		final long mIndex;
+
+		/** @see IdentityFileDiskQueue#mPriorityAging */
+		final long mPriorityPenalty;
+
+
+		QueuedRecord(String key, long index, long priorityPenalty) {
+			mKey = key;
+			mIndex = index;
+			mPriorityPenalty = priorityPenalty;
+		}
+
+		void setLocation(Segment segment, long offset, int length, long edition) {
+			mSegment = segment;
+			mOffset = offset;
+			mLength = length;
+			mEdition = edition;
+		}
+
+		/** Same order as IdentityFileDiskQueue.QueuedFile. */
+		@Override public int compareTo(QueuedRecord other) {
+			long key = mIndex + mPriorityPenalty;
+			long otherKey = other.mIndex + other.mPriorityPenalty;
+
+			if(key != otherKey)
+				return key < otherKey ? -1 : 1;
+
+			// Ensure FIFO for equal keys
+			return mIndex < other.mIndex ? -1 : (mIndex == other.mIndex ? 0 : 1);
+		}
+	}
+
+	/** A record which {@link IdentityFileLogQueue#readRecord(DataInput)} has validated. */
+	private static final class Record {
+		final byte mType;
+
+		final byte[] mBody;
+
+
+		Record(byte type, byte[] body) {
+			mType = type;
+			mBody = body;
+		}
+
+		/** Length of the whole record in the segment, including header and trailer. */
+		int getLength() {
+			return RECORD_HEADER_SIZE + mBody.length + RECORD_TRAILER_SIZE;
+		}
+	}
+
+	/**
+	 * When we return {@link IdentityFileStream} objects from {@link IdentityFileLogQueue#poll()},
+	 * we wrap their {@link InputStream} in this wrapper. Its purpose is to hook {@link #close()} to
+	 * mark the record of the file as processed. */
+	private final class InputStreamWithCleanup extends FilterInputStream {
+		private final QueuedRecord mRecord;
+
+		/** Used to prevent {@link #close()} from executing twice */
+		private boolean mClosedAlready = false;
+
+
+		public InputStreamWithCleanup(QueuedRecord record, InputStream xmlStream) {
+			super(xmlStream);
+			mRecord = record;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				synchronized(IdentityFileLogQueue.this) {
+					// Prevent wrong value of mProcessingFiles by multiple calls to close(), which
+					// paranoid code might do.
+					if(mClosedAlready)
+						return;
+
+					assert(mProcessingRecord == mRecord);
+					assert(mStatistics.mProcessingFiles == 1);
+
+					// Before markDone() so compact() may compact the segment of the record.
+					mProcessingRecord = null;
+					markDone(mRecord);
+
+					++mStatistics.mFinishedFiles;
+					--mStatistics.mProcessingFiles;
+					mClosedAlready = true;
+
+					assert(mStatistics.checkConsistency());
+					assert(checkLogConsistency());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets {@link #mPriorityAging}. Only affects files which are queued afterwards.<br>
+	 * For benchmarks and tests. */
+	synchronized void setPriorityAging(int priorityAging) {
+		if(priorityAging < 0)
+			throw new IllegalArgumentException("priorityAging must not be negative");
+
+		mPriorityAging = priorityAging;
+	}
+
+	/**
+	 * Syncs and closes the file of the {@link #mActiveSegment}. Must be called at shutdown.<br>
+	 * The queued files are preserved for the next startup. Adding files fails afterwards, and
+	 * files which are processed afterwards will be processed again after the restart. */
+	synchronized void close() {
+		if(mActiveSegmentFile == null)
+			return;
+
+		try {
+			mActiveSegmentFile.getFD().sync();
+		} catch(IOException e) {
+			Logger.error(this, "Cannot sync " + mActiveSegment.mFile, e);
+		} finally {
+			Closer.close(mActiveSegmentFile);
+			mActiveSegmentFile = null;
+		}
+	}
+
+	/** Returns the amount of segment files. For tests. */
+	synchronized int getSegmentCount() {
+		return mSegments.size();
+	}
+
+	@Override public synchronized void registerEventHandler(BackgroundJob handler) {
+		if(mEventHandler != null) {
+			throw new UnsupportedOperationException(
+				"Support for more than one event handler is not implemented yet.");
+		}
+
+		mEventHandler = handler;
+
+		// We preserve queued files across restarts, so as soon after startup as we know who
+		// the event handler is, we must wake up the event handler to process the waiting files.
+		if(mStatistics.mQueuedFiles != 0)
+			mEventHandler.triggerExecution();
+	}
+
+	@Override public synchronized IdentityFileQueueStatistics getStatistics() {
+		IdentityFileQueueStatistics result = mStatistics.clone();
+		assert(result.checkConsistency());
+		assert(checkLogConsistency());
+		return result;
+	}
+
+	/**
+	 * Returns true if {@link #mQueueIndex} and {@link #mPollOrder} match the statistics, and if
+	 * the {@link Segment#mLiveBytes} and {@link Segment#mSize} of all segments are correct. */
+	private synchronized boolean checkLogConsistency() {
+		HashMap<Segment, Long> liveBytes = new HashMap<Segment, Long>();
+
+		for(QueuedRecord queued : mQueueIndex.values())
+			addLiveBytes(liveBytes, queued);
+
+		if(mProcessingRecord != null)
+			addLiveBytes(liveBytes, mProcessingRecord);
+
+		for(Segment segment : mSegments.values()) {
+			Long expected = liveBytes.remove(segment);
+
+			if(segment.mLiveBytes != (expected != null ? expected : 0))
+				return false;
+
+			if(segment.mSize != segment.mFile.length())
+				return false;
+		}
+
+		return (
+				liveBytes.isEmpty() // No records in deleted segments
+			 && (mQueueIndex.size() == mStatistics.mQueuedFiles)
+			 && (mPollOrder.size() == mQueueIndex.size())
+			 && ((mProcessingRecord != null ? 1 : 0) == mStatistics.mProcessingFiles)
+			 && (mSegments.lastEntry().getValue() == mActiveSegment)
+			);
+	}
+
+	private static void addLiveBytes(HashMap<Segment, Long> liveBytes, QueuedRecord queued) {
+		Long bytes = liveBytes.get(queued.mSegment);
+		liveBytes.put(queued.mSegment, (bytes != null ? bytes : 0) + queued.mLength);
+	}
+}
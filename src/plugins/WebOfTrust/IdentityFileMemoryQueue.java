@@ -16,6 +16,7 @@ import plugins.WebOfTrust.util.jobs.BackgroundJob;
  * This implementation aims at being used in unit tests only. Thus, in comparison to the
  * {@link IdentityFileDiskQueue} which WOT actually uses, it has the following disadvantages:<br>
  * - It doesn't deduplicate editions. See {@link IdentityFileQueue} for what that means.<br>
+ * - It ignores {@link IdentityFileStream#mPriority}.<br>
  * - It doesn't watch its memory usage and thus on fast Freenet nodes might cause OOM.<br>
  * - It doesn't use the {@link Logger}, you need to instead enable assert() in your JVM.<br><br>
  * 
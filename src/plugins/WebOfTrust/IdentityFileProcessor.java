@@ -4,14 +4,27 @@
 package plugins.WebOfTrust;
 
 import static freenet.support.TimeUtil.formatTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+import freenet.keys.FreenetURI;
 import freenet.node.PrioRunnable;
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -23,8 +36,10 @@ import freenet.support.io.NativeThread.PriorityLevel;
  * in the {@link IdentityFileQueue}. The job of this processor is to take the files from the queue,
  * and import them into the WOT database using the {@link XMLTransformer}.<br><br>
  * 
- * Notice: The implementation is single-threaded and processes the files sequentially one-by-one.
- * It is not parallelized since the core WOT {@link Score} computation algorithm is not.<br><br>
+ * Processing is pipelined: A pool of parser threads takes the files from the queue and parses the
+ * XML, which does not require any locks. A single thread imports the parsed files into the
+ * database one-by-one. The import is not parallelized since the core WOT {@link Score}
+ * computation algorithm is not.<br><br>
  * 
  * Implemented as a {@link DelayedBackgroundJob} instead of just {@link BackgroundJob}: The default
  * implementation of {@link IdentityFileQueue} supports deduplication of old versions of identity
@@ -53,6 +68,25 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	public static final long PROCESSING_DELAY_MILLISECONDS
 		= IS_UNIT_TEST ? SECONDS.toMillis(1) : MINUTES.toMillis(1);
 
+	/**
+	 * Default number of threads which parse the XML of the files while the previously parsed ones
+	 * are being imported. One is reserved for the import.
+	 * @see #setParserThreads(int) */
+	public static final int DEFAULT_PARSER_THREADS
+		= Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+	/**
+	 * Maximal number of parsed files which wait for being imported, per parser thread.<br>
+	 * Files are removed from the {@link IdentityFileQueue} when they are parsed, so this should
+	 * be small: The queue deduplicates old editions, which parsed files do not profit from
+	 * anymore. Also they are lost if WOT is shut down before they are imported. */
+	public static final int PARSED_FILES_PER_PARSER_THREAD = 2;
+
+	/**
+	 * A {@link Parser} which cannot pass a file to the {@link Processor} because it is busy checks
+	 * this often whether the Processor has exited abnormally, see {@link Parser#abandon()}. */
+	private static final long PARSER_PUT_TIMEOUT_SECONDS = 10;
+
 	/** We consume the files of this queue when it calls our {@link #triggerExecution()}. */
 	private final IdentityFileQueue mQueue;
 
@@ -62,6 +96,21 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	/** Identity files will be passed to this {@link XMLTransformer} for the actual processing. */
 	private final XMLTransformer mXMLTransformer;
 
+	/** @see #setParserThreads(int) */
+	private volatile int mParserThreads = DEFAULT_PARSER_THREADS;
+
+	/**
+	 * Runs the {@link Parser}s of each execution of the {@link Processor}.<br>
+	 * Exists for the whole lifetime of the processor so we don't create new threads at every
+	 * execution. Idle threads time out as the processor usually only runs once per
+	 * {@link #PROCESSING_DELAY_MILLISECONDS}. */
+	private final ThreadPoolExecutor mParserPool;
+
+	/**
+	 * Must be held by the {@link Parser}s while calling {@link IdentityFileQueue#poll()} and
+	 * reading the returned stream, see {@link Parser#parseNextFile()}. */
+	private final Object mQueuePollLock = new Object();
+
 	private final Statistics mStatistics = new Statistics();
 
 	public static final class Statistics implements Cloneable {
@@ -74,26 +123,61 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		 * inserted bogus data, which they might do as they please. */
 		public int mFailedFiles = 0;
 
-		/** Total time it took to process all {@link #mProcessedFiles}. */
+		/**
+		 * Total time it took to process all {@link #mProcessedFiles}.<br>
+		 * This is the sum of the time of all processing stages, i.e. it does not include the time
+		 * a parsed file waited for being imported. It does include the time to acquire all locks
+		 * for the import, which could be a lot if WOT is busy. */
 		public long mProcessingTimeNanoseconds = 0;
 
+		/**
+		 * Part of {@link #mProcessingTimeNanoseconds}: Time it took to read all
+		 * {@link #mProcessedFiles} from the {@link IdentityFileQueue} and parse their XML.<br>
+		 * Parsing happens in parallel, so this may be larger than the wall clock time. */
+		public long mParsingTimeNanoseconds = 0;
+
+		/**
+		 * Part of {@link #mProcessingTimeNanoseconds}: Time it took to import all
+		 * {@link #mProcessedFiles} into the database once all locks were acquired. This includes
+		 * the {@link Score} computation. */
+		public long mImportTimeNanoseconds = 0;
+
 		/**
 		 * Gets the average time it took for processing a file, in seconds. This is rather crude as
 		 * it includes all of those:<br>
 		 * - The time to acquire all locks, which could be a lot if WOT is busy.<br>
 		 * - The time to parse the XML.<br>
 		 * - The time to do Score recomputations.<br>
-		 * (There is a FIXME in {@link IdentityFileProcessor.Processor#run()} to improve this).<br>
-		 * <br>
+		 * See {@link #getAverageXMLParsingTime()} and
+		 * {@link #getAverageXMLImportTimeWithoutLocking()} for the individual stages.<br><br>
 		 * 
 		 * ATTENTION: Not synchronized - only use this if you are sure that the Statistics object is
 		 * not being modified anymore. This is the case if you obtained it using
 		 * {@link IdentityFileProcessor#getStatistics()}. */
 		public double getAverageXMLImportTime() {
+			return getAverageSeconds(mProcessingTimeNanoseconds);
+		}
+
+		/**
+		 * Gets the average time it took for parsing a file, in seconds.<br>
+		 * ATTENTION: Not synchronized, see {@link #getAverageXMLImportTime()}. */
+		public double getAverageXMLParsingTime() {
+			return getAverageSeconds(mParsingTimeNanoseconds);
+		}
+
+		/**
+		 * Gets the average time it took for importing a parsed file once all locks were acquired,
+		 * in seconds.<br>
+		 * ATTENTION: Not synchronized, see {@link #getAverageXMLImportTime()}. */
+		public double getAverageXMLImportTimeWithoutLocking() {
+			return getAverageSeconds(mImportTimeNanoseconds);
+		}
+
+		private double getAverageSeconds(long totalNanoseconds) {
 			if (mProcessedFiles == 0) // prevent division by 0
 				return 0;
 
-			return ((double) mProcessingTimeNanoseconds / (1000 * 1000 * 1000))
+			return ((double) totalNanoseconds / (1000 * 1000 * 1000))
 				/ (double) mProcessedFiles;
 		}
 
@@ -131,6 +215,18 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		/* mQueue.registerEventHandler(this); */
 		
 		mXMLTransformer = xmlTransformer;
+		
+		mParserPool = new ThreadPoolExecutor(
+			DEFAULT_PARSER_THREADS, DEFAULT_PARSER_THREADS, 60, SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() { @Override public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "WOT IdentityFileProcessor parser");
+				// Parsing is background processing just as importing, see getPriority().
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}});
+		mParserPool.allowCoreThreadTimeOut(true);
 	}
 
 	/** Must be called during startup of WOT */
@@ -169,59 +265,116 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		mRealDelayedBackgroundJob.triggerExecution(delayMillis);
 	}
 
-	/** The actual processing thread, run by {@link IdentityFileProcessor#triggerExecution()}. */
+	/**
+	 * Sets the number of threads which {@link Processor} uses for parsing. Takes effect at the
+	 * next execution of it.<br>
+	 * {@link WebOfTrust} sets it from {@link Configuration#IDENTITY_FILE_PROCESSOR_PARSER_THREADS}
+	 * at startup.
+	 * 
+	 * @see #DEFAULT_PARSER_THREADS */
+	synchronized void setParserThreads(int parserThreads) {
+		if(parserThreads < 1)
+			throw new IllegalArgumentException("Need at least one parser: " + parserThreads);
+		
+		// The maximum must never be below the core size, so the order depends on the direction.
+		if(parserThreads > mParserPool.getMaximumPoolSize()) {
+			mParserPool.setMaximumPoolSize(parserThreads);
+			mParserPool.setCorePoolSize(parserThreads);
+		} else {
+			mParserPool.setCorePoolSize(parserThreads);
+			mParserPool.setMaximumPoolSize(parserThreads);
+		}
+		
+		mParserThreads = parserThreads;
+	}
+
+	/**
+	 * A file which has been taken from the {@link IdentityFileQueue} and parsed by a
+	 * {@link Parser}, and now waits for being imported by the {@link Processor}. */
+	private static final class ParsedFile {
+		/**
+		 * Is put into the queue by each {@link Parser} once it is finished, so the
+		 * {@link Processor} knows when to stop waiting for more files. */
+		static final ParsedFile END_OF_INPUT = new ParsedFile(null, null, 0);
+		
+		final FreenetURI mURI;
+		
+		final ParsedIdentityXML mXML;
+		
+		/** Time it took to read the file from the {@link IdentityFileQueue} and parse it. */
+		final long mParsingTimeNanoseconds;
+		
+		ParsedFile(FreenetURI uri, ParsedIdentityXML xml, long parsingTimeNanoseconds) {
+			mURI = uri;
+			mXML = xml;
+			mParsingTimeNanoseconds = parsingTimeNanoseconds;
+		}
+	}
+
+	/**
+	 * The actual processing thread, run by {@link IdentityFileProcessor#triggerExecution()}.<br>
+	 * It runs the {@link Parser}s on the {@link IdentityFileProcessor#mParserPool}, and then imports
+	 * the files they have parsed. */
 	private final class Processor implements Runnable, PrioRunnable {
 		public void run() {
 			Logger.normal(this, "run()...");
 			
-			// We query the IdentityFileQueue for *multiple* files until it is empty since if
-			// it does multiple calls to triggerExecution(), that will only cause one execution of
-			// run().
-			while(true) {
-				IdentityFileStream stream = null;
+			final int parserCount = mParserThreads;
+			final ArrayBlockingQueue<ParsedFile> parsedFiles
+				= new ArrayBlockingQueue<ParsedFile>(parserCount * PARSED_FILES_PER_PARSER_THREAD);
+			final ArrayList<Parser> parsers = new ArrayList<Parser>(parserCount);
+			final ArrayList<Future<?>> parserResults = new ArrayList<Future<?>>(parserCount);
+			
+			try {
+				for(int i = 0; i < parserCount; ++i) {
+					final Parser parser = new Parser(parsedFiles);
+					parsers.add(parser);
+					parserResults.add(mParserPool.submit(parser));
+				}
 				
-				try {
-					stream = mQueue.poll();
-					if(stream == null)
-						break;
-					
-					Logger.normal(this, "run(): Processing: " + stream.mURI);
-
-
-					// FIXME: Improve accuracy: importIdentity() first takes a lot of locks, which
-					// might take some time if other daemons (CAPTCHAs, UI, SubscriptionManager)
-					// are running. Thus, it should do the measurement itself to exclude that, and
-					// return the measured value.
-					// When implementing that, also do separate measurement of XML processing time
-					// so we get an idea how slow it is (I suspect it to be rather slow).
-					final long startTime = System.nanoTime();
-					mXMLTransformer.importIdentity(stream.mURI, stream.mXMLInputStream);
-					final long endTime = System.nanoTime();
+				importParsedFiles(parsedFiles, parsers, parserResults);
+			} finally {
+				// No-op if we exited normally as the parsers have exited already then.
+				// If an Error was thrown, nobody will take their files anymore.
+				for(Parser parser : parsers)
+					parser.abandon();
+			}
+			
+			Logger.normal(this, "run() finished.");
+		}
 
-					synchronized(IdentityFileProcessor.this) {
-						++mStatistics.mProcessedFiles;
-						mStatistics.mProcessingTimeNanoseconds +=  endTime - startTime;
-					}
-				} catch(RuntimeException e) {
-					if(stream != null && stream.mURI != null) {
-						Logger.error(this,
-						    "Parsing identity XML failed severely - edition probably could NOT be "
-						  + "marked for not being fetched again: " + stream.mURI, e);
-					} else
-						Logger.error(this, "Error in poll()", e);
-					
-					synchronized(IdentityFileProcessor.this) {
-						++mStatistics.mFailedFiles;
-					}
-				} finally {
-					if(stream != null)
-						Closer.close(stream.mXMLInputStream);
-				}
+		private void importParsedFiles(ArrayBlockingQueue<ParsedFile> parsedFiles,
+				ArrayList<Parser> parsers, ArrayList<Future<?>> parserResults) {
+			
+			final int parserCount = parsers.size();
+			
+			// Each parser queries the IdentityFileQueue for *multiple* files until it is empty
+			// since if it does multiple calls to triggerExecution(), that will only cause one
+			// execution of run().
+			// We must not exit before all parsers have exited: Each file they have taken from the
+			// queue would be lost otherwise.
+			int finishedParsers = 0;
+			boolean shutdownRequested = false;
+			while(finishedParsers < parserCount) {
+				ParsedFile file = null;
 				
-				if(Thread.interrupted()) {
+				try {
+					file = parsedFiles.take();
+				} catch(InterruptedException e) {
 					// terminate() interrupts our thread, so we obey that.
-					Logger.normal(this, "run(): Shutdown requested, exiting...");
-					break;
+					Thread.currentThread().interrupt();
+				}
+				
+				if(file == ParsedFile.END_OF_INPUT)
+					++finishedParsers;
+				else if(file != null)
+					importFile(file);
+				
+				if(Thread.interrupted() && !shutdownRequested) {
+					Logger.normal(this, "run(): Shutdown requested, stopping parsers...");
+					shutdownRequested = true;
+					for(Parser parser : parsers)
+						parser.stop();
 				}
 				
 				// Processing an identity file can take a long time, and thus we give other stuff
@@ -229,7 +382,49 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 				Thread.yield();
 			}
 			
-			Logger.normal(this, "run() finished.");
+			for(Future<?> result : parserResults) {
+				try {
+					result.get();
+				} catch(InterruptedException e) {
+					// They have sent END_OF_INPUT already, so they will exit soon anyway.
+					shutdownRequested = true;
+				} catch(ExecutionException e) {
+					// Parser.run() catches everything which can happen while processing a file.
+					Logger.error(this, "Parser failed", e.getCause());
+				}
+			}
+			
+			if(shutdownRequested) {
+				// Restore the interrupted status for the BackgroundJob which executed us.
+				Thread.currentThread().interrupt();
+				Logger.normal(this, "run(): Shutdown requested, exiting...");
+			}
+		}
+
+		private void importFile(ParsedFile file) {
+			try {
+				Logger.normal(this, "run(): Importing: " + file.mURI);
+				
+				final long startTime = System.nanoTime();
+				final long importTime = mXMLTransformer.importIdentity(file.mURI, file.mXML);
+				final long endTime = System.nanoTime();
+				
+				synchronized(IdentityFileProcessor.this) {
+					++mStatistics.mProcessedFiles;
+					mStatistics.mProcessingTimeNanoseconds
+						+= file.mParsingTimeNanoseconds + (endTime - startTime);
+					mStatistics.mParsingTimeNanoseconds += file.mParsingTimeNanoseconds;
+					mStatistics.mImportTimeNanoseconds += importTime;
+				}
+			} catch(RuntimeException e) {
+				Logger.error(this,
+				    "Parsing identity XML failed severely - edition probably could NOT be "
+				  + "marked for not being fetched again: " + file.mURI, e);
+				
+				synchronized(IdentityFileProcessor.this) {
+					++mStatistics.mFailedFiles;
+				}
+			}
 		}
 
 		@Override public int getPriority() {
@@ -240,6 +435,152 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		}
 	}
 
+	/**
+	 * Parser thread of the {@link Processor}: Takes files from the {@link IdentityFileQueue},
+	 * parses them and passes them to the {@link Processor} for importing.<br>
+	 * Exits once the queue is empty or {@link #stop()} was called, and then passes
+	 * {@link ParsedFile#END_OF_INPUT} to the {@link Processor}. */
+	private final class Parser implements Runnable {
+		private final ArrayBlockingQueue<ParsedFile> mOutput;
+		
+		private volatile boolean mStopped = false;
+		
+		/** @see #abandon() */
+		private volatile boolean mAbandoned = false;
+		
+		Parser(ArrayBlockingQueue<ParsedFile> output) {
+			mOutput = output;
+		}
+		
+		/**
+		 * Makes the parser exit after it has passed the file it is currently working on to the
+		 * {@link Processor}.<br>
+		 * We don't use {@link Thread#interrupt()} as the file would be lost if we interrupted
+		 * waiting for the {@link Processor} to take it. */
+		void stop() {
+			mStopped = true;
+		}
+		
+		/**
+		 * Must be called if the {@link Processor} exits before it has taken
+		 * {@link ParsedFile#END_OF_INPUT} from this parser: Makes the parser exit instead of
+		 * waiting forever for the Processor to take its current file. */
+		void abandon() {
+			mAbandoned = true;
+			mStopped = true;
+		}
+		
+		@Override public void run() {
+			try {
+				while(!mStopped) {
+					final ParsedFile file = parseNextFile();
+					if(file == null)
+						break;
+					
+					if(!put(file)) {
+						Logger.error(this, "Processor exited, the parsed file is lost: "
+							+ file.mURI);
+						
+						synchronized(IdentityFileProcessor.this) {
+							++mStatistics.mFailedFiles;
+						}
+						
+						break;
+					}
+				}
+			} finally {
+				put(ParsedFile.END_OF_INPUT);
+			}
+		}
+		
+		/** @return The next file, or null if the queue is empty. */
+		private ParsedFile parseNextFile() {
+			while(true) {
+				final long startTime = System.nanoTime();
+				final IdentityFile file;
+				
+				// IdentityFileQueue.poll() does not support concurrent processing of multiple
+				// files: The stream must be closed before poll() is called the next time.
+				// Thus we read the whole file into memory while holding the lock, which is fast
+				// as it is small, and then parse it without the lock.
+				synchronized(mQueuePollLock) {
+					IdentityFileStream stream = null;
+					
+					try {
+						stream = mQueue.poll();
+						if(stream == null)
+							return null;
+						
+						Logger.normal(this, "run(): Parsing: " + stream.mURI);
+						file = IdentityFile.read(stream); // Closes the stream
+					} catch(RuntimeException e) {
+						if(stream != null && stream.mURI != null) {
+							Logger.error(this,
+							    "Reading identity file failed severely - edition probably could NOT "
+							  + "be marked for not being fetched again: " + stream.mURI, e);
+						} else
+							Logger.error(this, "Error in poll()", e);
+						
+						synchronized(IdentityFileProcessor.this) {
+							++mStatistics.mFailedFiles;
+						}
+						
+						continue;
+					} finally {
+						if(stream != null)
+							Closer.close(stream.mXMLInputStream);
+					}
+				}
+				
+				final ParsedIdentityXML xml;
+				
+				try {
+					xml = mXMLTransformer.parseIdentityXML(new ByteArrayInputStream(file.mXML));
+				} catch(RuntimeException e) {
+					// The file was removed from the queue by poll() already, so it is lost.
+					Logger.error(this,
+					    "Parsing identity XML failed severely - edition probably could NOT be "
+					  + "marked for not being fetched again: " + file.getURI(), e);
+					
+					synchronized(IdentityFileProcessor.this) {
+						++mStatistics.mFailedFiles;
+					}
+					
+					continue;
+				}
+				
+				return new ParsedFile(file.getURI(), xml, System.nanoTime() - startTime);
+			}
+		}
+		
+		/**
+		 * Passes the file to the {@link Processor}, waiting until it has space for it.
+		 * @return False if the file could not be passed because we were {@link #abandon()}ed. */
+		private boolean put(ParsedFile file) {
+			boolean interrupted = false;
+			boolean success = false;
+			
+			while(!mAbandoned) {
+				try {
+					if(mOutput.offer(file, PARSER_PUT_TIMEOUT_SECONDS, SECONDS)) {
+						success = true;
+						break;
+					}
+				} catch(InterruptedException e) {
+					// Nobody is supposed to interrupt us, see stop(). If it happens anyway we
+					// nevertheless must hand out the current file, but not parse any more.
+					interrupted = true;
+					mStopped = true;
+				}
+			}
+			
+			if(interrupted)
+				Thread.currentThread().interrupt();
+			
+			return success;
+		}
+	}
+
 
 	/** Must be called before the WOT plugin is terminated. */
 	@Override public void terminate() {
@@ -259,6 +600,10 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		// Processor.run() supports thread interruption by terminate(), so we force the timeout to
 		// be infinite so we always wait for clean exit of run() after it was terminate()d.
 		mRealDelayedBackgroundJob.waitForTermination(Long.MAX_VALUE);
+		
+		// The Processor has exited, and it only exits once all parsers have.
+		mParserPool.shutdown();
+		mParserPool.awaitTermination(Long.MAX_VALUE, MILLISECONDS);
 	}
 
 	/**
@@ -33,6 +33,9 @@ import plugins.WebOfTrust.util.CurrentTimeUTC;
  *    The order of the output of the queue is the same as the one of the input.
  *    This is suitable for the debugging purpose of deterministic repetition of sessions.<br><br>
  *    
+ * Implementations may return files in an order which respects
+ * {@link IdentityFileStream#mPriority}, see the JavaDoc there.<br><br>
+ * 
  * Notice: Implementations do not necessarily have to be disk-based, the word "file" is only used
  * to name the data set of an {@link Identity} in an easy to understand way.
  */
@@ -53,16 +56,39 @@ public interface IdentityFileQueue {
 
 		public final InputStream mXMLInputStream;
 
+		/**
+		 * Hint for the queue on how soon the file should be processed: 0 is the highest priority,
+		 * larger values are lower priorities.<br>
+		 * Files of Identitys which are close to the {@link OwnIdentity}s in the trust graph change
+		 * the {@link Score}s the most, so processing them first makes the Scores converge faster.
+		 * <br>The {@link IdentityFetcher} thus uses {@link IdentityFetcher#getFilePriority(
+		 * WebOfTrust, Identity)}.<br><br>
+		 * 
+		 * Implementations may ignore the priority. If they do use it, they must ensure that files
+		 * of low priority do not starve.<br>
+		 * If the queue deduplicates the file with a queued one, it may keep the priority of the
+		 * queued one. */
+		public final int mPriority;
+
 		/**
 		 * @param uri
 		 *     The {@link FreenetURI} from which the identity file was downloaded.<br>
 		 *     ATTENTION: The edition in the URI must match the specific edition of the file.
 		 * @param xmlInputStream
 		 *     The unmodified XML data of the file.
+		 * @param priority
+		 *     See {@link #mPriority}. Must not be negative.
 		 */
-		public IdentityFileStream(FreenetURI uri, InputStream xmlInputStream) {
+		public IdentityFileStream(FreenetURI uri, InputStream xmlInputStream, int priority) {
+			assert(priority >= 0);
 			mURI = uri;
 			mXMLInputStream = xmlInputStream;
+			mPriority = priority;
+		}
+
+		/** Same as {@link #IdentityFileStream(FreenetURI, InputStream, int)} with priority 0. */
+		public IdentityFileStream(FreenetURI uri, InputStream xmlInputStream) {
+			this(uri, xmlInputStream, 0);
 		}
 	}
 
@@ -343,6 +343,7 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 			clone.mLatestEditionHint = getLatestEditionHint(); // Don't use the setter since it won't lower the current edition hint.
 			clone.setContexts(getContexts());
 			clone.setProperties(getProperties());
+			clone.setBestScore(getBestScore(), getBestCapacity(), shouldFetch());
             // Clone it because date is mutable. Set it *after* calling all setters since they would
             // update it to the current time otherwise.
             clone.mLastChangedDate = (Date)mLastChangedDate.clone();
@@ -475,4 +476,18 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		stream.defaultWriteObject();
 	}
 
+	/** {@inheritDoc} */
+	@Override void writeCompact(EventSourceCodec.Output out) throws IOException {
+		super.writeCompact(out);
+		out.writeURI(mInsertURIString, null);
+		out.writeDate(mLastInsertDate);
+	}
+
+	/** @see Identity#Identity(EventSourceCodec.Input) */
+	OwnIdentity(EventSourceCodec.Input in) throws IOException {
+		super(in);
+		mInsertURIString = in.readURI(null);
+		mLastInsertDate = in.readDate();
+	}
+
 }
@@ -16,7 +16,9 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -81,6 +83,14 @@ public abstract class Persistent implements Serializable {
 	 */
 	private static transient final Object mTransactionLock = new Object();
 	
+	/**
+	 * Key = The database, Value = The {@link TransactionListener}s which were registered for it
+	 * using {@link #addTransactionListener(ExtObjectContainer, TransactionListener)}.
+	 * Synchronized on itself. */
+	private static transient final
+		IdentityHashMap<ExtObjectContainer, ArrayList<TransactionListener>> TRANSACTION_LISTENERS
+			= new IdentityHashMap<ExtObjectContainer, ArrayList<TransactionListener>>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -134,6 +144,24 @@ public abstract class Persistent implements Serializable {
 	@Retention(RetentionPolicy.SOURCE)
 	public @interface NeedsTransaction { }
 
+	/**
+	 * Interface for in-memory data structures which mirror parts of the database, such as the
+	 * {@link TrustGraph}, and thus must follow its transactions: Changes which were applied to them
+	 * during a transaction must be reverted if the transaction is rolled back instead of committed.
+	 * 
+	 * The callbacks are executed by {@link #checkedCommit(ExtObjectContainer, Object)} and
+	 * {@link #checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)} while the thread
+	 * holds the {@link #transactionLock(ExtObjectContainer)}. They must not throw.
+	 * 
+	 * @see #addTransactionListener(ExtObjectContainer, TransactionListener) */
+	public interface TransactionListener {
+		/** Called after the database transaction was committed successfully. */
+		void onCommit();
+		
+		/** Called after the database transaction was rolled back. */
+		void onRollback();
+	}
+
 	public void testDatabaseIntegrity() {
 		testDatabaseIntegrity(mWebOfTrust, mDB);
 	}
@@ -237,6 +265,51 @@ public abstract class Persistent implements Serializable {
 		return mTransactionLock;
 	}
 
+	/**
+	 * Registers a {@link TransactionListener} to be notified about the end of every transaction
+	 * which is committed or rolled back using the checkedCommit() / checkedRollback() functions
+	 * of this class on the given database.
+	 * 
+	 * @see #removeTransactionListener(ExtObjectContainer, TransactionListener) */
+	public static final void addTransactionListener(ExtObjectContainer db,
+			TransactionListener listener) {
+		
+		synchronized(TRANSACTION_LISTENERS) {
+			ArrayList<TransactionListener> listeners = TRANSACTION_LISTENERS.get(db);
+			if(listeners == null) {
+				listeners = new ArrayList<TransactionListener>(2);
+				TRANSACTION_LISTENERS.put(db, listeners);
+			}
+			assert(!listeners.contains(listener));
+			listeners.add(listener);
+		}
+	}
+
+	/** @see #addTransactionListener(ExtObjectContainer, TransactionListener) */
+	public static final void removeTransactionListener(ExtObjectContainer db,
+			TransactionListener listener) {
+		
+		synchronized(TRANSACTION_LISTENERS) {
+			ArrayList<TransactionListener> listeners = TRANSACTION_LISTENERS.get(db);
+			if(listeners == null)
+				return;
+			
+			listeners.remove(listener);
+			if(listeners.isEmpty())
+				TRANSACTION_LISTENERS.remove(db);
+		}
+	}
+
+	/** @return A copy of the list of listeners to allow calling them without holding the lock. */
+	private static final TransactionListener[] getTransactionListeners(ExtObjectContainer db) {
+		synchronized(TRANSACTION_LISTENERS) {
+			ArrayList<TransactionListener> listeners = TRANSACTION_LISTENERS.get(db);
+			return listeners != null
+				? listeners.toArray(new TransactionListener[listeners.size()])
+				: new TransactionListener[0];
+		}
+	}
+
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
 	 * 
@@ -382,6 +455,9 @@ public abstract class Persistent implements Serializable {
 		System.gc(); 
 		Logger.logStatic(loggingObject, "ROLLED BACK!", error, logLevel);
 		testDatabaseIntegrity(null, db);
+		
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onRollback();
 	}
 	
 	/**
@@ -501,6 +577,9 @@ public abstract class Persistent implements Serializable {
 		db.commit();
 		if(logDEBUG) Logger.debug(loggingObject, "COMMITED.");
 		testDatabaseIntegrity(null, db);
+		
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onCommit();
 	}
 	
 	/**
@@ -853,7 +932,10 @@ public abstract class Persistent implements Serializable {
 	/* Non-db4o related code */
 
 	/**
-	 * Uses standard Java serialization to convert this Object to a byte array. NOT used by db4o.
+	 * Converts this Object to a byte array. NOT used by db4o.<br>
+	 * The {@link EventSource}s {@link Identity}, {@link OwnIdentity}, {@link Trust} and
+	 * {@link Score} are stored in the compact format of {@link EventSourceCodec}, other classes
+	 * use standard Java serialization.
 	 * 
 	 * The purpose for this is to allow in-db4o storage of cloned {@link Identity}/{@link Trust}/{@link Score}/etc. objects:
 	 * Normally there should only be one object with a given ID in the database, if we clone a Persistent object it will have the same ID.
@@ -861,7 +943,8 @@ public abstract class Persistent implements Serializable {
 	 * 
 	 * Typically used by {@link SubscriptionManager} for being able to store clones.
 	 * 
-	 * ATTENTION: Your Persistent class must provide an implementation of the following function:
+	 * ATTENTION: If your Persistent class is not supported by EventSourceCodec, it must provide an
+	 * implementation of the following function:
 	 * <code>private void writeObject(ObjectOutputStream stream) throws IOException;</code>
 	 * This function is not specified by an interface, it can be read up about in the <a href="http://docs.oracle.com/javase/7/docs/platform/serialization/spec/output.html#861">serialization documentation</a>.
 	 * It must properly activate the object, all of its members and all of their members:
@@ -871,6 +954,17 @@ public abstract class Persistent implements Serializable {
 	 * @see Persistent#deserialize(WebOfTrustInterface, byte[]) The inverse function.
 	 */
 	final byte[] serialize() {
+		if(EventSourceCodec.isSupported(this))
+			return EventSourceCodec.encode(this);
+		
+		return serializeWithJavaSerialization();
+	}
+	
+	/**
+	 * The standard Java serialization part of {@link #serialize()}.<br>
+	 * Also used by tests and benchmarks to produce the format which previous versions of WOT
+	 * used for all classes. */
+	final byte[] serializeWithJavaSerialization() {
 		ByteArrayOutputStream bos = null;
 		ObjectOutputStream ous = null;
 		
@@ -888,15 +982,23 @@ public abstract class Persistent implements Serializable {
 		}
 	}
 	
-	/** Inverse function of {@link #serialize()}. */
+	/**
+	 * Inverse function of {@link #serialize()}.<br>
+	 * Can also read data which was serialized with standard Java serialization by previous
+	 * versions of WOT for the classes which now use {@link EventSourceCodec}. */
 	static final Persistent deserialize(final WebOfTrustInterface wot, final byte[] data) {
 		ByteArrayInputStream bis = null;
 		ObjectInputStream ois = null;
 		
 		try {
-			bis = new ByteArrayInputStream(data);
-			ois = new ObjectInputStream(bis);
-			final Persistent deserialized = (Persistent)ois.readObject();
+			final Persistent deserialized;
+			if(EventSourceCodec.isEncoded(data)) {
+				deserialized = EventSourceCodec.decode(data);
+			} else {
+				bis = new ByteArrayInputStream(data);
+				ois = new ObjectInputStream(bis);
+				deserialized = (Persistent)ois.readObject();
+			}
 			deserialized.initializeTransient(wot);
 			assert(deserialized.startupDatabaseIntegrityTestBoolean());
 			return deserialized;
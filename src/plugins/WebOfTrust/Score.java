@@ -16,6 +16,7 @@ import java.util.UUID;
 
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.util.AssertUtil;
 import plugins.WebOfTrust.util.ReallyCloneable;
 import plugins.WebOfTrust.util.CurrentTimeUTC;
 
@@ -104,6 +105,22 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 	 */
 	private Date mLastChangedDate;
 
+	/**
+	 * The {@link #mValue} which is stored in the database, or {@link Integer#MIN_VALUE} if this
+	 * Score was not stored yet. Only valid if {@link #mStoredValuesKnown}.<br>
+	 * Passed to {@link WebOfTrust#updateBestScoreWithoutCommit(Score, int, int)} so it can tell
+	 * whether the Score decreased. */
+	private transient int mStoredValue;
+
+	/** Same as {@link #mStoredValue} for {@link #mCapacity}, 0 if the Score was not stored yet. */
+	private transient int mStoredCapacity;
+
+	/**
+	 * True if {@link #mStoredValue} and {@link #mStoredCapacity} were remembered by the
+	 * setters before they changed the values. If false, the values were not changed since the
+	 * Score was loaded from or written to the database. */
+	private transient boolean mStoredValuesKnown;
+
     /** An {@link UUID} set by {@link EventSource#setVersionID(UUID)}. See its JavaDoc for an
      *  explanation of the purpose.<br>
      *  Stored as String to reduce db4o maintenance overhead. */
@@ -143,6 +160,19 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			mID = truster.getID() + "@" + trustee.getID();
 		}
 		
+		public ScoreID(final String trusterID, final String trusteeID) {
+			AssertUtil.assertDidNotThrow(new Runnable() {
+				@Override public void run() {
+					IdentityID.constructAndValidateFromString(trusterID);
+					IdentityID.constructAndValidateFromString(trusteeID);
+				}
+			});
+			
+			mTrusterID = trusterID;
+			mTrusteeID = trusteeID;
+			mID = trusterID + "@" + trusteeID;
+		}
+		
 		private ScoreID(String id) {
 			if(id.length() != LENGTH)
 				throw new IllegalArgumentException("ID has wrong length: " + id.length());
@@ -243,6 +273,9 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		mTruster = myTruster;
 		mTrustee = myTrustee;
 		mID = new ScoreID(mTruster, mTrustee).toString();
+		mStoredValue = Integer.MIN_VALUE;
+		mStoredCapacity = 0;
+		mStoredValuesKnown = true;
 		setValue(myValue);
 		setRank(myRank);
 		setCapacity(myCapacity);
@@ -327,6 +360,7 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		if(mValue == newValue)
 			return;
 		
+		rememberStoredValues();
 		mValue = newValue;
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
@@ -382,10 +416,31 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		if(newCapacity == mCapacity)
 			return;
 		
+		rememberStoredValues();
 		mCapacity = newCapacity;
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
 
+	/** Must be called by the setters before they change the value or capacity. */
+	private void rememberStoredValues() {
+		if(mStoredValuesKnown)
+			return;
+		
+		mStoredValue = mValue;
+		mStoredCapacity = mCapacity;
+		mStoredValuesKnown = true;
+	}
+
+	/** @see #mStoredValue */
+	private int getStoredValue() {
+		return mStoredValuesKnown ? mStoredValue : getValue();
+	}
+
+	/** @see #mStoredCapacity */
+	private int getStoredCapacity() {
+		return mStoredValuesKnown ? mStoredCapacity : getCapacity();
+	}
+
 	/**
 	 * Gets the {@link Date} when the value, capacity or rank of this score was last changed.
 	 */
@@ -412,6 +467,12 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
 			checkedStore();
+			// Only class WebOfTrust has a database, so storing cannot happen with other
+			// implementations of WebOfTrustInterface.
+			((WebOfTrust)mWebOfTrust).updateBestScoreWithoutCommit(
+				this, getStoredValue(), getStoredCapacity());
+			((WebOfTrust)mWebOfTrust).updateScoreTableWithoutCommit(this, false);
+			mStoredValuesKnown = false;
 		}
 		catch(final RuntimeException e) {
 			// TODO: Code quality: We very likely don't need to catch/throw/rollback here:
@@ -423,6 +484,25 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		}
 	}
 	
+	/**
+	 * Deletes this Score and updates the values which the trustee caches about its Scores, see
+	 * {@link WebOfTrust#updateBestScoreAfterDeletionWithoutCommit(Identity, Score, boolean, int,
+	 * int)}, and the {@link ScoreTable}. */
+	@Override
+	protected void deleteWithoutCommit() {
+		activateFully();
+		final Identity trustee = mTrustee;
+		// Orphans may lack the truster, see WebOfTrust.deleteOrphanObjects().
+		final boolean isSelfScore
+			= mTruster != null && mTrustee != null && mTruster.getID().equals(mTrustee.getID());
+		final int storedValue = getStoredValue();
+		final int storedCapacity = getStoredCapacity();
+		super.deleteWithoutCommit();
+		((WebOfTrust)mWebOfTrust).updateBestScoreAfterDeletionWithoutCommit(
+			trustee, this, isSelfScore, storedValue, storedCapacity);
+		((WebOfTrust)mWebOfTrust).updateScoreTableWithoutCommit(this, true);
+	}
+	
 	/**
 	 * Test if two scores are equal.
 	 * - <b>All</b> attributes are compared <b>except</b> the dates.<br />
@@ -531,6 +611,41 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * Writes the member variables for {@link Persistent#serialize()}, see
+	 * {@link EventSourceCodec}. Inverse of {@link #Score(EventSourceCodec.Input)}.<br>
+	 * The caller must have called {@link #activateFully()}.<br>
+	 * {@link #mID} is not written, it can be computed from the truster and trustee. */
+	void writeCompact(EventSourceCodec.Output out) throws IOException {
+		out.writeObject(getTruster());
+		out.writeObject(getTrustee());
+		out.writeVarLong(mValue);
+		out.writeVarLong(mRank);
+		out.writeVarInt(mCapacity);
+		out.writeDate(mLastChangedDate);
+		out.writeUUID(mVersionID);
+	}
+
+	/**
+	 * Constructor for {@link Persistent#deserialize(WebOfTrustInterface, byte[])}, see
+	 * {@link EventSourceCodec}. Inverse of {@link #writeCompact(EventSourceCodec.Output)}. */
+	Score(EventSourceCodec.Input in) throws IOException {
+		try {
+			mTruster = (OwnIdentity)in.readObject();
+			mTrustee = (Identity)in.readObject();
+		} catch(ClassCastException e) {
+			throw new IOException(e);
+		}
+		
+		// The getters of the Identitys cannot be used: initializeTransient() was not called yet.
+		mID = new ScoreID(mTruster.mID, mTrustee.mID).toString();
+		mValue = (int)in.readVarLong();
+		mRank = (int)in.readVarLong();
+		mCapacity = in.readVarInt();
+		mLastChangedDate = in.readDate();
+		mVersionID = in.readUUID();
+	}
+
     /** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
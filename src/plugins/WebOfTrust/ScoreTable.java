@@ -0,0 +1,369 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.fill;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import plugins.WebOfTrust.Persistent.TransactionListener;
+
+/**
+ * In-memory copy of the {@link Score} table for readers which shall not wait for the lock of the
+ * {@link WebOfTrust}, see {@link WebOfTrust#getScoreSnapshot()}.
+ *
+ * Trust list imports hold the lock of the WebOfTrust while computing Scores, which can take
+ * seconds on large databases. As db4o does not provide transaction isolation, readers of the
+ * database have to wait for them to finish. Instead, this class publishes an immutable
+ * {@link Snapshot} of the committed Score table upon each commit which changed Scores. Readers
+ * can use it without any locking and without activating any database objects.
+ *
+ * The memory layout is as compact as possible:
+ * - Identitys are addressed by an int index, same as the vertices of {@link TrustGraph}. The
+ *   mapping from {@link Identity#getID()} to the index is stable for the lifetime of the object.
+ * - The Scores of the trust tree of each {@link OwnIdentity} are stored in a {@link Tree} of
+ *   primitive arrays which are indexed by the index of the trustee.
+ * - Trees are copied on write: Upon the first change of a Tree after a Snapshot was published,
+ *   the Tree is replaced with a copy, so the Snapshot's Tree is never modified. As a transaction
+ *   usually only changes the trees of few OwnIdentitys, this is cheap.
+ *
+ * The table is kept in sync with the database by {@link Score#storeWithoutCommit()} and
+ * {@link Score#deleteWithoutCommit()}. As this is a {@link TransactionListener},
+ * {@link #onCommit()} publishes a new Snapshot. {@link #onRollback()} reverts to the last
+ * Snapshot, as it is the committed state.
+ *
+ * Concurrency: Same as for {@link TrustGraph}. Writes require the lock of the WebOfTrust and the
+ * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}. Reading the Snapshots
+ * does not require any locking. */
+public final class ScoreTable implements TransactionListener {
+
+	/**
+	 * Key = {@link Identity#getID()}, Value = its index in the arrays of the {@link Tree}s.
+	 * Shared with the {@link Snapshot}s, see {@link TrustGraph#mVertices}. */
+	private final ConcurrentHashMap<String, Integer> mVertices
+		= new ConcurrentHashMap<String, Integer>();
+
+	/** Index = vertex, value = {@link Identity#getID()}. Can be larger than mVertexCount. */
+	private String[] mIdentityIDs = new String[16];
+
+	private int mVertexCount = 0;
+
+	/** Key = {@link OwnIdentity#getID()} of the tree owner. */
+	private HashMap<String, Tree> mTrees = new HashMap<String, Tree>();
+
+	/**
+	 * The Trees which were created or copied since the last {@link #onCommit()}. They are not
+	 * part of {@link #mSnapshot} and thus can be modified directly. */
+	private final HashSet<Tree> mModifiedTrees = new HashSet<Tree>();
+
+	/** The table as of the last commit, see {@link #getSnapshot()}. */
+	private volatile Snapshot mSnapshot;
+
+
+	/**
+	 * Copies the given Scores into a new table.
+	 * Scores which have no truster or trustee (= orphans, see
+	 * {@link WebOfTrust#deleteOrphanObjects()}) are ignored. */
+	public ScoreTable(Iterable<Score> scores) {
+		for(Score score : scores) {
+			if(score.getTruster() == null || score.getTrustee() == null)
+				continue;
+
+			setScore(score);
+		}
+
+		publishSnapshot();
+	}
+
+	/**
+	 * Gets an immutable copy of the table as of the last commit which changed it. For the table
+	 * constructed by {@link WebOfTrust}, which follows the database, this is the committed state
+	 * of the Score table.<br>
+	 * Does NOT require any locking, and the returned Snapshot is not changed by later commits. */
+	public Snapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/** @return The index of the {@link Identity} with the given ID, or -1 if it has none. */
+	public int getVertex(String identityID) {
+		final Integer vertex = mVertices.get(identityID);
+		return vertex != null ? vertex : -1;
+	}
+
+	private int getOrCreateVertex(String identityID) {
+		final Integer existing = mVertices.get(identityID);
+		if(existing != null)
+			return existing;
+
+		final int vertex = mVertexCount++;
+		if(vertex == mIdentityIDs.length)
+			mIdentityIDs = copyOf(mIdentityIDs, vertex * 2);
+
+		mIdentityIDs[vertex] = identityID;
+		mVertices.put(identityID, vertex);
+		return vertex;
+	}
+
+	/** Must be called whenever the given Score is stored to the database. */
+	public void setScore(Score score) {
+		final Tree tree = getModifiableTree(score.getTruster().getID());
+		tree.set(getOrCreateVertex(score.getTrustee().getID()), score);
+	}
+
+	/** Must be called whenever the given Score is deleted from the database. */
+	public void removeScore(Score score) {
+		final String ownerID = score.getTruster().getID();
+		final Tree tree = mTrees.get(ownerID);
+		final int vertex = getVertex(score.getTrustee().getID());
+
+		if(tree == null || !tree.hasScore(vertex))
+			return;
+
+		getModifiableTree(ownerID).remove(vertex);
+	}
+
+	/** Gets the Tree of the given owner for writing, copying it if it is part of the Snapshot. */
+	private Tree getModifiableTree(String ownerID) {
+		Tree tree = mTrees.get(ownerID);
+
+		if(tree == null)
+			tree = new Tree(ownerID);
+		else if(!mModifiedTrees.contains(tree))
+			tree = new Tree(tree);
+		else
+			return tree;
+
+		mTrees.put(ownerID, tree);
+		mModifiedTrees.add(tree);
+		return tree;
+	}
+
+	private void publishSnapshot() {
+		// The Scores of an OwnIdentity are all deleted if it is deleted or becomes a
+		// non-own Identity.
+		for(Tree tree : mModifiedTrees) {
+			if(tree.mScoreCount == 0)
+				mTrees.remove(tree.mOwnerID);
+		}
+
+		mModifiedTrees.clear();
+		mSnapshot = new Snapshot(this);
+	}
+
+	@Override public void onCommit() {
+		if(!mModifiedTrees.isEmpty())
+			publishSnapshot();
+	}
+
+	@Override public void onRollback() {
+		if(mModifiedTrees.isEmpty())
+			return;
+
+		mTrees = new HashMap<String, Tree>(mSnapshot.mTrees);
+		mModifiedTrees.clear();
+	}
+
+	/**
+	 * For unit tests: Checks whether the table equals the given Scores, e.g. the database.
+	 * Must only be called when there is no uncommitted transaction. */
+	boolean equals(Iterable<Score> scores) {
+		return equals(scores, mVertices, mVertexCount, mTrees);
+	}
+
+	private static boolean equals(Iterable<Score> scores, Map<String, Integer> vertices,
+			int vertexCount, Map<String, Tree> trees) {
+
+		int scoreCount = 0;
+
+		for(Score score : scores) {
+			final Tree tree = trees.get(score.getTruster().getID());
+			final Integer vertex = vertices.get(score.getTrustee().getID());
+
+			if(tree == null || vertex == null || vertex >= vertexCount || !tree.hasScore(vertex))
+				return false;
+
+			if(tree.getValue(vertex) != score.getValue()
+					|| tree.getRank(vertex) != score.getRank()
+					|| tree.getCapacity(vertex) != score.getCapacity())
+				return false;
+
+			++scoreCount;
+		}
+
+		for(Tree tree : trees.values())
+			scoreCount -= tree.mScoreCount;
+
+		return scoreCount == 0;
+	}
+
+
+	/**
+	 * The Scores in the trust tree of a single {@link OwnIdentity}.
+	 * The Trees which are returned by a {@link Snapshot} are never modified. */
+	public static final class Tree {
+		/** Value of {@link #mCapacities} for vertices which have no Score. */
+		private static final byte NO_SCORE = -1;
+
+		private final String mOwnerID;
+
+		/** Index = vertex, value = {@link Score#getValue()}. */
+		private int[] mValues;
+
+		/** Index = vertex, value = {@link Score#getRank()}. */
+		private int[] mRanks;
+
+		/**
+		 * Index = vertex, value = {@link Score#getCapacity()}, which is at most 100, or
+		 * {@link #NO_SCORE}. Vertices >= the length of the arrays have no Score. */
+		private byte[] mCapacities;
+
+		private int mScoreCount = 0;
+
+
+		private Tree(String ownerID) {
+			mOwnerID = ownerID;
+			mValues = new int[0];
+			mRanks = new int[0];
+			mCapacities = new byte[0];
+		}
+
+		/** Copy-constructor for copying on write. */
+		private Tree(Tree original) {
+			mOwnerID = original.mOwnerID;
+			mValues = original.mValues.clone();
+			mRanks = original.mRanks.clone();
+			mCapacities = original.mCapacities.clone();
+			mScoreCount = original.mScoreCount;
+		}
+
+		/** @return The {@link OwnIdentity#getID()} of the owner of the trust tree. */
+		public String getOwnerID() {
+			return mOwnerID;
+		}
+
+		/** @return The amount of Scores in the tree, including the one of the owner itself. */
+		public int getScoreCount() {
+			return mScoreCount;
+		}
+
+		/**
+		 * @return True if the given vertex has a Score in the tree. Vertices of -1 are allowed
+		 *     and yield false. */
+		public boolean hasScore(int vertex) {
+			return vertex >= 0 && vertex < mCapacities.length && mCapacities[vertex] != NO_SCORE;
+		}
+
+		/** @return The {@link Score#getValue()}. The vertex must {@link #hasScore(int)}. */
+		public int getValue(int vertex) {
+			assert(hasScore(vertex));
+			return mValues[vertex];
+		}
+
+		/** @return The {@link Score#getRank()}. The vertex must {@link #hasScore(int)}. */
+		public int getRank(int vertex) {
+			assert(hasScore(vertex));
+			return mRanks[vertex];
+		}
+
+		/** @return The {@link Score#getCapacity()}. The vertex must {@link #hasScore(int)}. */
+		public int getCapacity(int vertex) {
+			assert(hasScore(vertex));
+			return mCapacities[vertex];
+		}
+
+		private void set(int vertex, Score score) {
+			if(vertex >= mCapacities.length) {
+				final int oldLength = mCapacities.length;
+				final int newLength = max(max(16, vertex + 1), oldLength * 2);
+				mValues = copyOf(mValues, newLength);
+				mRanks = copyOf(mRanks, newLength);
+				mCapacities = copyOf(mCapacities, newLength);
+				fill(mCapacities, oldLength, newLength, NO_SCORE);
+			}
+
+			if(mCapacities[vertex] == NO_SCORE)
+				++mScoreCount;
+
+			mValues[vertex] = score.getValue();
+			mRanks[vertex] = score.getRank();
+			mCapacities[vertex] = (byte)score.getCapacity();
+		}
+
+		private void remove(int vertex) {
+			assert(hasScore(vertex));
+			mCapacities[vertex] = NO_SCORE;
+			--mScoreCount;
+		}
+	}
+
+	/**
+	 * Immutable copy of a {@link ScoreTable}, see {@link ScoreTable#getSnapshot()}.
+	 * Notice that it does not contain any data about the Identitys besides their IDs. Thus you
+	 * still have to query the database to get them. */
+	public static final class Snapshot {
+		private final ConcurrentHashMap<String, Integer> mVertices;
+
+		private final String[] mIdentityIDs;
+
+		private final int mVertexCount;
+
+		private final HashMap<String, Tree> mTrees;
+
+
+		/**
+		 * Copies the given table. Only the map of the Trees is copied, the Trees themselves are
+		 * shared as they are copied on write. */
+		private Snapshot(ScoreTable table) {
+			mVertices = table.mVertices;
+			mIdentityIDs = table.mIdentityIDs;
+			mVertexCount = table.mVertexCount;
+			mTrees = new HashMap<String, Tree>(table.mTrees);
+		}
+
+		/**
+		 * @return The index of the {@link Identity} with the given ID in the {@link Tree}s, or
+		 *     -1 if it had none when the Snapshot was taken. */
+		public int getVertex(String identityID) {
+			final Integer vertex = mVertices.get(identityID);
+			// The table may have added vertices after the Snapshot was taken
+			return vertex != null && vertex < mVertexCount ? vertex : -1;
+		}
+
+		/** @return The {@link Identity#getID()} of the given vertex. */
+		public String getIdentityID(int vertex) {
+			assert(vertex >= 0 && vertex < mVertexCount);
+			return mIdentityIDs[vertex];
+		}
+
+		/** @return The amount of vertices, all vertices of the {@link Tree}s are less than it. */
+		public int getVertexCount() {
+			return mVertexCount;
+		}
+
+		/**
+		 * @return The trust tree of the {@link OwnIdentity} with the given ID, or null if it
+		 *     has no Scores, e.g. because there is no such OwnIdentity. */
+		public Tree getTree(String ownIdentityID) {
+			return mTrees.get(ownIdentityID);
+		}
+
+		/** @return The trust trees of all {@link OwnIdentity}s. */
+		public Collection<Tree> getTrees() {
+			return Collections.unmodifiableCollection(mTrees.values());
+		}
+
+		/** For unit tests: Checks whether the Snapshot equals the given Scores. */
+		boolean equals(Iterable<Score> scores) {
+			return ScoreTable.equals(scores, mVertices, mVertexCount, mTrees);
+		}
+	}
+
+}
@@ -4,12 +4,25 @@
 package plugins.WebOfTrust;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import plugins.WebOfTrust.exceptions.DuplicateObjectException;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.fcp.FCPInterface.FCPCallFailedException;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.PendingReply;
+import plugins.WebOfTrust.util.CurrentTimeUTC;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
@@ -71,8 +84,9 @@ import freenet.support.io.NativeThread;
  * Any functions which require synchronization upon some of the locks will mention it.
  * 
  * TODO: Allow out-of-order notifications if the client desires them
- * TODO: Optimization: Allow coalescing of notifications: If a single object changes twice, only send one notification
- * TODO: Optimization: Allow the client to specify filters to reduce traffic: - Context of identities, etc. 
+ * Clients may request coalescing of notifications: If a single object changes twice before the first notification was
+ * deployed, only one notification is sent. See {@link #setCoalesceNotifications(UUID, boolean)}.
+ * Clients may specify a {@link Filter} when subscribing to only be notified about the objects which they are interested in.
  * 
  * 
  * TODO: This should be used for powering the IntroductionClient/IntroductionServer.
@@ -129,6 +143,34 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		private byte mSendNotificationsFailureCount = 0;
 		
+		/**
+		 * Maximal amount of {@link ObjectChangedNotification}s which may be deployed with a single
+		 * message, see {@link FCPInterface#sendObjectChangedNotifications(UUID, List, long, long)}.
+		 * 1 means that the client did not request batching: Each ObjectChangedNotification is then
+		 * deployed with a message of its own.
+		 * 
+		 * @see SubscriptionManager#setEventBatching(UUID, int, int)
+		 */
+		private int mMaxEventsPerMessage = 1;
+		
+		/**
+		 * Maximal amount of messages containing multiple {@link ObjectChangedNotification}s which
+		 * may be awaiting their reply at once. Only used if {@link #mMaxEventsPerMessage} > 1.
+		 * 
+		 * @see SubscriptionManager#setEventBatching(UUID, int, int)
+		 */
+		private int mMaxMessagesInFlight = 1;
+		
+		/**
+		 * If true, a change to an object for which an {@link ObjectChangedNotification} is still
+		 * queued is merged into that Notification instead of queuing a new one.
+		 * 
+		 * @see SubscriptionManager#setCoalesceNotifications(UUID, boolean)
+		 * @see Subscription#coalesceNotificationWithoutCommit(EventSource, EventSource,
+		 *     NotificationPayload)
+		 */
+		private boolean mCoalesceNotifications = false;
+		
 		/** @param myFCP_ID See {@link #mFCP_ID} */
 		public Client(final UUID myFCP_ID) {
             assert(myFCP_ID != null);
@@ -154,6 +196,12 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			if(mSendNotificationsFailureCount < 0 || mSendNotificationsFailureCount > SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT)
 				throw new IllegalStateException("mSendNotificationsFailureCount==" + mSendNotificationsFailureCount);
+			
+			if(mMaxEventsPerMessage < 1)
+				throw new IllegalStateException("mMaxEventsPerMessage==" + mMaxEventsPerMessage);
+			
+			if(mMaxMessagesInFlight < 1)
+				throw new IllegalStateException("mMaxMessagesInFlight==" + mMaxMessagesInFlight);
 		}
 		
 		/**
@@ -214,6 +262,43 @@ public final class SubscriptionManager implements PrioRunnable {
 			return mSendNotificationsFailureCount;
 		}
 		
+		/**
+		 * Stores this Client object without committing the transaction.
+		 * 
+		 * @see #mMaxEventsPerMessage
+		 * @see #mMaxMessagesInFlight
+		 */
+		private final void setEventBatchingWithoutCommit(int maxEventsPerMessage,
+				int maxMessagesInFlight) {
+			
+			if(maxEventsPerMessage < 1 || maxMessagesInFlight < 1) {
+				throw new IllegalArgumentException("Invalid event batching: maxEventsPerMessage: "
+					+ maxEventsPerMessage + "; maxMessagesInFlight: " + maxMessagesInFlight);
+			}
+			
+			checkedActivate(1);
+			mMaxEventsPerMessage = maxEventsPerMessage;
+			mMaxMessagesInFlight = maxMessagesInFlight;
+			storeWithoutCommit();
+		}
+		
+		/** @see #mCoalesceNotifications */
+		final boolean getCoalesceNotifications() {
+			checkedActivate(1);
+			return mCoalesceNotifications;
+		}
+		
+		/**
+		 * Stores this Client object without committing the transaction.
+		 * 
+		 * @see #mCoalesceNotifications
+		 */
+		private final void setCoalesceNotificationsWithoutCommit(boolean coalesce) {
+			checkedActivate(1);
+			mCoalesceNotifications = coalesce;
+			storeWithoutCommit();
+		}
+		
 		/**
 		 * Increments {@link #mSendNotificationsFailureCount} and returns the new value.
 		 * Use this for disconnecting a client if {@link #sendNotifications(SubscriptionManager)} has failed too many times.
@@ -230,14 +315,23 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * Sends out the notification queue for this Client, in sequence.
 		 * 
-		 * If a notification is sent successfully, it is deleted and the transaction is committed.
+		 * The notifications are loaded from the database in batches of
+		 * {@link SubscriptionManager#DEPLOYMENT_BATCH_SIZE} while locking upon the
+		 * SubscriptionManager and the database.
+		 * Each notification is then sent WITHOUT holding those locks: A slow client shall neither
+		 * block the deployment to other Clients nor the core of WOT, which needs the locks for
+		 * storing new notifications.
+		 * If a notification is sent successfully, the locks are re-acquired, it is deleted and the
+		 * transaction is committed. Thus each commit only contains changes to the queue of this
+		 * Client.
 		 * 
 		 * If sending a single notification fails, the failure counter {@link #mSendNotificationsFailureCount} is incremented
 		 * and {@link SubscriptionManager#scheduleNotificationProcessing()} is executed to retry sending the notification after some time.
 		 * If the failure counter exceeds the limit {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT}, false is returned
 		 * to indicate that the SubscriptionManager should delete this Client.
 		 * 
-		 * You have to synchronize on the SubscriptionManager and the database lock before calling this function!
+		 * You must NOT synchronize on the SubscriptionManager or the database lock when calling
+		 * this function, it takes the locks on its own.
 		 * You don't have to commit the transaction after calling this function.
 		 * 
 		 * @param manager The {@link SubscriptionManager} from which to query the {@link Notification}s of this Client.
@@ -255,79 +349,270 @@ public final class SubscriptionManager implements PrioRunnable {
 		    
 			if(SubscriptionManager.logMINOR) Logger.minor(manager, "sendNotifications() for " + this);
 			
-			// ATTENTION: When adding another type, make sure that you check the
-			// Thread.interrupted() state after deploying each Notification, and exit the function
-			// via InterruptedException if the thread was interrupted.
-			// This is necessary for SubscriptionManager.stop() to be fast.
-			switch(getType()) {
-				case FCP:
-					for(final Notification notification : manager.getNotifications(this)) {
-						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP: " + notification);
+			while(true) {
+				final ArrayList<Notification> batch;
+				final int maxEventsPerMessage;
+				final int maxMessagesInFlight;
+				
+				synchronized(manager) {
+				synchronized(Persistent.transactionLock(mDB)) {
+					// unsubscribe() may have deleted this Client while we did not hold the locks.
+					if(!mDB.isStored(this))
+						return true;
+					
+					// ATTENTION: When adding another type, make sure that you check the
+					// Thread.interrupted() state after deploying each Notification, and exit the
+					// function via InterruptedException if the thread was interrupted.
+					// This is necessary for SubscriptionManager.stop() to be fast.
+					switch(getType()) {
+						case FCP:
+							break;
+						default:
+							throw new UnsupportedOperationException("Unknown Type: " + getType());
+					}
+					
+					checkedActivate(1);
+					maxEventsPerMessage = mMaxEventsPerMessage;
+					maxMessagesInFlight = mMaxMessagesInFlight;
+					batch = manager.getNotificationBatch(this, Math.max(DEPLOYMENT_BATCH_SIZE,
+						maxEventsPerMessage * maxMessagesInFlight));
+				}}
+				
+				if(batch.isEmpty())
+					return true;
+				
+				if(maxEventsPerMessage > 1) {
+					final Throwable failure = sendNotificationsBatched(
+						manager, batch, maxEventsPerMessage, maxMessagesInFlight);
+					
+					if(failure == null)
+						continue;
+					
+					synchronized(manager) {
+					synchronized(Persistent.transactionLock(mDB)) {
+						return onSendNotificationFailed(manager, failure);
+					}}
+				}
+				
+				for(int i = 0; i < batch.size(); ++i) {
+					final Notification notification = batch.get(i);
+					if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP: " + notification);
+					
+					final long startTime = System.nanoTime();
+					try {
+						notification.getSubscription().notifySubscriberByFCP(notification);
+					} catch(InterruptedException e) {
+						// Shutdown of WOT was requested. This is normal mode of operation,
+						// and not the fault of the client, so we do not increment its
+						// failure counter.
+						// We did not modify the database since taking the locks, so there is
+						// nothing to rollback.
+						throw e;
+					} catch(Throwable e) {
+						// FIXME: Code quality: This used to be 
+						// catch(FCPCallFailedException | IOException | RuntimeException e)
+						// but was changed to catch(Throwable) because we need to be Java 6
+						// compatible until the next build. Change it back to the
+						// Java7-style catch(). 
+						synchronized(manager) {
+						synchronized(Persistent.transactionLock(mDB)) {
+							return onSendNotificationFailed(manager, e);
+						}}
+					}
+					final long sendTime = System.nanoTime() - startTime;
+					
+					synchronized(manager) {
+					synchronized(Persistent.transactionLock(mDB)) {
 						try {
-							try {
-								notification.getSubscription().notifySubscriberByFCP(notification);
+							// The Subscription may have been terminated by unsubscribe() while we
+							// were sending without holding the locks.
+							if(mDB.isStored(notification))
 								notification.deleteWithoutCommit();
-							} catch(InterruptedException e) {
-                                // Shutdown of WOT was requested. This is normal mode of operation,
-                                // and not the fault of the client, so we do not increment its
-                                // failure counter.
-                                Persistent.checkedRollback(mDB, this, e, LogLevel.NORMAL);
-                                throw e;
-                            } catch(Throwable e) {
-					            // FIXME: Code quality: This used to be 
-							    // catch(FCPCallFailedException | IOException | RuntimeException e)
-							    // but was changed to catch(Throwable) because we need to be Java 6
-							    // compatible until the next build. Change it back to the
-							    // Java7-style catch(). 
-							    
-								Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
-								
-								final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
-								Persistent.checkedCommit(mDB, this);
-								
-								boolean doNotDeleteClient = true;
-								
-								// Check whether the client has disconnected. If so, we must delete
-								// it immediately. If not, we must only delete it after the failure
-								// counter has passed the limit.
-                                if(e instanceof IOException) {
-									Logger.warning(manager, "sendNotifications() failed, client has disconnected, failure count: " + failureCount, e);
-									doNotDeleteClient = false;
-								} else {
-								    if(e instanceof FCPCallFailedException) {
-								        Logger.warning(manager, "sendNotifications() failed because"
-								            + " the client indicated failure at its side."
-								            + " Failure count: " + failureCount, e);
-								    } else {
-								        assert(e instanceof RuntimeException);
-                                        Logger.error(manager, "Bug in sendNotifications()!", e);
-								    }
-									if(failureCount >= DISCONNECT_CLIENT_AFTER_FAILURE_COUNT) 
-										doNotDeleteClient = false;
-								}
-								
-								if(doNotDeleteClient)
-									manager.scheduleNotificationProcessing();
-								
-								return doNotDeleteClient;
-							}
-							
-							// If processing of a single notification fails, we do not want the previous notifications
-							// to be sent again when the failed notification is retried. Therefore, we commit after
-							// each processed notification but do not catch RuntimeExceptions here
 							
+							// If processing of a single notification fails, we do not want the
+							// previous notifications to be sent again when the failed notification
+							// is retried. Therefore, we commit after each processed notification.
 							Persistent.checkedCommit(mDB, this);
 						} catch(RuntimeException e) {
 							Persistent.checkedRollbackAndThrow(mDB, this, e);
 						}
-						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP finished: " + notification);
+						
+						manager.addDeployedNotificationsToStatistics(this, 1, sendTime);
+						
+						// If unsubscribe() has deleted the remaining notifications of the batch,
+						// we must not send them: Re-query the queue instead.
+						if(i + 1 < batch.size() && !mDB.isStored(batch.get(i + 1)))
+							break;
+					}}
+					
+					if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP finished: " + notification);
+				}
+			}
+		}
+		
+		/**
+		 * Deploys the given {@link Notification}s for {@link #sendNotifications(SubscriptionManager)}
+		 * if the client has requested batching of events, see {@link #mMaxEventsPerMessage}.<br>
+		 * Subsequent {@link ObjectChangedNotification}s of the same {@link Subscription} are sent
+		 * with a single message by
+		 * {@link FCPInterface#sendObjectChangedNotifications(UUID, List, long, long)}. Up to
+		 * {@link #mMaxMessagesInFlight} messages are sent before waiting for the reply to the first
+		 * of them. {@link BeginSynchronizationNotification}s and
+		 * {@link EndSynchronizationNotification}s are sent on their own once all replies have
+		 * arrived.<br>
+		 * The acknowledged Notifications, which are a prefix of the given ones, are deleted with a
+		 * single commit at the end.<br><br>
+		 * 
+		 * You must NOT synchronize on the SubscriptionManager or the database lock when calling
+		 * this function.
+		 * 
+		 * @param notifications As returned by {@link SubscriptionManager#getNotificationBatch(
+		 *     Client, int)}.
+		 * @return Null if all Notifications were deployed, the cause of the failure otherwise.
+		 * @throws InterruptedException See {@link #sendNotifications(SubscriptionManager)}.
+		 */
+		private Throwable sendNotificationsBatched(final SubscriptionManager manager,
+				final List<Notification> notifications, final int maxEventsPerMessage,
+				final int maxMessagesInFlight) throws InterruptedException {
+			
+			final FCPInterface fcp = mWebOfTrust.getFCPInterface();
+			final UUID clientID = getFCP_ID();
+			final ArrayDeque<PendingReply> inFlight = new ArrayDeque<PendingReply>();
+			final ArrayDeque<List<ObjectChangedNotification>> inFlightNotifications
+				= new ArrayDeque<List<ObjectChangedNotification>>();
+			final ArrayList<Notification> acknowledged
+				= new ArrayList<Notification>(notifications.size());
+			final long startTime = System.nanoTime();
+			long previousIndex = -1;
+			int next = 0;
+			Throwable failure = null;
+			
+			try {
+				while(next < notifications.size() || !inFlight.isEmpty()) {
+					final Notification first
+						= next < notifications.size() ? notifications.get(next) : null;
+					
+					if(first instanceof ObjectChangedNotification
+							&& inFlight.size() < maxMessagesInFlight) {
+						
+						final ArrayList<ObjectChangedNotification> events
+							= new ArrayList<ObjectChangedNotification>(maxEventsPerMessage);
+						while(next < notifications.size() && events.size() < maxEventsPerMessage) {
+							final Notification notification = notifications.get(next);
+							if(!(notification instanceof ObjectChangedNotification)
+									|| notification.getSubscription() != first.getSubscription())
+								break;
+							
+							events.add((ObjectChangedNotification)notification);
+							++next;
+						}
+						
+						final long index = manager.mEventsMessageIndex.incrementAndGet();
+						inFlight.add(fcp.sendObjectChangedNotifications(clientID, events, index,
+							inFlight.isEmpty() ? -1 : previousIndex));
+						inFlightNotifications.add(events);
+						previousIndex = index;
+					} else if(first != null && !(first instanceof ObjectChangedNotification)
+							&& inFlight.isEmpty()) {
+						
+						// The client must have processed all previous events before it receives
+						// a synchronization marker, so we have waited for all replies.
+						first.getSubscription().notifySubscriberByFCP(first);
+						acknowledged.add(first);
+						++next;
+					} else {
+						inFlight.peek().await();
+						inFlight.remove();
+						acknowledged.addAll(inFlightNotifications.remove());
+					}
+				}
+			} catch(InterruptedException e) {
+				// Shutdown of WOT was requested, see sendNotifications(). All Clients will be
+				// deleted at restart, so we do not need to delete the acknowledged Notifications.
+				throw e;
+			} catch(Throwable e) {
+				// FIXME: Code quality: Use the Java7-style catch(), see sendNotifications().
+				failure = e;
+			} finally {
+				// The client rejects the messages after a failed one.
+				for(PendingReply pending : inFlight)
+					pending.cancel();
+			}
+			
+			final long sendTime = System.nanoTime() - startTime;
+			
+			synchronized(manager) {
+			synchronized(Persistent.transactionLock(mDB)) {
+				try {
+					for(Notification notification : acknowledged) {
+						// The Subscription may have been terminated by unsubscribe() while we
+						// were sending without holding the locks.
+						if(mDB.isStored(notification))
+							notification.deleteWithoutCommit();
 					}
-					break;
-				default:
-					throw new UnsupportedOperationException("Unknown Type: " + getType());
+					Persistent.checkedCommit(mDB, this);
+				} catch(RuntimeException e) {
+					Persistent.checkedRollbackAndThrow(mDB, this, e);
+				}
+				
+				manager.addDeployedNotificationsToStatistics(this, acknowledged.size(), sendTime);
+			}}
+			
+			return failure;
+		}
+		
+		/**
+		 * Called by {@link #sendNotifications(SubscriptionManager)} if sending a
+		 * {@link Notification} failed. Increments the failure counter and decides whether this
+		 * Client shall be deleted.
+		 * 
+		 * You have to synchronize on the SubscriptionManager and the database lock before calling
+		 * this function!
+		 * 
+		 * @return False if this Client should be deleted.
+		 */
+		private boolean onSendNotificationFailed(SubscriptionManager manager, Throwable e) {
+			// unsubscribe() may have deleted this Client while we were sending. Incrementing the
+			// failure counter would store it again.
+			if(!mDB.isStored(this))
+				return true;
+			
+			final byte failureCount;
+			try {
+				failureCount = incrementSendNotificationsFailureCountWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e2) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e2);
+				// The compiler doesn't know that the above function throws, so it would complain
+				// about failureCount not being initialized without this.
+				throw e2;
 			}
 			
-			return true;
+			boolean doNotDeleteClient = true;
+			
+			// Check whether the client has disconnected. If so, we must delete
+			// it immediately. If not, we must only delete it after the failure
+			// counter has passed the limit.
+			if(e instanceof IOException) {
+				Logger.warning(manager, "sendNotifications() failed, client has disconnected, failure count: " + failureCount, e);
+				doNotDeleteClient = false;
+			} else {
+			    if(e instanceof FCPCallFailedException) {
+			        Logger.warning(manager, "sendNotifications() failed because"
+			            + " the client indicated failure at its side."
+			            + " Failure count: " + failureCount, e);
+			    } else {
+			        assert(e instanceof RuntimeException);
+			        Logger.error(manager, "Bug in sendNotifications()!", e);
+			    }
+				if(failureCount >= DISCONNECT_CLIENT_AFTER_FAILURE_COUNT) 
+					doNotDeleteClient = false;
+			}
+			
+			if(doNotDeleteClient)
+				manager.scheduleNotificationProcessing();
+			
+			return doNotDeleteClient;
 		}
 		
 		/**
@@ -380,6 +665,7 @@ public final class SubscriptionManager implements PrioRunnable {
 				subscription.deleteWithoutCommit(subscriptionManager);
 				notifyClientAboutDeletion(subscription);
 			}
+			subscriptionManager.mClientStatistics.remove(getFCP_ID());
 			super.deleteWithoutCommit();
 		}
 
@@ -396,6 +682,152 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 	}
 	
+	/**
+	 * Restricts the {@link EventSource}s of which a {@link Subscription} notifies its
+	 * {@link Client}, see {@link Subscription#storeFilteredNotificationWithoutCommit(EventSource,
+	 * EventSource, NotificationPayload, NotificationPayload)}. Fields which are null or have their
+	 * default value do not restrict anything.<br><br>
+	 * 
+	 * Only attributes of the EventSource itself can be filtered upon, not attributes of the
+	 * objects to which it refers: Changes of those do not cause a {@link Notification} about the
+	 * EventSource, so the Client would not learn that the EventSource started or stopped matching.
+	 * <br>
+	 * Notice that this means that if a Client filters {@link Identity}s, {@link Trust}s and
+	 * {@link Score}s may refer to Identitys of which it was not notified.<br><br>
+	 * 
+	 * Immutable.
+	 */
+	public static final class Filter {
+		/** Matches all {@link EventSource}s. */
+		public static final Filter NONE = new Filter(null, null, null, Integer.MIN_VALUE, 0);
+		
+		/** If non-null, only {@link Identity}s which have this context. */
+		public final String mContext;
+		
+		/** If non-null, only {@link OwnIdentity}s if true, only non-own Identitys if false. */
+		public final Boolean mOwnIdentities;
+		
+		/** If non-null, only {@link Trust}s and {@link Score}s whose truster has this ID. */
+		public final String mTrusterID;
+		
+		/** Only {@link Score}s whose {@link Score#getValue()} is at least this. */
+		public final int mMinimumScore;
+		
+		/** Only {@link Score}s whose {@link Score#getCapacity()} is at least this. */
+		public final int mMinimumCapacity;
+		
+		
+		public Filter(String context, Boolean ownIdentities, String trusterID, int minimumScore,
+				int minimumCapacity) {
+			
+			if((context != null && (context.isEmpty() || context.indexOf('\n') != -1))
+					|| (trusterID != null && (trusterID.isEmpty() || trusterID.indexOf('\n') != -1)))
+				throw new IllegalArgumentException("Invalid context or truster ID");
+			
+			mContext = context;
+			mOwnIdentities = ownIdentities;
+			mTrusterID = trusterID;
+			mMinimumScore = minimumScore;
+			mMinimumCapacity = minimumCapacity;
+		}
+		
+		/**
+		 * @throws IllegalArgumentException If this filter restricts attributes which the given
+		 *     class of {@link EventSource} does not have. */
+		void checkApplicableTo(Class<? extends EventSource> type) {
+			boolean identityFields = mContext != null || mOwnIdentities != null;
+			boolean trustFields = mTrusterID != null;
+			boolean scoreFields = mMinimumScore != NONE.mMinimumScore
+				|| mMinimumCapacity != NONE.mMinimumCapacity;
+			
+			if((type == Identity.class && (trustFields || scoreFields))
+					|| (type == Trust.class && (identityFields || scoreFields))
+					|| (type == Score.class && identityFields)) {
+				throw new IllegalArgumentException(
+					"Filter not applicable to " + type.getSimpleName() + ": " + this);
+			}
+		}
+		
+		boolean matches(Identity identity) {
+			return (mContext == null || identity.hasContext(mContext))
+				&& (mOwnIdentities == null || mOwnIdentities == (identity instanceof OwnIdentity));
+		}
+		
+		boolean matches(Trust trust) {
+			return mTrusterID == null || mTrusterID.equals(trust.getTruster().getID());
+		}
+		
+		boolean matches(Score score) {
+			return (mTrusterID == null || mTrusterID.equals(score.getTruster().getID()))
+				&& score.getValue() >= mMinimumScore
+				&& score.getCapacity() >= mMinimumCapacity;
+		}
+		
+		/** @return True if this filter matches all EventSources, i.e. is equal to {@link #NONE}. */
+		boolean isEmpty() {
+			return toString().isEmpty();
+		}
+		
+		/**
+		 * Returns one line "Name=Value" per field which restricts anything. Is parsed by
+		 * {@link #fromString(String)}.
+		 */
+		@Override public String toString() {
+			StringBuilder result = new StringBuilder();
+			if(mContext != null)
+				result.append("Context=").append(mContext).append('\n');
+			if(mOwnIdentities != null)
+				result.append("OwnIdentities=").append(mOwnIdentities).append('\n');
+			if(mTrusterID != null)
+				result.append("TrusterID=").append(mTrusterID).append('\n');
+			if(mMinimumScore != NONE.mMinimumScore)
+				result.append("MinimumScore=").append(mMinimumScore).append('\n');
+			if(mMinimumCapacity != NONE.mMinimumCapacity)
+				result.append("MinimumCapacity=").append(mMinimumCapacity).append('\n');
+			return result.toString();
+		}
+		
+		/**
+		 * Parses the format of {@link #toString()}.
+		 * 
+		 * @throws IllegalArgumentException If the string is invalid.
+		 */
+		static Filter fromString(String filter) {
+			String context = null;
+			Boolean ownIdentities = null;
+			String trusterID = null;
+			int minimumScore = NONE.mMinimumScore;
+			int minimumCapacity = NONE.mMinimumCapacity;
+			
+			for(String line : filter.split("\n")) {
+				if(line.isEmpty())
+					continue;
+				
+				int separator = line.indexOf('=');
+				if(separator == -1)
+					throw new IllegalArgumentException("Invalid filter: " + filter);
+				
+				String name = line.substring(0, separator);
+				String value = line.substring(separator + 1);
+				
+				if(name.equals("Context"))
+					context = value;
+				else if(name.equals("OwnIdentities"))
+					ownIdentities = Boolean.valueOf(value);
+				else if(name.equals("TrusterID"))
+					trusterID = value;
+				else if(name.equals("MinimumScore"))
+					minimumScore = Integer.parseInt(value);
+				else if(name.equals("MinimumCapacity"))
+					minimumCapacity = Integer.parseInt(value);
+				else
+					throw new IllegalArgumentException("Invalid filter: " + filter);
+			}
+			
+			return new Filter(context, ownIdentities, trusterID, minimumScore, minimumCapacity);
+		}
+	}
+	
 	/**
 	 * A subscription stores the information which client is subscribed to which content.<br>
 	 * For each {@link Client}, one subscription is stored one per {@link EventSource}-type.
@@ -427,13 +859,27 @@ public final class SubscriptionManager implements PrioRunnable {
 		@IndexedField
 		private final String mID;
 		
+		/**
+		 * The {@link Filter} of this Subscription as returned by {@link Filter#toString()}, or
+		 * null if it has none. Stored as String so it is a db4o native type.
+		 * 
+		 * @see #getFilter()
+		 */
+		private final String mFilter;
+		
+		/** The parsed {@link #mFilter}. Not stored in the database. */
+		private transient Filter mParsedFilter = null;
+		
 		/**
 		 * Constructor for being used by child classes.
 		 * @param myClient The {@link Client} to which this Subscription belongs.
+		 * @param filter Restricts the {@link EventSource}s of which the Client is notified. Must
+		 *     apply to them, see {@link Filter#checkApplicableTo(Class)}.
 		 */
-		protected Subscription(final Client myClient) {
+		protected Subscription(final Client myClient, final Filter filter) {
 			mClient = myClient;
 			mID = UUID.randomUUID().toString();
+			mFilter = filter.isEmpty() ? null : filter.toString();
 			
 			assert(mClient != null);
 		}
@@ -447,6 +893,9 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			IfNull.thenThrow(mID, "mID");
 			UUID.fromString(mID); // Throws if invalid
+			
+			if(mFilter != null)
+				Filter.fromString(mFilter); // Throws if invalid
 		}
 
 		/**
@@ -469,6 +918,18 @@ public final class SubscriptionManager implements PrioRunnable {
 			return mID;
 		}
 
+		/**
+		 * @return The {@link Filter} of this Subscription, {@link Filter#NONE} if it has none.
+		 * @see #mFilter
+		 */
+		protected final Filter getFilter() {
+			if(mParsedFilter == null) {
+				checkedActivate(1);
+				mParsedFilter = (mFilter != null ? Filter.fromString(mFilter) : Filter.NONE);
+			}
+			return mParsedFilter;
+		}
+		
 		/**
 		 * ATTENTION: This does NOT delete the {@link Notification} objects associated with this Subscription!
 		 * Only use it if you delete them manually before!
@@ -539,6 +1000,9 @@ public final class SubscriptionManager implements PrioRunnable {
             // We require thread locking upon the WebOfTrust per JavaDoc, so we may now call
             // getSynchronization().
             for(EventType eventSource : getSynchronization()) {
+                if(!matchesFilter(eventSource))
+                    continue;
+                
                 // We need to call setVersionID() on the EventSource, but we must not modify the
                 // main EventSource object stored in the mWebOfTrust. Thus, we clone() the
                 // EventSource and call the setter upon the temporary clone.
@@ -546,7 +1010,12 @@ public final class SubscriptionManager implements PrioRunnable {
                 EventType eventSourceWithProperVersionID = (EventType) eventSource.clone();
                 eventSourceWithProperVersionID.setVersionID(synchronizationID);
                 
-                storeNotificationWithoutCommit(null, eventSourceWithProperVersionID);
+                // Each clone has its own version ID, so it cannot share a NotificationPayload
+                // with the synchronizations of other Subscriptions.
+                final NotificationPayload payload
+                    = new NotificationPayload((Persistent)eventSourceWithProperVersionID);
+                payload.initializeTransient(mWebOfTrust);
+                storeNotificationWithoutCommit(null, eventSourceWithProperVersionID, null, payload);
             }
             
             final EndSynchronizationNotification<EventType> endMarker
@@ -573,8 +1042,9 @@ public final class SubscriptionManager implements PrioRunnable {
 
         /**
          * Shall store a {@link ObjectChangedNotification} constructed via
-         * {@link ObjectChangedNotification#ObjectChangedNotification(Subscription, Persistent,
-         * Persistent)} with parameters oldObject = oldEventSource, newObject = newEventSource.<br>
+         * {@link ObjectChangedNotification#ObjectChangedNotification(Subscription,
+         * NotificationPayload, NotificationPayload)} with parameters oldPayload = oldPayload,
+         * newPayload = newPayload.<br>
          * <br> 
          * 
          * The type parameter of the {@link ObjectChangedNotification} shall match the type
@@ -582,9 +1052,93 @@ public final class SubscriptionManager implements PrioRunnable {
          * <br><br>
          * 
          * TODO: Code quality: Rename to storeObjectChangedNotificationWithoutCommit
+         * 
+         * @param oldPayload The {@link NotificationPayload} of oldEventSource. Null if and only
+         *     if oldEventSource is null.
+         * @param newPayload The {@link NotificationPayload} of newEventSource. Null if and only
+         *     if newEventSource is null.
          */
         abstract void storeNotificationWithoutCommit(
-            final EventType oldEventSource, final EventType newEventSource);
+            final EventType oldEventSource, final EventType newEventSource,
+            final NotificationPayload oldPayload, final NotificationPayload newPayload);
+
+		/**
+		 * @return True if the given EventSource matches the {@link #getFilter()} of this
+		 *     Subscription. */
+		abstract boolean matchesFilter(final EventType eventSource);
+
+		/**
+		 * Calls {@link #storeNotificationWithoutCommit(EventSource, EventSource,
+		 * NotificationPayload, NotificationPayload)} in a way which
+		 * respects the {@link #getFilter()} of this Subscription: Versions of the EventSource
+		 * which do not match it are replaced with null. So if the change makes the EventSource
+		 * match the filter, the Client sees it as created, and if the change makes it stop
+		 * matching, the Client sees it as deleted. If neither version matches, nothing is stored.
+		 * <br><br>
+		 * 
+		 * Must be called while locking upon the SubscriptionManager and the
+		 * {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 * 
+		 * @param oldEventSource Null if the EventSource was newly created.
+		 * @param newEventSource Null if the EventSource was deleted.
+		 * @param oldPayload The {@link NotificationPayload} of oldEventSource which the
+		 *     Subscriptions share. Null if and only if oldEventSource is null.
+		 * @param newPayload The {@link NotificationPayload} of newEventSource which the
+		 *     Subscriptions share. Null if and only if newEventSource is null.
+		 */
+		final void storeFilteredNotificationWithoutCommit(
+				final EventType oldEventSource, final EventType newEventSource,
+				final NotificationPayload oldPayload, final NotificationPayload newPayload) {
+			
+			final boolean oldMatches = oldEventSource != null && matchesFilter(oldEventSource);
+			final boolean newMatches = newEventSource != null && matchesFilter(newEventSource);
+			
+			if(!oldMatches && !newMatches)
+				return;
+			
+			storeNotificationWithoutCommit(
+				oldMatches ? oldEventSource : null, newMatches ? newEventSource : null,
+				oldMatches ? oldPayload : null, newMatches ? newPayload : null);
+		}
+
+		/**
+		 * To be called by {@link #storeNotificationWithoutCommit(EventSource, EventSource,
+		 * NotificationPayload, NotificationPayload)} before it stores a new
+		 * {@link ObjectChangedNotification}. If the {@link Client} requested coalescing, see
+		 * {@link Client#mCoalesceNotifications}, tries to merge the change into the most recent
+		 * queued ObjectChangedNotification of the same object instead: It then has the oldest
+		 * before-state and the newest after-state.<br><br>
+		 * 
+		 * The merged Notification stays at its position in the queue. To not break the guarantee
+		 * that Notifications are deployed in an order which makes sense, see the JavaDoc of the
+		 * SubscriptionManager, only changes which neither create nor delete the object nor change
+		 * its class are merged: Objects which are deployed between the two positions can then
+		 * only refer to the object by its ID, and the object exists during the whole interval.
+		 * <br>
+		 * Notifications which are part of a synchronization are not merged into, since the
+		 * version ID of their object must stay the one of the synchronization.
+		 * See {@link #storeSynchronizationWithoutCommit()}.<br><br>
+		 * 
+		 * Must be called while locking upon the SubscriptionManager and the
+		 * {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 * 
+		 * @param newPayload The {@link NotificationPayload} of newEventSource.
+		 * @return True if the change was merged, false if a new Notification must be stored.
+		 */
+		protected final boolean coalesceNotificationWithoutCommit(
+				final EventType oldEventSource, final EventType newEventSource,
+				final NotificationPayload newPayload) {
+			
+			if(oldEventSource == null || newEventSource == null
+					|| oldEventSource.getClass() != newEventSource.getClass())
+				return false;
+			
+			if(!getClient().getCoalesceNotifications())
+				return false;
+			
+			return mWebOfTrust.getSubscriptionManager().coalesceNotificationWithoutCommit(
+				this, (Persistent)newEventSource, newPayload);
+		}
 
 		/**
 		 * Called by this Subscription when the type of it is FCP and a {@link Notification} shall be sent via FCP. 
@@ -605,10 +1159,16 @@ public final class SubscriptionManager implements PrioRunnable {
          * the various thrown exceptions for details.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
-         * This must be called while locking upon the SubscriptionManager.<br>
-		 * The {@link WebOfTrust} object shall NOT be locked:
+         * This must NOT be called while locking upon the SubscriptionManager or the database:
+         * It may block for a long time if the client is slow, and the Notifications of other
+         * Clients are deployed in parallel by {@link SubscriptionManager#mDeploymentExecutor}.
+         * <br>
+		 * The {@link WebOfTrust} object shall NOT be locked either:
 		 * The {@link Notification} objects which this function receives contain serialized clones of the objects from WebOfTrust.
-		 * Therefore, the notifications are self-contained and this function should and must NOT call any database query functions of the WebOfTrust. 
+		 * Therefore, the notifications are self-contained and this function should and must NOT call any database query functions of the WebOfTrust.
+		 * The Notification, this Subscription and its {@link Client} have been activated fully by
+		 * {@link SubscriptionManager#getNotificationBatch(Client, int)}, so their getters do not need
+		 * the database either. 
 		 * 
 		 * @param notification 
 		 *             The {@link Notification} to send out via FCP. Must be cast-able to one of:
@@ -649,6 +1209,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		public String toString() {
 			return "[" + super.toString()
 			     + "; ID: " + getID()
+			     + "; Filter: " + getFilter().toString().replace('\n', ';')
 			     + "; Client: " + getClient() + "]";
 		}
 	}
@@ -715,6 +1276,12 @@ public final class SubscriptionManager implements PrioRunnable {
             throw new UnsupportedOperationException();
         }
         
+        /** @see #mIndex */
+        final long getIndex() {
+            checkedActivate(1);
+            return mIndex;
+        }
+        
         /**
          * @return The {@link Subscription} which requested this type of Notification.
          */
@@ -730,6 +1297,133 @@ public final class SubscriptionManager implements PrioRunnable {
         }
 	}
 	
+	/**
+	 * A {@link Persistent} object serialized by {@link Persistent#serialize()}, shared by the
+	 * {@link ObjectChangedNotification}s which all {@link Subscription}s store about the same
+	 * change: The object is serialized and stored once per change, not once per {@link Client}.
+	 * <br>
+	 * It is deleted when the last ObjectChangedNotification which refers to it is deleted, see
+	 * {@link #mReferenceCount}.
+	 */
+	@SuppressWarnings("serial")
+	public static final class NotificationPayload extends Persistent {
+		
+		/**
+		 * The serialized object, see {@link Persistent#serialize()}.<br>
+		 * Null until the first call to {@link #referenceWithoutCommit()}: Changes to which no
+		 * {@link Client} is subscribed shall not cause any serialization.
+		 */
+		private byte[] mData = null;
+		
+		/** The {@link Persistent#getID()} of the serialized object. */
+		private final String mObjectID;
+		
+		/** The amount of {@link ObjectChangedNotification}s which refer to this payload. */
+		private int mReferenceCount = 0;
+		
+		/**
+		 * The object which {@link #referenceWithoutCommit()} serializes into {@link #mData}.<br>
+		 * Null afterwards.
+		 */
+		private transient Persistent mObject;
+		
+		/**
+		 * @param object The object to serialize. The payload must be referenced by the first
+		 *     {@link ObjectChangedNotification} before the object is modified.
+		 */
+		NotificationPayload(final Persistent object) {
+			assert(object != null);
+			mObject = object;
+			mObjectID = object.getID();
+		}
+		
+		/** {@inheritDoc} */
+		@Override public void startupDatabaseIntegrityTest() throws Exception {
+			activateFully();
+			
+			IfNull.thenThrow(mData, "mData");
+			IfNull.thenThrow(mObjectID, "mObjectID");
+			
+			if(mReferenceCount < 1)
+				throw new IllegalStateException("mReferenceCount==" + mReferenceCount);
+			
+			// The object is serialized, so the startupDatabaseIntegrityTest() won't be called
+			// automatically on it by WOT - we have to do it manually.
+			final Persistent object = getObject();
+			object.startupDatabaseIntegrityTest();
+			
+			if(!mObjectID.equals(object.getID()))
+				throw new IllegalStateException("mObjectID does not match: " + mObjectID);
+		}
+		
+		/**
+		 * @deprecated Not implemented because we don't need it.
+		 */
+		@Override
+		@Deprecated()
+		public String getID() {
+			throw new UnsupportedOperationException();
+		}
+		
+		/** @see #mObjectID */
+		final String getObjectID() {
+			checkedActivate(1);
+			return mObjectID;
+		}
+		
+		/** @return A new deserialized copy of the object. */
+		final Persistent getObject() throws NoSuchElementException {
+			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+			assert(mData != null);
+			return Persistent.deserialize(mWebOfTrust, mData);
+		}
+		
+		/**
+		 * To be called by each {@link ObjectChangedNotification} which refers to this payload:
+		 * Serializes the object if this is the first reference, increments
+		 * {@link #mReferenceCount} and stores this payload without committing the transaction.
+		 */
+		final void referenceWithoutCommit() {
+			checkedActivate(1);
+			
+			if(mData == null) {
+				assert(mReferenceCount == 0 && mObject != null);
+				mData = mObject.serialize();
+				mObject = null;
+			}
+			
+			++mReferenceCount;
+			storeWithoutCommit();
+		}
+		
+		/**
+		 * To be called by each {@link ObjectChangedNotification} which stops referring to this
+		 * payload: Decrements {@link #mReferenceCount} and deletes this payload without committing
+		 * the transaction if it was the last reference, stores it otherwise.
+		 */
+		final void releaseWithoutCommit() {
+			checkedActivate(1);
+			assert(mReferenceCount > 0);
+			
+			if(--mReferenceCount > 0)
+				storeWithoutCommit();
+			else
+				deleteWithoutCommit();
+		}
+		
+		/** {@inheritDoc} */
+		@Override protected void activateFully() {
+			checkedActivate(1);
+		}
+		
+		@Override
+		public String toString() {
+			return "[" + super.toString()
+			     + "; mObjectID: " + getObjectID()
+			     + "; mReferenceCount: " + mReferenceCount + "]";
+		}
+	}
+	
 	/**
      * It provides two clones of the {@link Persistent} object about whose change the client shall be notified:
      * - A version of it before the change via {@link ObjectChangedNotification#getOldObject()}<br>
@@ -754,46 +1448,64 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * A serialized copy of the changed {@link Persistent} object before the change.
 		 * Null if the change was the creation of the object.
-		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mNewObject} if that member is non-null as well.
+		 * If non-null its {@link NotificationPayload#getObjectID()} must be equal to the one of
+		 * {@link #mNewPayload} if that member is non-null as well.
 		 * 
-		 * @see Persistent#serialize()
 		 * @see #getOldObject() The public getter for this.
 		 */
-		private final byte[] mOldObject;
+		private final NotificationPayload mOldPayload;
 		
 		/**
 		 * A serialized copy of the changed {@link Persistent} object after the change.
 		 * Null if the change was the deletion of the object.
-		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mOldObject} if that member is non-null as well.
+		 * If non-null its {@link NotificationPayload#getObjectID()} must be equal to the one of
+		 * {@link #mOldPayload} if that member is non-null as well.
 		 * 
-		 * @see Persistent#serialize()
 		 * @see #getNewObject() The public getter for this.
 		 */
-		private final byte[] mNewObject;
+		private NotificationPayload mNewPayload;
 		
 		/**
-		 * Only one of oldObject or newObject may be null.
-		 * If both are non-null, their {@link Persistent#getID()} must be equal.
-		 * 
-		 * TODO: Code quality: oldObject and newObject should be EventSource, not Persistent.
+		 * The {@link Persistent#getID()} of {@link #mOldPayload} and {@link #mNewPayload}.<br>
+		 * Allows {@link SubscriptionManager#coalesceNotificationWithoutCommit(Subscription,
+		 * Persistent, NotificationPayload)} to find the queued Notification of an object.<br>
+		 * Null for Notifications which were stored by versions of WOT which did not have this
+		 * field.
+		 */
+		@IndexedField
+		private final String mObjectID;
+		
+		/**
+		 * Only one of oldPayload or newPayload may be null.
+		 * If both are non-null, their {@link NotificationPayload#getObjectID()} must be equal.
+		 * <br>
+		 * Calls {@link NotificationPayload#referenceWithoutCommit()} upon them.
 		 * 
 		 * @param mySubscription The {@link Subscription} which requested this type of Notification.
-		 * @param oldObject The version of the changed {@link Persistent} object before the change.
-		 * @param newObject The version of the changed {@link Persistent} object after the change.
+		 * @param oldPayload The version of the changed {@link Persistent} object before the change.
+		 * @param newPayload The version of the changed {@link Persistent} object after the change.
 		 * @see Notification#Notification(Subscription) This parent constructor is also called.
 		 */
 		ObjectChangedNotification(final Subscription<? extends EventSource> mySubscription,
-		        final Persistent oldObject, final Persistent newObject) {
+		        final NotificationPayload oldPayload, final NotificationPayload newPayload) {
 		    
 			super(mySubscription);
 			
 			assert	(
-						(oldObject == null ^ newObject == null) ||
-						(oldObject != null && newObject != null && oldObject.getID().equals(newObject.getID()))
+						(oldPayload == null ^ newPayload == null) ||
+						(oldPayload != null && newPayload != null
+							&& oldPayload.getObjectID().equals(newPayload.getObjectID()))
 					);
 			
-			mOldObject = (oldObject != null ? oldObject.serialize() : null);
-			mNewObject = (newObject != null ? newObject.serialize() : null);
+			mOldPayload = oldPayload;
+			mNewPayload = newPayload;
+			mObjectID = (newPayload != null ? newPayload : oldPayload).getObjectID();
+			
+			if(oldPayload != null)
+				oldPayload.referenceWithoutCommit();
+			
+			if(newPayload != null)
+				newPayload.referenceWithoutCommit();
 		}
 		
 		/** {@inheritDoc} */
@@ -803,20 +1515,38 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			activateFully();
 			
-			if(mOldObject == null && mNewObject == null)
-				throw new NullPointerException("Only one of mOldObject and mNewObject may be null!");
-
-			// mOldObject / mNewObject are serialized copies of Persistent objects.
-			// Because they are serialized, the startupDatabaseIntegrityTest() won't be called automatically on them by WOT
-			// - we have to do it manually.
-			if(mOldObject != null)
-				getOldObject().startupDatabaseIntegrityTest();
-			
-			if(mNewObject != null)
-				getNewObject().startupDatabaseIntegrityTest();
+			if(mOldPayload == null && mNewPayload == null)
+				throw new NullPointerException("Only one of mOldPayload / mNewPayload may be null!");
 
-			if(mOldObject != null && mNewObject != null && !getOldObject().getID().equals(getNewObject().getID()))
-				throw new IllegalStateException("The ID of mOldObject and mNewObject must match!");
+			// The payloads are separate Persistent objects, so the startupDatabaseIntegrityTest()
+			// of them and of the objects serialized into them is called by WOT already.
+			
+			if(mOldPayload != null && mNewPayload != null
+					&& !getOldPayload().getObjectID().equals(getNewPayload().getObjectID()))
+				throw new IllegalStateException("The ID of mOldPayload and mNewPayload must match!");
+			
+			if(mObjectID != null) {
+				final NotificationPayload payload
+					= (mNewPayload != null ? getNewPayload() : getOldPayload());
+				if(!mObjectID.equals(payload.getObjectID()))
+					throw new IllegalStateException("mObjectID does not match: " + mObjectID);
+			}
+		}
+		
+		/** @see #mOldPayload */
+		private NotificationPayload getOldPayload() {
+			checkedActivate(1);
+			if(mOldPayload != null)
+				mOldPayload.initializeTransient(mWebOfTrust);
+			return mOldPayload;
+		}
+		
+		/** @see #mNewPayload */
+		private NotificationPayload getNewPayload() {
+			checkedActivate(1);
+			if(mNewPayload != null)
+				mNewPayload.initializeTransient(mWebOfTrust);
+			return mNewPayload;
 		}
 
 		/**
@@ -829,20 +1559,53 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * See {@link Subscription#storeSynchronizationWithoutCommit()} and
 		 * {@link BeginSynchronizationNotification}.
 		 * 
-		 * @see #mOldObject The backend member variable of this getter.
+		 * @see #mOldPayload The backend member variable of this getter.
 		 */
 		public final Persistent getOldObject() throws NoSuchElementException {
-			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
-			return mOldObject != null ? Persistent.deserialize(mWebOfTrust, mOldObject) : null;
+			final NotificationPayload payload = getOldPayload();
+			return payload != null ? payload.getObject() : null;
 		}
 		
 		/**
 		 * @return The changed {@link Persistent} object after the change. Null if the change was the deletion of the object.
-		 * @see #mNewObject The backend member variable of this getter.
+		 * @see #mNewPayload The backend member variable of this getter.
 		 */
 		public final Persistent getNewObject() throws NoSuchElementException {
-			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
-			return mNewObject != null ? Persistent.deserialize(mWebOfTrust, mNewObject) : null;
+			final NotificationPayload payload = getNewPayload();
+			return payload != null ? payload.getObject() : null;
+		}
+		
+		/**
+		 * Replaces the version of the object after the change with the given one, and stores
+		 * this Notification without committing the transaction.<br>
+		 * Used for coalescing, see
+		 * {@link Subscription#coalesceNotificationWithoutCommit(EventSource, EventSource,
+		 * NotificationPayload)}.
+		 */
+		final void setNewPayloadWithoutCommit(final NotificationPayload newPayload) {
+			checkedActivate(1);
+			assert(mNewPayload != null && newPayload.getObjectID().equals(mObjectID));
+			getNewPayload().releaseWithoutCommit();
+			mNewPayload = newPayload;
+			newPayload.referenceWithoutCommit();
+			storeWithoutCommit();
+		}
+		
+		/**
+		 * Also calls {@link NotificationPayload#releaseWithoutCommit()} upon the payloads so they
+		 * are deleted once no ObjectChangedNotification refers to them anymore.
+		 */
+		@Override protected void deleteWithoutCommit() {
+			final NotificationPayload oldPayload = getOldPayload();
+			final NotificationPayload newPayload = getNewPayload();
+			
+			if(oldPayload != null)
+				oldPayload.releaseWithoutCommit();
+			
+			if(newPayload != null)
+				newPayload.releaseWithoutCommit();
+			
+			super.deleteWithoutCommit();
 		}
 
 		/** {@inheritDoc} */
@@ -851,6 +1614,14 @@ public final class SubscriptionManager implements PrioRunnable {
 		    // super.activateFully() will probably always activate to at least level 1, as
 		    // activating to level 0 does not make any sense. So we don't have to do this twice.
 			/* checkedActivate(1); */
+			
+			// The payloads are separate objects. Activate them as well since the Notification
+			// is deployed without locking the database, see getNotificationBatch().
+			if(mOldPayload != null)
+				getOldPayload().activateFully();
+			
+			if(mNewPayload != null)
+				getNewPayload().activateFully();
 		}
 
 		@Override
@@ -967,12 +1738,12 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Only one of oldIentity and newIdentity may be null. If both are non-null, their {@link Identity#getID()} must match.
 		 * 
 		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
-		 * @param oldIdentity The version of the {@link Identity} before the change.
-		 * @param newIdentity The version of the {@link Identity} after the change.
+		 * @param oldPayload The version of the {@link Identity} before the change.
+		 * @param newPayload The version of the {@link Identity} after the change.
 		 */
 		protected IdentityChangedNotification(final Subscription<Identity> mySubscription, 
-				final Identity oldIdentity, final Identity newIdentity) {
-			super(mySubscription, oldIdentity, newIdentity);
+				final NotificationPayload oldPayload, final NotificationPayload newPayload) {
+			super(mySubscription, oldPayload, newPayload);
 		}
 
 	}
@@ -996,12 +1767,12 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Only one of oldTrust and newTrust may be null. If both are non-null, their {@link Trust#getID()} must match.
 		 * 
 		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
-		 * @param oldTrust The version of the {@link Trust} before the change.
-		 * @param newTrust The version of the {@link Trust} after the change.
+		 * @param oldPayload The version of the {@link Trust} before the change.
+		 * @param newPayload The version of the {@link Trust} after the change.
 		 */
 		protected TrustChangedNotification(final Subscription<Trust> mySubscription, 
-				final Trust oldTrust, final Trust newTrust) {
-			super(mySubscription, oldTrust, newTrust);
+				final NotificationPayload oldPayload, final NotificationPayload newPayload) {
+			super(mySubscription, oldPayload, newPayload);
 		}
 		
 	}
@@ -1025,12 +1796,12 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Only one of oldScore and newScore may be null. If both are non-null, their {@link Score#getID()} must match.
 		 * 
 		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
-		 * @param oldScore The version of the {@link Score} before the change.
-		 * @param newScore The version of the {@link Score} after the change.
+		 * @param oldPayload The version of the {@link Score} before the change.
+		 * @param newPayload The version of the {@link Score} after the change.
 		 */
 		protected ScoreChangedNotification(final Subscription<Score> mySubscription,
-				final Score oldScore, final Score newScore) {
-			super(mySubscription, oldScore, newScore);
+				final NotificationPayload oldPayload, final NotificationPayload newPayload) {
+			super(mySubscription, oldPayload, newPayload);
 		}
 
 	}
@@ -1045,10 +1816,16 @@ public final class SubscriptionManager implements PrioRunnable {
 	public static final class IdentitiesSubscription extends Subscription<Identity> {
 
 		/**
-		 * @param myClient The {@link Client} which created this Subscription. 
+		 * @param myClient The {@link Client} which created this Subscription.
+		 * @param filter See {@link Subscription#Subscription(Client, Filter)}.
 		 */
-		protected IdentitiesSubscription(final Client myClient) {
-			super(myClient);
+		protected IdentitiesSubscription(final Client myClient, final Filter filter) {
+			super(myClient, filter);
+		}
+		
+		/** {@inheritDoc} */
+		@Override boolean matchesFilter(final Identity identity) {
+			return getFilter().matches(identity);
 		}
 
 
@@ -1092,11 +1869,18 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * 
 		 * @param oldIdentity The version of the {@link Identity} before the change. Null if it was newly created.
 		 * @param newIdentity The version of the {@link Identity} after the change. Null if it was deleted.
+		 * @param oldPayload The {@link NotificationPayload} of oldIdentity.
+		 * @param newPayload The {@link NotificationPayload} of newIdentity.
 		 */
 		@Override void storeNotificationWithoutCommit(
-		        final Identity oldIdentity, final Identity newIdentity) {
+		        final Identity oldIdentity, final Identity newIdentity,
+		        final NotificationPayload oldPayload, final NotificationPayload newPayload) {
 		    
-			final IdentityChangedNotification notification = new IdentityChangedNotification(this, oldIdentity, newIdentity);
+			if(coalesceNotificationWithoutCommit(oldIdentity, newIdentity, newPayload))
+				return;
+			
+			final IdentityChangedNotification notification
+				= new IdentityChangedNotification(this, oldPayload, newPayload);
 			notification.initializeTransient(mWebOfTrust);
 			notification.storeWithoutCommit();
 		}
@@ -1113,10 +1897,16 @@ public final class SubscriptionManager implements PrioRunnable {
 	public static final class TrustsSubscription extends Subscription<Trust> {
 
 		/**
-		 * @param myClient The {@link Client} which created this Subscription. 
+		 * @param myClient The {@link Client} which created this Subscription.
+		 * @param filter See {@link Subscription#Subscription(Client, Filter)}.
 		 */
-		protected TrustsSubscription(final Client myClient) {
-			super(myClient);
+		protected TrustsSubscription(final Client myClient, final Filter filter) {
+			super(myClient, filter);
+		}
+		
+		/** {@inheritDoc} */
+		@Override boolean matchesFilter(final Trust trust) {
+			return getFilter().matches(trust);
 		}
 
         /** {@inheritDoc} */
@@ -1156,9 +1946,17 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * 
 		 * @param oldTrust The version of the {@link Trust} before the change. Null if it was newly created.
 		 * @param newTrust The version of the {@link Trust} after the change. Null if it was deleted.
+		 * @param oldPayload The {@link NotificationPayload} of oldTrust.
+		 * @param newPayload The {@link NotificationPayload} of newTrust.
 		 */
-		@Override void storeNotificationWithoutCommit(final Trust oldTrust, final Trust newTrust) {
-			final TrustChangedNotification notification = new TrustChangedNotification(this, oldTrust, newTrust);
+		@Override void storeNotificationWithoutCommit(final Trust oldTrust, final Trust newTrust,
+				final NotificationPayload oldPayload, final NotificationPayload newPayload) {
+			
+			if(coalesceNotificationWithoutCommit(oldTrust, newTrust, newPayload))
+				return;
+			
+			final TrustChangedNotification notification
+				= new TrustChangedNotification(this, oldPayload, newPayload);
 			notification.initializeTransient(mWebOfTrust);
 			notification.storeWithoutCommit();
 		}
@@ -1176,9 +1974,15 @@ public final class SubscriptionManager implements PrioRunnable {
 
 		/**
 		 * @param myClient The {@link Client} which created this Subscription.
+		 * @param filter See {@link Subscription#Subscription(Client, Filter)}.
 		 */
-		protected ScoresSubscription(final Client myClient) {
-			super(myClient);
+		protected ScoresSubscription(final Client myClient, final Filter filter) {
+			super(myClient, filter);
+		}
+		
+		/** {@inheritDoc} */
+		@Override boolean matchesFilter(final Score score) {
+			return getFilter().matches(score);
 		}
 
         /** {@inheritDoc} */
@@ -1218,9 +2022,17 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * 
 		 * @param oldScore The version of the {@link Score} before the change. Null if it was newly created.
 		 * @param newScore The version of the {@link Score} after the change. Null if it was deleted.
+		 * @param oldPayload The {@link NotificationPayload} of oldScore.
+		 * @param newPayload The {@link NotificationPayload} of newScore.
 		 */
-		@Override void storeNotificationWithoutCommit(final Score oldScore, final Score newScore) {
-			final ScoreChangedNotification notification = new ScoreChangedNotification(this, oldScore, newScore);
+		@Override void storeNotificationWithoutCommit(final Score oldScore, final Score newScore,
+				final NotificationPayload oldPayload, final NotificationPayload newPayload) {
+			
+			if(coalesceNotificationWithoutCommit(oldScore, newScore, newPayload))
+				return;
+			
+			final ScoreChangedNotification notification
+				= new ScoreChangedNotification(this, oldPayload, newPayload);
 			notification.initializeTransient(mWebOfTrust);
 			notification.storeWithoutCommit();
 		}
@@ -1243,6 +2055,19 @@ public final class SubscriptionManager implements PrioRunnable {
 	 */
 	public static final byte DISCONNECT_CLIENT_AFTER_FAILURE_COUNT = 5;
 	
+	/**
+	 * Maximal amount of {@link Client}s whose {@link Notification}s are deployed in parallel by
+	 * the {@link #mDeploymentExecutor}.
+	 */
+	public static final int DEPLOYMENT_THREADS = 4;
+	
+	/**
+	 * {@link Client#sendNotifications(SubscriptionManager)} loads at least this many
+	 * {@link Notification}s from the database at once while holding the locks, and then sends
+	 * them without the locks.
+	 */
+	public static final int DEPLOYMENT_BATCH_SIZE = 64;
+	
 	
 	/**
 	 * The {@link WebOfTrust} to which this SubscriptionManager belongs.
@@ -1277,6 +2102,69 @@ public final class SubscriptionManager implements PrioRunnable {
 	 */
     private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
 
+	/**
+	 * The bounded pool of threads on which {@link #run()} deploys the {@link Notification}s of
+	 * each {@link Client}, see {@link #deployNotifications(Client, UUID)}.<br>
+	 * Null in unit tests, and shut down by {@link #stop()}: run() then deploys them on its own
+	 * thread so they are deployed once it returns. Unit tests rely upon that when they stop() the
+	 * SubscriptionManager and call run() manually.<br><br>
+	 * 
+	 * Created by {@link #start()}. Volatile since run() and {@link #stop()} use it without
+	 * synchronization.
+	 */
+	private volatile ExecutorService mDeploymentExecutor = null;
+
+	/**
+	 * ATTENTION: Only for unit tests which run {@link #run()} manually after {@link #stop()}:
+	 * Makes it deploy on the given executor again instead of on its own thread. The caller must
+	 * shut the executor down.
+	 */
+	void setDeploymentExecutor(ExecutorService executor) {
+		mDeploymentExecutor = executor;
+	}
+
+	/**
+	 * The FCP IDs of the {@link Client}s whose deployment by
+	 * {@link #deployNotifications(Client, UUID)} is queued or running.<br>
+	 * {@link #run()} does not start another deployment for them: This preserves the order of the
+	 * Notifications of each Client.<br><br>
+	 * 
+	 * Synchronized by synchronized(this).
+	 */
+	private final HashSet<UUID> mClientsInDeployment = new HashSet<UUID>();
+
+	/**
+	 * Deployment statistics of each {@link Client}, keyed by its FCP ID. Not stored in the
+	 * database since Clients do not survive restarts anyway.<br>
+	 * Synchronized by synchronized(this).
+	 * 
+	 * @see #getClientStatistics()
+	 */
+	private final HashMap<UUID, ClientStatistics> mClientStatistics
+		= new HashMap<UUID, ClientStatistics>();
+
+	/**
+	 * Source of the "Index" field of the "ObjectChangedEvents" messages which
+	 * {@link Client#sendNotificationsBatched(SubscriptionManager, List, int, int)} sends.<br>
+	 * Each message gets a new index, including messages which re-send the events of a failed one:
+	 * If they re-used the index, the client could not tell a failure of the previous round apart
+	 * from one of the current round, and would thus also reject the re-sent messages.<br>
+	 * Not stored in the database since Clients do not survive restarts anyway, and shared among
+	 * all Clients since the index only has to grow for each of them.
+	 */
+	private final AtomicLong mEventsMessageIndex = new AtomicLong(0);
+
+	/**
+	 * For each {@link Client} in {@link #mClientsInDeployment}, the highest
+	 * {@link Notification#getIndex()} which {@link #getNotificationBatch(Client, int)} has handed
+	 * out for deployment. Those Notifications are being sent without holding the locks, so
+	 * {@link #coalesceNotificationWithoutCommit(Subscription, Persistent)} must not modify them.
+	 * <br><br>
+	 * 
+	 * Synchronized by synchronized(this).
+	 */
+	private final HashMap<UUID, Long> mDeploymentHorizons = new HashMap<UUID, Long>();
+
 
 	/** Automatically set to true by {@link Logger} if the log level is set to {@link LogLevel#DEBUG} for this class.
 	 * Used as performance optimization to prevent construction of the log strings if it is not necessary. */
@@ -1461,13 +2349,28 @@ public final class SubscriptionManager implements PrioRunnable {
 	 */
     public String subscribeToIdentities(UUID fcpID)
             throws InterruptedException, SubscriptionExistsAlreadyException {
+        
+        return subscribeToIdentities(fcpID, Filter.NONE);
+    }
+    
+    /**
+     * Same as {@link #subscribeToIdentities(UUID)} but only notifies the {@link Client} about
+     * {@link Identity}s which match the given {@link Filter}.
+     * 
+     * @throws IllegalArgumentException If the filter does not apply to Identitys.
+     */
+    public String subscribeToIdentities(UUID fcpID, Filter filter)
+            throws InterruptedException, SubscriptionExistsAlreadyException {
+        
+        // Check before modifying the database.
+        filter.checkApplicableTo(Identity.class);
 
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
 		    try {
     			final IdentitiesSubscription subscription
-    			    = new IdentitiesSubscription(getOrCreateClient(fcpID));
+    			    = new IdentitiesSubscription(getOrCreateClient(fcpID), filter);
     			storeNewSubscriptionWithoutCommit(subscription);
     			subscription.checkedCommit(this);
     			return subscription.getID();
@@ -1506,12 +2409,27 @@ public final class SubscriptionManager implements PrioRunnable {
 	public String subscribeToTrusts(UUID fcpID)
 	    throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
+	    return subscribeToTrusts(fcpID, Filter.NONE);
+	}
+	
+	/**
+	 * Same as {@link #subscribeToTrusts(UUID)} but only notifies the {@link Client} about
+	 * {@link Trust}s which match the given {@link Filter}.
+	 * 
+	 * @throws IllegalArgumentException If the filter does not apply to Trusts.
+	 */
+	public String subscribeToTrusts(UUID fcpID, Filter filter)
+	    throws InterruptedException, SubscriptionExistsAlreadyException {
+	    
+	    // Check before modifying the database.
+	    filter.checkApplicableTo(Trust.class);
+	    
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
 	        try {
     			final TrustsSubscription subscription
-    			    = new TrustsSubscription(getOrCreateClient(fcpID));
+    			    = new TrustsSubscription(getOrCreateClient(fcpID), filter);
     			storeNewSubscriptionWithoutCommit(subscription);
     			subscription.checkedCommit(this);
     			return subscription.getID();
@@ -1550,12 +2468,27 @@ public final class SubscriptionManager implements PrioRunnable {
 	public String subscribeToScores(UUID fcpID)
 	        throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
+	    return subscribeToScores(fcpID, Filter.NONE);
+	}
+	
+	/**
+	 * Same as {@link #subscribeToScores(UUID)} but only notifies the {@link Client} about
+	 * {@link Score}s which match the given {@link Filter}.
+	 * 
+	 * @throws IllegalArgumentException If the filter does not apply to Scores.
+	 */
+	public String subscribeToScores(UUID fcpID, Filter filter)
+	        throws InterruptedException, SubscriptionExistsAlreadyException {
+	    
+	    // Check before modifying the database.
+	    filter.checkApplicableTo(Score.class);
+	    
 		synchronized(mWoT) {
 		synchronized(this) {
 	    synchronized(Persistent.transactionLock(mDB)) {
 	        try {
 	            final ScoresSubscription subscription
-	                = new ScoresSubscription(getOrCreateClient(fcpID));
+	                = new ScoresSubscription(getOrCreateClient(fcpID), filter);
 	            storeNewSubscriptionWithoutCommit(subscription);
 	            subscription.checkedCommit(this);
 	            return subscription.getID();
@@ -1595,6 +2528,7 @@ public final class SubscriptionManager implements PrioRunnable {
 				final Client client = subscription.getClient();
 				if(getSubscriptions(client).size() == 0) {
 					Logger.normal(this, "Last subscription of client removed, deleting it: " + client);
+					mClientStatistics.remove(client.getFCP_ID());
 					client.deleteWithoutCommit();
 				}
 				
@@ -1647,6 +2581,57 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 	}
 	
+	/**
+	 * Enables or disables coalescing of the {@link ObjectChangedNotification}s of the given
+	 * {@link Client}: If an object changes multiple times before its Notification was deployed,
+	 * the client only receives a single Notification with the oldest before-state and the newest
+	 * after-state.<br>
+	 * Not all changes can be coalesced, see
+	 * {@link Subscription#coalesceNotificationWithoutCommit(EventSource, EventSource,
+	 * NotificationPayload)}.
+	 * 
+	 * @param fcpID The identifier of the FCP connection of the {@link Client}.
+	 * @throws UnknownClientException If the client has no {@link Subscription}s.
+	 */
+	public void setCoalesceNotifications(UUID fcpID, boolean coalesce)
+			throws UnknownClientException {
+		
+		synchronized(this) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				getClient(fcpID).setCoalesceNotificationsWithoutCommit(coalesce);
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}}
+	}
+	
+	/**
+	 * Allows the {@link Notification}s of the given {@link Client} to be deployed in batches, see
+	 * {@link FCPInterface#sendObjectChangedNotifications(UUID, List, long, long)}.
+	 * 
+	 * @param fcpID The identifier of the FCP connection of the {@link Client}.
+	 * @param maxEventsPerMessage Maximal amount of {@link ObjectChangedNotification}s per message.
+	 *     1 disables batching.
+	 * @param maxMessagesInFlight Maximal amount of messages which may await their reply at once.
+	 * @throws UnknownClientException If the client has no {@link Subscription}s.
+	 */
+	public void setEventBatching(UUID fcpID, int maxEventsPerMessage, int maxMessagesInFlight)
+			throws UnknownClientException {
+		
+		synchronized(this) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				getClient(fcpID).setEventBatchingWithoutCommit(
+					maxEventsPerMessage, maxMessagesInFlight);
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}}
+	}
+	
 	/**
 	 * Typically used at startup by {@link #deleteAllClients()}.
 	 * 
@@ -1758,6 +2743,11 @@ public final class SubscriptionManager implements PrioRunnable {
 					n.deleteWithoutCommit();
 				}
 				
+				// Deleting the Notifications deletes their payloads, this is to fix leaks.
+				for(NotificationPayload p : getAllNotificationPayloads()) {
+					p.deleteWithoutCommit();
+				}
+				
 				for(Subscription<? extends EventSource> s : getAllSubscriptions()) {
 					s.deleteWithoutCommit();
 				}
@@ -1766,6 +2756,7 @@ public final class SubscriptionManager implements PrioRunnable {
 					client.deleteWithoutCommit();
 				}
 				Persistent.checkedCommit(mDB, this);
+				mClientStatistics.clear();
 			} catch(RuntimeException e) {
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
@@ -1785,6 +2776,17 @@ public final class SubscriptionManager implements PrioRunnable {
 		return new Persistent.InitializingObjectSet<Notification>(mWoT, q);
 	}
 	
+	/**
+	 * Typically used by {@link #deleteAllClients()}.
+	 * 
+	 * @return All objects of class NotificationPayload which are stored in the database.
+	 */
+	private ObjectSet<NotificationPayload> getAllNotificationPayloads() {
+		final Query q = mDB.query();
+		q.constrain(NotificationPayload.class);
+		return new Persistent.InitializingObjectSet<NotificationPayload>(mWoT, q);
+	}
+	
 	/**
 	 * Gets all {@link Notification} objects in the queue of the given {@link Subscription}.
 	 * 
@@ -1822,6 +2824,94 @@ public final class SubscriptionManager implements PrioRunnable {
 		return new Persistent.InitializingObjectSet<Notification>(mWoT, q);
 	}
 	
+	/**
+	 * Gets the first up to the given amount of {@link Notification}s of
+	 * {@link #getNotifications(Client)}.<br>
+	 * They are activated fully, and so are their {@link Subscription} and the Client, so
+	 * {@link Client#sendNotifications(SubscriptionManager)} can deploy them without holding the
+	 * locks.<br><br>
+	 * 
+	 * You must synchronize on this SubscriptionManager and the database lock when calling this.
+	 */
+	private ArrayList<Notification> getNotificationBatch(final Client client, final int amount) {
+		final ArrayList<Notification> result = new ArrayList<Notification>(amount);
+		
+		for(Notification notification : getNotifications(client)) {
+			notification.activateFully();
+			notification.getSubscription().getClient().getFCP_ID();
+			result.add(notification);
+			
+			if(result.size() == amount)
+				break;
+		}
+		
+		if(!result.isEmpty()) {
+			mDeploymentHorizons.put(
+				client.getFCP_ID(), result.get(result.size() - 1).getIndex());
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Backend for {@link Subscription#coalesceNotificationWithoutCommit(EventSource,
+	 * EventSource, NotificationPayload)}, see its JavaDoc: Replaces the after-state of the most
+	 * recent queued {@link ObjectChangedNotification} of the given object with the given
+	 * {@link NotificationPayload} if it may be modified.<br><br>
+	 * 
+	 * You must synchronize on this SubscriptionManager and the database lock when calling this.
+	 * 
+	 * @return True if the change was merged, false if a new Notification must be stored.
+	 */
+	private boolean coalesceNotificationWithoutCommit(
+			final Subscription<? extends EventSource> subscription, final Persistent newObject,
+			final NotificationPayload newPayload) {
+		
+		final Query q = mDB.query();
+		q.constrain(ObjectChangedNotification.class);
+		q.descend("mSubscription").constrain(subscription).identity();
+		q.descend("mObjectID").constrain(newObject.getID());
+		q.descend("mIndex").orderDescending();
+		final ObjectSet<ObjectChangedNotification> queued
+			= new Persistent.InitializingObjectSet<ObjectChangedNotification>(mWoT, q);
+		
+		if(queued.size() == 0)
+			return false;
+		
+		final ObjectChangedNotification notification = queued.next();
+		final UUID clientID = subscription.getClient().getFCP_ID();
+		final Long horizon = mDeploymentHorizons.get(clientID);
+		
+		if(horizon != null && notification.getIndex() <= horizon)
+			return false; // Being deployed
+		
+		// The queued Notification deleted the object, or changed its class.
+		final Persistent queuedNewObject = notification.getNewObject();
+		if(queuedNewObject == null || queuedNewObject.getClass() != newObject.getClass())
+			return false;
+		
+		if(isPartOfSynchronization(notification))
+			return false;
+		
+		notification.setNewPayloadWithoutCommit(newPayload);
+		++getStatistics(clientID).mCoalescedNotifications;
+		return true;
+	}
+	
+	/**
+	 * @return True if the given {@link Notification} is deployed as part of the synchronization
+	 *     of its {@link Subscription}, see {@link Subscription#storeSynchronizationWithoutCommit()}.
+	 */
+	private boolean isPartOfSynchronization(final Notification notification) {
+		// The synchronization is stored when the Subscription is created, so all Notifications of
+		// it which precede a queued end marker belong to it.
+		final Query q = mDB.query();
+		q.constrain(EndSynchronizationNotification.class);
+		q.descend("mSubscription").constrain(notification.getSubscription()).identity();
+		q.descend("mIndex").constrain(notification.getIndex()).greater();
+		return q.execute().size() != 0;
+	}
+	
 	/**
 	 * Interface for the core of WOT to queue an {@link IdentityChangedNotification} to be deployed to all {@link Client}s subscribed to that type of notification. 
 	 * 
@@ -1830,7 +2920,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
      * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
-     * encapsulated into a {@link Notification} database object.<br>
+     * encapsulated into a {@link NotificationPayload} database object which the
+     * {@link Notification}s of all {@link Subscription}s share.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
      * (= not duplicating the objects in the main tables).<br><br>
@@ -1846,8 +2937,12 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<IdentitiesSubscription> subscriptions = (ObjectSet<IdentitiesSubscription>)getSubscriptions(IdentitiesSubscription.class);
 		
+		final NotificationPayload oldPayload = constructPayload(oldIdentity);
+		final NotificationPayload newPayload = constructPayload(newIdentity);
+		
 		for(IdentitiesSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldIdentity, newIdentity);
+			subscription.storeFilteredNotificationWithoutCommit(
+				oldIdentity, newIdentity, oldPayload, newPayload);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeIdentityChangedNotificationWithoutCommit() finished.");
@@ -1860,7 +2955,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
      * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
-     * encapsulated into a {@link Notification} database object.<br>
+     * encapsulated into a {@link NotificationPayload} database object which the
+     * {@link Notification}s of all {@link Subscription}s share.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
      * (= not duplicating the objects in the main tables).<br><br>
@@ -1876,8 +2972,12 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<TrustsSubscription> subscriptions = (ObjectSet<TrustsSubscription>)getSubscriptions(TrustsSubscription.class);
 		
+		final NotificationPayload oldPayload = constructPayload(oldTrust);
+		final NotificationPayload newPayload = constructPayload(newTrust);
+		
 		for(TrustsSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldTrust, newTrust);
+			subscription.storeFilteredNotificationWithoutCommit(
+				oldTrust, newTrust, oldPayload, newPayload);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeTrustChangedNotificationWithoutCommit() finished.");
@@ -1890,7 +2990,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
      * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
-     * encapsulated into a {@link Notification} database object.<br>
+     * encapsulated into a {@link NotificationPayload} database object which the
+     * {@link Notification}s of all {@link Subscription}s share.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
      * (= not duplicating the objects in the main tables).<br><br>
@@ -1906,13 +3007,32 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<ScoresSubscription> subscriptions = (ObjectSet<ScoresSubscription>)getSubscriptions(ScoresSubscription.class);
 		
+		final NotificationPayload oldPayload = constructPayload(oldScore);
+		final NotificationPayload newPayload = constructPayload(newScore);
+		
 		for(ScoresSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldScore, newScore);
+			subscription.storeFilteredNotificationWithoutCommit(
+				oldScore, newScore, oldPayload, newPayload);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeScoreChangedNotificationWithoutCommit() finished.");
 	}
 
+	/**
+	 * @return A {@link NotificationPayload} of the given object for
+	 *     {@link Subscription#storeFilteredNotificationWithoutCommit(EventSource, EventSource,
+	 *     NotificationPayload, NotificationPayload)}, or null if the object is null.<br>
+	 *     It is only serialized and stored if a Subscription references it.
+	 */
+	private NotificationPayload constructPayload(final Persistent object) {
+		if(object == null)
+			return null;
+		
+		final NotificationPayload payload = new NotificationPayload(object);
+		payload.initializeTransient(mWoT);
+		return payload;
+	}
+
 	/**
 	 * Sends out the {@link Notification} queue of each {@link Client}.
 	 * 
@@ -1922,10 +3042,18 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * {@link Thread#interrupt()} may be called by {@link DelayedBackgroundJob#terminate()} to
 	 * request the thread to exit soon for speeding up shutdown.<br><br>
 	 * 
+	 * The queue of each Client is deployed by a separate task on the {@link #mDeploymentExecutor}
+	 * so a single slow Client cannot cause all others to starve. A Client whose previous task is
+	 * still queued or running is skipped since that task will deploy the new Notifications as
+	 * well.<br>
+	 * In unit tests or after {@link #stop()} the mDeploymentExecutor is not usable, the queues are
+	 * then deployed one after another before this function returns.<br><br>
+	 * 
 	 * If deploying the notifications for a {@link Client} fails, this function is scheduled to be run again after some time.
 	 * If deploying for a certain {@link Client} fails more than {@link #DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} times, the {@link Client} is deleted.
 	 * 
-	 * @see Client#sendNotifications(SubscriptionManager) This function is called on each {@link Client} to deploy the {@link Notification} queue.
+	 * @see #deployNotifications(Client, UUID)
+	 *     This function is called for each {@link Client} to deploy the {@link Notification} queue.
 	 */
 	@Override
 	public void run() {
@@ -1934,34 +3062,101 @@ public final class SubscriptionManager implements PrioRunnable {
 		/* We do NOT allow database queries on the WebOfTrust object in sendNotifications: 
 		 * Notification objects contain serialized clones of all required objects for deploying them, they are self-contained.
 		 * Therefore, we don't have to take the WebOfTrust lock and can execute in parallel to threads which need to lock the WebOfTrust.*/
-		// synchronized(mWoT) {
+		final ArrayList<Client> clients = new ArrayList<Client>();
+		final ArrayList<UUID> clientIDs = new ArrayList<UUID>();
 		synchronized(this) {
-		    // TODO: Optimization: We should investigate whether we can deploy notifications in
-		    // a thread for each client instead of one thread which iterates over all clients:
-		    // This will prevent a single slow client from causing all others to starve.
 			for(Client client : getAllClients()) {
-				try {
-					if(client.sendNotifications(this)) {
-						// Persistent.checkedCommit(mDB, this);	/* sendNotifications() does this already */
-					} else {
-						Logger.warning(this, "sendNotifications tells us to delete the Client, deleting it: " + client);
-						client.deleteWithoutCommit(this);
-						Persistent.checkedCommit(mDB, this);
-					}
-				} catch(InterruptedException e) {
-				    Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
-				    // Rollback is already done by sendNotifications().
-				    return;
-				} catch(RuntimeException e) {
-					Persistent.checkedRollback(mDB, this, e);
+				final UUID clientID = client.getFCP_ID();
+				if(mClientsInDeployment.add(clientID)) {
+					clients.add(client);
+					clientIDs.add(clientID);
 				}
 			}
 		}
-		//}
+		
+		// stop() only shuts down the executor after the thread of run() has exited, so the executor
+		// cannot be shut down concurrently.
+		final boolean useExecutor
+			= mDeploymentExecutor != null && !mDeploymentExecutor.isShutdown();
+		
+		for(int i = 0; i < clients.size(); ++i) {
+			final Client client = clients.get(i);
+			final UUID clientID = clientIDs.get(i);
+			
+			if(useExecutor) {
+				mDeploymentExecutor.execute(new Runnable() { @Override public void run() {
+					try {
+						deployNotifications(client, clientID);
+					} catch(InterruptedException e) {
+						Logger.normal(SubscriptionManager.this,
+							"Deployment got InterruptedException, exiting thread.", e);
+					}
+				}});
+				continue;
+			}
+			
+			try {
+				deployNotifications(client, clientID);
+			} catch(InterruptedException e) {
+			    Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
+			    synchronized(this) {
+			        mClientsInDeployment.removeAll(clientIDs.subList(i + 1, clientIDs.size()));
+			    }
+			    return;
+			}
+		}
 		
 		if(logMINOR) Logger.minor(this, "run() finished.");
 	}
 	
+	/**
+	 * Deploys the {@link Notification} queue of the given {@link Client} using
+	 * {@link Client#sendNotifications(SubscriptionManager)} and deletes the Client if that
+	 * function tells us to.<br>
+	 * Executed by {@link #run()}, on the {@link #mDeploymentExecutor} if it exists.<br><br>
+	 * 
+	 * The caller must have added the clientID to {@link #mClientsInDeployment}, this function
+	 * removes it once it is finished.<br>
+	 * You must NOT synchronize on this SubscriptionManager when calling this.
+	 * 
+	 * @throws InterruptedException See {@link Client#sendNotifications(SubscriptionManager)}.
+	 */
+	private void deployNotifications(final Client client, final UUID clientID)
+			throws InterruptedException {
+		
+		try {
+			if(!client.sendNotifications(this)) {
+				synchronized(this) {
+				synchronized(Persistent.transactionLock(mDB)) {
+					// unsubscribe() may have deleted it already.
+					if(mDB.isStored(client)) {
+						try {
+							Logger.warning(this, "sendNotifications tells us to delete the Client, deleting it: " + client);
+							client.deleteWithoutCommit(this);
+							Persistent.checkedCommit(mDB, this);
+						} catch(RuntimeException e) {
+							Persistent.checkedRollback(mDB, this, e);
+						}
+					}
+				}}
+			}
+		} catch(RuntimeException e) {
+			// sendNotifications() has already rolled back if it was in a transaction.
+			Logger.error(this, "deployNotifications() failed for Client " + clientID, e);
+		} finally {
+			synchronized(this) {
+			synchronized(Persistent.transactionLock(mDB)) {
+				mClientsInDeployment.remove(clientID);
+				mDeploymentHorizons.remove(clientID);
+				
+				// Notifications which were stored after sendNotifications() had seen the queue
+				// to be empty were ignored by run() since the Client was in mClientsInDeployment.
+				if(mDB.isStored(client) && getNotifications(client).size() != 0)
+					scheduleNotificationProcessing();
+			}}
+		}
+	}
+	
 	/** {@inheritDoc} */
 	@Override
 	public int getPriority() {
@@ -2034,6 +3229,23 @@ public final class SubscriptionManager implements PrioRunnable {
 		if(respirator != null) { // We are connected to a node
             ticker = respirator.getNode().getTicker();
             jobRunnable = this;
+            
+            // We do not use the Executor of the node: stop() must interrupt() the running
+            // deployments and wait for them to exit before the plugin JAR is unloaded, which
+            // it cannot do. Also it is unbounded, and the whole point of this pool is to bound
+            // the threads which slow Clients can keep busy.
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                DEPLOYMENT_THREADS, DEPLOYMENT_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() { @Override public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "WoT SubscriptionManager deployment");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }});
+            // Each Client has at most one queued task, so idle threads are not worth keeping.
+            executor.allowCoreThreadTimeOut(true);
+            mDeploymentExecutor = executor;
 		} else { // We are inside of a unit test
 		    Logger.warning(this, "No PluginRespirator available, will never run job. "
 		                       + "This should only happen in unit tests!");
@@ -2066,17 +3278,22 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
 	 * Notice: Not synchronized so it can be run in parallel with {@link #run()}. This will allow it
 	 * to call {@link DelayedBackgroundJob#terminate()} while run() is executing, which calls
-	 * {@link Thread#interrupt()} on the run()-thread to cause it to exit quickly.
+	 * {@link Thread#interrupt()} on the run()-thread to cause it to exit quickly.<br>
+	 * Afterwards the deployment tasks on the {@link #mDeploymentExecutor} are interrupted by
+	 * {@link ExecutorService#shutdownNow()} and awaited.
 	 */
 	protected void stop() {
 		Logger.normal(this, "stop()...");
 		
         // The following code intentionally does NOT write to the mJob variable so it does not have
         // to use synchronized(this). We do not want to synchronize because:
-        // 1) run() is synchronized(this), so we would not get the lock until run() is finished.
-        //    But we want to call mJob.terminate() immediately while run() is still executing to
-        //    make it call Thread.interrupt() upon run() to speed up its termination. So we
-        //    shouldn't require acquisition of the lock before terminate().
+        // 1) We want to call mJob.terminate() immediately to make it interrupt() run(), and then
+        //    shut down the mDeploymentExecutor to interrupt() the deployment tasks of the Clients.
+        //    run() and the deployment tasks take the lock for each batch of Notifications, so
+        //    requiring the lock here could make us wait for a slow Client. Deployment does not
+        //    hold the lock while it waits for a Client, so the lock would not be a reliable way
+        //    of waiting for it to finish anyway: We use waitForTermination() and
+        //    awaitTermination() below instead.
         // 2) Keeping mJob as is makes sure that start() is not possible anymore so this object can
         //    only have a single lifecycle. Recycling being impossible reduces complexity and is not
         //    needed for normal operation of WOT anyway.
@@ -2102,6 +3319,13 @@ public final class SubscriptionManager implements PrioRunnable {
 		    // rather not though: Plugin unloading unloads the JAR of the plugin, and thus all its
 		    // classes. That will probably cause havoc if threads of it are still running.
             mJob.waitForTermination(Long.MAX_VALUE);
+            
+            // run() has exited, so no more deployments can be submitted.
+            // shutdownNow() will interrupt() the running ones.
+            if(mDeploymentExecutor != null) {
+                mDeploymentExecutor.shutdownNow();
+                mDeploymentExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
         } catch (InterruptedException e) {
             // We are a shutdown function, there is no sense in sending a shutdown signal to us.
             Logger.error(this, "stop() should not be interrupt()ed.", e);
@@ -2133,4 +3357,110 @@ public final class SubscriptionManager implements PrioRunnable {
         return amount;
     }
 
+    /** @see SubscriptionManager#getClientStatistics() */
+    public static final class ClientStatistics implements Cloneable {
+        /** The FCP ID of the {@link Client}, see {@link Client#getFCP_ID()}. */
+        public final UUID mFCP_ID;
+
+        /** Number of {@link Notification}s which have been deployed successfully. */
+        public long mDeployedNotifications = 0;
+
+        /**
+         * Total time it took to send the {@link #mDeployedNotifications} to the client, i.e. the
+         * time the client took to process them plus the network latency.<br>
+         * Excludes the time for database access. */
+        public long mDeploymentTimeNanoseconds = 0;
+
+        /**
+         * Number of changes which were merged into an already queued {@link Notification}
+         * instead of queuing a new one, see {@link #setCoalesceNotifications(UUID, boolean)}.
+         * Includes changes which were rolled back. */
+        public long mCoalescedNotifications = 0;
+
+        /** Number of {@link Notification}s which are queued for sending. */
+        public int mPendingNotifications = 0;
+
+        /**
+         * Time in milliseconds which the oldest of the {@link #mPendingNotifications} has been
+         * waiting for deployment. 0 if there are none. */
+        public long mLagMilliseconds = 0;
+
+        ClientStatistics(UUID fcpID) {
+            mFCP_ID = fcpID;
+        }
+
+        /**
+         * Gets the average number of {@link Notification}s the client has processed per second of
+         * {@link #mDeploymentTimeNanoseconds}.<br><br>
+         * 
+         * ATTENTION: Not synchronized - only use this if you obtained the object using
+         * {@link SubscriptionManager#getClientStatistics()}. */
+        public double getThroughput() {
+            if(mDeploymentTimeNanoseconds == 0)
+                return 0;
+
+            return (double)mDeployedNotifications
+                / ((double)mDeploymentTimeNanoseconds / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        @Override public ClientStatistics clone() {
+            try {
+                return (ClientStatistics)super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link Client#sendNotifications(SubscriptionManager)} after it has deployed
+     * {@link Notification}s.<br>
+     * You must synchronize on this SubscriptionManager when calling this. */
+    private void addDeployedNotificationsToStatistics(Client client, int amount,
+            long deploymentTimeNanos) {
+
+        final ClientStatistics stats = getStatistics(client.getFCP_ID());
+        stats.mDeployedNotifications += amount;
+        stats.mDeploymentTimeNanoseconds += deploymentTimeNanos;
+    }
+
+    /**
+     * Gets the entry of {@link #mClientStatistics} of the given {@link Client}, creates it if it
+     * does not exist yet.<br>
+     * You must synchronize on this SubscriptionManager when calling this. */
+    private ClientStatistics getStatistics(UUID clientID) {
+        ClientStatistics stats = mClientStatistics.get(clientID);
+        if(stats == null) {
+            stats = new ClientStatistics(clientID);
+            mClientStatistics.put(clientID, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return The {@link ClientStatistics} of each currently connected {@link Client}, including
+     *         its lag and throughput. Returns clones, so you can use them without locking.
+     */
+    public synchronized List<ClientStatistics> getClientStatistics() {
+        final long now = CurrentTimeUTC.getInMillis();
+        final List<ClientStatistics> result = new ArrayList<ClientStatistics>();
+
+        for(Client client : getAllClients()) {
+            final UUID clientID = client.getFCP_ID();
+            final ClientStatistics stored = mClientStatistics.get(clientID);
+            final ClientStatistics stats
+                = stored != null ? stored.clone() : new ClientStatistics(clientID);
+
+            // Ordered by age, see getNotifications(Client).
+            final ObjectSet<? extends Notification> pending = getNotifications(client);
+            stats.mPendingNotifications = pending.size();
+            if(stats.mPendingNotifications != 0)
+                stats.mLagMilliseconds = now - pending.get(0).getCreationDate().getTime();
+
+            result.add(stats);
+        }
+
+        return result;
+    }
+
 }
@@ -546,6 +546,41 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * Writes the member variables for {@link Persistent#serialize()}, see
+	 * {@link EventSourceCodec}. Inverse of {@link #Trust(EventSourceCodec.Input)}.<br>
+	 * The caller must have called {@link #activateFully()}.<br>
+	 * {@link #mID} is not written, it can be computed from the truster and trustee. */
+	void writeCompact(EventSourceCodec.Output out) throws IOException {
+		out.writeObject(getTruster());
+		out.writeObject(getTrustee());
+		out.writeByte(mValue);
+		out.writeString(mComment);
+		out.writeDate(mLastChangedDate);
+		out.writeVarLong(mTrusterTrustListEdition);
+		out.writeUUID(mVersionID);
+	}
+
+	/**
+	 * Constructor for {@link Persistent#deserialize(WebOfTrustInterface, byte[])}, see
+	 * {@link EventSourceCodec}. Inverse of {@link #writeCompact(EventSourceCodec.Output)}. */
+	Trust(EventSourceCodec.Input in) throws IOException {
+		try {
+			mTruster = (Identity)in.readObject();
+			mTrustee = (Identity)in.readObject();
+		} catch(ClassCastException e) {
+			throw new IOException(e);
+		}
+		
+		// The getters of the Identitys cannot be used: initializeTransient() was not called yet.
+		mID = new TrustID(mTruster.mID, mTrustee.mID).toString();
+		mValue = in.readByte();
+		mComment = in.readString();
+		mLastChangedDate = in.readDate();
+		mTrusterTrustListEdition = in.readVarLong();
+		mVersionID = in.readUUID();
+	}
+
     /** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
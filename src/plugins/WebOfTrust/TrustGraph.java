@@ -0,0 +1,784 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.sort;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import plugins.WebOfTrust.Persistent.TransactionListener;
+
+/**
+ * In-memory copy of the {@link Trust} graph of the database, for use by the {@link Score}
+ * computation algorithms of {@link WebOfTrust}.
+ *
+ * The algorithms walk the Trusts of nearly every {@link Identity} they touch. Doing a db4o query
+ * for each of those walks has shown to dominate their runtime on large databases, so this class
+ * provides the Trust graph without any database access, in a memory layout which is as compact
+ * as possible:
+ * - Identitys are "vertices" which are addressed by an int index. The mapping from
+ *   {@link Identity#getID()} to the index is stable for the lifetime of the object.
+ * - Trusts are "edges", stored as an int for the index of the other vertex, and a byte for the
+ *   {@link Trust#getValue()}. The {@link Trust#getComment()} etc. are not stored.
+ * - The edges are kept in "compressed sparse row" (CSR) format: For each vertex, its edges are
+ *   the range [offsets[vertex], offsets[vertex + 1]) of one large array of all edges.
+ *   The edges of each vertex are sorted by the index of the other vertex to allow looking up a
+ *   single edge using binary search.
+ * - We store the given Trusts and the received Trusts of each vertex separately, i.e. each Trust
+ *   is stored twice. This is because the algorithms need to walk the graph in both directions.
+ *
+ * CSR cannot be modified without moving the whole edge array. Thus, when a Trust is changed, the
+ * edges of the affected vertices are copied to separate per-vertex arrays which override the CSR
+ * data. Once enough vertices are overridden, the overrides are merged back into a new CSR array
+ * upon the next commit.
+ *
+ * The graph is kept in sync with the database by {@link WebOfTrust}: Each function of it which
+ * stores or deletes a Trust must call {@link #setTrust(Trust)} / {@link #removeTrust(Trust)}.
+ * To follow the database's transactions, changes are journaled until
+ * {@link #onCommit()} is called, and undone by {@link #onRollback()}. Both are called by
+ * {@link Persistent} as this is a {@link TransactionListener}.
+ *
+ * Concurrency:
+ * This class does not provide locking of its own.
+ * Reads must be secured by synchronizing on the {@link WebOfTrust}. Writes additionally require
+ * the {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}, as do the
+ * {@link TransactionListener} callbacks. As the journal only contains entries if the current
+ * transaction modified Trusts, which requires the WebOfTrust lock, the callbacks only modify the
+ * graph when being called by the thread which holds the WebOfTrust lock.
+ * 
+ * Readers which only need the Trust values can use {@link #getSnapshot()} instead, which does
+ * not require any locking: Upon each commit which changed Trusts, an immutable {@link Snapshot}
+ * of the committed graph is published. To make this cheap, the edge arrays of the graph are never
+ * modified once a Snapshot may reference them. Instead, they are copied on write, which the
+ * per-vertex override arrays of a modified vertex are anyway. */
+public final class TrustGraph implements TransactionListener {
+
+	/**
+	 * Returned by {@link #getTrustValue(int, int)} if no Trust exists.
+	 * Not a valid {@link Trust#getValue()} since it is less than {@link Trust#MIN_TRUST_VALUE}. */
+	public static final byte NO_TRUST = Byte.MIN_VALUE;
+
+	/**
+	 * If more than this fraction of the vertices has overridden edges, they are merged back into
+	 * the CSR arrays upon the next {@link #onCommit()}. */
+	private static final int COMPACTION_DIVISOR = 16;
+
+	/** Lower limit for the amount of overridden vertices which causes compaction. */
+	private static final int COMPACTION_MINIMUM = 256;
+
+	/**
+	 * Key = {@link Identity#getID()}, Value = index of its vertex.
+	 * Concurrent because the {@link Snapshot}s read it while the graph adds vertices. As vertices
+	 * are never removed or renumbered, a Snapshot can share it with the graph. */
+	private final ConcurrentHashMap<String, Integer> mVertices;
+
+	/** Index = vertex, value = {@link Identity#getID()}. Can be larger than mVertexCount. */
+	private String[] mIdentityIDs;
+
+	private int mVertexCount = 0;
+
+	/** Edges from truster to trustee, i.e. the given Trusts of each vertex. */
+	private final Edges mGivenTrusts = new Edges();
+
+	/** Edges from trustee to truster, i.e. the received Trusts of each vertex. */
+	private final Edges mReceivedTrusts = new Edges();
+
+	/**
+	 * The changes which were done to the graph since the last {@link #onCommit()}, in the order
+	 * of execution. Replayed in reverse by {@link #onRollback()}. */
+	private final ArrayList<JournalEntry> mJournal = new ArrayList<JournalEntry>();
+
+	/** The graph as of the last commit, see {@link #getSnapshot()}. */
+	private volatile Snapshot mSnapshot;
+
+
+	/**
+	 * Copies the given Trusts into a new graph.
+	 * Trusts which have no truster or trustee (= orphans, see
+	 * {@link WebOfTrust#deleteOrphanObjects()}) are ignored. */
+	public TrustGraph(Iterable<Trust> trusts) {
+		mVertices = new ConcurrentHashMap<String, Integer>();
+		mIdentityIDs = new String[16];
+
+		// Collect the edges into plain arrays at first so we can then compute the CSR offsets from
+		// the amount of edges of each vertex.
+		int edgeCount = 0;
+		int[] trusters = new int[1024];
+		int[] trustees = new int[1024];
+		byte[] values = new byte[1024];
+
+		for(Trust trust : trusts) {
+			final Identity truster = trust.getTruster();
+			final Identity trustee = trust.getTrustee();
+
+			if(truster == null || trustee == null)
+				continue;
+
+			if(edgeCount == trusters.length) {
+				trusters = copyOf(trusters, edgeCount * 2);
+				trustees = copyOf(trustees, edgeCount * 2);
+				values = copyOf(values, edgeCount * 2);
+			}
+
+			trusters[edgeCount] = getOrCreateVertex(truster.getID());
+			trustees[edgeCount] = getOrCreateVertex(trustee.getID());
+			values[edgeCount] = trust.getValue();
+			++edgeCount;
+		}
+
+		mGivenTrusts.load(mVertexCount, edgeCount, trusters, trustees, values);
+		mReceivedTrusts.load(mVertexCount, edgeCount, trustees, trusters, values);
+		mSnapshot = new Snapshot(this);
+	}
+
+	/**
+	 * Gets an immutable copy of the graph as of the last commit which changed it. For the graph
+	 * constructed by {@link WebOfTrust}, which follows the database, this is the committed state
+	 * of the Trust table.<br>
+	 * Does NOT require any locking, and the returned Snapshot is not changed by later commits.
+	 * Thus it can be used by readers which shall not wait for a transaction of a writer to
+	 * finish, see {@link WebOfTrust#getTrustSnapshot()}. */
+	public Snapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/** @return The vertex of the {@link Identity} with the given ID, or -1 if it has none. */
+	public int getVertex(String identityID) {
+		final Integer vertex = mVertices.get(identityID);
+		return vertex != null ? vertex : -1;
+	}
+
+	/**
+	 * Same as {@link #getVertex(String)} but creates a vertex without any edges if there is none.
+	 * This does not have to be journaled: A vertex without edges is equal to no vertex from the
+	 * perspective of the algorithms. */
+	public int getOrCreateVertex(String identityID) {
+		final Integer existing = mVertices.get(identityID);
+		if(existing != null)
+			return existing;
+
+		final int vertex = mVertexCount++;
+		if(vertex == mIdentityIDs.length)
+			mIdentityIDs = copyOf(mIdentityIDs, vertex * 2);
+
+		mIdentityIDs[vertex] = identityID;
+		mVertices.put(identityID, vertex);
+		return vertex;
+	}
+
+	/** @return The {@link Identity#getID()} of the given vertex. */
+	public String getIdentityID(int vertex) {
+		assert(vertex >= 0 && vertex < mVertexCount);
+		return mIdentityIDs[vertex];
+	}
+
+	/**
+	 * @return The amount of vertices. Arrays which are indexed by vertex must be at least this
+	 *     large. Notice that it may grow due to {@link #getOrCreateVertex(String)}. */
+	public int getVertexCount() {
+		return mVertexCount;
+	}
+
+	/** @return The amount of edges, i.e. Trusts. */
+	public int getEdgeCount() {
+		return mGivenTrusts.mEdgeCount;
+	}
+
+	/** @return The amount of Trusts which the given vertex has given. */
+	public int getGivenTrustCount(int truster) {
+		return mGivenTrusts.count(truster);
+	}
+
+	/** @param index Must be in the range [0, {@link #getGivenTrustCount(int)}). */
+	public int getTrustee(int truster, int index) {
+		return mGivenTrusts.neighbour(truster, index);
+	}
+
+	/** @param index Must be in the range [0, {@link #getGivenTrustCount(int)}). */
+	public byte getGivenTrustValue(int truster, int index) {
+		return mGivenTrusts.value(truster, index);
+	}
+
+	/** @return The amount of Trusts which the given vertex has received. */
+	public int getReceivedTrustCount(int trustee) {
+		return mReceivedTrusts.count(trustee);
+	}
+
+	/** @param index Must be in the range [0, {@link #getReceivedTrustCount(int)}). */
+	public int getTruster(int trustee, int index) {
+		return mReceivedTrusts.neighbour(trustee, index);
+	}
+
+	/** @param index Must be in the range [0, {@link #getReceivedTrustCount(int)}). */
+	public byte getReceivedTrustValue(int trustee, int index) {
+		return mReceivedTrusts.value(trustee, index);
+	}
+
+	/**
+	 * @return The {@link Trust#getValue()} of the Trust from truster to trustee, or
+	 *     {@link #NO_TRUST} if there is none. Vertices of -1 are allowed and yield NO_TRUST. */
+	public byte getTrustValue(int truster, int trustee) {
+		if(truster == -1 || trustee == -1)
+			return NO_TRUST;
+
+		return mGivenTrusts.get(truster, trustee);
+	}
+
+	/** Must be called whenever the given Trust is stored to the database. */
+	public void setTrust(Trust trust) {
+		final int truster = getOrCreateVertex(trust.getTruster().getID());
+		final int trustee = getOrCreateVertex(trust.getTrustee().getID());
+		final byte value = trust.getValue();
+
+		final byte oldValue = mGivenTrusts.put(mVertexCount, truster, trustee, value);
+		mReceivedTrusts.put(mVertexCount, trustee, truster, value);
+
+		if(oldValue != value)
+			mJournal.add(new JournalEntry(truster, trustee, oldValue));
+	}
+
+	/** Must be called whenever the given Trust is deleted from the database. */
+	public void removeTrust(Trust trust) {
+		final int truster = getVertex(trust.getTruster().getID());
+		final int trustee = getVertex(trust.getTrustee().getID());
+
+		if(truster == -1 || trustee == -1)
+			return;
+
+		final byte oldValue = mGivenTrusts.remove(mVertexCount, truster, trustee);
+		mReceivedTrusts.remove(mVertexCount, trustee, truster);
+
+		if(oldValue != NO_TRUST)
+			mJournal.add(new JournalEntry(truster, trustee, oldValue));
+	}
+
+	@Override public void onCommit() {
+		if(mJournal.isEmpty())
+			return;
+
+		mJournal.clear();
+
+		final int compactionThreshold = max(COMPACTION_MINIMUM, mVertexCount / COMPACTION_DIVISOR);
+		if(mGivenTrusts.mOverriddenCount > compactionThreshold)
+			mGivenTrusts.compact(mVertexCount);
+		if(mReceivedTrusts.mOverriddenCount > compactionThreshold)
+			mReceivedTrusts.compact(mVertexCount);
+		
+		mSnapshot = new Snapshot(this);
+	}
+
+	@Override public void onRollback() {
+		for(int i = mJournal.size() - 1; i >= 0; --i) {
+			final JournalEntry entry = mJournal.get(i);
+
+			if(entry.mOldValue == NO_TRUST) {
+				mGivenTrusts.remove(mVertexCount, entry.mTruster, entry.mTrustee);
+				mReceivedTrusts.remove(mVertexCount, entry.mTrustee, entry.mTruster);
+			} else {
+				mGivenTrusts.put(mVertexCount, entry.mTruster, entry.mTrustee, entry.mOldValue);
+				mReceivedTrusts.put(mVertexCount, entry.mTrustee, entry.mTruster, entry.mOldValue);
+			}
+		}
+
+		mJournal.clear();
+	}
+
+	/**
+	 * For unit tests: Checks whether the graph equals the given Trusts, e.g. the database.
+	 * Must only be called when there is no uncommitted transaction. */
+	boolean equals(Iterable<Trust> trusts) {
+		int trustCount = 0;
+
+		for(Trust trust : trusts) {
+			final byte value = getTrustValue(
+				getVertex(trust.getTruster().getID()), getVertex(trust.getTrustee().getID()));
+
+			if(value != trust.getValue())
+				return false;
+
+			++trustCount;
+		}
+
+		if(trustCount != mGivenTrusts.mEdgeCount || trustCount != mReceivedTrusts.mEdgeCount)
+			return false;
+
+		// Check whether the received edges are the mirror image of the given ones
+		for(int trustee = 0; trustee < mVertexCount; ++trustee) {
+			for(int i = 0; i < getReceivedTrustCount(trustee); ++i) {
+				if(getTrustValue(getTruster(trustee, i), trustee)
+						!= getReceivedTrustValue(trustee, i))
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Immutable copy of a {@link TrustGraph}, see {@link TrustGraph#getSnapshot()}.
+	 * Offers the read functions of the TrustGraph with the same semantics. */
+	public static final class Snapshot {
+		private final ConcurrentHashMap<String, Integer> mVertices;
+
+		private final String[] mIdentityIDs;
+
+		private final int mVertexCount;
+
+		private final Edges mGivenTrusts;
+
+		private final Edges mReceivedTrusts;
+
+
+		/**
+		 * Copies the given graph. Only the arrays of references to the edges of each vertex are
+		 * copied, the edges themselves are shared, see {@link Edges#snapshot()}. */
+		private Snapshot(TrustGraph graph) {
+			mVertices = graph.mVertices;
+			mIdentityIDs = graph.mIdentityIDs;
+			mVertexCount = graph.mVertexCount;
+			mGivenTrusts = graph.mGivenTrusts.snapshot();
+			mReceivedTrusts = graph.mReceivedTrusts.snapshot();
+		}
+
+		/**
+		 * @return The vertex of the {@link Identity} with the given ID, or -1 if it had none
+		 *     when the Snapshot was taken. */
+		public int getVertex(String identityID) {
+			final Integer vertex = mVertices.get(identityID);
+			// The graph may have added vertices after the Snapshot was taken
+			return vertex != null && vertex < mVertexCount ? vertex : -1;
+		}
+
+		/** @see TrustGraph#getIdentityID(int) */
+		public String getIdentityID(int vertex) {
+			assert(vertex >= 0 && vertex < mVertexCount);
+			return mIdentityIDs[vertex];
+		}
+
+		/** @see TrustGraph#getVertexCount() */
+		public int getVertexCount() {
+			return mVertexCount;
+		}
+
+		/** @see TrustGraph#getEdgeCount() */
+		public int getEdgeCount() {
+			return mGivenTrusts.mEdgeCount;
+		}
+
+		/**
+		 * @return True if the given vertex has given or received any Trust. Vertices of -1 are
+		 *     allowed and yield false. */
+		public boolean hasTrusts(int vertex) {
+			return getGivenTrustCount(vertex) != 0 || getReceivedTrustCount(vertex) != 0;
+		}
+
+		/**
+		 * @return The amount of Trusts which the given vertex has given. Vertices of -1 are
+		 *     allowed and yield 0. */
+		public int getGivenTrustCount(int truster) {
+			return truster != -1 ? mGivenTrusts.count(truster) : 0;
+		}
+
+		/**
+		 * Same as {@link #getGivenTrustCount(int)} but only counts Trusts which match the given
+		 * selection. The selection has the same semantics as at
+		 * {@link WebOfTrust#getGivenTrusts(Identity, int)}. */
+		public int getGivenTrustCount(int truster, int select) {
+			return truster != -1 ? mGivenTrusts.count(truster, select) : 0;
+		}
+
+		/** @param index Must be in the range [0, {@link #getGivenTrustCount(int)}). */
+		public int getTrustee(int truster, int index) {
+			return mGivenTrusts.neighbour(truster, index);
+		}
+
+		/** @param index Must be in the range [0, {@link #getGivenTrustCount(int)}). */
+		public byte getGivenTrustValue(int truster, int index) {
+			return mGivenTrusts.value(truster, index);
+		}
+
+		/**
+		 * @return The amount of Trusts which the given vertex has received. Vertices of -1 are
+		 *     allowed and yield 0. */
+		public int getReceivedTrustCount(int trustee) {
+			return trustee != -1 ? mReceivedTrusts.count(trustee) : 0;
+		}
+
+		/**
+		 * Same as {@link #getReceivedTrustCount(int)} but only counts Trusts which match the
+		 * given selection. The selection has the same semantics as at
+		 * {@link WebOfTrust#getReceivedTrusts(Identity, int)}. */
+		public int getReceivedTrustCount(int trustee, int select) {
+			return trustee != -1 ? mReceivedTrusts.count(trustee, select) : 0;
+		}
+
+		/** @param index Must be in the range [0, {@link #getReceivedTrustCount(int)}). */
+		public int getTruster(int trustee, int index) {
+			return mReceivedTrusts.neighbour(trustee, index);
+		}
+
+		/** @param index Must be in the range [0, {@link #getReceivedTrustCount(int)}). */
+		public byte getReceivedTrustValue(int trustee, int index) {
+			return mReceivedTrusts.value(trustee, index);
+		}
+
+		/** @see TrustGraph#getTrustValue(int, int) */
+		public byte getTrustValue(int truster, int trustee) {
+			if(truster == -1 || trustee == -1)
+				return NO_TRUST;
+
+			return mGivenTrusts.get(truster, trustee);
+		}
+
+		/** For unit tests: Checks whether the Snapshot equals the given Trusts. */
+		boolean equals(Iterable<Trust> trusts) {
+			int trustCount = 0;
+
+			for(Trust trust : trusts) {
+				final byte value = getTrustValue(
+					getVertex(trust.getTruster().getID()), getVertex(trust.getTrustee().getID()));
+
+				if(value != trust.getValue())
+					return false;
+
+				++trustCount;
+			}
+
+			return trustCount == mGivenTrusts.mEdgeCount
+			    && trustCount == mReceivedTrusts.mEdgeCount;
+		}
+	}
+
+
+	/** The edges of all vertices in one direction. */
+	private static final class Edges {
+		/**
+		 * The edges of a vertex V are [mOffsets[V], mOffsets[V + 1]) in mNeighbours / mValues
+		 * unless V is overridden, see {@link #mOverriddenNeighbours}.
+		 * Vertices >= mOffsets.length - 1 have no edges in the CSR arrays. */
+		private int[] mOffsets = new int[1];
+
+		private int[] mNeighbours = new int[0];
+
+		private byte[] mValues = new byte[0];
+
+		/**
+		 * If non-null at the index of a vertex, this is used instead of the CSR data for that
+		 * vertex. Sorted ascending, same as the CSR data. */
+		private int[][] mOverriddenNeighbours = new int[0][];
+
+		/** @see #mOverriddenNeighbours */
+		private byte[][] mOverriddenValues = new byte[0][];
+
+		/** Amount of non-null entries in {@link #mOverriddenNeighbours}. */
+		private int mOverriddenCount = 0;
+
+		/** Total amount of edges including overrides. */
+		private int mEdgeCount = 0;
+
+
+		/**
+		 * Replaces the content with the given edges using counting sort.
+		 * The arrays are indexed by edge, edges are from vertex to neighbour. */
+		void load(int vertexCount, int edgeCount, int[] vertices, int[] neighbours,
+				byte[] values) {
+
+			int[] offsets = new int[vertexCount + 1];
+			for(int i = 0; i < edgeCount; ++i)
+				++offsets[vertices[i] + 1];
+			for(int vertex = 0; vertex < vertexCount; ++vertex)
+				offsets[vertex + 1] += offsets[vertex];
+
+			int[] sortedNeighbours = new int[edgeCount];
+			byte[] sortedValues = new byte[edgeCount];
+			int[] insertionPoints = copyOf(offsets, vertexCount);
+			for(int i = 0; i < edgeCount; ++i) {
+				final int position = insertionPoints[vertices[i]]++;
+				sortedNeighbours[position] = neighbours[i];
+				sortedValues[position] = values[i];
+			}
+
+			// Sort the edges of each vertex by neighbour. To sort the values along with the
+			// neighbours, we sort them as pairs packed into a long.
+			// Also drop duplicate edges, which can exist if the database contains duplicate
+			// Trust objects, see WebOfTrust.deleteDuplicateObjects(). As the values are part of
+			// the sort key, both directions will consistently keep the same one.
+			long[] packed = new long[0];
+			int writePosition = 0;
+			for(int vertex = 0; vertex < vertexCount; ++vertex) {
+				final int from = offsets[vertex];
+				final int count = offsets[vertex + 1] - from;
+				offsets[vertex] = writePosition;
+
+				if(packed.length < count)
+					packed = new long[max(count, packed.length * 2)];
+
+				for(int i = 0; i < count; ++i) {
+					packed[i] = ((long)sortedNeighbours[from + i] << 8)
+					          | (sortedValues[from + i] & 0xFF);
+				}
+
+				sort(packed, 0, count);
+
+				for(int i = 0; i < count; ++i) {
+					final int neighbour = (int)(packed[i] >>> 8);
+
+					if(i > 0 && neighbour == (int)(packed[i - 1] >>> 8))
+						continue;
+
+					sortedNeighbours[writePosition] = neighbour;
+					sortedValues[writePosition] = (byte)packed[i];
+					++writePosition;
+				}
+			}
+			offsets[vertexCount] = writePosition;
+
+			if(writePosition != edgeCount) {
+				sortedNeighbours = copyOf(sortedNeighbours, writePosition);
+				sortedValues = copyOf(sortedValues, writePosition);
+			}
+
+			mOffsets = offsets;
+			mNeighbours = sortedNeighbours;
+			mValues = sortedValues;
+			mOverriddenNeighbours = new int[vertexCount][];
+			mOverriddenValues = new byte[vertexCount][];
+			mOverriddenCount = 0;
+			mEdgeCount = writePosition;
+		}
+
+		int count(int vertex) {
+			if(vertex < mOverriddenNeighbours.length) {
+				final int[] overridden = mOverriddenNeighbours[vertex];
+				if(overridden != null)
+					return overridden.length;
+			}
+
+			return vertex < mOffsets.length - 1 ? mOffsets[vertex + 1] - mOffsets[vertex] : 0;
+		}
+
+		/**
+		 * Counts the edges of the vertex whose value matches the given selection, see
+		 * {@link Snapshot#getGivenTrustCount(int, int)}. */
+		int count(int vertex, int select) {
+			final int count = count(vertex);
+			int result = 0;
+
+			for(int i = 0; i < count; ++i) {
+				final byte value = value(vertex, i);
+
+				if(select > 0 ? value >= 0 : (select < 0 ? value < 0 : value == 0))
+					++result;
+			}
+
+			return result;
+		}
+
+		int neighbour(int vertex, int index) {
+			if(vertex < mOverriddenNeighbours.length) {
+				final int[] overridden = mOverriddenNeighbours[vertex];
+				if(overridden != null)
+					return overridden[index];
+			}
+
+			assert(index < count(vertex));
+			return mNeighbours[mOffsets[vertex] + index];
+		}
+
+		byte value(int vertex, int index) {
+			if(vertex < mOverriddenValues.length) {
+				final byte[] overridden = mOverriddenValues[vertex];
+				if(overridden != null)
+					return overridden[index];
+			}
+
+			assert(index < count(vertex));
+			return mValues[mOffsets[vertex] + index];
+		}
+
+		/** @return The index of the neighbour, or (-(insertion point) - 1) if it is not found. */
+		int indexOf(int vertex, int neighbour) {
+			int low = 0;
+			int high = count(vertex) - 1;
+
+			while(low <= high) {
+				final int middle = (low + high) >>> 1;
+				final int middleNeighbour = neighbour(vertex, middle);
+
+				if(middleNeighbour < neighbour)
+					low = middle + 1;
+				else if(middleNeighbour > neighbour)
+					high = middle - 1;
+				else
+					return middle;
+			}
+
+			return -(low + 1);
+		}
+
+		byte get(int vertex, int neighbour) {
+			final int index = indexOf(vertex, neighbour);
+			return index >= 0 ? value(vertex, index) : NO_TRUST;
+		}
+
+		/** @return The previous value, or {@link TrustGraph#NO_TRUST} if the edge is new. */
+		byte put(int vertexCount, int vertex, int neighbour, byte value) {
+			override(vertexCount, vertex);
+
+			final int[] neighbours = mOverriddenNeighbours[vertex];
+			final byte[] values = mOverriddenValues[vertex];
+			final int index = indexOf(vertex, neighbour);
+
+			if(index >= 0) {
+				final byte oldValue = values[index];
+				// Copy on write: The array may be referenced by a Snapshot.
+				final byte[] newValues = values.clone();
+				newValues[index] = value;
+				mOverriddenValues[vertex] = newValues;
+				return oldValue;
+			}
+
+			final int insertionPoint = -index - 1;
+			final int[] newNeighbours = new int[neighbours.length + 1];
+			final byte[] newValues = new byte[values.length + 1];
+			System.arraycopy(neighbours, 0, newNeighbours, 0, insertionPoint);
+			System.arraycopy(values, 0, newValues, 0, insertionPoint);
+			newNeighbours[insertionPoint] = neighbour;
+			newValues[insertionPoint] = value;
+			System.arraycopy(neighbours, insertionPoint,
+				newNeighbours, insertionPoint + 1, neighbours.length - insertionPoint);
+			System.arraycopy(values, insertionPoint,
+				newValues, insertionPoint + 1, values.length - insertionPoint);
+
+			mOverriddenNeighbours[vertex] = newNeighbours;
+			mOverriddenValues[vertex] = newValues;
+			++mEdgeCount;
+			return NO_TRUST;
+		}
+
+		/** @return The previous value, or {@link TrustGraph#NO_TRUST} if there was no edge. */
+		byte remove(int vertexCount, int vertex, int neighbour) {
+			final int index = indexOf(vertex, neighbour);
+			if(index < 0)
+				return NO_TRUST;
+
+			override(vertexCount, vertex);
+
+			final int[] neighbours = mOverriddenNeighbours[vertex];
+			final byte[] values = mOverriddenValues[vertex];
+			final byte oldValue = values[index];
+
+			final int[] newNeighbours = new int[neighbours.length - 1];
+			final byte[] newValues = new byte[values.length - 1];
+			System.arraycopy(neighbours, 0, newNeighbours, 0, index);
+			System.arraycopy(values, 0, newValues, 0, index);
+			System.arraycopy(neighbours, index + 1,
+				newNeighbours, index, newNeighbours.length - index);
+			System.arraycopy(values, index + 1,
+				newValues, index, newValues.length - index);
+
+			mOverriddenNeighbours[vertex] = newNeighbours;
+			mOverriddenValues[vertex] = newValues;
+			--mEdgeCount;
+			return oldValue;
+		}
+
+		/**
+		 * Returns a copy for a {@link Snapshot}.<br>
+		 * The arrays of edges are shared with the copy: The CSR arrays are never modified but
+		 * replaced by {@link #load(int, int, int[], int[], byte[])} and {@link #compact(int)}.
+		 * The per-vertex override arrays are replaced upon each modification.
+		 * Only the arrays of references to the override arrays need to be copied. */
+		Edges snapshot() {
+			final Edges result = new Edges();
+			result.mOffsets = mOffsets;
+			result.mNeighbours = mNeighbours;
+			result.mValues = mValues;
+			result.mOverriddenNeighbours = mOverriddenNeighbours.clone();
+			result.mOverriddenValues = mOverriddenValues.clone();
+			result.mOverriddenCount = mOverriddenCount;
+			result.mEdgeCount = mEdgeCount;
+			return result;
+		}
+
+		/** Copies the CSR edges of the vertex to the override arrays if not done yet. */
+		private void override(int vertexCount, int vertex) {
+			if(mOverriddenNeighbours.length < vertexCount) {
+				final int newLength = max(vertexCount, mOverriddenNeighbours.length * 2);
+				mOverriddenNeighbours = copyOf(mOverriddenNeighbours, newLength);
+				mOverriddenValues = copyOf(mOverriddenValues, newLength);
+			}
+
+			if(mOverriddenNeighbours[vertex] != null)
+				return;
+
+			final int count = count(vertex);
+			final int from = count != 0 ? mOffsets[vertex] : 0;
+			final int[] neighbours = new int[count];
+			final byte[] values = new byte[count];
+			System.arraycopy(mNeighbours, from, neighbours, 0, count);
+			System.arraycopy(mValues, from, values, 0, count);
+
+			mOverriddenNeighbours[vertex] = neighbours;
+			mOverriddenValues[vertex] = values;
+			++mOverriddenCount;
+		}
+
+		/** Merges the override arrays back into the CSR arrays. */
+		void compact(int vertexCount) {
+			final int[] offsets = new int[vertexCount + 1];
+			for(int vertex = 0; vertex < vertexCount; ++vertex)
+				offsets[vertex + 1] = offsets[vertex] + count(vertex);
+
+			assert(offsets[vertexCount] == mEdgeCount);
+
+			final int[] neighbours = new int[mEdgeCount];
+			final byte[] values = new byte[mEdgeCount];
+			for(int vertex = 0; vertex < vertexCount; ++vertex) {
+				final int count = offsets[vertex + 1] - offsets[vertex];
+				if(count == 0)
+					continue;
+
+				final int[] overriddenNeighbours
+					= vertex < mOverriddenNeighbours.length ? mOverriddenNeighbours[vertex] : null;
+
+				if(overriddenNeighbours != null) {
+					System.arraycopy(overriddenNeighbours, 0, neighbours, offsets[vertex], count);
+					System.arraycopy(mOverriddenValues[vertex], 0, values, offsets[vertex], count);
+				} else {
+					System.arraycopy(mNeighbours, mOffsets[vertex], neighbours, offsets[vertex],
+						count);
+					System.arraycopy(mValues, mOffsets[vertex], values, offsets[vertex], count);
+				}
+			}
+
+			mOffsets = offsets;
+			mNeighbours = neighbours;
+			mValues = values;
+			mOverriddenNeighbours = new int[vertexCount][];
+			mOverriddenValues = new byte[vertexCount][];
+			mOverriddenCount = 0;
+		}
+	}
+
+	/** A change of a single edge, used for undoing it upon rollback. */
+	private static final class JournalEntry {
+		final int mTruster;
+
+		final int mTrustee;
+
+		/** {@link TrustGraph#NO_TRUST} if the edge did not exist before. */
+		final byte mOldValue;
+
+		JournalEntry(int truster, int trustee, byte oldValue) {
+			mTruster = truster;
+			mTrustee = trustee;
+			mOldValue = oldValue;
+		}
+	}
+}
@@ -4,6 +4,7 @@
 package plugins.WebOfTrust;
 
 import static java.util.Arrays.copyOfRange;
+import static java.util.Arrays.fill;
 import static java.util.Arrays.sort;
 
 import java.io.File;
@@ -11,6 +12,7 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
@@ -18,9 +20,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -77,7 +84,6 @@ import freenet.pluginmanager.PluginReplySender;
 import freenet.pluginmanager.PluginRespirator;
 import plugins.WebOfTrust.util.CurrentTimeUTC;
 import freenet.support.Executor;
-import freenet.support.IdentityHashSet;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
@@ -108,7 +114,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public static final String SELF_URI = "/WebOfTrust";
 	
 	public static final String DATABASE_FILENAME =  WebOfTrustInterface.WOT_NAME + ".db4o"; 
-	public static final int DATABASE_FORMAT_VERSION = 7;
+	public static final int DATABASE_FORMAT_VERSION = 8;
 
 	/* References from the node */
 	
@@ -191,6 +197,44 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	private boolean mTrustListImportInProgress = false;
 	
+	/**
+	 * In-memory copy of the {@link Trust} table which the {@link Score} computation algorithms use
+	 * instead of database queries.
+	 * Lazily constructed by {@link #getTrustGraph()}, use that instead of accessing this directly.
+	 * Must be updated by each function which stores or deletes a Trust.
+	 * Volatile because {@link #getTrustSnapshot()} reads it without locking. */
+	private volatile TrustGraph mTrustGraph = null;
+	
+	/**
+	 * In-memory copy of the {@link Score} table from which {@link #getScoreSnapshot()} is taken.
+	 * Constructed during startup by {@link #getScoreTable()} and updated by
+	 * {@link #updateScoreTableWithoutCommit(Score, boolean)}.
+	 * Volatile because {@link #getScoreSnapshot()} reads it without locking. */
+	private volatile ScoreTable mScoreTable = null;
+	
+	/**
+	 * If true, {@link #computeAllScoresWithoutCommit()} computes the Scores of the different
+	 * {@link OwnIdentity}s in parallel. Storing them is always done by a single thread.
+	 * @see #setParallelScoreComputation(boolean) */
+	private boolean mParallelScoreComputation = Runtime.getRuntime().availableProcessors() > 1;
+	
+	/**
+	 * If true, {@link #updateRanksAfterDistrustWithoutCommit(Identity)} uses
+	 * {@link #computeRankFromScratch_BucketQueue(OwnIdentity, Identity, Map)} instead of
+	 * {@link #computeRankFromScratch_Caching(OwnIdentity, Identity, Map)}.
+	 * @see #setBucketQueueRankComputation(boolean) */
+	private boolean mBucketQueueRankComputation = true;
+	
+	/**
+	 * If {@link #setTrustListWithoutCommit(Identity, List)} changes more {@link Trust}s than
+	 * this, it schedules a full Score computation instead of updating the Scores incrementally.
+	 * @see #setTrustListFullScoreComputationThreshold(int) */
+	private int mTrustListFullScoreComputationThreshold
+		= DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD;
+	
+	/** Default value of {@link #mTrustListFullScoreComputationThreshold}. */
+	public static final int DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD = 256;
+	
 	
 	/* User interfaces */
 	
@@ -213,6 +257,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	private long mIncrementalScoreRecomputationDueToTrustNanos = 0;
 	private long mIncrementalScoreRecomputationDueToDistrustNanos = 0;
 	private long mIncrementalScoreRecomputationDueToDistrustNanosSlow = 0;
+	private int mIncrementalScoreRecomputationDueToTrustListCount = 0;
+	private long mIncrementalScoreRecomputationDueToTrustListNanos = 0;
+	private int mTrustListFullScoreRecomputationCount = 0;
 
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
@@ -241,6 +288,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			mDB = openDatabase(getDatabaseFile());
 			
 			mConfig = getOrCreateConfig();
+			loadConfiguration();
 			
 			mSubscriptionManager = new SubscriptionManager(this);
 			
@@ -262,7 +310,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 			};
 
 
-			mIdentityFileQueue = new IdentityFileDiskQueue(getUserDataDirectory());
+			switch(mConfig.getIdentityFileQueueFormat()) {
+				case SegmentLog:
+					mIdentityFileQueue = new IdentityFileLogQueue(getUserDataDirectory());
+					break;
+				default:
+					mIdentityFileQueue = new IdentityFileDiskQueue(getUserDataDirectory());
+			}
 			// You may use this instead for debugging purposes, or on very high memory nodes.
 			// See its JavaDoc for requirements of making this a config option.
 			/* mIdentityFileQueue = new IdentityFileMemoryQueue(); */
@@ -271,12 +325,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 			mIdentityFileProcessor = new IdentityFileProcessor(
 				mIdentityFileQueue, mPR.getNode().getTicker(), mXMLTransformer);
+			mIdentityFileProcessor.setParserThreads(mConfig.getInt(
+				Configuration.IDENTITY_FILE_PROCESSOR_PARSER_THREADS,
+				IdentityFileProcessor.DEFAULT_PARSER_THREADS));
 
 			mFetcher = new IdentityFetcher(this, getPluginRespirator(), mIdentityFileQueue);
 
 
 			// Please ensure that no threads are using the IntroductionPuzzleStore / IdentityFetcher / SubscriptionManager while this is executing.
 			upgradeDB();
+			
+			// Load the TrustGraph and ScoreTable now that the database is upgraded and no
+			// transaction is pending, see getTrustGraph() and getScoreTable().
+			synchronized(this) {
+				getTrustGraph();
+				getScoreTable();
+			}
 
 			
 			mInserter = new IdentityInserter(this);
@@ -375,6 +439,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 			throw new RuntimeException("Database format version mismatch. Found: " + mConfig.getDatabaseFormatVersion() + 
 					"; expected: " + WebOfTrust.DATABASE_FORMAT_VERSION);
 		
+		loadConfiguration();
+		
+		// Load them while no transaction is pending, see getTrustGraph() and getScoreTable().
+		synchronized(this) {
+			getTrustGraph();
+			getScoreTable();
+		}
+		
 		mPuzzleStore = new IntroductionPuzzleStore(this);
 		
 		mSubscriptionManager = new SubscriptionManager(this);
@@ -390,6 +462,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		mIdentityFileProcessor
 			= new IdentityFileProcessor(mIdentityFileQueue, null, mXMLTransformer);
+		mIdentityFileProcessor.setParserThreads(mConfig.getInt(
+			Configuration.IDENTITY_FILE_PROCESSOR_PARSER_THREADS,
+			IdentityFileProcessor.DEFAULT_PARSER_THREADS));
 
 		mFetcher = new IdentityFetcher(this, null, mIdentityFileQueue);
 		
@@ -490,6 +565,7 @@ public final class WebOfTrust extends WebOfTrustInterface
         	SubscriptionManager.IdentityChangedNotification.class,
         	SubscriptionManager.ScoreChangedNotification.class,
         	SubscriptionManager.TrustChangedNotification.class,
+        	SubscriptionManager.NotificationPayload.class,
         	IntroductionPuzzle.class,
         	OwnIntroductionPuzzle.class
         };
@@ -732,7 +808,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 					case 4: upgradeDatabaseFormatVersion4(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
                     case 5: upgradeDatabaseFormatVersion12345(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
 					case 6: upgradeDatabaseFormatVersion6(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
-					case 7: break;
+					case 7: upgradeDatabaseFormatVersion7(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 8: break;
 					default:
 						throw new UnsupportedOperationException("Your database is newer than this WOT version! Please upgrade WOT.");
 				}
@@ -996,6 +1073,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 		mConfig.storeWithoutCommit();
 	}
 
+	/**
+	 * Upgrades database format version 7 to version 8.<br><br>
+	 *
+	 * Initializes the values which {@link Identity} caches about its received {@link Score}s:<br>
+	 * {@link Identity#getBestScore()}<br>
+	 * {@link Identity#getBestCapacity()}<br>
+	 * {@link Identity#shouldFetch()} */
+	private void upgradeDatabaseFormatVersion7() {
+		Logger.normal(this, "Computing best Score / capacity of identities...");
+		
+		for(Identity identity : getAllIdentities()) {
+			// Loading the Identity from the database did not run the field initializers, so they
+			// may coincidentally match and we must store it unconditionally.
+			recomputeBestScoreWithoutCommit(identity, null);
+			identity.storeWithoutCommit();
+		}
+	}
+
 	/**
 	 * DO NOT USE THIS FUNCTION ON A DATABASE WHICH YOU WANT TO CONTINUE TO USE!
 	 * 
@@ -1236,6 +1331,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// - Introduction puzzles because we can just download new ones
 			// - IdentityFetcher commands because they aren't persistent across startups anyway
 			// - Subscription and Notification objects because subscriptions are also not persistent across startups.
+			//   This includes the NotificationPayload objects of the Notifications.
 			
 			original.terminate();
 			assert(original.isTerminated());
@@ -1446,6 +1542,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 			
 			if(anythingChanged) {
+				// Deleting duplicates is not a change of the Trust graph from the perspective of
+				// the TrustGraph as it identifies Trusts by the IDs of the involved Identitys.
+				// Thus it wasn't updated and we must reload it from the database.
+				// The same applies to the ScoreTable, which is reloaded below.
+				discardTrustGraph();
+				discardScoreTable();
+				
 				// We couldn't have set mFullScoreComputationNeeded earlier, that would have caused
 				// failing assert() in callees.
 				mFullScoreComputationNeeded = true;
@@ -1462,7 +1565,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		catch(RuntimeException e) {
 			abortTrustListImport(e);
+			// The graph might have been reloaded from the uncommitted state of the database.
+			discardTrustGraph();
+			discardScoreTable();
 		}
+		
+		// Now that no transaction is pending, see getScoreTable().
+		getScoreTable();
 		} // synchronized(Persistent.transactionLock(mDB)) {
 		} // synchronized(mSubscriptionManager) {
 		} // synchronized(mFetcher) { 
@@ -1730,16 +1839,30 @@ public final class WebOfTrust extends WebOfTrustInterface
 	private int computeCapacity(OwnIdentity truster, Identity trustee, int rank) {
 		if(truster == trustee)
 			return 100;
-		 
-		try {
-            // TODO: Performance: The comment "Security check, if rank computation breaks this will
-            // hit." below sounds like we don't actually need to execute this because the callers
-            // probably do it implicitly. Check if this is true and if yes, convert it to an assert.
-			if(getTrust(truster, trustee).getValue() <= 0) { // Security check, if rank computation breaks this will hit.
-				assert(rank == Integer.MAX_VALUE);
-				return 0;
-			}
-		} catch(NotTrustedException e) { }
+		
+		final TrustGraph graph = getTrustGraph();
+		return computeCapacity(graph, graph.getOrCreateVertex(truster.getID()),
+			graph.getOrCreateVertex(trustee.getID()), rank);
+	}
+	
+	/**
+	 * Same as {@link #computeCapacity(OwnIdentity, Identity, int)} but operates upon the vertices
+	 * of the given {@link TrustGraph} instead of the database.
+	 * 
+	 * @param truster Must be the vertex of an {@link OwnIdentity}.
+	 */
+	private static int computeCapacity(TrustGraph graph, int truster, int trustee, int rank) {
+		if(truster == trustee)
+			return 100;
+		
+		// TODO: Performance: The comment "Security check, if rank computation breaks this will
+		// hit." below sounds like we don't actually need to execute this because the callers
+		// probably do it implicitly. Check if this is true and if yes, convert it to an assert.
+		final byte trust = graph.getTrustValue(truster, trustee);
+		if(trust != TrustGraph.NO_TRUST && trust <= 0) { // Security check, if rank computation breaks this will hit.
+			assert(rank == Integer.MAX_VALUE);
+			return 0;
+		}
 		
 		if(rank == -1 || rank == Integer.MAX_VALUE)
 			return 0;
@@ -1782,120 +1905,52 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		boolean returnValue = true;
 		
-		// Scores are a rating of an identity from the view of an OwnIdentity so we compute them per OwnIdentity.
-		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-			// TODO: Performance: Move this outside the above loop once the issue which caused this
-			// workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
-			final ObjectSet<Identity> allIdentities = getAllIdentities();
+		// The Trust graph in memory, see class TrustGraph. We use it instead of querying the
+		// Trusts of each identity from the database as there would be a query for each identity.
+		final TrustGraph graph = getTrustGraph();
+		
+		final ArrayList<OwnIdentity> treeOwners
+			= new ArrayList<OwnIdentity>(getAllOwnIdentities());
+		final int[] treeOwnerVertices = new int[treeOwners.size()];
+		final int[] treeOwnerRanks = new int[treeOwners.size()];
+		
+		// Create all vertices before computing anything: An OwnIdentity which has neither given
+		// nor received a Trust would not have one yet, and computeTreeScores() must not modify
+		// the graph as it may be executed concurrently.
+		for(int i = 0; i < treeOwners.size(); ++i) {
+			final OwnIdentity treeOwner = treeOwners.get(i);
+			treeOwnerVertices[i] = graph.getOrCreateVertex(treeOwner.getID());
 			
-			// Key = Identity.getID(); Value = Rank of the identity
-			// At the end of the loop body, this table will be filled with the ranks of all identities which are visible for treeOwner.
-			// An identity is visible if there is a trust chain from the owner to it.
-			// The rank is the distance in trust steps from the treeOwner.			
-			// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
-			// (The initial size is specified as twice the possible maximal amount of entries to
-			// ensure that the HashMap does not have to be grown.)
-			final HashMap<String, Integer> rankValues
-				= new HashMap<String, Integer>(allIdentities.size() * 2);
-			
-			// Compute the rank values
-			{
-				// For each identity which is added to rankValues, all its trustees are added to unprocessedTrusters.
-				// The inner loop then pulls out one unprocessed identity and computes the rank of its trustees:
-				// All trustees which have received positive (> 0) trust will get his rank + 1
-				// Trustees with negative trust or 0 trust will get a rank of Integer.MAX_VALUE.
-				// Trusters with rank Integer.MAX_VALUE cannot inherit their rank to their trustees so the trustees will get no rank at all.
-				// Identities with no rank are considered to be not in the trust tree of the own identity and their score will be null / none.
-				//
-				// Further, if the treeOwner has assigned a trust value to an identity, the rank decision is done by only considering this trust value:
-				// The decision of the own identity shall not be overpowered by the view of the remote identities.
-				//
-				// The purpose of differentiation between Integer.MAX_VALUE and -1 is:
-				// Score objects of identities with rank Integer.MAX_VALUE are kept in the database because WoT will usually "hear" about those identities by seeing
-				// them in the trust lists of trusted identities (with 0 or negative trust values). So it must store the trust values to those identities and
-				// have a way of telling the user "this identity is not trusted" by keeping a score object of them.
-				// Score objects of identities with rank -1 are deleted because they are the trustees of distrusted identities and we will not get to the point where
-				// we hear about those identities because the only way of hearing about them is importing a trust list of a identity with Integer.MAX_VALUE rank
-				// - and we never import their trust lists. 
-				// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
-				// introduction puzzles cannot inherit their rank to their trustees.
-				final LinkedList<Identity> unprocessedTrusters = new LinkedList<Identity>();
-				
-				// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
-				
-				try {
-					Score selfScore = getScore(treeOwner, treeOwner);
-					
-					if(selfScore.getRank() >= 0) { // It can only give it's rank if it has a valid one
-						rankValues.put(treeOwner.getID(), selfScore.getRank());
-						unprocessedTrusters.addLast(treeOwner);
-					} else {
-						rankValues.put(treeOwner.getID(), null);
-					}
-				} catch(NotInTrustTreeException e) {
-					// This only happens in unit tests.
-				}
-				 
-				while(!unprocessedTrusters.isEmpty()) {
-					final Identity truster = unprocessedTrusters.removeFirst();
-	
-					final Integer trusterRank = rankValues.get(truster.getID());
-					
-					// The truster cannot give his rank to his trustees because he has none (or infinite), they receive no rank at all.
-					if(trusterRank == null || trusterRank == Integer.MAX_VALUE) {
-						// (Normally this does not happen because we do not enqueue the identities if they have no rank but we check for security)
-						continue;
-					}
-					
-					final int trusteeRank = trusterRank + 1;
-					
-					for(Trust trust : getGivenTrusts(truster)) {
-						final Identity trustee = trust.getTrustee();
-						final Integer oldTrusteeRank = rankValues.get(trustee.getID());
-						
-						
-						if(oldTrusteeRank == null) { // The trustee was not processed yet
-							if(trust.getValue() > 0) {
-								rankValues.put(trustee.getID(), trusteeRank);
-								unprocessedTrusters.addLast(trustee);
-							}
-							else
-								rankValues.put(trustee.getID(), Integer.MAX_VALUE);
-						} else {
-							// Breadth first search will process all rank one identities are processed before any rank two identities, etc.
-							assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
-							
-							if(oldTrusteeRank == Integer.MAX_VALUE) {
-								// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
-								// given by the tree owner.
-								try {
-									final Trust treeOwnerTrust = getTrust(treeOwner, trustee);
-									assert(treeOwnerTrust.getValue() <= 0)
-										: "The treeOwner Trusts are processed before all other "
-										+ "Trusts, and their rank value overwrites the ones of "
-										+ "non-treeOwner Trusts. Thus, if there is a treeOwner "
-										+ "Trust, it should have a value which could have caused "
-										+ "the current rank of Integer.MAX_VALUE.";
-								} catch(NotTrustedException e) {
-									if(trust.getValue() > 0) {
-										rankValues.put(trustee.getID(), trusteeRank);
-										unprocessedTrusters.addLast(trustee);
-									}
-								}
-							}
-						}
-					}
-				}
+			// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
+			try {
+				treeOwnerRanks[i] = getScore(treeOwner, treeOwner).getRank();
+			} catch(NotInTrustTreeException e) {
+				// This only happens in unit tests.
+				treeOwnerRanks[i] = -1;
 			}
+		}
+		
+		// Scores are a rating of an identity from the view of an OwnIdentity so we compute them per
+		// OwnIdentity. The Scores of different OwnIdentitys do not depend upon each other, so
+		// we can compute them in parallel. Storing them must be done by a single thread though
+		// since db4o transactions are not thread-safe.
+		final TreeScores[] allTreeScores = mParallelScoreComputation
+			? computeTreeScoresInParallel(graph, treeOwnerVertices, treeOwnerRanks)
+			: computeTreeScores(graph, treeOwnerVertices, treeOwnerRanks);
+		
+		for(int treeOwnerIndex = 0; treeOwnerIndex < treeOwners.size(); ++treeOwnerIndex) {
+			final OwnIdentity treeOwner = treeOwners.get(treeOwnerIndex);
+			final TreeScores treeScores = allTreeScores[treeOwnerIndex];
 			
-			// Rank values of all visible identities are computed now.
-			// Next step is to compute the scores of all identities
+			// TODO: Performance: Move this outside the above loop once the issue which caused this
+			// workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
+			final ObjectSet<Identity> allIdentities = getAllIdentities();
 			
 			for(Identity target : allIdentities) {
-				// The score of an identity is the sum of all weighted trust values it has received.
-				// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
-				Integer targetScore;
-				final Integer targetRank = rankValues.get(target.getID());
+				// Identities which have neither given nor received a Trust have no vertex.
+				final int targetVertex = graph.getVertex(target.getID());
+				final Integer targetRank = treeScores.getRank(targetVertex);
+				final Integer targetScore = treeScores.getScore(targetVertex);
 				
 				/* RankComputationTest does this as a unit test for us
 				 * 
@@ -1903,37 +1958,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 					== (targetRank != null ? targetRank : -1));
 				*/
 				
-				if(targetRank == null) {
-					targetScore = null;
-				} else {
-					// The treeOwner trusts himself.
-					if(targetRank == 0) {
-						targetScore = Integer.MAX_VALUE;
-					}
-					else {
-						// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
-						try {
-							targetScore = (int)getTrust(treeOwner, target).getValue();
-						} catch(NotTrustedException e) {
-							targetScore = 0;
-							for(Trust receivedTrust : getReceivedTrusts(target)) {
-								final Identity truster = receivedTrust.getTruster();
-								final Integer trusterRank = rankValues.get(truster.getID());
-								
-								// The capacity is a weight function for trust values which are given from an identity:
-								// The higher the rank, the less the capacity.
-								// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
-								final int capacity = computeCapacity(treeOwner, truster, trusterRank != null ? trusterRank : -1);
-								
-								targetScore += (receivedTrust.getValue() * capacity) / 100;
-							}
-						}
-					}
-				}
-				
 				Score newScore = null;
 				if(targetScore != null) {
-					newScore = new Score(this, treeOwner, target, targetScore, targetRank, computeCapacity(treeOwner, target, targetRank));
+					newScore = new Score(this, treeOwner, target, targetScore, targetRank,
+						computeCapacity(graph, treeOwnerVertices[treeOwnerIndex], targetVertex,
+							targetRank));
 				}
 				
 				boolean needToCheckFetchStatus = false;
@@ -2094,6 +2123,303 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return returnValue;
 	}
 	
+	/**
+	 * Allows unit tests and benchmarks to compare the parallel and single-threaded mode of
+	 * {@link #computeAllScoresWithoutCommit()}. */
+	synchronized void setParallelScoreComputation(boolean parallel) {
+		mParallelScoreComputation = parallel;
+	}
+	
+	/**
+	 * Allows unit tests and benchmarks to compare the rank computation implementations which
+	 * {@link #updateRanksAfterDistrustWithoutCommit(Identity)} can use. */
+	synchronized void setBucketQueueRankComputation(boolean bucketQueue) {
+		mBucketQueueRankComputation = bucketQueue;
+	}
+	
+	/**
+	 * Controls which codepath {@link #setTrustListWithoutCommit(Identity, List)} uses.
+	 * Set from the {@link Configuration} at startup, see
+	 * {@link Configuration#TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD}. Unit tests and
+	 * benchmarks may call this directly.
+	 * @see #DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD */
+	synchronized void setTrustListFullScoreComputationThreshold(int threshold) {
+		if(threshold < 0)
+			throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+		
+		mTrustListFullScoreComputationThreshold = threshold;
+	}
+
+	/** @see #setTrustListFullScoreComputationThreshold(int) */
+	synchronized int getTrustListFullScoreComputationThreshold() {
+		return mTrustListFullScoreComputationThreshold;
+	}
+
+	/**
+	 * Applies the tuning parameters which are stored in {@link #mConfig}.<br>
+	 * Must be called by the constructors right after {@link #getOrCreateConfig()}. */
+	private void loadConfiguration() {
+		setTrustListFullScoreComputationThreshold(mConfig.getInt(
+			Configuration.TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD,
+			DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD));
+	}
+	
+	/**
+	 * The ranks and Scores of all vertices of a {@link TrustGraph} in the trust tree of a single
+	 * {@link OwnIdentity}, as computed by {@link #computeTreeScores(TrustGraph, int, int)}. */
+	private static final class TreeScores {
+		/** Index = vertex; Value = rank, or -1 if the vertex is not in the trust tree. */
+		final int[] mRanks;
+		
+		/** Index = vertex; Value = Score value, undefined if the rank is -1. */
+		final int[] mScores;
+		
+		TreeScores(int[] ranks, int[] scores) {
+			mRanks = ranks;
+			mScores = scores;
+		}
+		
+		/** @return The rank, or null if the vertex is -1 or not in the trust tree. */
+		Integer getRank(int vertex) {
+			return (vertex != -1 && mRanks[vertex] != -1) ? mRanks[vertex] : null;
+		}
+		
+		/** @return The Score value, or null if the vertex is -1 or not in the trust tree. */
+		Integer getScore(int vertex) {
+			return (vertex != -1 && mRanks[vertex] != -1) ? mScores[vertex] : null;
+		}
+	}
+	
+	/**
+	 * Calls {@link #computeTreeScores(TrustGraph, int, int)} for each of the given tree owners
+	 * using the calling thread.
+	 * 
+	 * @param treeOwnerVertices The vertices of the {@link OwnIdentity}s.
+	 * @param treeOwnerRanks The ranks which the {@link OwnIdentity}s have assigned to themselves.
+	 */
+	private static TreeScores[] computeTreeScores(final TrustGraph graph,
+			final int[] treeOwnerVertices, final int[] treeOwnerRanks) {
+		
+		final TreeScores[] result = new TreeScores[treeOwnerVertices.length];
+		for(int i = 0; i < result.length; ++i)
+			result[i] = computeTreeScores(graph, treeOwnerVertices[i], treeOwnerRanks[i]);
+		return result;
+	}
+	
+	/**
+	 * Same as {@link #computeTreeScores(TrustGraph, int[], int[])} but computes the trees of the
+	 * different tree owners in parallel on a {@link ForkJoinPool}.
+	 * 
+	 * The given {@link TrustGraph} must not be modified until this returns, which is the case if
+	 * the caller is synchronized upon the WebOfTrust and the transaction lock.
+	 */
+	private static TreeScores[] computeTreeScoresInParallel(final TrustGraph graph,
+			final int[] treeOwnerVertices, final int[] treeOwnerRanks) {
+		
+		if(treeOwnerVertices.length < 2)
+			return computeTreeScores(graph, treeOwnerVertices, treeOwnerRanks);
+		
+		final ArrayList<Callable<TreeScores>> tasks
+			= new ArrayList<Callable<TreeScores>>(treeOwnerVertices.length);
+		
+		for(int i = 0; i < treeOwnerVertices.length; ++i) {
+			final int treeOwnerVertex = treeOwnerVertices[i];
+			final int treeOwnerRank = treeOwnerRanks[i];
+			
+			tasks.add(new Callable<TreeScores>() {
+				@Override public TreeScores call() {
+					return computeTreeScores(graph, treeOwnerVertex, treeOwnerRank);
+				}
+			});
+		}
+		
+		// A full Score computation is rare and takes much longer than creating the threads, so
+		// we don't keep the pool alive in between to avoid having to manage its lifecycle.
+		final ForkJoinPool pool = new ForkJoinPool(
+			Math.min(treeOwnerVertices.length, Runtime.getRuntime().availableProcessors()));
+		
+		try {
+			final List<Future<TreeScores>> futures = pool.invokeAll(tasks);
+			final TreeScores[] result = new TreeScores[futures.size()];
+			
+			for(int i = 0; i < result.length; ++i)
+				result[i] = futures.get(i).get();
+			
+			return result;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Computes the ranks and Score values of all vertices of the given {@link TrustGraph} in the
+	 * trust tree of a single {@link OwnIdentity}. Used by
+	 * {@link #computeAllScoresWithoutCommit()}, see its JavaDoc for how WoT works.
+	 * 
+	 * Does not access the database and does not modify the graph, so it can be executed
+	 * concurrently for different tree owners.
+	 * 
+	 * @param treeOwnerVertex The vertex of the {@link OwnIdentity}.
+	 * @param treeOwnerRank The rank of the {@link Score} the {@link OwnIdentity} has assigned to
+	 *     itself, or -1 if there is none.
+	 */
+	private static TreeScores computeTreeScores(final TrustGraph graph, final int treeOwnerVertex,
+			final int treeOwnerRank) {
+		
+		// Index = vertex of the identity in the TrustGraph; Value = Rank of the identity
+		// At the end of the function, this table will be filled with the ranks of all identities which are visible for treeOwner.
+		// An identity is visible if there is a trust chain from the owner to it.
+		// The rank is the distance in trust steps from the treeOwner.			
+		// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
+		// Identities which are not visible have a value of -1.
+		final int[] rankValues = new int[graph.getVertexCount()];
+		fill(rankValues, -1);
+		
+		// Compute the rank values
+		{
+			// For each identity which is added to rankValues, all its trustees are added to unprocessedTrusters.
+			// The inner loop then pulls out one unprocessed identity and computes the rank of its trustees:
+			// All trustees which have received positive (> 0) trust will get his rank + 1
+			// Trustees with negative trust or 0 trust will get a rank of Integer.MAX_VALUE.
+			// Trusters with rank Integer.MAX_VALUE cannot inherit their rank to their trustees so the trustees will get no rank at all.
+			// Identities with no rank are considered to be not in the trust tree of the own identity and their score will be null / none.
+			//
+			// Further, if the treeOwner has assigned a trust value to an identity, the rank decision is done by only considering this trust value:
+			// The decision of the own identity shall not be overpowered by the view of the remote identities.
+			//
+			// The purpose of differentiation between Integer.MAX_VALUE and -1 is:
+			// Score objects of identities with rank Integer.MAX_VALUE are kept in the database because WoT will usually "hear" about those identities by seeing
+			// them in the trust lists of trusted identities (with 0 or negative trust values). So it must store the trust values to those identities and
+			// have a way of telling the user "this identity is not trusted" by keeping a score object of them.
+			// Score objects of identities with rank -1 are deleted because they are the trustees of distrusted identities and we will not get to the point where
+			// we hear about those identities because the only way of hearing about them is importing a trust list of a identity with Integer.MAX_VALUE rank
+			// - and we never import their trust lists. 
+			// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
+			// introduction puzzles cannot inherit their rank to their trustees.
+			//
+			// Each identity is only added once: It is added when it receives a rank other than
+			// Integer.MAX_VALUE, and such a rank is never overwritten. Thus we can use an
+			// array of the size of the amount of identities as queue.
+			final int[] unprocessedTrusters = new int[rankValues.length];
+			int unprocessedTrustersHead = 0;
+			int unprocessedTrustersTail = 0;
+			
+			if(treeOwnerRank >= 0) { // It can only give it's rank if it has a valid one
+				rankValues[treeOwnerVertex] = treeOwnerRank;
+				unprocessedTrusters[unprocessedTrustersTail++] = treeOwnerVertex;
+			}
+			 
+			while(unprocessedTrustersHead < unprocessedTrustersTail) {
+				final int truster = unprocessedTrusters[unprocessedTrustersHead++];
+
+				final int trusterRank = rankValues[truster];
+				
+				// The truster cannot give his rank to his trustees because he has none (or infinite), they receive no rank at all.
+				if(trusterRank == -1 || trusterRank == Integer.MAX_VALUE) {
+					// (Normally this does not happen because we do not enqueue the identities if they have no rank but we check for security)
+					continue;
+				}
+				
+				final int trusteeRank = trusterRank + 1;
+				
+				for(int i = 0, count = graph.getGivenTrustCount(truster); i < count; ++i) {
+					final int trustee = graph.getTrustee(truster, i);
+					final byte trustValue = graph.getGivenTrustValue(truster, i);
+					final int oldTrusteeRank = rankValues[trustee];
+					
+					
+					if(oldTrusteeRank == -1) { // The trustee was not processed yet
+						if(trustValue > 0) {
+							rankValues[trustee] = trusteeRank;
+							unprocessedTrusters[unprocessedTrustersTail++] = trustee;
+						}
+						else
+							rankValues[trustee] = Integer.MAX_VALUE;
+					} else {
+						// Breadth first search will process all rank one identities are processed before any rank two identities, etc.
+						assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
+						
+						if(oldTrusteeRank == Integer.MAX_VALUE) {
+							// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
+							// given by the tree owner.
+							final byte treeOwnerTrust
+								= graph.getTrustValue(treeOwnerVertex, trustee);
+							
+							if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+								assert(treeOwnerTrust <= 0)
+									: "The treeOwner Trusts are processed before all other "
+									+ "Trusts, and their rank value overwrites the ones of "
+									+ "non-treeOwner Trusts. Thus, if there is a treeOwner "
+									+ "Trust, it should have a value which could have caused "
+									+ "the current rank of Integer.MAX_VALUE.";
+							} else {
+								if(trustValue > 0) {
+									rankValues[trustee] = trusteeRank;
+									unprocessedTrusters[unprocessedTrustersTail++] = trustee;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		
+		// Rank values of all visible identities are computed now.
+		// Next step is to compute the scores of all identities
+		
+		final int[] scoreValues = new int[rankValues.length];
+		
+		for(int target = 0; target < rankValues.length; ++target) {
+			final int targetRank = rankValues[target];
+			
+			if(targetRank == -1)
+				continue;
+			
+			// The treeOwner trusts himself.
+			if(targetRank == 0) {
+				scoreValues[target] = Integer.MAX_VALUE;
+				continue;
+			}
+			
+			// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
+			final byte treeOwnerTrust = graph.getTrustValue(treeOwnerVertex, target);
+			
+			if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+				scoreValues[target] = treeOwnerTrust;
+				continue;
+			}
+			
+			// The score of an identity is the sum of all weighted trust values it has received.
+			// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
+			int targetScore = 0;
+			for(int i = 0, count = graph.getReceivedTrustCount(target); i < count; ++i) {
+				final int truster = graph.getTruster(target, i);
+				
+				// The capacity is a weight function for trust values which are given from an identity:
+				// The higher the rank, the less the capacity.
+				// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
+				final int capacity
+					= computeCapacity(graph, treeOwnerVertex, truster, rankValues[truster]);
+				
+				targetScore += (graph.getReceivedTrustValue(target, i) * capacity) / 100;
+			}
+			scoreValues[target] = targetScore;
+		}
+		
+		return new TreeScores(rankValues, scoreValues);
+	}
+	
 	private synchronized void createSeedIdentities() {
 		synchronized(mSubscriptionManager) {
 		for(String seedURI : WebOfTrustInterface.SEED_IDENTITIES) {
@@ -2320,6 +2646,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		if(!threadsOnly) {
+			// After the IdentityFetcher and IdentityFileProcessor are down, which use the queue.
+			// The other queues keep no files open.
+			if(mIdentityFileQueue instanceof IdentityFileLogQueue)
+				((IdentityFileLogQueue)mIdentityFileQueue).close();
+			
 			try {
 				if(mDB != null) {
 					// TODO: At 2009-06-15, it does not seem possible to ask db4o for whether a
@@ -2334,6 +2665,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 						System.gc(); 
 						mDB.close();
 					}
+					
+					synchronized(this) {
+						discardTrustGraph();
+						discardScoreTable();
+						if(mFetcher != null)
+							mFetcher.discardCommands();
+					}
 				}
 			}
 			catch(Exception e) {
@@ -2490,6 +2828,39 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Identity>(this, query);
 	}
 	
+	/**
+	 * Returns all identities whose {@link Identity#getID()} is greater than the given ID, sorted
+	 * ascending by ID.<br>
+	 * Allows paging through all identities without holding the lock for all of them at once:
+	 * Pass the ID of the last identity of the previous page as afterID. Unlike a numeric offset,
+	 * this won't skip or repeat identities if some are added or deleted between the pages.<br>
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * 
+	 * @param afterID The ID after which the list starts. Null to start at the first identity.
+	 */
+	public ObjectSet<Identity> getAllIdentitiesAfterID(String afterID) {
+		return new Persistent.InitializingObjectSet<Identity>(this,
+			getAllAfterIDQuery(Identity.class, afterID));
+	}
+	
+	/**
+	 * Backend for {@link #getAllIdentitiesAfterID(String)}, {@link #getAllTrustsAfterID(String)}
+	 * and {@link #getAllScoresAfterID(String)}.<br>
+	 * All of them have an indexed field "mID" so the query is served by the index.<br><br>
+	 * 
+	 * TODO: Performance: db4o evaluates the query for all remaining objects even though callers
+	 * typically only consume one page of them, so each page costs O(N) in the amount of objects.
+	 * Lazy query evaluation would fix this, but it is a global setting of the database.
+	 */
+	private Query getAllAfterIDQuery(Class<? extends Persistent> clazz, String afterID) {
+		final Query query = mDB.query();
+		query.constrain(clazz);
+		if(afterID != null)
+			query.descend("mID").constrain(afterID).greater();
+		query.descend("mID").orderAscending();
+		return query;
+	}
+	
 	public static enum SortOrder {
 	    ByEditionAscending,
 	    ByEditionDescending,
@@ -2660,6 +3031,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// So we check whether the caller already started an import.
 		boolean trustListImportWasInProgress = mTrustListImportInProgress;
 		
+		// Obtain the graph before modifying the database, see getTrustGraph().
+		final TrustGraph trustGraph = getTrustGraph();
+		
 		try {
 			if(!trustListImportWasInProgress)
 				beginTrustListImport();
@@ -2684,12 +3058,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 			if(logDEBUG) Logger.debug(this, "Deleting received trusts...");
 			for(Trust trust : getReceivedTrusts(identity)) {
 				trust.deleteWithoutCommit();
+				trustGraph.removeTrust(trust);
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 			}
 
 			if(logDEBUG) Logger.debug(this, "Deleting given trusts...");
 			for(Trust givenTrust : getGivenTrusts(identity)) {
 				givenTrust.deleteWithoutCommit();
+				trustGraph.removeTrust(givenTrust);
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(givenTrust, null);
 				// We call computeAllScores anyway so we do not use removeTrustWithoutCommit()
 			}
@@ -2800,16 +3176,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException If the identity has no score in any trusttree.
 	 */
 	public synchronized int getBestScore(final Identity identity) throws NotInTrustTreeException {
-		int bestScore = Integer.MIN_VALUE;
-		final ObjectSet<Score> scores = getScores(identity);
+		final int bestScore = identity.getBestScore();
 		
-		if(scores.size() == 0)
+		if(bestScore == Integer.MIN_VALUE)
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestScore = Math.max(score.getScore(), bestScore);
-		
 		return bestScore;
 	}
 	
@@ -2818,17 +3189,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException If the identity is not in any trust tree. Can be interpreted as capacity 0.
 	 */
 	public synchronized int getBestCapacity(final Identity identity) throws NotInTrustTreeException {
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
-		
-		if(scores.size() == 0)
+		// Identity.getBestScore() is the indicator for whether there are any Scores, the capacity
+		// would be 0 in both cases.
+		if(identity.getBestScore() == Integer.MIN_VALUE)
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-		
-		return bestCapacity;
+		return identity.getBestCapacity();
 	}
 	
 	/**
@@ -2842,44 +3208,155 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Score>(this, query);
 	}
 	
+	/**
+	 * Same as {@link #getAllIdentitiesAfterID(String)}, but for {@link Score}s.
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 */
+	public ObjectSet<Score> getAllScoresAfterID(String afterID) {
+		return new Persistent.InitializingObjectSet<Score>(this,
+			getAllAfterIDQuery(Score.class, afterID));
+	}
+	
 	/**
 	 * Checks whether the given identity should be downloaded. 
 	 * 
 	 * Synchronization: You must synchronize on this WebOfTrust when using this function.
 	 * 
-	 * TODO: Performance: Various callers could be optimized by storing the value of this for all
-	 * identities in a database table.
+	 * The value is cached in the Identity, see {@link #setBestScoreWithoutCommit(Identity, int,
+	 * int, boolean)} for how it is computed. Thus, this is O(1).
 	 * 
 	 * @return Returns true if the identity has any capacity > 0, any score >= 0 or if it is an own identity.
 	 */
     boolean shouldFetchIdentity(final Identity identity) {
-		if(identity instanceof OwnIdentity) {
-			// TODO: Performance: Get rid of the self-score check and just return true.
-			// See main TODO at WoTTest.testSetTrust1().
-			try {
-				Score selfScore = getScore((OwnIdentity)identity, identity);
-				assert(selfScore.getRank() == 0);
-				assert(selfScore.getCapacity() == 100);
-				assert(selfScore.getScore() == Integer.MAX_VALUE);
-				return true;
-			} catch(NotInTrustTreeException e) {
-				// initTrustTreeWithoutCommit() not called yet
-				return false;
-			}
+		return identity.shouldFetch();
+	}
+
+	/**
+	 * Updates the values which the trustee of the given {@link Score} caches about the Scores it
+	 * has received, after the Score was stored:
+	 * - {@link #getBestScore(Identity)}
+	 * - {@link #getBestCapacity(Identity)}
+	 * - {@link #shouldFetchIdentity(Identity)}
+	 * 
+	 * Called by {@link Score#storeWithoutCommit()}, so there is no need to call this when storing
+	 * Scores.
+	 * Incremental: The cached values are updated from the values of the given Score. Only if
+	 * the Score decreased and used to be the best one, the other Scores of the trustee are
+	 * queried, see {@link #recomputeBestScoreWithoutCommit(Identity, Score)}.
+	 * 
+	 * Synchronization: Same as for {@link Score#storeWithoutCommit()}.
+	 * 
+	 * @param storedValue The {@link Score#getValue()} before the Score was stored, or
+	 *     {@link Integer#MIN_VALUE} if it was not stored before.
+	 * @param storedCapacity The {@link Score#getCapacity()} before the Score was stored, or 0 if
+	 *     it was not stored before. */
+	void updateBestScoreWithoutCommit(final Score score, final int storedValue,
+			final int storedCapacity) {
+		
+		final Identity identity = score.getTrustee();
+		
+		// The Identity may be deleted before its Scores, e.g. in deleteDuplicateObjects().
+		// We must not store it again then.
+		if(!mDB.isStored(identity))
+			return;
+		
+		final int value = score.getValue();
+		final int capacity = score.getCapacity();
+		final int bestScore = identity.getBestScore();
+		final int bestCapacity = identity.getBestCapacity();
+		
+		if((value < storedValue && storedValue >= bestScore)
+				|| (capacity < storedCapacity && storedCapacity >= bestCapacity)) {
+			
+			// The Score may have been the best one, so another Score may be the best one now.
+			recomputeBestScoreWithoutCommit(identity, null);
+			return;
+		}
+		
+		final boolean hasSelfScore = (identity instanceof OwnIdentity)
+			&& (identity.shouldFetch() || score.getTruster().getID().equals(identity.getID()));
+		
+		setBestScoreWithoutCommit(identity, Math.max(value, bestScore),
+			Math.max(capacity, bestCapacity), hasSelfScore);
+	}
+
+	/**
+	 * Same as {@link #updateBestScoreWithoutCommit(Score, int, int)}, but for after the given
+	 * Score was deleted.
+	 * Called by {@link Score#deleteWithoutCommit()}.
+	 * The other Scores of the trustee are only queried if the deleted Score was the best one or
+	 * the self-Score of an {@link OwnIdentity}.
+	 * 
+	 * @param isSelfScore True if the truster of the Score is the trustee.
+	 * @param storedValue The {@link Score#getValue()} which was stored in the database.
+	 * @param storedCapacity The {@link Score#getCapacity()} which was stored in the database. */
+	void updateBestScoreAfterDeletionWithoutCommit(final Identity trustee,
+			final Score deletedScore, final boolean isSelfScore, final int storedValue,
+			final int storedCapacity) {
+		
+		if(trustee == null || !mDB.isStored(trustee))
+			return;
+		
+		// Capacity 0 cannot be the best capacity of anything but Identitys whose best capacity is
+		// 0 anyway, so it does not require recomputation.
+		if(storedValue >= trustee.getBestScore() || isSelfScore
+				|| (storedCapacity > 0 && storedCapacity >= trustee.getBestCapacity())) {
+			
+			recomputeBestScoreWithoutCommit(trustee, deletedScore);
 		}
+	}
+
+	/**
+	 * Recomputes the values which the given {@link Identity} caches about the {@link Score}s it
+	 * has received from all of its Scores in the database, and stores it if they changed.
+	 * See {@link #updateBestScoreWithoutCommit(Score, int, int)} for which values.
+	 * As an Identity receives at most one Score per {@link OwnIdentity}, this is cheap compared
+	 * to Score computation, but it is a database query.
+	 * 
+	 * Synchronization: Same as for {@link Score#storeWithoutCommit()}.
+	 * 
+	 * @param deletedScore The Score which was just deleted, or null. Is ignored in case the
+	 *     database still returns it. */
+	void recomputeBestScoreWithoutCommit(final Identity identity, final Score deletedScore) {
+		// The Identity may be deleted before its Scores, e.g. in deleteDuplicateObjects().
+		// We must not store it again then.
+		if(!mDB.isStored(identity))
+			return;
 		
 		int bestScore = Integer.MIN_VALUE;
 		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
+		boolean hasSelfScore = false;
+		
+		for(Score score : getScores(identity)) {
+			if(score == deletedScore)
+				continue;
 			
-		if(scores.size() == 0)
-			return false;
-			
-		// TODO: Cache the best score of an identity as a member variable.
-		for(Score score : scores) { 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-			bestScore  = Math.max(score.getScore(), bestScore);
+			bestScore = Math.max(score.getScore(), bestScore);
+			bestCapacity = Math.max(score.getCapacity(), bestCapacity);
 			
+			if(score.getTruster().getID().equals(identity.getID()))
+				hasSelfScore = true;
+		}
+		
+		setBestScoreWithoutCommit(identity, bestScore, bestCapacity, hasSelfScore);
+	}
+
+	/**
+	 * Computes {@link #shouldFetchIdentity(Identity)} from the other given values, and stores them
+	 * all in the given Identity if they changed.
+	 * 
+	 * @param hasSelfScore Must be true if the Identity is an {@link OwnIdentity} which has received
+	 *     a Score from itself. Ignored for other Identitys. */
+	private void setBestScoreWithoutCommit(final Identity identity, final int bestScore,
+			final int bestCapacity, final boolean hasSelfScore) {
+		
+		final boolean shouldFetch;
+		if(identity instanceof OwnIdentity) {
+			// TODO: Performance: Get rid of the self-score check and just use true.
+			// See main TODO at WoTTest.testSetTrust1().
+			// If there is no self-Score, initTrustTreeWithoutCommit() was not called yet.
+			shouldFetch = hasSelfScore;
+		} else {
 			// Notice: Identitys with negative score are considered as distrusted, so one might
 			// wonder why we hereby download identities even if their Score is negative just because
 			// their capacity is > 0.
@@ -2896,11 +3373,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// rank graph could be structured completely differently, where the current distrusted
 			// identity has a much lower rank than the current distrusters, and thus its trustees
 			// have higher voting powers than the current distrusters.
-			if(bestCapacity > 0 || bestScore >= 0)
-				return true;
+			shouldFetch = bestCapacity > 0 || bestScore >= 0;
 		}
-			
-		return false;
+		
+		if(identity.setBestScore(bestScore, bestCapacity, shouldFetch))
+			identity.storeWithoutCommit();
 	}
 
 	/**
@@ -3129,6 +3606,153 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Trust>(this, query); 
 	}
 	
+	/**
+	 * Same as {@link #getAllIdentitiesAfterID(String)}, but for {@link Trust}s.
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 */
+	public ObjectSet<Trust> getAllTrustsAfterID(String afterID) {
+		return new Persistent.InitializingObjectSet<Trust>(this,
+			getAllAfterIDQuery(Trust.class, afterID));
+	}
+	
+	/**
+	 * Gets the in-memory copy of all {@link Trust}s, see {@link TrustGraph}.
+	 * 
+	 * Constructs it from the database if this is the first call. Thus, the first call must not
+	 * happen during a transaction which has modified Trusts yet: The graph would contain the
+	 * uncommitted changes but not know how to revert them upon rollback. The constructors of
+	 * this class take care of this by calling this function during startup.
+	 * 
+	 * You have to synchronize on this WoT when calling the function and using the returned graph!
+	 */
+	TrustGraph getTrustGraph() {
+		if(mTrustGraph == null) {
+			StopWatch time = logMINOR ? new StopWatch() : null;
+			
+			mTrustGraph = new TrustGraph(getAllTrusts());
+			Persistent.addTransactionListener(mDB, mTrustGraph);
+			
+			if(logMINOR) {
+				Logger.minor(this, "Loaded TrustGraph with " + mTrustGraph.getVertexCount()
+					+ " identities and " + mTrustGraph.getEdgeCount() + " trusts in " + time);
+			}
+		}
+		
+		return mTrustGraph;
+	}
+	
+	/**
+	 * Gets the {@link TrustGraph.Snapshot} of the last committed state of the {@link Trust}
+	 * table.<br><br>
+	 * 
+	 * You do NOT have to synchronize on this WoT when calling this function or using the result.
+	 * Readers which only need Trust values or amounts of Trusts should use this instead of the
+	 * database functions such as {@link #getReceivedTrusts(Identity)}: It does not wait for
+	 * writers such as trust list imports, which hold the lock of this WoT for a long time.<br>
+	 * The Snapshot does not contain Identitys without any Trusts, so if you need to know whether
+	 * an Identity exists, you still have to query the database.
+	 * 
+	 * @return Null if the {@link TrustGraph} is not loaded currently. Then use the database.
+	 */
+	public TrustGraph.Snapshot getTrustSnapshot() {
+		final TrustGraph graph = mTrustGraph;
+		return graph != null ? graph.getSnapshot() : null;
+	}
+	
+	/**
+	 * Discards the {@link TrustGraph} so {@link #getTrustGraph()} constructs it from the database
+	 * again. For use by code which fixes the Trust table in ways the graph cannot follow, e.g.
+	 * by deleting duplicate Trust objects.
+	 * 
+	 * You have to synchronize on this WoT when calling the function!
+	 */
+	private void discardTrustGraph() {
+		if(mTrustGraph != null) {
+			Persistent.removeTransactionListener(mDB, mTrustGraph);
+			mTrustGraph = null;
+		}
+	}
+	
+	/**
+	 * Gets the in-memory copy of all {@link Score}s, see {@link ScoreTable}.
+	 * 
+	 * Constructs it from the database if it is not loaded. Thus this must not be called during a
+	 * transaction which has modified Scores: The table would consider the uncommitted changes as
+	 * committed. The constructors of this class take care of this by calling this function
+	 * during startup.
+	 * 
+	 * You have to synchronize on this WoT when calling the function!
+	 */
+	ScoreTable getScoreTable() {
+		if(mScoreTable == null) {
+			StopWatch time = logMINOR ? new StopWatch() : null;
+			
+			final ScoreTable table = new ScoreTable(getAllScores());
+			Persistent.addTransactionListener(mDB, table);
+			mScoreTable = table;
+			
+			if(logMINOR)
+				Logger.minor(this, "Loaded ScoreTable in " + time);
+		}
+		
+		return mScoreTable;
+	}
+	
+	/**
+	 * Gets the {@link ScoreTable.Snapshot} of the last committed state of the {@link Score}
+	 * table.<br><br>
+	 * 
+	 * You do NOT have to synchronize on this WoT when calling this function or using the result.
+	 * Readers which only need the value, rank or capacity of Scores should use this instead of
+	 * {@link #getScore(OwnIdentity, Identity)}: It does not wait for writers such as trust list
+	 * imports, which hold the lock of this WoT for a long time.<br>
+	 * If a Score is not contained in the Snapshot, you have to query the database to know
+	 * whether the involved Identitys exist.
+	 * 
+	 * @return Null if the {@link ScoreTable} is not loaded currently. Then use the database.
+	 */
+	public ScoreTable.Snapshot getScoreSnapshot() {
+		final ScoreTable table = mScoreTable;
+		return table != null ? table.getSnapshot() : null;
+	}
+	
+	/**
+	 * Keeps the {@link ScoreTable} in sync with the database.
+	 * Called by {@link Score#storeWithoutCommit()} and {@link Score#deleteWithoutCommit()}, so
+	 * there is no need to call this when storing or deleting Scores.
+	 * 
+	 * Synchronization: Same as for {@link Score#storeWithoutCommit()}.
+	 * 
+	 * @param deleted True if the Score was deleted, false if it was stored.
+	 */
+	void updateScoreTableWithoutCommit(final Score score, final boolean deleted) {
+		// If it is not loaded, getScoreTable() will construct it from the database later on.
+		if(mScoreTable == null)
+			return;
+		
+		// Orphans are not contained in the table, see deleteOrphanObjects().
+		if(score.getTruster() == null || score.getTrustee() == null)
+			return;
+		
+		if(deleted)
+			mScoreTable.removeScore(score);
+		else
+			mScoreTable.setScore(score);
+	}
+	
+	/**
+	 * Discards the {@link ScoreTable} so {@link #getScoreTable()} constructs it from the database
+	 * again. For use by code which fixes the Score table in ways the table cannot follow.
+	 * 
+	 * You have to synchronize on this WoT when calling the function!
+	 */
+	private void discardScoreTable() {
+		if(mScoreTable != null) {
+			Persistent.removeTransactionListener(mDB, mScoreTable);
+			mScoreTable = null;
+		}
+	}
+	
 	/**
 	 * Gives some {@link Trust} to another Identity.
 	 * It creates or updates an existing Trust object and make the trustee compute its {@link Score}.
@@ -3151,6 +3775,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	protected void setTrustWithoutCommit(Identity truster, Identity trustee, byte newValue, String newComment)
 		throws InvalidParameterException {
 		
+		// Obtain the graph before modifying the database, see getTrustGraph().
+		final TrustGraph trustGraph = getTrustGraph();
+		
 		try { // Check if we are updating an existing trust value
 			final Trust trust = getTrust(truster, trustee);
 			final Trust oldTrust = trust.clone();
@@ -3162,6 +3789,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				trust.setValue(newValue);
 			
 			trust.storeWithoutCommit();
+			trustGraph.setTrust(trust);
 			
 			if(!trust.equals(oldTrust))
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(oldTrust, trust);
@@ -3173,6 +3801,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		} catch (NotTrustedException e) {
 			final Trust trust = new Trust(this, truster, trustee, newValue, newComment);
 			trust.storeWithoutCommit();
+			trustGraph.setTrust(trust);
 			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
 			if(logDEBUG) Logger.debug(this, "New trust value ("+ trust +"), now updating Score.");
 			updateScoresWithoutCommit(null, trust);
@@ -3250,11 +3879,296 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 */
 	protected void removeTrustWithoutCommit(Trust trust) {
+		// Obtain the graph before modifying the database, see getTrustGraph().
+		final TrustGraph trustGraph = getTrustGraph();
 		trust.deleteWithoutCommit();
+		trustGraph.removeTrust(trust);
 		mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 		updateScoresWithoutCommit(trust, null);
 	}
 
+	/**
+	 * Replaces the whole trust list of the given truster with the given one, i.e. creates,
+	 * modifies and deletes {@link Trust}s so the given ones are the only Trusts the truster has
+	 * given.
+	 * 
+	 * In opposite to calling {@link #setTrustWithoutCommit(Identity, Identity, byte, String)} /
+	 * {@link #removeTrustWithoutCommit(Trust)} for each Trust, this updates the {@link Score}s in
+	 * a single pass after all Trusts have been changed, see
+	 * {@link #updateScoresAfterTrustListChangeWithoutCommit(Identity, Collection)}.
+	 * If more than {@link #mTrustListFullScoreComputationThreshold} Trusts have changed, a full
+	 * Score computation is scheduled instead.
+	 * 
+	 * ATTENTION: Must only be called between {@link #beginTrustListImport()} and
+	 * {@link #finishTrustListImport()}.
+	 * 
+	 * This function does neither lock the database nor commit the transaction. You have to surround it with
+	 * synchronized(WebOfTrust.this) {
+	 * synchronized(mFetcher) {
+	 * synchronized(mSubscriptionManager) {
+	 * synchronized(Persistent.transactionLock(mDB)) {
+	 *     try { beginTrustListImport(); ... setTrustListWithoutCommit(...);
+	 *           finishTrustListImport(); Persistent.checkedCommit(mDB, this); }
+	 *     catch(RuntimeException e) { abortTrustListImport(e); // Does checkedRollback() for you already }
+	 * }}}}
+	 * 
+	 * @param truster The Identity whose trust list is imported.
+	 * @param trustList Trusts which are not stored in the database yet and have the given truster.
+	 *     If a trustee is contained multiple times, the last Trust to it wins.
+	 *     The objects may become stored by this function, so you must not use them afterwards.
+	 */
+	protected void setTrustListWithoutCommit(Identity truster, List<Trust> trustList) {
+		assert(mTrustListImportInProgress);
+		
+		// Obtain the graph before modifying the database, see getTrustGraph().
+		final TrustGraph trustGraph = getTrustGraph();
+		
+		// Key = Trustee ID
+		final HashMap<String, Trust> storedTrusts = new HashMap<String, Trust>();
+		for(Trust trust : getGivenTrusts(truster))
+			storedTrusts.put(trust.getTrustee().getID(), trust);
+		
+		// Key = Trustee ID
+		final HashSet<String> keptTrustees = new HashSet<String>(trustList.size() * 2);
+		// Key = Trustee ID, value = Trustee of a Trust which was created, modified or deleted.
+		final HashMap<String, Identity> changedTrustees = new HashMap<String, Identity>();
+		
+		for(Trust newTrust : trustList) {
+			assert(newTrust.getTruster() == truster);
+			
+			final Identity trustee = newTrust.getTrustee();
+			final String trusteeID = trustee.getID();
+			final Trust trust = storedTrusts.get(trusteeID);
+			keptTrustees.add(trusteeID);
+			
+			if(trust != null) {
+				final Trust oldTrust = trust.clone();
+				trust.trusterEditionUpdated();
+				trust.setComment(newTrust.getComment());
+				
+				if(trust.getValue() != newTrust.getValue()) {
+					trust.setValue(newTrust.getValue());
+					changedTrustees.put(trusteeID, trustee);
+				}
+				
+				trust.storeWithoutCommit();
+				trustGraph.setTrust(trust);
+				
+				if(!trust.equals(oldTrust))
+					mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(oldTrust, trust);
+			} else {
+				newTrust.storeWithoutCommit();
+				trustGraph.setTrust(newTrust);
+				storedTrusts.put(trusteeID, newTrust);
+				changedTrustees.put(trusteeID, trustee);
+				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, newTrust);
+			}
+		}
+		
+		for(Trust trust : storedTrusts.values()) {
+			if(keptTrustees.contains(trust.getTrustee().getID()))
+				continue;
+			
+			trust.deleteWithoutCommit();
+			trustGraph.removeTrust(trust);
+			changedTrustees.put(trust.getTrustee().getID(), trust.getTrustee());
+			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
+		}
+		
+		truster.updated();
+		truster.storeWithoutCommit();
+		
+		if(logDEBUG) {
+			Logger.debug(this, "Changed " + changedTrustees.size() + " Trusts of " + truster
+				+ ", now updating Scores.");
+		}
+		
+		updateScoresAfterTrustListChangeWithoutCommit(truster, changedTrustees.values());
+	}
+	
+	/**
+	 * Updates the {@link Score}s after {@link #setTrustListWithoutCommit(Identity, List)} has
+	 * changed the Trusts which the given truster has given to the given trustees.
+	 * 
+	 * Computes the new ranks and Score values of each trust tree in which the truster has a
+	 * capacity > 0 using the in-memory {@link TrustGraph}, see
+	 * {@link #computeTreeScores(TrustGraph, int, int)}. Trust trees in which the truster has no
+	 * capacity cannot be affected as its Trusts have no effect there.
+	 * Then only the Scores which are affected by the change are compared to the database and
+	 * stored: Starting at the given trustees, the trustees of each Identity whose rank or
+	 * capacity changed are visited, as their Scores are computed from those two values.
+	 * 
+	 * In opposite to {@link #updateScoresWithoutCommit(Trust, Trust)}, this also works for
+	 * multiple Trusts being deleted or becoming distrust, so it never needs a full Score
+	 * computation.
+	 * 
+	 * Synchronization: Same as {@link #setTrustListWithoutCommit(Identity, List)}. */
+	private void updateScoresAfterTrustListChangeWithoutCommit(final Identity truster,
+			final Collection<Identity> changedTrustees) {
+		
+		if(changedTrustees.isEmpty())
+			return;
+		
+		if(mFullScoreComputationNeeded) {
+			// finishTrustListImport() will do it.
+			if(logMINOR)
+				Logger.minor(this, "Full score computation scheduled, not doing incremental one!");
+			return;
+		}
+		
+		if(changedTrustees.size() > mTrustListFullScoreComputationThreshold) {
+			if(logMINOR) {
+				Logger.minor(this, "Trust list changed by " + changedTrustees.size()
+					+ " Trusts, scheduling full score computation: " + truster);
+			}
+			
+			mFullScoreComputationNeeded = true;
+			++mTrustListFullScoreRecomputationCount;
+			return;
+		}
+		
+		if(logMINOR) Logger.minor(this, "Doing an incremental computation of all Scores...");
+		
+		final StopWatch time = new StopWatch();
+		final TrustGraph graph = getTrustGraph();
+		
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			final int treeOwnerRank;
+			try {
+				if(getScore(treeOwner, truster).getCapacity() == 0)
+					continue;
+				
+				treeOwnerRank = getScore(treeOwner, treeOwner).getRank();
+			} catch(NotInTrustTreeException e) {
+				continue;
+			}
+			
+			final int treeOwnerVertex = graph.getOrCreateVertex(treeOwner.getID());
+			final TreeScores treeScores = computeTreeScores(graph, treeOwnerVertex, treeOwnerRank);
+			
+			// Key = Identity ID
+			final HashSet<String> queuedIdentities = new HashSet<String>();
+			final LinkedList<Identity> unprocessedIdentities = new LinkedList<Identity>();
+			
+			for(Identity trustee : changedTrustees) {
+				queuedIdentities.add(trustee.getID());
+				unprocessedIdentities.add(trustee);
+			}
+			
+			while(!unprocessedIdentities.isEmpty()) {
+				final Identity target = unprocessedIdentities.removeFirst();
+				final int targetVertex = graph.getVertex(target.getID());
+				final Integer targetRank = treeScores.getRank(targetVertex);
+				final Integer targetScore = treeScores.getScore(targetVertex);
+				
+				Score newScore = null;
+				if(targetScore != null) {
+					newScore = new Score(this, treeOwner, target, targetScore, targetRank,
+						computeCapacity(graph, treeOwnerVertex, targetVertex, targetRank));
+				}
+				
+				Score currentStoredScore;
+				try {
+					currentStoredScore = getScore(treeOwner, target);
+				} catch(NotInTrustTreeException e) {
+					currentStoredScore = null;
+				}
+				
+				if(newScore == null && currentStoredScore == null)
+					continue;
+				
+				if(newScore != null && newScore.equals(currentStoredScore))
+					continue;
+				
+				final boolean oldShouldFetch = shouldFetchIdentity(target);
+				final int oldRank = currentStoredScore != null ? currentStoredScore.getRank() : -1;
+				final int oldCapacity
+					= currentStoredScore != null ? currentStoredScore.getCapacity() : 0;
+				final int newRank = newScore != null ? newScore.getRank() : -1;
+				final int newCapacity = newScore != null ? newScore.getCapacity() : 0;
+				
+				if(newScore == null) {
+					currentStoredScore.deleteWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(
+						currentStoredScore, null);
+				} else if(currentStoredScore == null) {
+					newScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
+				} else {
+					final Score oldScore = currentStoredScore.clone();
+					
+					currentStoredScore.setRank(newScore.getRank());
+					currentStoredScore.setCapacity(newScore.getCapacity());
+					currentStoredScore.setValue(newScore.getScore());
+					
+					currentStoredScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(
+						oldScore, currentStoredScore);
+				}
+				
+				// Same as in computeAllScoresWithoutCommit(), see the comments there.
+				if((!oldShouldFetch || (oldCapacity == 0 && newCapacity > 0))
+						&& shouldFetchIdentity(target)) {
+					
+					if(logMINOR) {
+						if(!oldShouldFetch) {
+							Logger.minor(this,
+								"Fetch status changed from false to true, refetching " + target);
+						} else {
+							Logger.minor(this, "Capacity changed from 0 to " + newCapacity
+								+ ", refetching" + target);
+						}
+					}
+					
+					final Identity oldTarget = target.clone();
+					
+					target.markForRefetch();
+					target.storeWithoutCommit();
+					
+					if(!oldTarget.equals(target)) {
+						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(
+							oldTarget, target);
+					}
+					
+					mFetcher.storeStartFetchCommandWithoutCommit(target);
+				} else if(oldShouldFetch && !shouldFetchIdentity(target)) {
+					if(logMINOR) {
+						Logger.minor(this,
+							"Fetch status changed from true to false, aborting fetch of " + target);
+					}
+					
+					mFetcher.storeAbortFetchCommandWithoutCommit(target);
+				}
+				
+				// The Score of an Identity only depends on the ranks and capacities of its
+				// trusters, so if neither changed, the trustees of the target are not affected
+				// by it.
+				if(oldRank == newRank && oldCapacity == newCapacity)
+					continue;
+				
+				for(int i = 0; i < graph.getGivenTrustCount(targetVertex); ++i) {
+					final String trusteeID
+						= graph.getIdentityID(graph.getTrustee(targetVertex, i));
+					
+					if(!queuedIdentities.add(trusteeID))
+						continue;
+					
+					try {
+						unprocessedIdentities.add(getIdentityByID(trusteeID));
+					} catch(UnknownIdentityException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}
+		
+		time.stop();
+		++mIncrementalScoreRecomputationDueToTrustListCount;
+		mIncrementalScoreRecomputationDueToTrustListNanos += time.getNanos();
+		
+		if(logMINOR) Logger.minor(this, "Incremental computation of all Scores finished.");
+	}
+
 	/**
 	 * Initializes this OwnIdentity's trust tree without commiting the transaction. 
 	 * Meaning : It creates a Score object for this OwnIdentity in its own trust so it can give trust to other Identities. 
@@ -3300,15 +4214,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int value = 0;
 		
-		try {
-			return getTrust(truster, trustee).getValue();
-		}
-		catch(NotTrustedException e) { }
+		final TrustGraph graph = getTrustGraph();
+		final String trusterID = truster.getID();
+		final int trusterVertex = graph.getOrCreateVertex(trusterID);
+		final int trusteeVertex = graph.getOrCreateVertex(trustee.getID());
+		
+		final byte treeOwnerTrust = graph.getTrustValue(trusterVertex, trusteeVertex);
+		if(treeOwnerTrust != TrustGraph.NO_TRUST)
+			return treeOwnerTrust;
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
+		for(int i = 0, count = graph.getReceivedTrustCount(trusteeVertex); i < count; ++i) {
+			final String trustGiverID = graph.getIdentityID(graph.getTruster(trusteeVertex, i));
 			try {
-				final Score trusterScore = getScore(truster, trust.getTruster());
-				value += ( trust.getValue() * trusterScore.getCapacity() ) / 100;
+				final Score trusterScore
+					= getScore(new ScoreID(trusterID, trustGiverID).toString());
+				value += ( graph.getReceivedTrustValue(trusteeVertex, i) * trusterScore.getCapacity() ) / 100;
 			} catch (NotInTrustTreeException e) {}
 		}
 		return value;
@@ -3615,9 +4535,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 				return cachedRank;
 		}
 		
+		// We walk the Trusts using the in-memory TrustGraph instead of querying them from the
+		// database, see its JavaDoc. Thus Identitys are represented by their index in it.
+		final TrustGraph graph = getTrustGraph();
+		final String sourceID = source.getID();
+		final int sourceIndex = graph.getOrCreateVertex(sourceID);
+		final int targetIndex = graph.getOrCreateVertex(target.getID());
+		
 		final class Vertex implements Comparable<Vertex>{
 			final Vertex previous;
-			final Identity identity;
+			/** Index of the vertex of the {@link Identity} in the {@link TrustGraph}. */
+			final int identity;
 			/**
 			 * Current known number of counted rank steps of rank of target, i.e. the shortest-path
 			 * search algorithm counts this up as it walks the PriorityQueue.
@@ -3649,7 +4577,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			 * In other words: Same as computeRankFromScratch(source, this.identity); */
 			private Integer realRank = null;
 			
-			public Vertex(Vertex previous, Identity identity, int rank) {
+			public Vertex(Vertex previous, int identity, int rank) {
 				this.previous = previous;
 				this.identity = identity;
 				this.rank = rank;
@@ -3663,7 +4591,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 						assert(previous.rankCountedInVertexSteps != Integer.MAX_VALUE);
 						
 						if(previous.realRank != null) {
-							assert(this.identity == source);
+							assert(this.identity == sourceIndex);
 							assert(previous.realRank != Integer.MAX_VALUE);
 							// Steps from source to previous + steps from previous to target. 
 							rankCountedInVertexSteps
@@ -3687,7 +4615,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				 * A slightly optimized version of this is below. */
 				// assert(rank == computeRankFromScratch(source, identity)) : "My rank is invalid!";
 				
-				Integer oldRank = rankCache.put(new ScoreID(source, identity).toString(), rank);
+				Integer oldRank = rankCache.put(
+					new ScoreID(sourceID, graph.getIdentityID(identity)).toString(), rank);
 				assert(oldRank == null || oldRank == rank);
 				
 				// This assert() be very slow, please only enable it for debugging purposes.
@@ -3709,7 +4638,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			 * There are some special cases where the linked list lacks some elements, you will
 			 * understand them if you first read completePathToSourceUsingCache(). */
 			void updateCacheWithMyPath() {
-				assert(this.identity == source) : "Path should be from source to target";
+				assert(this.identity == sourceIndex) : "Path should be from source to target";
 				/* This assert() be very slow, please only enable it for debugging purposes. */
 				// assert(rank == computeRankFromScratch(source, target)) : "My rank is invalid!";
 				
@@ -3743,12 +4672,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				for(; ; v = v.previous) {
-					if(lastRankIsMAX_VALUE && v.identity == target)
+					if(lastRankIsMAX_VALUE && v.identity == targetIndex)
 						reversedRank = Integer.MAX_VALUE;
 					
 					new Vertex(null, v.identity, reversedRank).updateCacheWithMyself();
 					
-					if(v.identity == target) {
+					if(v.identity == targetIndex) {
 						assert(v.rank == 0);
 						assert(v.previous == null);
 						break;
@@ -3758,7 +4687,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				assert(reversedRank == this.rank);
-				assert(v.identity == target) : "Path should be from source to target";
+				assert(v.identity == targetIndex) : "Path should be from source to target";
 			}
 			
 			/**
@@ -3778,10 +4707,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			 * This has to be and is respected in updateCacheWithMyPath().
 			 */
 			Vertex completePathToSourceUsingCache() {
-				assert(this.identity != source);
-				assert(this.identity != target);
+				assert(this.identity != sourceIndex);
+				assert(this.identity != targetIndex);
 				
-				Integer uplink = rankCache.get(new ScoreID(source, identity).toString());
+				Integer uplink = rankCache.get(
+					new ScoreID(sourceID, graph.getIdentityID(identity)).toString());
 				if(uplink == null)
 					return null;
 				
@@ -3809,7 +4739,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				
 				this.realRank = uplink;
 				
-				return new Vertex(this, source, targetRank);
+				return new Vertex(this, sourceIndex, targetRank);
 			}
 		}
 		
@@ -3823,27 +4753,19 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// used to amend a non-sorting queue to be able to handle the few cases of MAX_VALUE which
 		// need sorting?
 		PriorityQueue<Vertex> queue = new PriorityQueue<Vertex>();
-		// Notice:
-		// - Regular HashSets cannot be used for the reasons explained at class IdentifierHashSet.
-		// - IdentityHashSet is not related to class Identity, but to the fact that it compares
-		//   object identity ("==") instead of equals().
-		// - To avoid the above misconception, IdentifierHashSet would be more well-placed here.
-		///  But profiling has shown that it would be significantly slower, since class Identity
-		//   needs to do db4o object activation to compute getID(). (Once we move to SQL, this won't
-		//   be relevant anymore, and the code can be changed to IdentifierHashSet: SQL queries will
-		//   usually return fully initialized objects and thus require no activation.)
-		IdentityHashSet<Identity> seen = new IdentityHashSet<Identity>();
+		// Index = vertex of an Identity in the TrustGraph
+		BitSet seen = new BitSet(graph.getVertexCount());
 		
 		Integer sourceRank = rankCache.get(new ScoreID(source, source).toString());
 		try {
 			if(sourceRank == null)
 				sourceRank = getScore(source, source).getRank();
 			else if(sourceRank == -1) {
-				new Vertex(null, target, -1).updateCacheWithMyself();
+				new Vertex(null, targetIndex, -1).updateCacheWithMyself();
 				return -1;
 			}
 			
-			new Vertex(null, source, sourceRank).updateCacheWithMyself();
+			new Vertex(null, sourceIndex, sourceRank).updateCacheWithMyself();
 			if(source == target)
 				return sourceRank;
 		} catch (NotInTrustTreeException e) {
@@ -3851,22 +4773,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 			sourceRank = -1;
 			// Some unit tests require the special case of initTrustTreeWithoutCommit() not having
 			// been called for an OwnIdentity yet to yield a proper result of "no rank".
-			new Vertex(null, source, sourceRank).updateCacheWithMyself();
-			new Vertex(null, target, sourceRank).updateCacheWithMyself();
+			new Vertex(null, sourceIndex, sourceRank).updateCacheWithMyself();
+			new Vertex(null, targetIndex, sourceRank).updateCacheWithMyself();
 			return sourceRank;
 		}
 		
-		seen.add(target);
-		Vertex targetVertex = new Vertex(null, target, 0); // For Vertex.updateCacheWithMyPath()
-		for(Trust targetTrust : getReceivedTrusts(target)) {
-			Identity truster = targetTrust.getTruster();
-			int rank = targetTrust.getValue() > 0 ? 1 : Integer.MAX_VALUE;
+		seen.set(targetIndex);
+		Vertex targetVertex = new Vertex(null, targetIndex, 0); // For Vertex.updateCacheWithMyPath()
+		for(int i = 0, count = graph.getReceivedTrustCount(targetIndex); i < count; ++i) {
+			int truster = graph.getTruster(targetIndex, i);
+			int rank = graph.getReceivedTrustValue(targetIndex, i) > 0 ? 1 : Integer.MAX_VALUE;
 			
-			if(truster == source) {
+			if(truster == sourceIndex) {
 				// If a direct Trust exists from the OwnIdentity source to the target, then it
 				// must always overwrite any other rank paths. This is a demand of the specification
 				// of the WOT algorithm, see computeAllScoresWithoutCommit().
-				Vertex result = new Vertex(null, target,
+				Vertex result = new Vertex(null, targetIndex,
 					rank != Integer.MAX_VALUE ? rank + sourceRank : Integer.MAX_VALUE);
 				
 				result.updateCacheWithMyself();
@@ -3876,23 +4798,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			queue.add(new Vertex(targetVertex, truster, rank));
 		}
 		
-		// If a vertex has received a Trust from the source, all other Trusts it has received can
-		// be ignored. Thus, we cache the source Trusts: This allows us to first check for a
-		// source Trust before we query all Trusts of a vertex. This should be faster since db4o
-		// queries are expensive.
-		// TODO: Performance: Use an array-backed map since this will be small.
-		// Key = Identity which received the Trust
-		IdentityHashMap<Identity, Trust> sourceTrusts = new IdentityHashMap<Identity, Trust>();
-		for(Trust sourceTrust : getGivenTrusts(source)) {
-			// TODO: Performance: Add & use Trust.getTrusteeID(), can be computed from Trust ID
-			sourceTrusts.put(sourceTrust.getTrustee(), sourceTrust);
-		}
-		
 		while(!queue.isEmpty()) {
 			Vertex vertex = queue.poll();
 			
-			if(vertex.identity == source) {
-				Vertex result = new Vertex(vertex.previous, source, 
+			if(vertex.identity == sourceIndex) {
+				Vertex result = new Vertex(vertex.previous, sourceIndex, 
 					vertex.rank != Integer.MAX_VALUE ? vertex.rank + sourceRank
 					                                 : Integer.MAX_VALUE);
 				
@@ -3904,9 +4814,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// in the below loop which iterates over the trusts. This is how the paper of Ariel
 			// Felner does it ("Position Paper: Dijkstra’s Algorithm versus Uniform Cost Search or a
 			// Case Against Dijkstra’s Algorithm")
-			if(!seen.add(vertex.identity))
+			if(seen.get(vertex.identity))
 				continue; // Necessary because we do not use decreaseKey(), see below
 			
+			seen.set(vertex.identity);
+			
 			Vertex pathToSource = vertex.completePathToSourceUsingCache();
 			if(pathToSource != null) { // null == Cache couldn't answer whether a path exists.
 				if(pathToSource.rank != -1) // -1 == Cache knew for sure that no path exists.
@@ -3915,14 +4827,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 				continue;
 			}
 			
-			Trust trustFromSource = sourceTrusts.get(vertex.identity);
-			if(trustFromSource != null) {
+			// If a vertex has received a Trust from the source, all other Trusts it has received
+			// can be ignored.
+			byte trustFromSource = graph.getTrustValue(sourceIndex, vertex.identity);
+			if(trustFromSource != TrustGraph.NO_TRUST) {
 				// The decision of an OwnIdentity overwrites all other Trust values an identity has
 				// received. Thus, the rank is forced by it as well, and we must not walk other
 				// edges.
 
-				if(trustFromSource.getValue() > 0) {
-					queue.add(new Vertex(vertex, source,
+				if(trustFromSource > 0) {
+					queue.add(new Vertex(vertex, sourceIndex,
 						vertex.rank != Integer.MAX_VALUE ? vertex.rank + 1 : Integer.MAX_VALUE));
 				} else {
 					// An identity with a rank of MAX_VALUE may not give its rank to its trustees.
@@ -3941,10 +4855,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 
 			
-			for(Trust trust : getReceivedTrusts(vertex.identity)) {
-				Identity neighbourVertex = trust.getTruster();
+			for(int i = 0, count = graph.getReceivedTrustCount(vertex.identity); i < count; ++i) {
+				int neighbourVertex = graph.getTruster(vertex.identity, i);
 				
-				if(seen.contains(neighbourVertex))
+				if(seen.get(neighbourVertex))
 					continue; // Prevent infinite loop
 				
 				// FIXME: Performance: The UCS algorithm actually does decreaseKey() here instead of
@@ -3955,7 +4869,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				// feature of a PQ. But it increases memory usage and runtime to have useless
 				// entries in the PQ.
 				
-				if(trust.getValue() > 0) {
+				if(graph.getReceivedTrustValue(vertex.identity, i) > 0) {
 					queue.add(new Vertex(vertex, neighbourVertex,
 						vertex.rank != Integer.MAX_VALUE ? vertex.rank + 1 : Integer.MAX_VALUE));
 				} else {
@@ -3975,7 +4889,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// walk the *whole* graph until we find out that no path exists. So we process
 		// O(IdentityCount) Identitys. We can then opportunistically update the cache for all
 		// O(IdentityCount) of them!
-		for(Identity maybeUnreachable : seen) {
+		for(int maybeUnreachable = seen.nextSetBit(0); maybeUnreachable >= 0;
+				maybeUnreachable = seen.nextSetBit(maybeUnreachable + 1)) {
+			
 			// There is one exception to considering seen Identitys as unreachable:
 			// Those which have received a Trust value from outside of the seen set might have an
 			// uplink to the source, so we do not mark them as unreachable. 
@@ -3984,8 +4900,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// rank of MAX_VALUE, it couldn't give it to the target, but it does have it for itself
 			// and thus is not unreachable on its own.
 			boolean isUnreachable = true;
-			for(Trust trust : getReceivedTrusts(maybeUnreachable)) {
-				if(!seen.contains(trust.getTruster())) {
+			for(int i = 0, count = graph.getReceivedTrustCount(maybeUnreachable); i < count; ++i) {
+				if(!seen.get(graph.getTruster(maybeUnreachable, i))) {
 					isUnreachable = false;
 					break;
 				}
@@ -3998,6 +4914,245 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return result;
 	}
 
+	/**
+	 * Same as {@link #computeRankFromScratch_Caching(OwnIdentity, Identity, Map)}, except that it
+	 * replaces the PriorityQueue by a bucket queue of two levels:
+	 * 
+	 * All edges which the search walks have a weight of either 1 or Integer.MAX_VALUE. Further,
+	 * only the received Trusts of the target can have a weight of Integer.MAX_VALUE as an Identity
+	 * with that rank cannot hand it down to its trustees. Thus, the uniform-cost search degenerates
+	 * into:
+	 * - a breadth-first search which starts at the trusters of all positive Trusts of the target.
+	 *   Its queue is sorted by rank naturally, so a plain FIFO array queue suffices.
+	 * - if it cannot reach the source, a second breadth-first search which starts at the trusters
+	 *   of all zero-or-less Trusts of the target. All of its vertices yield a rank of MAX_VALUE.
+	 * 
+	 * Both operate upon int vertices of the {@link TrustGraph}, use a {@link BitSet} as "seen"
+	 * set and allocate no objects per vertex. As an Identity is only enqueued once, there is no
+	 * need for a decreaseKey() operation.
+	 * 
+	 * The rankCache is used like in the aforementioned function, except that the cache is not
+	 * consulted for the vertices which the search walks: A cached partial path could be of any
+	 * length and thus would break the ordering of the FIFO queue.
+	 * 
+	 * @param rankCache Key = {@link ScoreID#toString()}, Value = rank. */
+	int computeRankFromScratch_BucketQueue(final OwnIdentity source, final Identity target,
+			final Map<String, Integer> rankCache) {
+		
+		final String sourceID = source.getID();
+		final String targetScoreID = new ScoreID(source, target).toString();
+		
+		// Check cache for whether we know the solution to this whole function call already
+		{
+			Integer cachedRank = rankCache.get(targetScoreID);
+			if(cachedRank != null)
+				return cachedRank;
+		}
+		
+		int sourceRank;
+		{
+			final String sourceScoreID = new ScoreID(source, source).toString();
+			final Integer cachedSourceRank = rankCache.get(sourceScoreID);
+			
+			if(cachedSourceRank != null)
+				sourceRank = cachedSourceRank;
+			else {
+				try {
+					sourceRank = getScore(source, source).getRank();
+				} catch(NotInTrustTreeException e) {
+					Logger.warning(this, "initTrustTreeWithoutCommit() not called for: " + source);
+					// Some unit tests require the special case of initTrustTreeWithoutCommit() not
+					// having been called for an OwnIdentity yet to yield a proper result of
+					// "no rank".
+					sourceRank = -1;
+				}
+				rankCache.put(sourceScoreID, sourceRank);
+			}
+		}
+		
+		if(source == target)
+			return sourceRank;
+		
+		final TrustGraph graph = getTrustGraph();
+		final int sourceIndex = graph.getVertex(sourceID);
+		final int targetIndex = graph.getVertex(target.getID());
+		
+		// Identitys without a vertex have neither given nor received a Trust, so there is no path.
+		if(sourceRank == -1 || sourceIndex == -1 || targetIndex == -1) {
+			rankCache.put(targetScoreID, -1);
+			return -1;
+		}
+		
+		final int vertexCount = graph.getVertexCount();
+		// Used by both levels of the bucket queue, each vertex is only enqueued once.
+		final int[] queue = new int[vertexCount];
+		int queueHead = 0;
+		int queueTail = 0;
+		// Index = vertex; Value = the vertex from which the search walked to it, i.e. its trustee
+		// on the path to the target. Used for opportunistically filling the rankCache.
+		final int[] next = new int[vertexCount];
+		// Index = vertex; Set if the vertex was enqueued already.
+		final BitSet seen = new BitSet(vertexCount);
+		// Trusters of zero-or-less Trusts of the target, for the second level of the queue.
+		final int[] distrusters = new int[graph.getReceivedTrustCount(targetIndex)];
+		int distrusterCount = 0;
+		
+		seen.set(targetIndex);
+		for(int i = 0, count = graph.getReceivedTrustCount(targetIndex); i < count; ++i) {
+			final int truster = graph.getTruster(targetIndex, i);
+			final boolean positive = graph.getReceivedTrustValue(targetIndex, i) > 0;
+			
+			if(truster == sourceIndex) {
+				// If a direct Trust exists from the OwnIdentity source to the target, then it
+				// must always overwrite any other rank paths. This is a demand of the specification
+				// of the WOT algorithm, see computeAllScoresWithoutCommit().
+				final int result = positive ? sourceRank + 1 : Integer.MAX_VALUE;
+				rankCache.put(targetScoreID, result);
+				return result;
+			}
+			
+			if(positive) {
+				seen.set(truster);
+				next[truster] = targetIndex;
+				queue[queueTail++] = truster;
+			} else
+				distrusters[distrusterCount++] = truster;
+		}
+		
+		// First level: Breadth-first search across positive Trusts.
+		// Amount of rank steps from the vertex at queueHead to the target.
+		int steps = 1;
+		int stepsEnd = queueTail; // Queue index where the vertices with steps + 1 begin.
+		while(queueHead < queueTail) {
+			if(queueHead == stepsEnd) {
+				++steps;
+				stepsEnd = queueTail;
+			}
+			
+			final int vertex = queue[queueHead++];
+			
+			// If a vertex has received a Trust from the source, all other Trusts it has received
+			// can be ignored.
+			final byte trustFromSource = graph.getTrustValue(sourceIndex, vertex);
+			if(trustFromSource != TrustGraph.NO_TRUST) {
+				// The breadth-first search walks the vertices in order of their steps, so the
+				// first path to the source which we find is a shortest one.
+				if(trustFromSource > 0) {
+					next[sourceIndex] = vertex;
+					final int result = sourceRank + steps + 1;
+					updateRankCacheWithPath(graph, sourceID, sourceIndex, sourceRank, targetIndex,
+						result, next, rankCache);
+					return result;
+				}
+				
+				// A distrusted vertex cannot hand down a rank, see computeRankFromScratch_Caching()
+				continue;
+			}
+			
+			for(int i = 0, count = graph.getReceivedTrustCount(vertex); i < count; ++i) {
+				final int truster = graph.getTruster(vertex, i);
+				
+				if(seen.get(truster) || graph.getReceivedTrustValue(vertex, i) <= 0)
+					continue;
+				
+				seen.set(truster);
+				next[truster] = vertex;
+				queue[queueTail++] = truster;
+			}
+		}
+		
+		// Second level: No positive path exists. Any path which begins with a zero-or-less Trust
+		// of the target results in a rank of MAX_VALUE, no matter its length.
+		// The vertices of the first level are all seen, so the queue has enough space left.
+		queueHead = queueTail = 0;
+		for(int i = 0; i < distrusterCount; ++i) {
+			final int truster = distrusters[i];
+			
+			if(seen.get(truster))
+				continue;
+			
+			seen.set(truster);
+			next[truster] = targetIndex;
+			queue[queueTail++] = truster;
+		}
+		
+		while(queueHead < queueTail) {
+			final int vertex = queue[queueHead++];
+			
+			final byte trustFromSource = graph.getTrustValue(sourceIndex, vertex);
+			if(trustFromSource != TrustGraph.NO_TRUST) {
+				if(trustFromSource > 0) {
+					next[sourceIndex] = vertex;
+					updateRankCacheWithPath(graph, sourceID, sourceIndex, sourceRank, targetIndex,
+						Integer.MAX_VALUE, next, rankCache);
+					return Integer.MAX_VALUE;
+				}
+				
+				continue;
+			}
+			
+			for(int i = 0, count = graph.getReceivedTrustCount(vertex); i < count; ++i) {
+				final int truster = graph.getTruster(vertex, i);
+				
+				if(seen.get(truster) || graph.getReceivedTrustValue(vertex, i) <= 0)
+					continue;
+				
+				seen.set(truster);
+				next[truster] = vertex;
+				queue[queueTail++] = truster;
+			}
+		}
+		
+		// No rank path found. Opportunistically mark the seen Identitys as unreachable, see
+		// the end of computeRankFromScratch_Caching() for why this is valid.
+		for(int maybeUnreachable = seen.nextSetBit(0); maybeUnreachable >= 0;
+				maybeUnreachable = seen.nextSetBit(maybeUnreachable + 1)) {
+			
+			boolean isUnreachable = true;
+			for(int i = 0, count = graph.getReceivedTrustCount(maybeUnreachable); i < count; ++i) {
+				if(!seen.get(graph.getTruster(maybeUnreachable, i))) {
+					isUnreachable = false;
+					break;
+				}
+			}
+			
+			if(isUnreachable) {
+				rankCache.put(
+					new ScoreID(sourceID, graph.getIdentityID(maybeUnreachable)).toString(), -1);
+			}
+		}
+		
+		// All trusters of the target were enqueued, so the above loop has covered it already.
+		assert(Integer.valueOf(-1).equals(rankCache.get(targetScoreID)));
+		return -1;
+	}
+	
+	/**
+	 * For {@link #computeRankFromScratch_BucketQueue(OwnIdentity, Identity, Map)}: Stores the
+	 * ranks of all vertices on the found shortest path from source to target into the rankCache.
+	 * A sub-path of a shortest path is a shortest path as well, so their rank is the rank of the
+	 * source plus the amount of steps from the source.
+	 * 
+	 * @param next See computeRankFromScratch_BucketQueue().
+	 * @param targetRank May be Integer.MAX_VALUE, the vertices in between have a regular rank
+	 *     nevertheless as MAX_VALUE can only be at the end of a path. */
+	private static void updateRankCacheWithPath(final TrustGraph graph, final String sourceID,
+			final int sourceIndex, final int sourceRank, final int targetIndex,
+			final int targetRank, final int[] next, final Map<String, Integer> rankCache) {
+		
+		int rank = sourceRank;
+		for(int vertex = next[sourceIndex]; vertex != targetIndex; vertex = next[vertex]) {
+			++rank;
+			Integer oldRank = rankCache.put(
+				new ScoreID(sourceID, graph.getIdentityID(vertex)).toString(), rank);
+			assert(oldRank == null || oldRank == rank);
+		}
+		
+		assert(targetRank == Integer.MAX_VALUE || targetRank == rank + 1);
+		rankCache.put(new ScoreID(sourceID, graph.getIdentityID(targetIndex)).toString(),
+			targetRank);
+	}
+
 	/**
 	 * Computes the trustees's rank in the trust tree of the truster.
 	 * It gets its best ranked non-zero-capacity truster's rank, plus one.
@@ -4034,22 +5189,27 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int rank = -1;
 		
-		try {
-			Trust treeOwnerTrust = getTrust(truster, trustee);
-			
-			if(treeOwnerTrust.getValue() > 0)
+		final TrustGraph graph = getTrustGraph();
+		final String trusterID = truster.getID();
+		final int trusterVertex = graph.getOrCreateVertex(trusterID);
+		final int trusteeVertex = graph.getOrCreateVertex(trustee.getID());
+		
+		final byte treeOwnerTrust = graph.getTrustValue(trusterVertex, trusteeVertex);
+		if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+			if(treeOwnerTrust > 0)
 				return 1;
 			else
 				return Integer.MAX_VALUE;
-		} catch(NotTrustedException e) { }
+		}
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
+		for(int i = 0, count = graph.getReceivedTrustCount(trusteeVertex); i < count; ++i) {
+			final String trustGiverID = graph.getIdentityID(graph.getTruster(trusteeVertex, i));
 			try {
-				Score score = getScore(truster, trust.getTruster());
+				Score score = getScore(new ScoreID(trusterID, trustGiverID).toString());
 
 				if(score.getCapacity() != 0) { // If the truster has no capacity, he can't give his rank
 					// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
-					if(trust.getValue() > 0 ) {
+					if(graph.getReceivedTrustValue(trusteeVertex, i) > 0 ) {
 						// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
 						if(rank == -1 || score.getRank() < rank)  
 							rank = score.getRank();						
@@ -4555,6 +5715,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		StopWatch time2 = logMINOR ? new StopWatch() : null;
 		int scoresAffectedByCapacityChange = 0;
 		
+		// Used instead of database queries for walking the Trusts, see class TrustGraph.
+		final TrustGraph trustGraph = getTrustGraph();
+		
 		// The capacity of an Identity's Score is the weight which the Trust values given by
 		// the Identity have when computing Scores of other Identitys.
 		// Thus, if the capacity of a Score X changed, we need to update the other Scores in which
@@ -4571,19 +5734,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 			Score scoreWithUpdatedCapacity
 				= changeSet.afterChange != null ? changeSet.afterChange : changeSet.beforeChange;
 			OwnIdentity treeOwner = scoreWithUpdatedCapacity.getTruster();
-			Identity trustGiver = scoreWithUpdatedCapacity.getTrustee();
+			String treeOwnerID = treeOwner.getID();
+			int trustGiver = trustGraph.getVertex(scoreWithUpdatedCapacity.getTrustee().getID());
 			
-			for(Trust givenTrust : getGivenTrusts(trustGiver)) {
-				Identity trustReceiver = givenTrust.getTrustee();
-				ScoreID scoreID = new ScoreID(treeOwner, trustReceiver);
+			for(int i = 0, count = trustGiver != -1 ? trustGraph.getGivenTrustCount(trustGiver) : 0;
+					i < count; ++i) {
+				
+				String trustReceiverID
+					= trustGraph.getIdentityID(trustGraph.getTrustee(trustGiver, i));
+				String scoreID = new ScoreID(treeOwnerID, trustReceiverID).toString();
 				
-				if(!scoresWithUpdatedValue.add(scoreID.toString()))
+				if(!scoresWithUpdatedValue.add(scoreID))
 					continue;
 				
 				Score score;
 				try {
-					// TODO: Performance: Use getScore() which consumes ScoreID
-					score = getScore(treeOwner, trustReceiver);
+					score = getScore(scoreID);
 				} catch(NotInTrustTreeException e) {
 					// No need to create it: updateRanksAfterDistrustWithoutCommit() has already
 					// created all scores which could be created.
@@ -4591,7 +5757,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				Score oldScore = score.clone();
-				score.setValue(computeScoreValue(treeOwner, trustReceiver));
+				score.setValue(computeScoreValue(treeOwner, score.getTrustee()));
 				score.storeWithoutCommit();
 				++scoresAffectedByCapacityChange;
 				 
@@ -4738,10 +5904,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// is the actual trick. See its JavaDoc)
 		HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
 		
+		// Used instead of database queries for walking the Trusts, see class TrustGraph.
+		final TrustGraph trustGraph = getTrustGraph();
+		
 		Score score;
 		while((score = scoreQueue.poll()) != null) {
-			int newRank
-				= computeRankFromScratch_Caching(score.getTruster(), score.getTrustee(), rankCache);
+			final OwnIdentity truster = score.getTruster();
+			final Identity trustee = score.getTrustee();
+			int newRank = mBucketQueueRankComputation
+				? computeRankFromScratch_BucketQueue(truster, trustee, rankCache)
+				: computeRankFromScratch_Caching(truster, trustee, rankCache);
 			
 			if(score.getRank() == newRank) {
 				assert(!scoresCreated.contains(score.getID()))
@@ -4774,17 +5946,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 					: "Each Score is only queued once so each should only be visited once";
 			}
 			
-			final OwnIdentity treeOwner = score.getTruster();
+			final String treeOwnerID = score.getTruster().getID();
+			final int trustGiver = trustGraph.getVertex(score.getTrustee().getID());
 			
-			for(Trust edge : getGivenTrusts(score.getTrustee())) {
-				Identity neighbour = edge.getTrustee();
+			for(int i = 0, count = trustGiver != -1 ? trustGraph.getGivenTrustCount(trustGiver) : 0;
+					i < count; ++i) {
 				
-				if(scoresQueued.contains(new ScoreID(treeOwner, neighbour).toString()))
+				String neighbourID = trustGraph.getIdentityID(trustGraph.getTrustee(trustGiver, i));
+				String neighbourScoreID = new ScoreID(treeOwnerID, neighbourID).toString();
+				
+				if(scoresQueued.contains(neighbourScoreID))
 					continue;
 				
 				Score touchedScore;
 				try  {
-					touchedScore = getScore(treeOwner, neighbour);
+					touchedScore = getScore(neighbourScoreID);
 				} catch(NotInTrustTreeException e) {
 					// No need to create a Score: This function is only called upon distrust.
 					// Distrust can only induce Score creation for the distrusted identity, not
@@ -5090,6 +6266,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				//   whether it is an own identity or not. The rating should never depend on whether it is an own identity!
 				// - Non-own identities do not have a score graph. So the score graph of the converted identity is deleted
 				//   completely and therefore it does not need to be updated.
+				// The TrustGraph does not need updating either: It identifies Identitys by their
+				// ID, and the new Trust objects have the same IDs and values as the old ones.
 				for(Trust oldGivenTrust : getGivenTrusts(oldIdentity)) {
 					Trust newGivenTrust;
 					try {
@@ -5186,6 +6364,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 					
 					Logger.normal(this, "Restoring an already known identity from Freenet: " + oldIdentity);
 					
+					// Obtain the graph before modifying the database, see getTrustGraph().
+					final TrustGraph trustGraph = getTrustGraph();
+					
 					// Normally, one would expect beginTrustListImport() to happen close to the actual trust list changes later on in this function.
 					// But beginTrustListImport() contains an assert(computeAllScoresWithoutCommit()) and that call to the score computation reference
 					// implementation will fail if two identities with the same ID exist.
@@ -5264,8 +6445,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					final ArrayList<Trust> oldGivenTrustsCopy
 						= new ArrayList<Trust>(oldGivenTrusts);
 					
-					for(Trust oldGivenTrust : oldGivenTrusts)
+					for(Trust oldGivenTrust : oldGivenTrusts) {
 						oldGivenTrust.deleteWithoutCommit();
+						trustGraph.removeTrust(oldGivenTrust);
+					}
 					
 					assert(getGivenTrusts(oldIdentity).size() == 0);
 					
@@ -5600,7 +6783,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mSubscriptionManager;
 	}
 	
-	IdentityFetcher getIdentityFetcher() {
+	public IdentityFetcher getIdentityFetcher() {
 		return mFetcher;
 	}
 	
@@ -5700,22 +6883,15 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * This is identities for which {@link #shouldFetchIdentity(Identity)} returns true but
 	 * {@link Identity#getLastFetchedDate()} is <code>new Date(0)</code>.<br><br>
 	 * 
-	 * Notice: This is an expensive database query and thus should only be used for manual
-	 * statistical inquiries at the UI; do not use it in program logic. */
+	 * Notice: This is a database query and thus should only be used for statistical inquiries at
+	 * the UI; do not use it in program logic. */
 	public int getNumberOfUnfetchedIdentities() {
 		Query query = mDB.query();
 		query.constrain(Identity.class);
 		query.constrain(OwnIdentity.class).not();
+		query.descend("mShouldFetch").constrain(true);
 		query.descend("mLastFetchedDate").constrain(new Date(0));
-		
-		// TODO: Performance: Once we have a database table for the value of shouldFetchIdentity()
-		// for each identity remove this loop and do everything in the database query.
-		int count = 0;
-		for(Identity identity : new Persistent.InitializingObjectSet<Identity>(this, query)) {
-			if(shouldFetchIdentity(identity))
-				++count;
-		}
-		return count;
+		return new Persistent.InitializingObjectSet<Identity>(this, query).size();
 	}
 
     public int getNumberOfFullScoreRecomputations() {
@@ -5763,6 +6939,28 @@ public final class WebOfTrust extends WebOfTrustInterface
 			);
 	}
 
+	/**
+	 * @return The number of trust list imports which were handled by
+	 *     {@link #updateScoresAfterTrustListChangeWithoutCommit(Identity, Collection)}. */
+	public int getNumberOfIncrementalScoreRecomputationDueToTrustList() {
+		return mIncrementalScoreRecomputationDueToTrustListCount;
+	}
+
+	/**
+	 * @return The number of trust list imports which changed too many Trusts for an incremental
+	 *     Score computation and thus caused a full one. */
+	public int getNumberOfFullScoreRecomputationDueToTrustList() {
+		return mTrustListFullScoreRecomputationCount;
+	}
+
+	public synchronized double getAverageTimeForIncrementalScoreRecomputationDueToTrustList() {
+		return (double)mIncrementalScoreRecomputationDueToTrustListNanos / 
+			(1000d * 1000d * 1000d *
+				(mIncrementalScoreRecomputationDueToTrustListCount != 0
+			  ?  mIncrementalScoreRecomputationDueToTrustListCount : 1)
+			);
+	}
+
 
     /**
      * Tests whether two WoT are equal.
@@ -25,6 +25,10 @@ import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -111,6 +115,31 @@ public final class XMLTransformer {
 	/** Used for parsing the identity XML when decoding identities*/
 	private final DocumentBuilder mDocumentBuilder;
 	
+	/** Creates the {@link #mParsers}. Not thread-safe, synchronize on it when using it. */
+	private final DocumentBuilderFactory mDocumentBuilderFactory;
+	
+	/**
+	 * Used by {@link #parseDocument(InputStream, int)} instead of {@link #mDocumentBuilder} so
+	 * multiple threads of the {@link IdentityFileProcessor} can parse in parallel: A
+	 * {@link DocumentBuilder} is not thread-safe. */
+	private final ThreadLocal<DocumentBuilder> mParsers = new ThreadLocal<DocumentBuilder>() {
+		@Override protected DocumentBuilder initialValue() {
+			synchronized(mDocumentBuilderFactory) {
+				try {
+					return mDocumentBuilderFactory.newDocumentBuilder();
+				} catch(ParserConfigurationException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	};
+	
+	/**
+	 * Used by {@link #parseIdentityXML(InputStream)} for creating streaming parsers. Creating a
+	 * parser is not guaranteed to be thread-safe, so synchronize on this when doing so. The
+	 * parsers themselves are not shared. */
+	private final XMLInputFactory mXMLInputFactory;
+	
 	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
 	/** Created by mDocumentBuilder, used for building the identity XML DOM when encoding identities */
 	private final DOMImplementation mDOM;
@@ -152,8 +181,17 @@ public final class XMLTransformer {
 			xmlFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
 			// DOM parser uses .setAttribute() to pass to underlying Xerces
 			xmlFactory.setAttribute("http://apache.org/xml/features/disallow-doctype-decl", true);
+			mDocumentBuilderFactory = xmlFactory;
 			mDocumentBuilder = xmlFactory.newDocumentBuilder(); 
 			mDOM = mDocumentBuilder.getDOMImplementation();
+			
+			mXMLInputFactory = XMLInputFactory.newInstance();
+			// Same security precautions as for the DocumentBuilderFactory: We throw upon DTDs in
+			// parseIdentityXML() as we have no equivalent of "disallow-doctype-decl".
+			mXMLInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			mXMLInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			// Same as the DocumentBuilderFactory, which is not namespace aware by default.
+			mXMLInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
 
 			mSerializer = TransformerFactory.newInstance().newTransformer();
 			mSerializer.setOutputProperty(OutputKeys.ENCODING, XML_CHARSET_NAME);
@@ -183,9 +221,7 @@ public final class XMLTransformer {
         if(xmlInputStream.available() > softXMLByteSizeLimit)
             throw new IllegalArgumentException("XML contains too many bytes: " + xmlInputStream.available());
         
-        synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
-            return mDocumentBuilder.parse(xmlInputStream);
-        }
+        return mParsers.get().parse(xmlInputStream);
     }
 
 	public void exportOwnIdentity(OwnIdentity identity, OutputStream os) throws TransformerException {
@@ -301,7 +337,10 @@ public final class XMLTransformer {
 
 	}
 	
-	private static final class ParsedIdentityXML {
+	/**
+	 * Result of {@link XMLTransformer#parseIdentityXML(InputStream)}, to be passed to
+	 * {@link XMLTransformer#importIdentity(FreenetURI, ParsedIdentityXML)}. */
+	static final class ParsedIdentityXML {
 		static final class TrustListEntry {
 			final FreenetURI mTrusteeURI;
 			final byte mTrustValue;
@@ -324,9 +363,170 @@ public final class XMLTransformer {
 	}
 	
 	/**
+	 * Does not require any locks and thus may be called by multiple threads concurrently.
+	 * Errors are not thrown but stored in {@link ParsedIdentityXML#parseError}, so
+	 * {@link #importIdentity(FreenetURI, ParsedIdentityXML)} can mark the edition as
+	 * {@link FetchState#ParsingFailed}.
+	 * 
+	 * Uses a streaming parser instead of building a DOM of the whole file. This also allows
+	 * aborting as soon as there are more than {@link #MAX_IDENTITY_XML_TRUSTEE_AMOUNT} Trusts.
+	 * Yields the same results as the reference implementation
+	 * {@link #parseIdentityXMLWithDOM(InputStream)}: Elements are looked up in the same way as
+	 * {@link Element#getElementsByTagName(String)} does, i.e. at any depth below their parent.
+	 * 
 	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
 	 */
-	private ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) throws IOException {
+	ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) {
+		Logger.normal(this, "Parsing identity XML...");
+		
+		final ParsedIdentityXML result = new ParsedIdentityXML();
+		XMLStreamReader reader = null;
+		
+		try {
+			// Workaround for Java bug, see the stream class for explanation
+			xmlInputStream = new OneBytePerReadInputStream(xmlInputStream);
+			
+			// May not be accurate by definition of available(), see parseDocument().
+			if(xmlInputStream.available() > MAX_IDENTITY_XML_BYTE_SIZE) {
+				throw new IllegalArgumentException(
+					"XML contains too many bytes: " + xmlInputStream.available());
+			}
+			
+			synchronized(mXMLInputFactory) {
+				reader = mXMLInputFactory.createXMLStreamReader(xmlInputStream);
+			}
+			
+			// Depth of the current element below the first <Identity>, including it.
+			// 0 if we haven't reached it yet.
+			int identityDepth = 0;
+			boolean identityFinished = false;
+			// Same for the first <TrustList> below the <Identity>. Only used if
+			// identityPublishesTrustList is true.
+			int trustListDepth = 0;
+			boolean trustListFinished = false;
+			
+			// We continue parsing after the <Identity> element is finished to ensure that the
+			// document is well-formed, like the DOM parser does.
+			while(reader.hasNext()) {
+				switch(reader.next()) {
+					case XMLStreamConstants.DTD:
+						throw new Exception("DOCTYPE is not allowed.");
+					
+					case XMLStreamConstants.START_ELEMENT:
+						if(identityFinished)
+							break;
+						
+						final String name = reader.getLocalName();
+						
+						if(identityDepth == 0) {
+							if(name.equals("Identity")) {
+								parseIdentityElement(reader, result);
+								identityDepth = 1;
+							}
+							break;
+						}
+						
+						++identityDepth;
+						if(trustListDepth > 0)
+							++trustListDepth;
+						
+						if(name.equals("Context")) {
+							result.identityContexts.add(getAttribute(reader, "Name"));
+						} else if(name.equals("Property")) {
+							result.identityProperties.put(getAttribute(reader, "Name"),
+								getAttribute(reader, "Value"));
+						} else if(name.equals("TrustList")) {
+							if(result.identityPublishesTrustList && trustListDepth == 0
+									&& !trustListFinished) {
+								trustListDepth = 1;
+							}
+						} else if(name.equals("Trust") && trustListDepth > 1) {
+							if(result.identityTrustList.size() >= MAX_IDENTITY_XML_TRUSTEE_AMOUNT) {
+								throw new Exception("Too many trust values: > "
+									+ MAX_IDENTITY_XML_TRUSTEE_AMOUNT);
+							}
+							
+							result.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+										new FreenetURI(getAttribute(reader, "Identity")),
+										Byte.parseByte(getAttribute(reader, "Value")),
+										getAttribute(reader, "Comment")
+									));
+						}
+						break;
+					
+					case XMLStreamConstants.END_ELEMENT:
+						if(identityDepth == 0 || identityFinished)
+							break;
+						
+						if(trustListDepth > 0 && --trustListDepth == 0)
+							trustListFinished = true;
+						
+						if(--identityDepth == 0) {
+							identityFinished = true;
+							
+							if(result.identityPublishesTrustList && !trustListFinished)
+								throw new Exception("TrustList is missing.");
+						}
+						break;
+				}
+			}
+			
+			if(!identityFinished)
+				throw new Exception("Identity is missing.");
+		} catch(Exception e) {
+			result.parseError = e;
+		} finally {
+			if(reader != null) {
+				try {
+					// Does not close the underlying stream.
+					reader.close();
+				} catch(XMLStreamException e) {
+					Logger.error(this, "close() failed", e);
+				}
+			}
+		}
+		
+		Logger.normal(this, "Finished parsing identity XML.");
+		
+		return result;
+	}
+	
+	/**
+	 * Parses the attributes of the &lt;Identity&gt; element for
+	 * {@link #parseIdentityXML(InputStream)}, and initializes the lists of the result. */
+	private static void parseIdentityElement(XMLStreamReader reader, ParsedIdentityXML result)
+			throws Exception {
+		
+		final String version = getAttribute(reader, "Version");
+		if(Integer.parseInt(version) > XML_FORMAT_VERSION)
+			throw new Exception("Version " + version + " > " + XML_FORMAT_VERSION);
+		
+		result.identityName = getAttribute(reader, "Name");
+		result.identityPublishesTrustList
+			= Boolean.parseBoolean(getAttribute(reader, "PublishesTrustList"));
+		result.identityContexts = new ArrayList<String>();
+		result.identityProperties = new HashMap<String, String>();
+		
+		if(result.identityPublishesTrustList)
+			result.identityTrustList = new ArrayList<ParsedIdentityXML.TrustListEntry>();
+	}
+	
+	/**
+	 * @return The value of the attribute of the current element, or "" if it does not exist.
+	 *     This is the same behavior as {@link Element#getAttribute(String)}. */
+	private static String getAttribute(XMLStreamReader reader, String name) {
+		final String value = reader.getAttributeValue(null, name);
+		return value != null ? value : "";
+	}
+	
+	/**
+	 * Reference implementation of {@link #parseIdentityXML(InputStream)} which uses a DOM
+	 * parser. Used by unit tests to check whether the streaming implementation yields the same
+	 * results. It is much slower and uses much more memory, do not use it in production.
+	 * 
+	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
+	 */
+	ParsedIdentityXML parseIdentityXMLWithDOM(InputStream xmlInputStream) {
 		Logger.normal(this, "Parsing identity XML...");
 		
 		final ParsedIdentityXML result = new ParsedIdentityXML();
@@ -391,13 +591,26 @@ public final class XMLTransformer {
 	 * @param xmlInputStream The input stream containing the XML.
 	 */
 	public void importIdentity(FreenetURI identityURI, InputStream xmlInputStream) {
-		try { // Catch import problems so we can mark the edition as parsing failed
 		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
-		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
+		importIdentity(identityURI, parseIdentityXML(xmlInputStream));
+	}
+	
+	/**
+	 * Same as {@link #importIdentity(FreenetURI, InputStream)} but for XML which has already
+	 * been parsed using {@link #parseIdentityXML(InputStream)}.
+	 * 
+	 * @return The time in nanoseconds it took to import the XML after all locks were acquired,
+	 *     i.e. excluding the time of waiting for other threads which hold the locks.
+	 */
+	long importIdentity(FreenetURI identityURI, ParsedIdentityXML xmlData) {
+		long startTime = 0;
 		
+		try { // Catch import problems so we can mark the edition as parsing failed
 		synchronized(mWoT) {
 		synchronized(mWoT.getIdentityFetcher()) {
 		synchronized(mSubscriptionManager) {
+			startTime = System.nanoTime();
+			
 			final Identity identity = mWoT.getIdentityByURI(identityURI);
 			final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
 			
@@ -418,17 +631,17 @@ public final class XMLTransformer {
                   + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
                   + "file was in the IdentityFileQueue for some time, not importing: "
                   + identity);
-                return;
+                return System.nanoTime() - startTime;
             }
 			
 			long newEdition = identityURI.getEdition();
 			if(identity.getEdition() > newEdition) {
 				if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
-				return;
+				return System.nanoTime() - startTime;
 			} else if(identity.getEdition() == newEdition) {
 				if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
 					if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
-					return;
+					return System.nanoTime() - startTime;
 				} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
 					Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
 				}
@@ -497,6 +710,8 @@ public final class XMLTransformer {
 						if(positiveScore) {
 							identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
 						}
+						
+						final ArrayList<Trust> trustList = new ArrayList<Trust>(xmlData.identityTrustList.size());
 
 						for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
 							final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
@@ -532,24 +747,23 @@ public final class XMLTransformer {
 							}
 
 							if(trustee != null)
-								mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
-						}
-
-						for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+								trustList.add(new Trust(mWoT, identity, trustee, trustValue, trustComment));
 						}
+						
+						// Deletes the Trusts which are not in the list anymore. Updates the Scores in a single pass instead of
+						// once per Trust.
+						mWoT.setTrustListWithoutCommit(identity, trustList); // Also takes care of SubscriptionManager
 
 						IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
 						if(positiveScore) {
 							for(String id : identitiesWithUpdatedEditionHint)
 								identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
 
-							// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
+							// We do not have to store fetch commands for new identities here, setTrustListWithoutCommit does it.
 						}
 					} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
 						// If it does not publish a trust list anymore, we delete all trust values it has given.
-						for(Trust trust : mWoT.getGivenTrusts(identity))
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+						mWoT.setTrustListWithoutCommit(identity, new ArrayList<Trust>(0)); // Also takes care of SubscriptionManager
 					}
 
 					mWoT.finishTrustListImport();
@@ -600,6 +814,10 @@ public final class XMLTransformer {
 			}
 			}
 		}
+		
+		// If the locks weren't acquired, something was severely broken, so there is no
+		// meaningful time to return.
+		return startTime != 0 ? System.nanoTime() - startTime : 0;
 	}
 
 	public void exportIntroduction(OwnIdentity identity, OutputStream os) throws TransformerException {
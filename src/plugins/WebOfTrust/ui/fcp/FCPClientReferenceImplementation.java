@@ -104,6 +104,26 @@ public final class FCPClientReferenceImplementation {
 	/** The amount of milliseconds for waiting for "Unsubscribed" messages to arrive in {@link #stop()} */
 	private static final int SHUTDOWN_UNSUBSCRIBE_TIMEOUT = 3*1000;
 	
+	/**
+	 * The value of the "MaxEventsPerMessage" field of the "Subscribe" message: The maximal amount
+	 * of events which WOT shall send in one "ObjectChangedEvents" message.
+	 * @see FCPObjectChangedEventsHandler */
+	private static final int MAX_EVENTS_PER_MESSAGE = 256;
+	
+	/**
+	 * The value of the "MaxMessagesInFlight" field of the "Subscribe" message: The maximal amount
+	 * of "ObjectChangedEvents" messages which WOT shall send before receiving our reply to the
+	 * first of them.
+	 * @see FCPObjectChangedEventsHandler */
+	private static final int MAX_MESSAGES_IN_FLIGHT = 4;
+	
+	/**
+	 * The amount of milliseconds for waiting for the previous "ObjectChangedEvents" message to be
+	 * processed when a later one arrives first. Must be less than WOT's timeout for our reply,
+	 * which is one minute.
+	 * @see FCPObjectChangedEventsHandler */
+	private static final int PREVIOUS_EVENTS_TIMEOUT = 30 * 1000;
+	
 	/**
 	 * The implementing child class provides this Map. It is used for obtaining the {@link Identity} objects which are used for
 	 * constructing {@link Trust} and {@link Score} objects which are passed to its handlers.
@@ -251,6 +271,20 @@ public final class FCPClientReferenceImplementation {
 	 * @see SubscriptionManager.Subscription#getID()
 	 */
 	private EnumMap<SubscriptionType, String> mSubscriptionIDs = new EnumMap<SubscriptionType, String>(SubscriptionType.class);
+	
+	/**
+	 * The "Index" of the most recent "ObjectChangedEvents" message which we have processed
+	 * successfully on the current {@link #mConnection}. -1 if none.
+	 * @see FCPObjectChangedEventsHandler */
+	private long mLastProcessedEventsIndex = -1;
+	
+	/**
+	 * The highest "Index" of the "ObjectChangedEvents" messages which we have failed to process on
+	 * the current {@link #mConnection}. -1 if none.
+	 * WOT re-sends the events of failed messages with new indices, so this does not cause the
+	 * re-sent messages to be rejected.
+	 * @see FCPObjectChangedEventsHandler */
+	private long mLastFailedEventsIndex = -1;
 
 	
 	/** Implements interface {@link FredPluginFCPMessageHandler.ClientSideFCPMessageHandler}:
@@ -313,7 +347,8 @@ public final class FCPClientReferenceImplementation {
 				new FCPErrorHandler(),
 				new FCPBeginSynchronizationEventHandler(),
 				new FCPEndSynchronizationEventHandler(),
-				new FCPObjectChangedEventHandler()
+				new FCPObjectChangedEventHandler(),
+				new FCPObjectChangedEventsHandler()
 		};
 		
 		for(FCPMessageHandler handler : handlers)
@@ -549,6 +584,9 @@ public final class FCPClientReferenceImplementation {
 		try {
 			mConnection = mPluginRespirator.connectToOtherPlugin(WOT_FCP_NAME, mFCPMessageReceiver);
 			mSubscriptionIDs.clear();
+			// WOT numbers the messages of each connection on its own.
+			mLastProcessedEventsIndex = -1;
+			mLastFailedEventsIndex = -1;
 			Logger.normal(this, "Connected to WOT, connection: " + mConnection);
 			try {
 				mConnectionStatusChangedHandler.handleConnectionStatusChanged(true);
@@ -707,6 +745,10 @@ public final class FCPClientReferenceImplementation {
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Subscribe");
 		sfs.putOverwrite("To", type.toString());
+		sfs.put("MaxEventsPerMessage", MAX_EVENTS_PER_MESSAGE);
+		sfs.put("MaxMessagesInFlight", MAX_MESSAGES_IN_FLIGHT);
+		// We only care about the current state of objects, not about intermediate ones.
+		sfs.put("Coalesce", true);
 		send(sfs);
 	}
 	
@@ -1094,6 +1136,98 @@ public final class FCPClientReferenceImplementation {
         }
 	}
 
+	/**
+	 * Handles the "ObjectChangedEvents" message which WOT sends instead of multiple
+	 * "ObjectChangedEvent" messages because we requested it with the "MaxEventsPerMessage" field
+	 * of the "Subscribe" message.<br>
+	 * Passes each of the events to the {@link SubscribedObjectChangedHandler} like
+	 * {@link FCPObjectChangedEventHandler} does.<br><br>
+	 * 
+	 * WOT may send multiple of these messages before receiving our reply to the first, but FCP
+	 * does not guarantee them to arrive in order. Thus, if the message has a "PreviousIndex", it
+	 * is only processed once the message with that "Index" has been processed. If that failed,
+	 * this one fails as well, so WOT will re-send both in the proper order.
+	 * 
+	 * @see FCPInterface#sendObjectChangedNotifications(UUID, java.util.List, long, long)
+	 *     The function which sends this message also documents its format.
+	 */
+	private final class FCPObjectChangedEventsHandler
+	        extends MaybeFailingFCPMessageHandler {
+	    
+		@Override
+		public String getMessageName() {
+			return "ObjectChangedEvents";
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public void handle_MaybeFailing(SimpleFieldSet sfs, Bucket data) throws Throwable {
+		    final long index = sfs.getLong("Index");
+		    final long previousIndex = sfs.getLong("PreviousIndex", -1);
+		    // We are being called while synchronized on FCPClientReferenceImplementation.this,
+		    // but waitForPreviousEvents() releases the lock while waiting so we could reconnect.
+		    final FCPPluginConnection connection = mConnection;
+		    boolean success = false;
+		    
+		    try {
+		        waitForPreviousEvents(previousIndex, connection);
+		        
+		        final SubscriptionType subscriptionType
+		            = SubscriptionType.valueOf(sfs.get("SubscriptionType"));
+		        final FCPEventSourceContainerParser<? extends EventSource> parser
+		            = mParsers.get(subscriptionType);
+		        final SubscribedObjectChangedHandler<EventSource> handler
+		            = (SubscribedObjectChangedHandler<EventSource>)
+		                mSubscribedObjectChangedHandlers.get(subscriptionType);
+		        
+		        final int amount = sfs.getInt("Amount");
+		        for(int i = 0; i < amount; ++i) {
+		            final ChangeSet<EventSource> changeSet = (ChangeSet<EventSource>)
+		                parser.parseObjectChangedEvent(sfs.getSubset(Integer.toString(i)));
+		            
+		            handler.handleSubscribedObjectChanged(changeSet);
+		        }
+		        
+		        success = true;
+		    } finally {
+		        if(connection == mConnection) {
+		            if(success)
+		                mLastProcessedEventsIndex = index;
+		            else
+		                mLastFailedEventsIndex = Math.max(mLastFailedEventsIndex, index);
+		            
+		            FCPClientReferenceImplementation.this.notifyAll();
+		        }
+		    }
+		}
+		
+		/**
+		 * Waits until the "ObjectChangedEvents" message with the given "Index" has been processed.
+		 * 
+		 * @param previousIndex The "PreviousIndex" field of the message. Negative if absent.
+		 * @throws IllegalStateException If the previous message has failed, did not arrive in time
+		 *     or the connection was replaced meanwhile. */
+		private void waitForPreviousEvents(long previousIndex, FCPPluginConnection connection)
+		        throws InterruptedException {
+		    
+		    final long deadline = CurrentTimeUTC.getInMillis() + PREVIOUS_EVENTS_TIMEOUT;
+		    
+		    while(mLastProcessedEventsIndex < previousIndex) {
+		        if(connection != mConnection)
+		            throw new IllegalStateException("Reconnected while waiting");
+		        
+		        if(mLastFailedEventsIndex >= previousIndex)
+		            throw new IllegalStateException("Previous events failed: " + previousIndex);
+		        
+		        final long remaining = deadline - CurrentTimeUTC.getInMillis();
+		        if(remaining <= 0)
+		            throw new IllegalStateException("Previous events missing: " + previousIndex);
+		        
+		        FCPClientReferenceImplementation.this.wait(remaining);
+		    }
+		}
+	}
+
 	/**
 	 * Represents the data of a {@link SubscriptionManager.Notification}
 	 */
@@ -4,22 +4,36 @@
 package plugins.WebOfTrust.ui.fcp;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import plugins.WebOfTrust.Configuration;
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.Persistent;
 import plugins.WebOfTrust.Score;
+import plugins.WebOfTrust.ScoreTable;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.SubscriptionManager.BeginSynchronizationNotification;
 import plugins.WebOfTrust.SubscriptionManager.EndSynchronizationNotification;
+import plugins.WebOfTrust.SubscriptionManager.Filter;
 import plugins.WebOfTrust.SubscriptionManager.IdentitiesSubscription;
 import plugins.WebOfTrust.SubscriptionManager.IdentityChangedNotification;
 import plugins.WebOfTrust.SubscriptionManager.Notification;
@@ -30,8 +44,10 @@ import plugins.WebOfTrust.SubscriptionManager.Subscription;
 import plugins.WebOfTrust.SubscriptionManager.SubscriptionExistsAlreadyException;
 import plugins.WebOfTrust.SubscriptionManager.TrustChangedNotification;
 import plugins.WebOfTrust.SubscriptionManager.TrustsSubscription;
+import plugins.WebOfTrust.SubscriptionManager.UnknownClientException;
 import plugins.WebOfTrust.SubscriptionManager.UnknownSubscriptionException;
 import plugins.WebOfTrust.Trust;
+import plugins.WebOfTrust.TrustGraph;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NoSuchContextException;
@@ -87,12 +103,97 @@ public final class FCPInterface
      */
     public static final int SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES = 1;
 
+    /**
+     * Upper limit for the "MaxEventsPerMessage" field of the "Subscribe" message, see
+     * {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     */
+    public static final int MAX_EVENTS_PER_MESSAGE = 256;
+
+    /**
+     * Upper limit for the "MaxMessagesInFlight" field of the "Subscribe" message, see
+     * {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     */
+    public static final int MAX_MESSAGES_IN_FLIGHT = 8;
+
+    /**
+     * Upper limit for the "Identities.Amount" field of the "GetIdentitiesByID" and
+     * "GetScoresByID" messages, see {@link #getBatchIdentityIDs(SimpleFieldSet)}.<br>
+     * All IDs of a message are processed while holding the lock, so this bounds how long a single
+     * message can block WOT.
+     */
+    public static final int MAX_BATCH_SIZE = 1024;
+
+    /**
+     * Default upper limit for the amount of identities which a page of "GetIdentities" looks at,
+     * see {@link #handleGetIdentities(FCPPluginMessage)}.<br>
+     * If only few identities have the requested "Context", filling a page of "Limit" identities
+     * could otherwise require to scan the whole database while holding the lock.
+     * 
+     * @see #setMaxIdentitiesScannedPerPage(int)
+     */
+    public static final int DEFAULT_MAX_IDENTITIES_SCANNED_PER_PAGE = 4096;
+
+    /**
+     * The names which the "Fields" parameter may contain for identities, see
+     * {@link #addIdentityFields(SimpleFieldSet, Identity, String, String, Set)}.
+     */
+    private static final Set<String> IDENTITY_FIELDS = new HashSet<String>(Arrays.asList(
+        "Type", "ID", "Nickname", "RequestURI", "VersionID", "PublishesTrustList", "InsertURI",
+        "CurrentEditionFetchState", "Contexts", "Properties"));
+
+    /**
+     * The names which the "Fields" parameter may contain for trusts, see
+     * {@link #handleGetTrust(SimpleFieldSet, Trust, String, Set)}.
+     */
+    private static final Set<String> TRUST_FIELDS = new HashSet<String>(Arrays.asList(
+        "Truster", "Trustee", "Value", "Comment", "TrusterEdition", "VersionID"));
+
+    /**
+     * The names which the "Fields" parameter may contain for scores, see
+     * {@link #handleGetScore(SimpleFieldSet, Score, String, Set)}.
+     */
+    private static final Set<String> SCORE_FIELDS = new HashSet<String>(Arrays.asList(
+        "Truster", "Trustee", "Capacity", "Rank", "Value", "VersionID"));
+
     private final WebOfTrust mWoT;
     
     private final PluginRespirator mPluginRespirator;
     
     private final SubscriptionManager mSubscriptionManager;
 
+    /** @see #setMaxIdentitiesScannedPerPage(int) */
+    private volatile int mMaxIdentitiesScannedPerPage = DEFAULT_MAX_IDENTITIES_SCANNED_PER_PAGE;
+
+    /**
+     * The messages of {@link #sendObjectChangedNotifications(UUID, List, long, long)} whose reply
+     * has not been received yet, keyed by {@link FCPPluginMessage#identifier}.<br>
+     * {@link #handlePluginFCPMessage(FCPPluginConnection, FCPPluginMessage)} passes the replies
+     * to them.
+     */
+    private final ConcurrentHashMap<String, PendingReply> mPendingReplies
+        = new ConcurrentHashMap<String, PendingReply>();
+
+    /**
+     * The handlers of {@link #handlePluginFCPMessage(FCPPluginConnection, FCPPluginMessage)},
+     * keyed by the "Message" field of the messages they handle.<br>
+     * Not modified after construction, so no synchronization is needed.
+     */
+    private final HashMap<String, MessageHandler> mHandlers;
+
+    /**
+     * Used by {@link MessageHandler} to measure how long it had to wait for locks.<br>
+     * Null if measuring this is disabled by {@link Configuration#MEASURE_FCP_LOCK_WAIT_TIME}, or
+     * if the JVM does not support it, see
+     * {@link ThreadMXBean#isThreadContentionMonitoringSupported()}.
+     */
+    private final ThreadMXBean mThreadMXBean;
+
+    /**
+     * True if {@link #constructThreadMXBean()} enabled thread contention monitoring. It is
+     * JVM-wide, so {@link #stop()} then disables it again to restore the previous setting.
+     */
+    private volatile boolean mEnabledThreadContentionMonitoring = false;
+
     /** Automatically set to true by {@link Logger} if the log level is set to
      *  {@link LogLevel#MINOR} for this class.<br>
      *  Used as performance optimization to prevent construction of the log strings if it is not
@@ -109,6 +210,374 @@ public final class FCPInterface
         mWoT = myWoT;
         mPluginRespirator = mWoT.getPluginRespirator();
         mSubscriptionManager = mWoT.getSubscriptionManager();
+        mHandlers = constructHandlers();
+        mThreadMXBean = mWoT.getConfig().getBoolean(Configuration.MEASURE_FCP_LOCK_WAIT_TIME)
+            ? constructThreadMXBean() : null;
+    }
+
+    /**
+     * Statistics of a single type of FCP message, see {@link FCPInterface#getStatistics()}.<br>
+     * The time of each call is split into the time it waited for locks and the remaining
+     * execution time. Both are also recorded in histograms to show whether slow calls are
+     * frequent or only rare outliers.
+     */
+    public static final class MessageStatistics implements Cloneable {
+        /**
+         * Amount of buckets of {@link #mLockWaitHistogram} and {@link #mExecutionHistogram}.<br>
+         * Bucket i counts calls which took less than 2^i milliseconds and were not counted by a
+         * lower bucket. The last bucket counts all calls which took longer. */
+        public static final int HISTOGRAM_BUCKETS = 18;
+
+        /** The "Message" field of the messages, e.g. "GetIdentities". */
+        public final String mMessage;
+
+        /** Number of messages which have been handled. */
+        public long mCalls = 0;
+
+        /** Part of {@link #mCalls}: Number of messages to which an error was replied. */
+        public long mErrors = 0;
+
+        /**
+         * Total time all {@link #mCalls} were blocked from entering synchronized() blocks.<br>
+         * Always 0 unless {@link Configuration#MEASURE_FCP_LOCK_WAIT_TIME} is enabled and the JVM
+         * supports measuring it. */
+        public long mLockWaitTimeNanoseconds = 0;
+
+        /** Total time of all {@link #mCalls} excluding {@link #mLockWaitTimeNanoseconds}. */
+        public long mExecutionTimeNanoseconds = 0;
+
+        /**
+         * Histogram of the lock wait time of the {@link #mCalls}.
+         * See {@link #HISTOGRAM_BUCKETS}. */
+        public long[] mLockWaitHistogram = new long[HISTOGRAM_BUCKETS];
+
+        /**
+         * Histogram of the execution time of the {@link #mCalls}.
+         * See {@link #HISTOGRAM_BUCKETS}. */
+        public long[] mExecutionHistogram = new long[HISTOGRAM_BUCKETS];
+
+        MessageStatistics(String message) {
+            mMessage = message;
+        }
+
+        void addCall(long lockWaitNanoseconds, long executionNanoseconds, boolean error) {
+            ++mCalls;
+            if(error)
+                ++mErrors;
+            mLockWaitTimeNanoseconds += lockWaitNanoseconds;
+            mExecutionTimeNanoseconds += executionNanoseconds;
+            ++mLockWaitHistogram[getHistogramBucket(lockWaitNanoseconds)];
+            ++mExecutionHistogram[getHistogramBucket(executionNanoseconds)];
+        }
+
+        static int getHistogramBucket(long nanoseconds) {
+            final long milliseconds = TimeUnit.NANOSECONDS.toMillis(nanoseconds);
+            // Bucket i contains [2^(i-1), 2^i) milliseconds, bucket 0 contains [0, 1).
+            final int bucket = 64 - Long.numberOfLeadingZeros(milliseconds);
+            return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+        }
+
+        /**
+         * Gets the exclusive upper limit of the given histogram bucket in milliseconds, or
+         * {@link Long#MAX_VALUE} for the last bucket. */
+        public static long getHistogramBucketLimit(int bucket) {
+            return bucket < HISTOGRAM_BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+        }
+
+        /**
+         * Gets the upper limit of the time in milliseconds which the given fraction of the
+         * {@link #mCalls} took to execute, e.g. 0.9 for the 90th percentile. Excludes the lock
+         * wait time. The precision is limited by the histogram buckets.<br>
+         * ATTENTION: Not synchronized - only use this if you obtained the object using
+         * {@link FCPInterface#getStatistics()}. */
+        public long getExecutionTimePercentile(double fraction) {
+            return getPercentile(mExecutionHistogram, fraction);
+        }
+
+        /**
+         * Same as {@link #getExecutionTimePercentile(double)} for the lock wait time.<br>
+         * ATTENTION: Not synchronized, see {@link #getExecutionTimePercentile(double)}. */
+        public long getLockWaitTimePercentile(double fraction) {
+            return getPercentile(mLockWaitHistogram, fraction);
+        }
+
+        private long getPercentile(long[] histogram, double fraction) {
+            long calls = 0;
+            for(int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+                calls += histogram[i];
+                if(calls >= fraction * mCalls)
+                    return getHistogramBucketLimit(i);
+            }
+            return getHistogramBucketLimit(HISTOGRAM_BUCKETS - 1);
+        }
+
+        /**
+         * Gets the average lock wait time of a call, in milliseconds.<br>
+         * ATTENTION: Not synchronized, see {@link #getExecutionTimePercentile(double)}. */
+        public double getAverageLockWaitTime() {
+            return getAverageMilliseconds(mLockWaitTimeNanoseconds);
+        }
+
+        /**
+         * Gets the average execution time of a call excluding the lock wait time, in
+         * milliseconds.<br>
+         * ATTENTION: Not synchronized, see {@link #getExecutionTimePercentile(double)}. */
+        public double getAverageExecutionTime() {
+            return getAverageMilliseconds(mExecutionTimeNanoseconds);
+        }
+
+        private double getAverageMilliseconds(long totalNanoseconds) {
+            if(mCalls == 0) // prevent division by 0
+                return 0;
+
+            return ((double) totalNanoseconds / (1000 * 1000)) / (double) mCalls;
+        }
+
+        @Override public MessageStatistics clone() {
+            try {
+                final MessageStatistics clone = (MessageStatistics)super.clone();
+                clone.mLockWaitHistogram = mLockWaitHistogram.clone();
+                clone.mExecutionHistogram = mExecutionHistogram.clone();
+                return clone;
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Handles the FCP messages of one value of the "Message" field, see {@link #mHandlers}.<br>
+     * Keeps {@link MessageStatistics} about the calls.
+     */
+    private abstract class MessageHandler {
+        /** Protected by synchronized(this) of the MessageHandler. */
+        private final MessageStatistics mStatistics;
+
+        MessageHandler(String message) {
+            mStatistics = new MessageStatistics(message);
+        }
+
+        /**
+         * Must throw upon error, or return a reply with {@link FCPPluginMessage#success} = false.
+         * May return null if no reply shall be sent. */
+        abstract FCPPluginMessage handle(FCPPluginConnection connection, FCPPluginMessage message)
+            throws Exception;
+
+        /** Calls {@link #handle(FCPPluginConnection, FCPPluginMessage)} and measures it. */
+        final FCPPluginMessage handleAndMeasure(FCPPluginConnection connection,
+                FCPPluginMessage message) throws Exception {
+            
+            final long lockWaitStart = getLockWaitTime();
+            final long start = System.nanoTime();
+            boolean error = true;
+            try {
+                final FCPPluginMessage reply = handle(connection, message);
+                error = reply != null && reply.success != null && !reply.success;
+                return reply;
+            } finally {
+                final long time = System.nanoTime() - start;
+                final long lockWait
+                    = Math.min(Math.max(getLockWaitTime() - lockWaitStart, 0), time);
+                
+                synchronized(this) {
+                    mStatistics.addCall(lockWait, time - lockWait, error);
+                }
+            }
+        }
+
+        synchronized MessageStatistics getStatistics() {
+            return mStatistics.clone();
+        }
+    }
+
+    /**
+     * A {@link MessageHandler} which only returns the {@link FCPPluginMessage#params} of the
+     * reply. 
+     */
+    private abstract class SimpleMessageHandler extends MessageHandler {
+        SimpleMessageHandler(String message) {
+            super(message);
+        }
+
+        abstract SimpleFieldSet handle(SimpleFieldSet params) throws Exception;
+
+        @Override final FCPPluginMessage handle(FCPPluginConnection connection,
+                FCPPluginMessage message) throws Exception {
+            
+            final SimpleFieldSet result = handle(message.params);
+            
+            return result == null ? null
+                : FCPPluginMessage.constructReplyMessage(message, result, null, true, null, null);
+        }
+    }
+
+    private HashMap<String, MessageHandler> constructHandlers() {
+        final ArrayList<MessageHandler> handlers = new ArrayList<MessageHandler>();
+        
+        handlers.add(new SimpleMessageHandler("GetTrust") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrust(params); }});
+        handlers.add(new SimpleMessageHandler("GetScore") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetScore(params); }});
+        handlers.add(new SimpleMessageHandler("CreateIdentity") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleCreateIdentity(params); }});
+        handlers.add(new SimpleMessageHandler("SetTrust") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSetTrust(params); }});
+        handlers.add(new SimpleMessageHandler("RemoveTrust") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveTrust(params); }});
+        handlers.add(new SimpleMessageHandler("AddIdentity") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleAddIdentity(params); }});
+        handlers.add(new SimpleMessageHandler("GetIdentity") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIdentity(params); }});
+        handlers.add(new SimpleMessageHandler("GetOwnIdentities") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetOwnIdentities(params); }});
+        handlers.add(new MessageHandler("GetIdentities") {
+            @Override FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetIdentities(message); }});
+        handlers.add(new MessageHandler("GetTrusts") {
+            @Override FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetTrusts(message); }});
+        handlers.add(new MessageHandler("GetScores") {
+            @Override FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetScores(message); }});
+        handlers.add(new SimpleMessageHandler("GetIdentitiesByID") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIdentitiesByID(params); }});
+        handlers.add(new SimpleMessageHandler("GetScoresByID") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetScoresByID(params); }});
+        handlers.add(new SimpleMessageHandler("GetIdentitiesByScore") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIdentitiesByScore(params); }});
+        handlers.add(new SimpleMessageHandler("GetTrusters") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrusters(params); }});
+        handlers.add(new SimpleMessageHandler("GetTrustersCount") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrustersCount(params); }});
+        handlers.add(new SimpleMessageHandler("GetTrustees") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrustees(params); }});
+        handlers.add(new SimpleMessageHandler("GetTrusteesCount") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrusteesCount(params); }});
+        handlers.add(new SimpleMessageHandler("AddContext") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleAddContext(params); }});
+        handlers.add(new SimpleMessageHandler("RemoveContext") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveContext(params); }});
+        handlers.add(new SimpleMessageHandler("SetProperty") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSetProperty(params); }});
+        handlers.add(new SimpleMessageHandler("GetProperty") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetProperty(params); }});
+        handlers.add(new SimpleMessageHandler("RemoveProperty") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveProperty(params); }});
+        handlers.add(new SimpleMessageHandler("GetIntroductionPuzzles") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIntroductionPuzzles(params); }});
+        handlers.add(new SimpleMessageHandler("GetIntroductionPuzzle") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIntroductionPuzzle(params); }});
+        handlers.add(new SimpleMessageHandler("SolveIntroductionPuzzle") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSolveIntroductionPuzzle(params); }});
+        handlers.add(new MessageHandler("Subscribe") {
+            @Override FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleSubscribe(connection, message); }});
+        handlers.add(new MessageHandler("Unsubscribe") {
+            @Override FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleUnsubscribe(message); }});
+        handlers.add(new SimpleMessageHandler("Ping") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handlePing(); }});
+        handlers.add(new SimpleMessageHandler("RandomName") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRandomName(params); }});
+        handlers.add(new SimpleMessageHandler("GetStatistics") {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetStatistics(); }});
+        
+        final HashMap<String, MessageHandler> result
+            = new HashMap<String, MessageHandler>(handlers.size() * 2);
+        for(MessageHandler handler : handlers) {
+            final MessageHandler existing = result.put(handler.mStatistics.mMessage, handler);
+            assert(existing == null);
+        }
+        return result;
+    }
+
+    /**
+     * Enables measuring the time threads are blocked from entering synchronized() blocks, which
+     * is disabled by default. Only called if {@link Configuration#MEASURE_FCP_LOCK_WAIT_TIME} is
+     * enabled.
+     * 
+     * @return The {@link ThreadMXBean} to obtain the time from, or null if not supported.
+     */
+    private ThreadMXBean constructThreadMXBean() {
+        try {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if(!bean.isThreadContentionMonitoringSupported())
+                return null;
+            
+            if(!bean.isThreadContentionMonitoringEnabled()) {
+                bean.setThreadContentionMonitoringEnabled(true);
+                mEnabledThreadContentionMonitoring = true;
+            }
+            
+            return bean;
+        } catch(SecurityException e) {
+            Logger.warning(FCPInterface.class, "Cannot measure lock wait time of FCP messages", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the total time the current thread has been blocked from entering synchronized()
+     * blocks, in nanoseconds. The JVM only provides millisecond precision.<br>
+     * Returns 0 if disabled or not supported.
+     */
+    private long getLockWaitTime() {
+        if(mThreadMXBean == null)
+            return 0;
+        
+        final ThreadInfo info = mThreadMXBean.getThreadInfo(Thread.currentThread().getId());
+        if(info == null || info.getBlockedTime() < 0)
+            return 0;
+        
+        return TimeUnit.MILLISECONDS.toNanos(info.getBlockedTime());
+    }
+
+    /** Gets the {@link MessageStatistics} of all FCP messages, sorted by message name. */
+    public List<MessageStatistics> getStatistics() {
+        final ArrayList<MessageStatistics> result
+            = new ArrayList<MessageStatistics>(mHandlers.size());
+        
+        for(MessageHandler handler : mHandlers.values())
+            result.add(handler.getStatistics());
+        
+        Collections.sort(result, new Comparator<MessageStatistics>() {
+            @Override public int compare(MessageStatistics a, MessageStatistics b) {
+                return a.mMessage.compareTo(b.mMessage);
+            }
+        });
+        
+        return result;
     }
     
     /** TODO: Could be removed, is empty. */
@@ -120,6 +589,11 @@ public final class FCPInterface
         // By their JavaDoc, they all require the caller to deal with interrupting the thread upon
         // shutdown and all callers are outside of this class (they're typically in
         // SubscriptionManager).
+        
+        if(mEnabledThreadContentionMonitoring) {
+            mThreadMXBean.setThreadContentionMonitoringEnabled(false);
+            mEnabledThreadContentionMonitoring = false;
+        }
     }
 
     /** {@inheritDoc} */
@@ -128,94 +602,32 @@ public final class FCPInterface
             FCPPluginConnection connection, FCPPluginMessage fcpMessage) {
         
         if(fcpMessage.isReplyMessage()) {
+            final PendingReply pending = mPendingReplies.remove(fcpMessage.identifier);
+            if(pending != null) {
+                pending.setReply(fcpMessage);
+                return null;
+            }
+            
             Logger.warning(this, "Received an unexpected reply message: WOT currently should only "
-                + "use FCPPluginConnection.sendSynchronous() for anything which is replied to by "
-                + "the client. Thus, all replies should be delivered to sendSynchronous() instead "
-                + "of the asynchronous message handler. Maybe the "
-                + "sendSynchronous() thread timed out already? Reply message = " + fcpMessage);
+                + "use FCPPluginConnection.sendSynchronous() or sendObjectChangedNotifications() "
+                + "for anything which is replied to by the client. Thus, all replies should be "
+                + "delivered to them instead of the asynchronous message handler. Maybe the "
+                + "sending thread timed out already? Reply message = " + fcpMessage);
             return null;
         }
         
 
         final SimpleFieldSet params = fcpMessage.params;
-        SimpleFieldSet result = null;
         FCPPluginMessage reply = null;
         
         try {
             final String message = params.get("Message");
-            // TODO: Optimization: This should use a HashMap<String, HandleInterface> instead of zillions of equals()
+            final MessageHandler handler = message != null ? mHandlers.get(message) : null;
             
-            if (message.equals("GetTrust")) {
-                result = handleGetTrust(params);
-            } else if(message.equals("GetScore")) {
-                result = handleGetScore(params);
-            }else if (message.equals("CreateIdentity")) {
-                result = handleCreateIdentity(params);
-            } else if (message.equals("SetTrust")) {
-                result = handleSetTrust(params);
-            } else if (message.equals("RemoveTrust")) {
-                result = handleRemoveTrust(params);
-            } else if (message.equals("AddIdentity")) {
-                result = handleAddIdentity(params);
-            } else if (message.equals("GetIdentity")) {
-                result = handleGetIdentity(params);
-            } else if (message.equals("GetOwnIdentities")) {
-                result = handleGetOwnIdentities(params);
-            } else if (message.equals("GetIdentities")) {
-                reply = handleGetIdentities(fcpMessage);
-            } else if (message.equals("GetTrusts")) {
-                reply = handleGetTrusts(fcpMessage);
-            } else if (message.equals("GetScores")) {
-                reply = handleGetScores(fcpMessage);
-            } else if (message.equals("GetIdentitiesByScore")) {
-                result = handleGetIdentitiesByScore(params);
-            } else if (message.equals("GetTrusters")) {
-                result = handleGetTrusters(params);
-            } else if (message.equals("GetTrustersCount")) {
-                result = handleGetTrustersCount(params);
-            } else if (message.equals("GetTrustees")) {
-                result = handleGetTrustees(params);
-            } else if (message.equals("GetTrusteesCount")) {
-                result = handleGetTrusteesCount(params);
-            } else if (message.equals("AddContext")) {
-                result = handleAddContext(params);
-            } else if (message.equals("RemoveContext")) {
-                result = handleRemoveContext(params);
-            } else if (message.equals("SetProperty")) {
-                result = handleSetProperty(params);
-            } else if (message.equals("GetProperty")) {
-                result = handleGetProperty(params);
-            } else if (message.equals("RemoveProperty")) {
-                result = handleRemoveProperty(params);
-            } else if (message.equals("GetIntroductionPuzzles")) {
-                result = handleGetIntroductionPuzzles(params);
-            } else if (message.equals("GetIntroductionPuzzle")) {
-                result = handleGetIntroductionPuzzle(params);
-            } else if (message.equals("SolveIntroductionPuzzle")) {
-                result = handleSolveIntroductionPuzzle(params);
-            } else if (message.equals("Subscribe")) {
-                reply = handleSubscribe(connection, fcpMessage);
-            } else if (message.equals("Unsubscribe")) {
-                reply = handleUnsubscribe(fcpMessage);
-            } else if (message.equals("Ping")) {
-                result = handlePing();
-            } else if (message.equals("RandomName")) {
-                result = handleRandomName(params);
-            } else {
+            if(handler == null)
                 throw new Exception("Unknown message (" + message + ")");
-            }
             
-            // All handlers throw upon error, so at this point, the call has succeeded and the
-            // FCPPluginMessage reply should be available.
-            // But some of the handlers still return the SimpleFieldSet result instead of a
-            // FCPPluginMessage, so we must check whether the FCPPluginMessage reply was constructed
-            // yet and construct it if not.
-            if(reply == null && result != null) {
-                reply = FCPPluginMessage.constructReplyMessage(
-                    fcpMessage, result, null,
-                    true,
-                    null, null);
-            }
+            reply = handler.handleAndMeasure(connection, fcpMessage);
         } catch (final Exception e) {
         	// TODO: This might miss some stuff which are errors. Find a better way of detecting which exceptions are okay.
             // A good solution would be to have the message handling functions return a valid
@@ -367,6 +779,16 @@ public final class FCPInterface
     }
     
     private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final Trust trust, String suffix) {
+    	return handleGetTrust(sfs, trust, suffix, null);
+    }
+    
+    /**
+     * @param fields See {@link #getFieldSelection(SimpleFieldSet, Set)}.
+     *     "Truster" and "Trustee" are always included.
+     */
+    private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final Trust trust,
+            String suffix, Set<String> fields) {
+    	
     	final String prefix = "Trusts." + suffix + ".";
     	
     	if(trust == null) {
@@ -376,10 +798,14 @@ public final class FCPInterface
     	
 		sfs.putOverwrite(prefix + "Truster", trust.getTruster().getID());
 		sfs.putOverwrite(prefix + "Trustee", trust.getTrustee().getID());
-		sfs.putOverwrite(prefix + "Value", Byte.toString(trust.getValue()));
-		sfs.putOverwrite(prefix + "Comment", trust.getComment());
-		sfs.put(prefix + "TrusterEdition", trust.getTrusterEdition());
-		sfs.putOverwrite(prefix + "VersionID", trust.getVersionID().toString());
+		if(isSelected(fields, "Value"))
+			sfs.putOverwrite(prefix + "Value", Byte.toString(trust.getValue()));
+		if(isSelected(fields, "Comment"))
+			sfs.putOverwrite(prefix + "Comment", trust.getComment());
+		if(isSelected(fields, "TrusterEdition"))
+			sfs.put(prefix + "TrusterEdition", trust.getTrusterEdition());
+		if(isSelected(fields, "VersionID"))
+			sfs.putOverwrite(prefix + "VersionID", trust.getVersionID().toString());
 		
     	sfs.putOverwrite("Trusts.Amount", "1");
     	
@@ -391,6 +817,23 @@ public final class FCPInterface
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
 
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
+    	sfs.putOverwrite("Message", "Score");
+    	
+        // Fast path which does not wait for writers, see WebOfTrust.getScoreSnapshot().
+        // If the Score does not exist, we use the database to throw UnknownIdentityException if
+        // the Identitys do not exist.
+        final ScoreTable.Snapshot scores = mWoT.getScoreSnapshot();
+        final ScoreTable.Tree tree = scores != null ? scores.getTree(trusterID) : null;
+        final int vertex = tree != null ? scores.getVertex(trusteeID) : -1;
+        
+        if(tree != null && tree.hasScore(vertex)) {
+            // Scores in the database have no VersionID, so Score.getVersionID() would return a
+            // random one as well.
+            putScoreFields(sfs, "Scores.0.", trusterID, trusteeID, tree.getCapacity(vertex),
+                tree.getRank(vertex), tree.getValue(vertex), UUID.randomUUID(), null);
+            return sfs;
+        }
+    	
         // TODO: Performance: The synchronized() can be removed after this is fixed:
         // https://bugs.freenetproject.org/view.php?id=6247
     	synchronized(mWoT) {
@@ -403,11 +846,20 @@ public final class FCPInterface
     		handleGetScore(sfs, score, "0");
     	}
 
-    	sfs.putOverwrite("Message", "Score");
 		return sfs;
     }
     
     private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final Score score, final String suffix) {
+    	return handleGetScore(sfs, score, suffix, null);
+    }
+    
+    /**
+     * @param fields See {@link #getFieldSelection(SimpleFieldSet, Set)}.
+     *     "Truster" and "Trustee" are always included.
+     */
+    private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final Score score,
+            final String suffix, Set<String> fields) {
+    	
     	final String prefix = "Scores." + suffix + ".";
     	
     	if(score == null) {
@@ -415,12 +867,28 @@ public final class FCPInterface
     		return sfs;
     	}
     	
-		sfs.putOverwrite(prefix + "Truster", score.getTruster().getID());
-		sfs.putOverwrite(prefix + "Trustee", score.getTrustee().getID());
-		sfs.putOverwrite(prefix + "Capacity", Integer.toString(score.getCapacity()));
-		sfs.putOverwrite(prefix + "Rank", Integer.toString(score.getRank()));
-		sfs.putOverwrite(prefix + "Value", Integer.toString(score.getScore()));
-		sfs.putOverwrite(prefix + "VersionID", score.getVersionID().toString());
+		return putScoreFields(sfs, prefix, score.getTruster().getID(), score.getTrustee().getID(),
+			score.getCapacity(), score.getRank(), score.getScore(), score.getVersionID(), fields);
+    }
+    
+    /**
+     * Adds the fields of {@link #handleGetScore(SimpleFieldSet, Score, String, Set)}. Takes the
+     * values instead of a {@link Score} so they can also come from a {@link ScoreTable.Snapshot}.
+     */
+    private SimpleFieldSet putScoreFields(final SimpleFieldSet sfs, final String prefix,
+            final String trusterID, final String trusteeID, final int capacity, final int rank,
+            final int value, final UUID versionID, final Set<String> fields) {
+    	
+		sfs.putOverwrite(prefix + "Truster", trusterID);
+		sfs.putOverwrite(prefix + "Trustee", trusteeID);
+		if(isSelected(fields, "Capacity"))
+			sfs.putOverwrite(prefix + "Capacity", Integer.toString(capacity));
+		if(isSelected(fields, "Rank"))
+			sfs.putOverwrite(prefix + "Rank", Integer.toString(rank));
+		if(isSelected(fields, "Value"))
+			sfs.putOverwrite(prefix + "Value", Integer.toString(value));
+		if(isSelected(fields, "VersionID"))
+			sfs.putOverwrite(prefix + "VersionID", versionID.toString());
 		
     	sfs.putOverwrite("Scores.Amount", "1");
     	
@@ -617,34 +1085,65 @@ public final class FCPInterface
      * @param suffix Added as descriptor for possibly multiple identities. Empty string is special case as explained in the function description.
      */
     private void addIdentityFields(SimpleFieldSet sfs, Identity identity, final String prefix, String suffix) {
+        addIdentityFields(sfs, identity, prefix, suffix, null);
+    }
+
+    /**
+     * Same as {@link #addIdentityFields(SimpleFieldSet, Identity, String, String)}, but only adds
+     * the fields which are contained in the given selection. "Type" and "ID" are always added.<br>
+     * The selection names fields without prefix and suffix, e.g. "Nickname". Use "Contexts" and
+     * "Properties" to select all PREFIXContexts... / PREFIXProperties... fields.<br>
+     * If a selection is given, the deprecated fields are not added: Only new clients specify a
+     * selection.
+     * 
+     * @param fields See {@link #getFieldSelection(SimpleFieldSet, Set)}. Null to add all fields.
+     */
+    private void addIdentityFields(SimpleFieldSet sfs, Identity identity, final String prefix,
+            String suffix, Set<String> fields) {
+        
     	if(identity == null) {
     		sfs.putOverwrite(prefix + "Type" + suffix, "Nonexistent");
     		return;
     	}
     	
     	sfs.putOverwrite(prefix + "Type" + suffix, (identity instanceof OwnIdentity) ? "OwnIdentity" : "Identity");
-        sfs.putOverwrite(prefix + "Nickname" + suffix, identity.getNickname());
-        sfs.putOverwrite(prefix + "RequestURI" + suffix, identity.getRequestURI().toString());
+        if(isSelected(fields, "Nickname"))
+            sfs.putOverwrite(prefix + "Nickname" + suffix, identity.getNickname());
+        if(isSelected(fields, "RequestURI"))
+            sfs.putOverwrite(prefix + "RequestURI" + suffix, identity.getRequestURI().toString());
         
-        sfs.putOverwrite(prefix + "Identity" + suffix, identity.getID()); // TODO: As of 2013-09-11, this is legacy code to support old FCP clients. Remove it after some time.
-        if(logMINOR)
-            sfs.put(prefix + "Identity" + suffix + ".DeprecatedField", true);
+        if(fields == null) {
+            sfs.putOverwrite(prefix + "Identity" + suffix, identity.getID()); // TODO: As of 2013-09-11, this is legacy code to support old FCP clients. Remove it after some time.
+            if(logMINOR)
+                sfs.put(prefix + "Identity" + suffix + ".DeprecatedField", true);
+        }
         
  		sfs.putOverwrite(prefix + "ID" + suffix, identity.getID());
- 		sfs.putOverwrite(prefix + "VersionID" + suffix, identity.getVersionID().toString());
+ 		if(isSelected(fields, "VersionID"))
+ 			sfs.putOverwrite(prefix + "VersionID" + suffix, identity.getVersionID().toString());
  		
-        sfs.put(prefix + "PublishesTrustList" + suffix, identity.doesPublishTrustList());
+        if(isSelected(fields, "PublishesTrustList"))
+            sfs.put(prefix + "PublishesTrustList" + suffix, identity.doesPublishTrustList());
 
- 		if(identity instanceof OwnIdentity) {
+ 		if(identity instanceof OwnIdentity && isSelected(fields, "InsertURI")) {
  			OwnIdentity ownId = (OwnIdentity)identity;
  			sfs.putOverwrite(prefix + "InsertURI" + suffix, ownId.getInsertURI().toString());
  		}
-        sfs.putOverwrite(prefix + "CurrentEditionFetchState" + suffix, identity.getCurrentEditionFetchState().toString());
+        if(isSelected(fields, "CurrentEditionFetchState")) {
+            sfs.putOverwrite(prefix + "CurrentEditionFetchState" + suffix,
+                identity.getCurrentEditionFetchState().toString());
+        }
+        
+        final boolean wantContexts = isSelected(fields, "Contexts");
+        final boolean wantProperties = isSelected(fields, "Properties");
         
- 		final ArrayList<String> contexts = identity.getContexts();
- 		final HashMap<String, String> properties = identity.getProperties();
+ 		final ArrayList<String> contexts
+ 		    = wantContexts ? identity.getContexts() : new ArrayList<String>(0);
+ 		final HashMap<String, String> properties
+ 		    = wantProperties ? identity.getProperties() : new HashMap<String, String>(0);
  		
-        if (suffix.isEmpty()) {	 // Deprecated
+        // Only new clients specify a selection, so they don't need the deprecated fields.
+        if (fields == null && suffix.isEmpty()) {	 // Deprecated
      		int contextCounter = 0;
      		int propertyCounter = 0;
      		
@@ -660,7 +1159,7 @@ public final class FCPInterface
             }
             if(logMINOR)
                 sfs.put(prefix + "Property*.*.DeprecatedField", true);
-        } else { // Deprecated
+        } else if (fields == null) { // Deprecated
      		int contextCounter = 0;
      		int propertyCounter = 0;
      		
@@ -692,8 +1191,10 @@ public final class FCPInterface
             sfs.putOverwrite(prefix + "Properties." + propertyCounter++ + ".Value", property.getValue());
         }
         
-        sfs.put(prefix + "Contexts" + suffix + ".Amount", contextCounter);
-        sfs.put(prefix + "Properties" + suffix + ".Amount", propertyCounter);
+        if(wantContexts)
+            sfs.put(prefix + "Contexts" + suffix + ".Amount", contextCounter);
+        if(wantProperties)
+            sfs.put(prefix + "Properties" + suffix + ".Amount", propertyCounter);
         
         sfs.putOverwrite("Identities.Amount", "1");
     }
@@ -783,26 +1284,150 @@ public final class FCPInterface
 		return sfs;
     }
 
-    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request) {
+    /**
+     * Parses the optional "Fields" parameter of GetIdentities, GetTrusts and GetScores: A
+     * comma-separated list of the names of the fields which the client wants for each object,
+     * for example "Nickname,Contexts".
+     * 
+     * @param validFields The names which the objects of the message have, e.g.
+     *     {@link #IDENTITY_FIELDS}.
+     * @return The selected field names, or null if the parameter is absent, which means that
+     *     all fields are wanted.
+     * @throws InvalidParameterException If a name is not in validFields: Silently ignoring it
+     *     would hide typos of clients.
+     */
+    private static Set<String> getFieldSelection(final SimpleFieldSet params,
+            final Set<String> validFields) throws InvalidParameterException {
+        
+        final String fields = params.get("Fields");
+        
+        if(fields == null)
+            return null;
+        
+        final HashSet<String> result = new HashSet<String>();
+        for(String field : fields.split(",")) {
+            field = field.trim();
+            if(field.isEmpty())
+                continue;
+            
+            if(!validFields.contains(field))
+                throw new InvalidParameterException("Unknown field: " + field);
+            
+            result.add(field);
+        }
+        return result;
+    }
+    
+    /** @param fields See {@link #getFieldSelection(SimpleFieldSet, Set)} */
+    private static boolean isSelected(final Set<String> fields, final String field) {
+        return fields == null || fields.contains(field);
+    }
+    
+    /**
+     * Sets the upper limit for the amount of identities which a page of "GetIdentities" looks at.
+     * Only to be used by unit tests, as they cannot create enough identities to reach the
+     * default.
+     * 
+     * @see #DEFAULT_MAX_IDENTITIES_SCANNED_PER_PAGE */
+    void setMaxIdentitiesScannedPerPage(int maxScanned) {
+        if(maxScanned < 1)
+            throw new IllegalArgumentException("Must scan at least one identity: " + maxScanned);
+        
+        mMaxIdentitiesScannedPerPage = maxScanned;
+    }
+
+    /**
+     * Parses the optional "Limit" parameter of GetIdentities, GetTrusts and GetScores.
+     * 
+     * @return The maximal amount of objects in a reply, or {@link Integer#MAX_VALUE} if the
+     *     parameter is absent.
+     */
+    private static int getPageLimit(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final String limitString = params.get("Limit");
+        
+        if(limitString == null)
+            return Integer.MAX_VALUE;
+        
+        final int limit;
+        try {
+            limit = Integer.parseInt(limitString);
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException("Limit is not a number: " + limitString);
+        }
+        
+        if(limit < 1)
+            throw new InvalidParameterException("Limit must be at least 1: " + limit);
+        
+        return limit;
+    }
+
+    /**
+     * Parameters:<br>
+     * Context = Optional. If specified, only identities which have this context are returned.
+     * <br>
+     * Limit = Optional. The maximal amount of identities in the reply. If there are more, the
+     * reply contains a field "Continuation". Pass its value as parameter "Continuation" to the
+     * next GetIdentities to get the next page. Each page only locks the WOT for its own slice,
+     * so clients should use this for large databases to not block WOT for a long time.<br>
+     * A page looks at no more than {@link #DEFAULT_MAX_IDENTITIES_SCANNED_PER_PAGE} identities.
+     * If it reaches that bound before it contains Limit identities which have the Context, it is
+     * returned with a "Continuation" nevertheless. Thus a page may contain less than Limit
+     * identities, or even none: Only the absence of "Continuation" marks the last page.<br>
+     * Continuation = Optional. The opaque value of "Continuation" of the previous reply.<br>
+     * Fields = Optional. See {@link #getFieldSelection(SimpleFieldSet, Set)} and
+     * {@link #addIdentityFields(SimpleFieldSet, Identity, String, String, Set)}.<br><br>
+     * 
+     * If neither Limit nor Continuation are specified, all identities are returned in their
+     * natural database order, as they were before pagination existed.
+     */
+    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
         final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
         
         result.params.putOverwrite("Message", "Identities");
 		
         final String context = request.params.get("Context");
+        final Set<String> fields = getFieldSelection(request.params, IDENTITY_FIELDS);
+        final int limit = getPageLimit(request.params);
+        final String continuation = request.params.get("Continuation");
+        final boolean paginate = limit != Integer.MAX_VALUE || continuation != null;
+        final int maxScanned = mMaxIdentitiesScannedPerPage;
         
         // WebOfTrust.getAllIdentities() demands that we synchronize while processing the result.
 		synchronized(mWoT) {
 			final boolean getAll = context == null || context.equals("");
+			final List<Identity> identities = paginate
+				? mWoT.getAllIdentitiesAfterID(continuation) : mWoT.getAllIdentities();
 	
 			int i = 0;
-			for(final Identity identity : mWoT.getAllIdentities()) {
+			int scanned = 0;
+			String lastID = null;
+			for(final Identity identity : identities) {
+				if(paginate && scanned == maxScanned) {
+					// lastID may be one which does not match the context, which is fine since
+					// the next page starts after it anyway.
+					result.params.putOverwrite("Continuation", lastID);
+					break;
+				}
+				
 				if(getAll || identity.hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
+					if(i == limit) {
+						// There is at least one more identity, so there will be another page.
+						result.params.putOverwrite("Continuation", lastID);
+						break;
+					}
+					
                     addIdentityFields(result.params, identity,
-                        "Identities." + Integer.toString(i) + ".", "");
+                        "Identities." + Integer.toString(i) + ".", "", fields);
 					
 					++i;
 				}
+				
+				lastID = identity.getID();
+				++scanned;
 			}
             
             // Need to use Overwrite because addIdentityFields() sets it to 1
@@ -812,16 +1437,37 @@ public final class FCPInterface
         return result;
     }
 
-    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request) {
+    /**
+     * Parameters: Limit, Continuation and Fields, see {@link #handleGetIdentities(
+     * FCPPluginMessage)} and {@link #handleGetTrust(SimpleFieldSet, Trust, String, Set)}.
+     */
+    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
         final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
         
         result.params.putOverwrite("Message", "Trusts");
+        
+        final Set<String> fields = getFieldSelection(request.params, TRUST_FIELDS);
+        final int limit = getPageLimit(request.params);
+        final String continuation = request.params.get("Continuation");
+        final boolean paginate = limit != Integer.MAX_VALUE || continuation != null;
    
         // WebOfTrust.getAllTrusts() demands that we synchronize while processing the result.
         synchronized(mWoT) {
+        	final List<Trust> trusts = paginate
+        		? mWoT.getAllTrustsAfterID(continuation) : mWoT.getAllTrusts();
+        	
         	int i = 0;
-			for(final Trust trust : mWoT.getAllTrusts()) {
-                handleGetTrust(result.params, trust, Integer.toString(i));
+        	String lastID = null;
+			for(final Trust trust : trusts) {
+				if(i == limit) {
+					result.params.putOverwrite("Continuation", lastID);
+					break;
+				}
+				
+                handleGetTrust(result.params, trust, Integer.toString(i), fields);
+                lastID = trust.getID();
 				++i;
 			}
             
@@ -832,17 +1478,37 @@ public final class FCPInterface
         return result;
     }
 
-    private FCPPluginMessage handleGetScores(final FCPPluginMessage request) {
+    /**
+     * Parameters: Limit, Continuation and Fields, see {@link #handleGetIdentities(
+     * FCPPluginMessage)} and {@link #handleGetScore(SimpleFieldSet, Score, String, Set)}.
+     */
+    private FCPPluginMessage handleGetScores(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
         final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
        
         result.params.putOverwrite("Message", "Scores");
+        
+        final Set<String> fields = getFieldSelection(request.params, SCORE_FIELDS);
+        final int limit = getPageLimit(request.params);
+        final String continuation = request.params.get("Continuation");
+        final boolean paginate = limit != Integer.MAX_VALUE || continuation != null;
    
         // WebOfTrust.getAllScores() demands that we synchronize while processing the result.
         synchronized(mWoT) {
+        	final List<Score> scores = paginate
+        		? mWoT.getAllScoresAfterID(continuation) : mWoT.getAllScores();
+        	
         	int i = 0;
-			for(final Score score: mWoT.getAllScores()) {
-                handleGetScore(result.params, score, Integer.toString(i));
+        	String lastID = null;
+			for(final Score score: scores) {
+				if(i == limit) {
+					result.params.putOverwrite("Continuation", lastID);
+					break;
+				}
 				
+                handleGetScore(result.params, score, Integer.toString(i), fields);
+                lastID = score.getID();
 				++i;
 			}
             
@@ -853,6 +1519,190 @@ public final class FCPInterface
         return result;
     }
 
+    /**
+     * Parses the list of identity IDs of the "GetIdentitiesByID" and "GetScoresByID" messages:<br>
+     * Identities.Amount = Number of IDs, at most {@link #MAX_BATCH_SIZE}<br>
+     * Identities.X.ID = The ID with index X
+     */
+    private ArrayList<String> getBatchIdentityIDs(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final String amountString = getMandatoryParameter(params, "Identities.Amount");
+        final int amount;
+        try {
+            amount = Integer.parseInt(amountString);
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException(
+                "Identities.Amount is not a number: " + amountString);
+        }
+        if(amount < 0 || amount > MAX_BATCH_SIZE) {
+            throw new InvalidParameterException(
+                "Identities.Amount must be between 0 and " + MAX_BATCH_SIZE + ": " + amount);
+        }
+        
+        final ArrayList<String> result = new ArrayList<String>(amount);
+        for(int i = 0; i < amount; ++i)
+            result.add(getMandatoryParameter(params, "Identities." + i + ".ID"));
+        
+        return result;
+    }
+
+    /**
+     * Marks the entry with the given prefix of a reply to "GetIdentitiesByID" / "GetScoresByID"
+     * as failed:<br>
+     * PREFIXSuccess = false<br>
+     * PREFIXErrorCode = The given errorCode, e.g. "UnknownIdentity"<br>
+     * PREFIXErrorMessage = Human readable description of the error
+     */
+    private static void putBatchError(final SimpleFieldSet sfs, final String prefix,
+            final String errorCode, final Exception e) {
+        
+        sfs.put(prefix + "Success", false);
+        sfs.putOverwrite(prefix + "ErrorCode", errorCode);
+        sfs.putOverwrite(prefix + "ErrorMessage", e.toString());
+    }
+
+    /**
+     * Batch variant of "GetIdentity": Looks up many identities under a single lock acquisition
+     * instead of one FCP round trip and lock acquisition per identity.<br><br>
+     * 
+     * Parameters:<br>
+     * Identities.Amount, Identities.X.ID = See {@link #getBatchIdentityIDs(SimpleFieldSet)}<br>
+     * Truster = Optional. ID of an {@link OwnIdentity}. If specified, the {@link Trust} and
+     * {@link Score} it has assigned to each identity are included in the reply.<br>
+     * Fields = Optional. Selects the fields of the identities, see
+     * {@link #handleGetIdentities(FCPPluginMessage)}.<br><br>
+     * 
+     * The reply contains an entry for each requested ID, with X in the same order as requested:
+     * <br>
+     * Identities.X.ID = The requested ID<br>
+     * Identities.X.Success = true if the identity exists. Then the fields of
+     * {@link #addIdentityFields(SimpleFieldSet, Identity, String, String, Set)} follow, and if
+     * a Truster was specified, the Trusts.X.* and Scores.X.* fields of
+     * {@link #handleGetTrust(SimpleFieldSet, Trust, String)} and
+     * {@link #handleGetScore(SimpleFieldSet, Score, String)}.<br>
+     * Otherwise, see {@link #putBatchError(SimpleFieldSet, String, String, Exception)}. The
+     * ErrorCode is "UnknownIdentity". If a Truster was specified, Trusts.X.Value and
+     * Scores.X.Value are "Nonexistent" then.<br>
+     * Identities.Amount, Trusts.Amount, Scores.Amount = The number of requested IDs
+     */
+    private SimpleFieldSet handleGetIdentitiesByID(final SimpleFieldSet params)
+            throws InvalidParameterException, UnknownIdentityException {
+        
+        final String trusterID = params.get("Truster");
+        final ArrayList<String> identityIDs = getBatchIdentityIDs(params);
+        final Set<String> fields = getFieldSelection(params, IDENTITY_FIELDS);
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "IdentitiesByID");
+        
+        synchronized(mWoT) {
+            final OwnIdentity truster
+                = (trusterID != null ? mWoT.getOwnIdentityByID(trusterID) : null);
+            
+            int i = 0;
+            for(String identityID : identityIDs) {
+                final String prefix = "Identities." + i + ".";
+                sfs.putOverwrite(prefix + "ID", identityID);
+                
+                Identity identity = null;
+                try {
+                    identity = mWoT.getIdentityByID(identityID);
+                    sfs.put(prefix + "Success", true);
+                    addIdentityFields(sfs, identity, prefix, "", fields);
+                } catch(UnknownIdentityException e) {
+                    putBatchError(sfs, prefix, "UnknownIdentity", e);
+                }
+                
+                if(truster != null) {
+                    Trust trust = null;
+                    Score score = null;
+                    
+                    // Unknown identities get "Nonexistent" entries so every index up to
+                    // Trusts.Amount / Scores.Amount exists.
+                    if(identity != null) {
+                        try {
+                            trust = mWoT.getTrust(truster, identity);
+                        } catch(NotTrustedException e) {}
+                        
+                        try {
+                            score = mWoT.getScore(truster, identity);
+                        } catch(NotInTrustTreeException e) {}
+                    }
+                    
+                    handleGetTrust(sfs, trust, Integer.toString(i));
+                    handleGetScore(sfs, score, Integer.toString(i));
+                }
+                
+                ++i;
+            }
+            
+            // Need to use Overwrite because addIdentityFields() etc. set them to 1
+            sfs.putOverwrite("Identities.Amount", Integer.toString(i));
+            if(truster != null) {
+                sfs.putOverwrite("Trusts.Amount", Integer.toString(i));
+                sfs.putOverwrite("Scores.Amount", Integer.toString(i));
+            }
+        }
+        
+        return sfs;
+    }
+
+    /**
+     * Batch variant of "GetScore": Looks up the {@link Score}s of many identities in the trust
+     * tree of one {@link OwnIdentity} under a single lock acquisition.<br><br>
+     * 
+     * Parameters:<br>
+     * Truster = ID of the OwnIdentity<br>
+     * Identities.Amount, Identities.X.ID = The trustees, see
+     * {@link #getBatchIdentityIDs(SimpleFieldSet)}<br><br>
+     * 
+     * The reply contains an entry for each requested ID, with X in the same order as requested:
+     * <br>
+     * Scores.X.Trustee = The requested ID<br>
+     * Scores.X.Success = true if the Score exists. Then the fields of
+     * {@link #handleGetScore(SimpleFieldSet, Score, String)} follow.<br>
+     * Otherwise, see {@link #putBatchError(SimpleFieldSet, String, String, Exception)}. The
+     * ErrorCode is "UnknownIdentity" or "NotInTrustTree".<br>
+     * Scores.Amount = The number of requested IDs
+     */
+    private SimpleFieldSet handleGetScoresByID(final SimpleFieldSet params)
+            throws InvalidParameterException, UnknownIdentityException {
+        
+        final String trusterID = getMandatoryParameter(params, "Truster");
+        final ArrayList<String> trusteeIDs = getBatchIdentityIDs(params);
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "ScoresByID");
+        
+        synchronized(mWoT) {
+            final OwnIdentity truster = mWoT.getOwnIdentityByID(trusterID);
+            
+            int i = 0;
+            for(String trusteeID : trusteeIDs) {
+                final String prefix = "Scores." + i + ".";
+                sfs.putOverwrite(prefix + "Trustee", trusteeID);
+                
+                try {
+                    final Score score = mWoT.getScore(truster, mWoT.getIdentityByID(trusteeID));
+                    sfs.put(prefix + "Success", true);
+                    handleGetScore(sfs, score, Integer.toString(i));
+                } catch(UnknownIdentityException e) {
+                    putBatchError(sfs, prefix, "UnknownIdentity", e);
+                } catch(NotInTrustTreeException e) {
+                    putBatchError(sfs, prefix, "NotInTrustTree", e);
+                }
+                
+                ++i;
+            }
+            
+            // Need to use Overwrite because handleGetScore() sets it to 1
+            sfs.putOverwrite("Scores.Amount", Integer.toString(i));
+        }
+        
+        return sfs;
+    }
+
     private SimpleFieldSet handleGetIdentitiesByScore(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException, FSParseException {
     	final String trusterID = params.get("Truster");
         final String selection = getMandatoryParameter(params, "Selection");
@@ -989,31 +1839,37 @@ public final class FCPInterface
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
 
         String selection = params.get("Selection");
-        final int result;
+        Integer select = null;
         
         if(selection != null) {
         	selection = selection.trim();
-    		final int select;
     		
     		if (selection.equals("+")) select = 1;
     		else if (selection.equals("-")) select = -1;
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
-        	
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
+        }
+        
+        final int result;
+        
+        // Fast path which does not wait for writers, see WebOfTrust.getTrustSnapshot().
+        // If the identity has no Trusts at all, it might not exist, which only the database
+        // knows, so we then use the database to throw UnknownIdentityException if necessary.
+        final TrustGraph.Snapshot trusts = mWoT.getTrustSnapshot();
+        final int vertex = trusts != null ? trusts.getVertex(identityID) : -1;
+        
+        if(trusts != null && trusts.hasTrusts(vertex)) {
+            result = select != null ? trusts.getReceivedTrustCount(vertex, select)
+                                    : trusts.getReceivedTrustCount(vertex);
         } else {
             // getReceivedTrusts() demands that we synchronize while processing the result.
             // Also, we query the Identity truster before calling it, i.e. query two datasets
             // from the database. Thus we must synchronize to ensure that the returned data is
             // coherent - the truster might be deleted meanwhile.
         	synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID)).size();
+        		final Identity identity = mWoT.getIdentityByID(identityID);
+        		result = select != null ? mWoT.getReceivedTrusts(identity, select).size()
+        		                        : mWoT.getReceivedTrusts(identity).size();
         	}
         }
     	
@@ -1076,31 +1932,37 @@ public final class FCPInterface
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
 
         String selection = params.get("Selection");
-        final int result;
+        Integer select = null;
         
         if(selection != null) {
         	selection = selection.trim();
-    		final int select;
     		
     		if (selection.equals("+")) select = 1;
     		else if (selection.equals("-")) select = -1;
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
-        	
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
+        }
+        
+        final int result;
+        
+        // Fast path which does not wait for writers, see WebOfTrust.getTrustSnapshot().
+        // If the identity has no Trusts at all, it might not exist, which only the database
+        // knows, so we then use the database to throw UnknownIdentityException if necessary.
+        final TrustGraph.Snapshot trusts = mWoT.getTrustSnapshot();
+        final int vertex = trusts != null ? trusts.getVertex(identityID) : -1;
+        
+        if(trusts != null && trusts.hasTrusts(vertex)) {
+            result = select != null ? trusts.getGivenTrustCount(vertex, select)
+                                    : trusts.getGivenTrustCount(vertex);
         } else {
             // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
             // Also, we query the Identity truster before calling it, i.e. query two datasets
             // from the database. Thus we must synchronize to ensure that the returned data is
             // coherent - the truster might be deleted meanwhile.
         	synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID)).size();
+        		final Identity identity = mWoT.getIdentityByID(identityID);
+        		result = select != null ? mWoT.getGivenTrusts(identity, select).size()
+        		                        : mWoT.getGivenTrusts(identity).size();
         	}
         }
     	
@@ -1233,6 +2095,36 @@ public final class FCPInterface
      * "To" = "Identities" or "Trusts" or "Scores" - chooses among {@link IdentitiesSubscription} / {@link TrustsSubscription} /
      * {@link ScoresSubscription}.<br><br>
      * 
+     * <b>Optional fields:</b><br>
+     * "MaxEventsPerMessage" = Maximal amount of events which you want to receive in a single
+     * "ObjectChangedEvents" message, see below. Default: 1, which means that you will receive
+     * the single-event "ObjectChangedEvent" messages instead. Limited to
+     * {@link #MAX_EVENTS_PER_MESSAGE}.<br>
+     * "MaxMessagesInFlight" = Maximal amount of "ObjectChangedEvents" messages which WOT may send
+     * to you before receiving your reply to the first of them. Default: 1. Limited to
+     * {@link #MAX_MESSAGES_IN_FLIGHT}.<br>
+     * "Coalesce" = "true" if an object which changes multiple times before you received the
+     * "ObjectChangedEvent" of the first change shall only cause a single event, with "Before"
+     * being the oldest and "After" being the newest version. Default: false. See
+     * {@link SubscriptionManager#setCoalesceNotifications(UUID, boolean)}.<br>
+     * All of these apply to all of your subscriptions. The values of the most recent "Subscribe"
+     * message which specifies them are used.<br><br>
+     * 
+     * <b>Optional filter fields:</b><br>
+     * They restrict the objects of which you are notified by this subscription, see
+     * {@link Filter}. The synchronization only contains objects which match them. If a change
+     * makes an object match, you receive it as if it was created; if a change makes it stop
+     * matching, you receive it as if it was deleted.<br>
+     * "Filter.Context" = Only Identities which have this context. For "To" = "Identities".<br>
+     * "Filter.OwnIdentities" = "true" for only OwnIdentities, "false" for only non-own
+     * Identities. For "To" = "Identities".<br>
+     * "Filter.TrusterID" = Only Trusts / Scores of the Identity / OwnIdentity with this ID.
+     * For "To" = "Trusts" or "Scores".<br>
+     * "Filter.MinimumScore" = Only Scores with at least this value. For "To" = "Scores".<br>
+     * "Filter.MinimumCapacity" = Only Scores with at least this capacity. For "To" = "Scores".
+     * <br>
+     * Specifying a filter field which does not apply to the "To" type is an error.<br><br>
+     * 
      * <b>Reply:</b><br>
      * The reply will have the same {@link FCPPluginMessage#identifier} as the
      * original "Subscribe" message which you first sent to subscribe, or in other words be the
@@ -1271,6 +2163,9 @@ public final class FCPInterface
      * {@link #sendTrustChangedNotification(String, TrustChangedNotification)} /
      * {@link #sendScoreChangedNotification(String, ScoreChangedNotification)}.
      * <br>
+     * If you specified "MaxEventsPerMessage" greater than 1, subsequent "ObjectChangedEvent"s of
+     * the same subscription are instead combined into "ObjectChangedEvents" messages. For the
+     * format, see {@link #sendObjectChangedNotifications(UUID, List, long, long)}.<br>
      * 
      * <h2>Replying to notifications:</h2>
      * By replying with a {@link FCPPluginMessage} with {@link FCPPluginMessage#success}=false, you
@@ -1303,6 +2198,8 @@ public final class FCPInterface
         final String to = getMandatoryParameter(message.params, "To");
 
     	
+        final Filter filter = parseSubscriptionFilter(message.params);
+    	
     	try {
             FCPPluginMessage reply = FCPPluginMessage.constructSuccessReply(message);
             String subscriptionID;
@@ -1313,14 +2210,44 @@ public final class FCPInterface
             // which wouldn't make sense to copy to a WOT client plugin. SubscriptionManager for
             // sure does not need to be in a WOT client plugin)
 	    	if(to.equals("Identities")) {
-                subscriptionID = mSubscriptionManager.subscribeToIdentities(connection.getID());
+                subscriptionID
+                    = mSubscriptionManager.subscribeToIdentities(connection.getID(), filter);
 	    	} else if(to.equals("Trusts")) {
-                subscriptionID = mSubscriptionManager.subscribeToTrusts(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToTrusts(connection.getID(), filter);
 	    	} else if(to.equals("Scores")) {
-                subscriptionID = mSubscriptionManager.subscribeToScores(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToScores(connection.getID(), filter);
 	    	} else
 	    		throw new InvalidParameterException("Invalid subscription type specified: " + to);
 	    	
+	    	final String maxEvents = message.params.get("MaxEventsPerMessage");
+	    	final String maxInFlight = message.params.get("MaxMessagesInFlight");
+	    	if(maxEvents != null || maxInFlight != null) {
+	    	    try {
+	    	        int events = maxEvents != null ? Integer.parseInt(maxEvents) : 1;
+	    	        int inFlight = maxInFlight != null ? Integer.parseInt(maxInFlight) : 1;
+	    	        mSubscriptionManager.setEventBatching(connection.getID(),
+	    	            Math.max(1, Math.min(events, MAX_EVENTS_PER_MESSAGE)),
+	    	            Math.max(1, Math.min(inFlight, MAX_MESSAGES_IN_FLIGHT)));
+	    	    } catch(NumberFormatException e) {
+	    	        // The subscription was filed already, so we must not throw: The client would
+	    	        // not know the SubscriptionID. It will receive single events then.
+	    	        Logger.warning(this, "Invalid event batching parameters: " + message, e);
+	    	    } catch(UnknownClientException e) {
+	    	        // The client has unsubscribed in parallel already.
+	    	        Logger.normal(this, "Client vanished before setting event batching", e);
+	    	    }
+	    	}
+	    	
+	    	final String coalesce = message.params.get("Coalesce");
+	    	if(coalesce != null) {
+	    	    try {
+	    	        mSubscriptionManager.setCoalesceNotifications(connection.getID(),
+	    	            Boolean.parseBoolean(coalesce));
+	    	    } catch(UnknownClientException e) {
+	    	        Logger.normal(this, "Client vanished before setting coalescing", e);
+	    	    }
+	    	}
+	    	
 	    	SimpleFieldSet sfs = reply.params;
 	    	sfs.putOverwrite("Message", "Subscribed");
             sfs.putOverwrite("SubscriptionID", subscriptionID);
@@ -1334,6 +2261,9 @@ public final class FCPInterface
             errorMessage.params.putOverwrite("SubscriptionID", e.existingSubscription.getID());
             errorMessage.params.putOverwrite("To", to);
             return errorMessage;
+    	} catch(IllegalArgumentException e) {
+    	    // Thrown by the SubscriptionManager before subscribing if the filter does not apply.
+    	    throw new InvalidParameterException(e.getMessage());
     	} catch (InterruptedException e) {
     	    // Shutdown of WOT was requested. We must NOT send a message here:
     	    // - Returning a success message would be a lie. It would be very bad to leave the
@@ -1360,6 +2290,39 @@ public final class FCPInterface
         }
     }
     
+    
+    /**
+     * Parses the optional "Filter.*" fields of the "Subscribe" message, see
+     * {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     */
+    private Filter parseSubscriptionFilter(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final SimpleFieldSet filter = params.subset("Filter");
+        if(filter == null)
+            return Filter.NONE;
+        
+        final String ownIdentities = filter.get("OwnIdentities");
+        if(ownIdentities != null && !ownIdentities.equals("true")
+                && !ownIdentities.equals("false"))
+            throw new InvalidParameterException("Invalid Filter.OwnIdentities: " + ownIdentities);
+        
+        final String minimumScore = filter.get("MinimumScore");
+        final String minimumCapacity = filter.get("MinimumCapacity");
+        
+        try {
+            return new Filter(
+                filter.get("Context"),
+                ownIdentities != null ? Boolean.valueOf(ownIdentities) : null,
+                filter.get("TrusterID"),
+                minimumScore != null
+                    ? Integer.parseInt(minimumScore) : Filter.NONE.mMinimumScore,
+                minimumCapacity != null
+                    ? Integer.parseInt(minimumCapacity) : Filter.NONE.mMinimumCapacity);
+        } catch(IllegalArgumentException e) { // Includes NumberFormatException
+            throw new InvalidParameterException("Invalid filter: " + e.getMessage());
+        }
+    }
     /**
      * Handles the "Unsubscribe" message, the inverse operation to the "Subscribe".<br>
      * See {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
@@ -1563,12 +2526,229 @@ public final class FCPInterface
             throw new FCPCallFailedException(reply);
     }
     
+    /**
+     * Sends multiple {@link ObjectChangedNotification}s of the same {@link Subscription} with a
+     * single "ObjectChangedEvents" message. Does NOT wait for the reply, use
+     * {@link PendingReply#await()} upon the returned object for that.<br>
+     * Only to be used for clients which requested it via the "MaxEventsPerMessage" field of the
+     * "Subscribe" message, see {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     * <br><br>
+     * 
+     * The message is formatted as:<br>
+     * "Message" = "ObjectChangedEvents"<br>
+     * "SubscriptionType" = "Identities" or "Trusts" or "Scores"<br>
+     * "Amount" = Number of events<br>
+     * "0.Before.*", "0.After.*", "1.Before.*", ... = The objects of each event, formatted as the
+     * "Before.*" and "After.*" fields of the single-event "ObjectChangedEvent" message.<br>
+     * "Index" = The index of the message among all event messages which you receive. It grows
+     * with each message but not necessarily by 1. Messages which re-send the events of a failed
+     * message get a new index.<br>
+     * "PreviousIndex" = Only present if WOT has sent the message before receiving your reply to
+     * the previous message. Then it is the "Index" of that message.<br><br>
+     * 
+     * FCP does not guarantee the order in which messages arrive. Thus, if "PreviousIndex" is
+     * present, you must wait with processing the message until you have processed the message
+     * with that "Index". If you have failed processing that message, or it does not arrive in
+     * time, you must reply with failure to this one as well: WOT will then re-send both.<br>
+     * If you reply with failure, all events of the message will be re-sent, including the ones
+     * which you processed before the failing one.<br><br>
+     * 
+     * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
+     * interrupt any of your threads which call {@link PendingReply#await()}.
+     * 
+     * @param notifications
+     *     Must not be empty and all must belong to the same {@link Subscription}.
+     * @param index
+     *     The "Index" field, see above.
+     * @param previousIndex
+     *     The "PreviousIndex" field, see above. Negative if it shall be absent.
+     * @throws IOException If the client has disconnected.
+     */
+    public PendingReply sendObjectChangedNotifications(final UUID clientID,
+            final List<? extends ObjectChangedNotification> notifications, final long index,
+            final long previousIndex) throws IOException {
+        
+        assert(!notifications.isEmpty());
+        assert(previousIndex < index);
+        
+        final SubscriptionType type = getSubscriptionType(notifications.get(0));
+        
+        // Not a reply to an existing message since it is sent due to an event, not a client message
+        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
+        final SimpleFieldSet params = fcpMessage.params;
+        params.putOverwrite("Message", "ObjectChangedEvents");
+        params.putOverwrite("SubscriptionType", type.name());
+        params.put("Amount", notifications.size());
+        params.put("Index", index);
+        if(previousIndex >= 0)
+            params.put("PreviousIndex", previousIndex);
+        
+        for(int i = 0; i < notifications.size(); ++i) {
+            final ObjectChangedNotification notification = notifications.get(i);
+            assert(getSubscriptionType(notification) == type);
+            
+            final SimpleFieldSet event = new SimpleFieldSet(true);
+            event.put("Before", getObjectChangedEventContainer(type, notification.getOldObject()));
+            event.put("After", getObjectChangedEventContainer(type, notification.getNewObject()));
+            params.put(Integer.toString(i), event);
+        }
+        
+        final PendingReply pending = new PendingReply(fcpMessage.identifier);
+        // Must be added before sending since the reply might arrive before send() returns.
+        mPendingReplies.put(fcpMessage.identifier, pending);
+        try {
+            mPluginRespirator.getPluginConnectionByID(clientID).send(fcpMessage);
+        } catch(IOException e) {
+            mPendingReplies.remove(fcpMessage.identifier);
+            throw e;
+        } catch(RuntimeException e) {
+            mPendingReplies.remove(fcpMessage.identifier);
+            throw e;
+        }
+        return pending;
+    }
+    
+    private static SubscriptionType getSubscriptionType(ObjectChangedNotification notification) {
+        if(notification instanceof IdentityChangedNotification)
+            return SubscriptionType.Identities;
+        else if(notification instanceof TrustChangedNotification)
+            return SubscriptionType.Trusts;
+        else if(notification instanceof ScoreChangedNotification)
+            return SubscriptionType.Scores;
+        else
+            throw new UnsupportedOperationException("Unknown notification type: " + notification);
+    }
+    
+    /**
+     * Formats the given object in the same way as the "Before" / "After" fields of
+     * {@link #sendChangeNotification(UUID, SubscriptionType, SimpleFieldSet, SimpleFieldSet)}.
+     * 
+     * @param object Null if the event is the creation / deletion of the object.
+     */
+    private SimpleFieldSet getObjectChangedEventContainer(final SubscriptionType type,
+            final Persistent object) {
+        
+        switch(type) {
+            case Identities:
+                return handleGetIdentity((Identity)object, null);
+            case Trusts:
+                return handleGetTrust(new SimpleFieldSet(true), (Trust)object, "0");
+            case Scores:
+                return handleGetScore(new SimpleFieldSet(true), (Score)object, "0");
+            default:
+                throw new UnsupportedOperationException("Unknown SubscriptionType: " + type);
+        }
+    }
+    
+    /**
+     * A message sent by {@link FCPInterface#sendObjectChangedNotifications(UUID, List, long,
+     * long)} for which WOT waits for the reply of the client.
+     */
+    public final class PendingReply {
+        /** The {@link FCPPluginMessage#identifier} of the message. */
+        private final String mIdentifier;
+        
+        private final CountDownLatch mReplyReceived = new CountDownLatch(1);
+        
+        /** Set before {@link #mReplyReceived} is counted down. */
+        private volatile FCPPluginMessage mReply = null;
+        
+        private PendingReply(String identifier) {
+            mIdentifier = identifier;
+        }
+        
+        private void setReply(FCPPluginMessage reply) {
+            mReply = reply;
+            mReplyReceived.countDown();
+        }
+        
+        /**
+         * Waits for the reply of the client.
+         * 
+         * @throws FCPCallFailedException If the client replied with failure.
+         * @throws IOException If no reply arrived within
+         *     {@link FCPInterface#SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES}. This is the same
+         *     as what {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)} does.
+         * @throws InterruptedException If WOT is shutting down. */
+        public void await()
+                throws FCPCallFailedException, IOException, InterruptedException {
+            
+            try {
+                if(!mReplyReceived.await(
+                        SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                    throw new IOException("Timeout while waiting for reply: " + mIdentifier);
+                }
+            } finally {
+                cancel();
+            }
+            
+            if(mReply.success == false)
+                throw new FCPCallFailedException(mReply);
+        }
+        
+        /**
+         * Stops waiting for the reply. Use this if you do not call {@link #await()}, for example
+         * because a previous message failed. Does nothing if the reply has arrived already. */
+        public void cancel() {
+            mPendingReplies.remove(mIdentifier);
+        }
+    }
+    
     private SimpleFieldSet handlePing() {
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
     	sfs.putOverwrite("Message", "Pong");
     	return sfs;
     }
 
+    /**
+     * Replies with the {@link MessageStatistics} of all FCP messages:<br>
+     * Messages.Amount = Number of messages<br>
+     * Messages.X.Message = The "Message" field of message X, e.g. "GetIdentities"<br>
+     * Messages.X.Calls = See {@link MessageStatistics#mCalls}<br>
+     * Messages.X.Errors = See {@link MessageStatistics#mErrors}<br>
+     * Messages.X.LockWaitTimeNanoseconds = See
+     * {@link MessageStatistics#mLockWaitTimeNanoseconds}<br>
+     * Messages.X.ExecutionTimeNanoseconds = See
+     * {@link MessageStatistics#mExecutionTimeNanoseconds}<br>
+     * Messages.X.LockWaitHistogram.Y = Number of calls in bucket Y of
+     * {@link MessageStatistics#mLockWaitHistogram}<br>
+     * Messages.X.ExecutionHistogram.Y = Number of calls in bucket Y of
+     * {@link MessageStatistics#mExecutionHistogram}<br>
+     * HistogramBuckets.Amount = Number of buckets of each histogram<br>
+     * HistogramBuckets.Y.LimitMilliseconds = Exclusive upper limit of bucket Y. Not present for
+     * the last bucket, which counts all calls above the limit of the previous one.
+     */
+    private SimpleFieldSet handleGetStatistics() {
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "Statistics");
+        
+        final List<MessageStatistics> statistics = getStatistics();
+        int i = 0;
+        for(MessageStatistics stats : statistics) {
+            final String prefix = "Messages." + i + ".";
+            sfs.putOverwrite(prefix + "Message", stats.mMessage);
+            sfs.put(prefix + "Calls", stats.mCalls);
+            sfs.put(prefix + "Errors", stats.mErrors);
+            sfs.put(prefix + "LockWaitTimeNanoseconds", stats.mLockWaitTimeNanoseconds);
+            sfs.put(prefix + "ExecutionTimeNanoseconds", stats.mExecutionTimeNanoseconds);
+            
+            for(int bucket = 0; bucket < MessageStatistics.HISTOGRAM_BUCKETS; ++bucket) {
+                sfs.put(prefix + "LockWaitHistogram." + bucket, stats.mLockWaitHistogram[bucket]);
+                sfs.put(prefix + "ExecutionHistogram." + bucket, stats.mExecutionHistogram[bucket]);
+            }
+            ++i;
+        }
+        sfs.put("Messages.Amount", i);
+        
+        sfs.put("HistogramBuckets.Amount", MessageStatistics.HISTOGRAM_BUCKETS);
+        for(int bucket = 0; bucket < MessageStatistics.HISTOGRAM_BUCKETS - 1; ++bucket) {
+            sfs.put("HistogramBuckets." + bucket + ".LimitMilliseconds",
+                MessageStatistics.getHistogramBucketLimit(bucket));
+        }
+        
+        return sfs;
+    }
+
     /**
      * ATTENTION: This does cause the {@link FCPPluginMessage#errorCode} field to be "InternalError"
      * which complicates error handling at the client. Therefore, only use this for Exception types
@@ -11,7 +11,9 @@ import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Score;
+import plugins.WebOfTrust.ScoreTable;
 import plugins.WebOfTrust.Trust;
+import plugins.WebOfTrust.TrustGraph;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
@@ -305,6 +307,12 @@ public class KnownIdentitiesPage extends WebPageImpl {
 		    identities = allIdentities.listIterator(indexOfFirstIdentity);
 		}
 		
+		// Counting the Trusts of an Identity using the snapshot is much cheaper than doing two
+		// database queries for each row. The same applies to getting its Score.
+		final TrustGraph.Snapshot trusts = mWebOfTrust.getTrustSnapshot();
+		final ScoreTable.Snapshot scores = mWebOfTrust.getScoreSnapshot();
+		final ScoreTable.Tree scoreTree = scores != null ? scores.getTree(ownId.getID()) : null;
+		
 		for(int displayed = 0; displayed < IDENTITIES_PER_PAGE && identities.hasNext(); ++displayed) {
 			final Identity id = identities.next();
 			
@@ -338,17 +346,33 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			row.addChild("td", new String[] { "align" }, new String[] { "center" } , id.doesPublishTrustList() ? l10n().getString("Common.Yes") : l10n().getString("Common.No"));
 			
 			//Score
-			try {
-				final Score score = mWebOfTrust.getScore(ownId, id);
-				final int scoreValue = score.getScore();
-				final int rank = score.getRank();
-				
+			boolean hasScore;
+			int scoreValue = 0;
+			int rank = 0;
+			if(scores != null) {
+				final int vertex = scores.getVertex(id.getID());
+				hasScore = scoreTree != null && scoreTree.hasScore(vertex);
+				if(hasScore) {
+					scoreValue = scoreTree.getValue(vertex);
+					rank = scoreTree.getRank(vertex);
+				}
+			} else {
+				try {
+					final Score score = mWebOfTrust.getScore(ownId, id);
+					scoreValue = score.getScore();
+					rank = score.getRank();
+					hasScore = true;
+				} catch (NotInTrustTreeException e) {
+					hasScore = false;
+				}
+			}
+			
+			if(hasScore) {
 				row.addChild("td", new String[] { "align", "style" }, new String[] { "center", "background-color:" + KnownIdentitiesPage.getTrustColor(scoreValue) + ";" } ,
 						Integer.toString(scoreValue) +" ("+
 						(rank != Integer.MAX_VALUE ?  rank : l10n().getString("KnownIdentitiesPage.KnownIdentities.Table.InfiniteRank"))
 						+")");
-			}
-			catch (NotInTrustTreeException e) {
+			} else {
 				// This only happen with identities added manually by the user
 				row.addChild("td", l10n().getString("KnownIdentitiesPage.KnownIdentities.Table.NoScore"));	
 			}
@@ -363,13 +387,17 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			// TODO: Do a direct link to the received-trusts part of the linked page
 			HTMLNode trustersCell = row.addChild("td", new String[] { "align" }, new String[] { "center" });
 			trustersCell.addChild(new HTMLNode("a", "href", IdentityPage.getURI(mWebInterface, id.getID()).toString(),
-					Long.toString(mWebOfTrust.getReceivedTrusts(id).size())));
+					Long.toString(trusts != null
+						? trusts.getReceivedTrustCount(trusts.getVertex(id.getID()))
+						: mWebOfTrust.getReceivedTrusts(id).size())));
 			
 			// Nb Trustees
 			// TODO: Do a direct link to the given-trusts part of the linked page
 			HTMLNode trusteesCell = row.addChild("td", new String[] { "align" }, new String[] { "center" });
 			trusteesCell.addChild(new HTMLNode("a", "href", IdentityPage.getURI(mWebInterface, id.getID()).toString(),
-					Long.toString(mWebOfTrust.getGivenTrusts(id).size())));
+					Long.toString(trusts != null
+						? trusts.getGivenTrustCount(trusts.getVertex(id.getID()))
+						: mWebOfTrust.getGivenTrusts(id).size())));
 			
 			// TODO: Show in advanced mode only once someone finally fixes the "Switch to advanced mode" link on FProxy to work on ALL pages.
 			
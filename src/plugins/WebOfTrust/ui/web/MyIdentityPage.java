@@ -8,6 +8,7 @@ import java.util.Date;
 import java.util.TimeZone;
 
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.TrustGraph;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.web.WebInterface.DeleteOwnIdentityWebInterfaceToadlet;
 import plugins.WebOfTrust.ui.web.WebInterface.EditOwnIdentityWebInterfaceToadlet;
@@ -52,13 +53,24 @@ public class MyIdentityPage extends WebPageImpl {
         // TODO: Performance: The re-querying can be removed once the TODO at
         // WebPageImpl.getLoggedInOwnIdentityFromHTTPSession() of not cloning the
         // OwnIdentity has been been resolved.
-		synchronized(mWebOfTrust) {
-            final OwnIdentity identity
-                = mWebOfTrust.getOwnIdentityByID(mLoggedInOwnIdentity.getID());
-            
-            mReceivedTrustCount = mWebOfTrust.getReceivedTrusts(identity).size();
-            mGivenTrustCount = mWebOfTrust.getGivenTrusts(identity).size();
-		}
+        // The snapshot allows us to not wait for a possibly long running trust list import.
+        // If the OwnIdentity has no Trusts it may have been deleted, so we then use the database
+        // which will throw UnknownIdentityException if so.
+        final TrustGraph.Snapshot trusts = mWebOfTrust.getTrustSnapshot();
+        final int vertex = trusts != null ? trusts.getVertex(mLoggedInOwnIdentity.getID()) : -1;
+        
+        if(trusts != null && trusts.hasTrusts(vertex)) {
+            mReceivedTrustCount = trusts.getReceivedTrustCount(vertex);
+            mGivenTrustCount = trusts.getGivenTrustCount(vertex);
+        } else {
+            synchronized(mWebOfTrust) {
+                final OwnIdentity identity
+                    = mWebOfTrust.getOwnIdentityByID(mLoggedInOwnIdentity.getID());
+                
+                mReceivedTrustCount = mWebOfTrust.getReceivedTrusts(identity).size();
+                mGivenTrustCount = mWebOfTrust.getGivenTrusts(identity).size();
+            }
+        }
 
 		editIdentityToadlet = mWebInterface.getToadlet(EditOwnIdentityWebInterfaceToadlet.class);
 		deleteIdentityToadlet = mWebInterface.getToadlet(DeleteOwnIdentityWebInterfaceToadlet.class);
@@ -9,15 +9,19 @@ import static plugins.WebOfTrust.Configuration.DEFAULT_VERIFY_SCORES_INTERVAL;
 import static plugins.WebOfTrust.ui.web.CommonWebUtils.formatTimeDelta;
 
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Configuration;
 import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.IdentityFetcher.StartupStatistics;
 import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
 import plugins.WebOfTrust.SubscriptionManager;
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.MessageStatistics;
 import freenet.clients.http.ToadletContext;
 import plugins.WebOfTrust.util.CurrentTimeUTC;
 import freenet.support.HTMLNode;
@@ -45,8 +49,11 @@ public class StatisticsPage extends WebPageImpl {
 	@Override
 	public void make(final boolean mayWrite) {
 		makeSummary();
+		makeIdentityFetcherBox();
 		makeIdentityFileQueueBox();
 		makeIdentityFileProcessorBox();
+		makeSubscriptionManagerBox();
+		makeFCPBox();
 		makeMaintenanceBox();
 	}
 
@@ -74,6 +81,9 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationTime") + " " + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToDistrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationsSlow") + mWebOfTrust.getNumberOfSlowIncrementalScoreRecomputationDueToDistrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationTimeSlow") + mWebOfTrust.getAverageTimeForSlowIncrementalScoreRecomputationDueToDistrust()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustListRecomputations") + " " + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustListRecomputationTime") + " " + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToTrustList()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustListFullRecomputations") + " " + mWebOfTrust.getNumberOfFullScoreRecomputationDueToTrustList()));
 		IntroductionPuzzleStore puzzleStore = mWebOfTrust.getIntroductionPuzzleStore();
 		synchronized(puzzleStore) {
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnsolvedOwnCaptchas") + ": " + puzzleStore.getOwnCatpchaAmount(false)));
@@ -132,6 +142,31 @@ public class StatisticsPage extends WebPageImpl {
 		box.addChild(list);
 	}
 
+	public void makeIdentityFetcherBox() {
+		String l10nPrefix = "StatisticsPage.IdentityFetcherBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		StartupStatistics stats = mWebOfTrust.getIdentityFetcher().getStartupStatistics();
+		long now = CurrentTimeUTC.getInMillis();
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "StartupProgress",
+			new String[] { "processed", "total", "started", "batches" },
+			new String[] { Integer.toString(stats.mProcessedIdentitys),
+			               Integer.toString(stats.mIdentitysToFetch),
+			               Integer.toString(stats.mStartedFetches),
+			               Integer.toString(stats.mBatches) })));
+		
+		if(stats.mFinishTime != 0) {
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "StartupFinished",
+				"duration", formatTime(stats.mFinishTime - stats.mStartTime))));
+		} else if(stats.mStartTime != 0) {
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "StartupRunning",
+				"duration", formatTime(now - stats.mStartTime))));
+		}
+		
+		box.addChild(list);
+	}
+
 	public void makeIdentityFileProcessorBox() {
 		String l10nPrefix = "StatisticsPage.IdentityFileProcessorBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
@@ -151,9 +186,93 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageProcessingTimeSecs")
 			+ " " + stats.getAverageXMLImportTime()));
 		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageParsingTimeSecs")
+			+ " " + stats.getAverageXMLParsingTime()));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageImportTimeSecs")
+			+ " " + stats.getAverageXMLImportTimeWithoutLocking()));
+		
+		box.addChild(list);
+	}
+
+	public void makeSubscriptionManagerBox() {
+		String l10nPrefix = "StatisticsPage.SubscriptionManagerBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		List<ClientStatistics> clients = mWebOfTrust.getSubscriptionManager().getClientStatistics();
+		
+		if(clients.isEmpty())
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "NoClients")));
+		
+		for(ClientStatistics stats : clients) {
+			String client = l10n().getString(l10nPrefix + "Client",
+				new String[] { "id",
+				               "pending",
+				               "lag",
+				               "deployed",
+				               "throughput",
+				               "coalesced" },
+				new String[] { stats.mFCP_ID.toString(),
+				               Integer.toString(stats.mPendingNotifications),
+				               formatTime(stats.mLagMilliseconds),
+				               Long.toString(stats.mDeployedNotifications),
+				               String.format("%.2f", stats.getThroughput()),
+				               Long.toString(stats.mCoalescedNotifications) });
+			
+			list.addChild(new HTMLNode("li", client));
+		}
+		
 		box.addChild(list);
 	}
 
+	public void makeFCPBox() {
+		String l10nPrefix = "StatisticsPage.FCPBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		boolean anyCalls = false;
+		
+		for(MessageStatistics stats : mWebOfTrust.getFCPInterface().getStatistics()) {
+			if(stats.mCalls == 0)
+				continue;
+			
+			anyCalls = true;
+			String message = l10n().getString(l10nPrefix + "Message",
+				new String[] { "message",
+				               "calls",
+				               "errors",
+				               "execution",
+				               "lockWait",
+				               "execution90",
+				               "lockWait90" },
+				new String[] { stats.mMessage,
+				               Long.toString(stats.mCalls),
+				               Long.toString(stats.mErrors),
+				               String.format("%.2f", stats.getAverageExecutionTime()),
+				               String.format("%.2f", stats.getAverageLockWaitTime()),
+				               formatPercentile(stats.getExecutionTimePercentile(0.9)),
+				               formatPercentile(stats.getLockWaitTimePercentile(0.9)) });
+			
+			list.addChild(new HTMLNode("li", message));
+		}
+		
+		if(!anyCalls)
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "NoCalls")));
+		
+		box.addChild(list);
+	}
+
+	/**
+	 * @param milliseconds A value of {@link MessageStatistics#getExecutionTimePercentile(double)}
+	 *     or {@link MessageStatistics#getLockWaitTimePercentile(double)}. */
+	private String formatPercentile(long milliseconds) {
+		if(milliseconds == Long.MAX_VALUE) {
+			return "> " + formatTime(MessageStatistics.getHistogramBucketLimit(
+				MessageStatistics.HISTOGRAM_BUCKETS - 2), 2, true);
+		}
+		
+		return formatTime(milliseconds, 2, true);
+	}
+
 	public void makeMaintenanceBox() {
 		String l10nPrefix = "StatisticsPage.MaintenanceBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
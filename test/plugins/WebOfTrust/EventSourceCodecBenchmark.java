@@ -0,0 +1,92 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark of the size, encoding time and decoding
+ * time of the {@link EventSourceCodec} which {@link Persistent#serialize()} uses for
+ * {@link Identity}s, {@link OwnIdentity}s, {@link Trust}s and {@link Score}s, compared to the
+ * standard Java serialization which it used before.<br><br>
+ *
+ * It is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project.
+ */
+public final class EventSourceCodecBenchmark extends AbstractJUnit4BaseTest {
+
+	private static final int OWN_IDENTITY_COUNT = 5;
+
+	private static final int IDENTITY_COUNT = 200;
+
+	private static final int TRUST_COUNT = IDENTITY_COUNT * 5;
+
+	/** Amount of times each object is encoded and decoded after {@link #WARMUP_ITERATIONS}. */
+	private static final int ITERATIONS = 20;
+
+	/** Amount of iterations which are not measured to give the JIT time to compile the code. */
+	private static final int WARMUP_ITERATIONS = 5;
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Test public void benchmark() throws MalformedURLException, InvalidParameterException,
+			NotTrustedException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		ArrayList<Identity> identities = addRandomIdentities(OWN_IDENTITY_COUNT, IDENTITY_COUNT);
+		addRandomTrustValues(identities, TRUST_COUNT);
+
+		synchronized(mWebOfTrust) {
+			benchmark("Identity", new ArrayList<Persistent>(mWebOfTrust.getAllIdentities()));
+			benchmark("Trust", new ArrayList<Persistent>(mWebOfTrust.getAllTrusts()));
+			benchmark("Score", new ArrayList<Persistent>(mWebOfTrust.getAllScores()));
+		}
+	}
+
+	private void benchmark(String name, ArrayList<Persistent> objects) {
+		for(boolean compact : new boolean[] { false, true }) {
+			long bytes = 0;
+			long encodeTime = 0;
+			long decodeTime = 0;
+
+			for(int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; ++i) {
+				final boolean measure = i >= WARMUP_ITERATIONS;
+
+				for(Persistent object : objects) {
+					long startTime = System.nanoTime();
+					final byte[] encoded = compact
+						? object.serialize() : object.serializeWithJavaSerialization();
+					if(measure)
+						encodeTime += System.nanoTime() - startTime;
+
+					startTime = System.nanoTime();
+					Persistent.deserialize(mWebOfTrust, encoded);
+					if(measure) {
+						decodeTime += System.nanoTime() - startTime;
+						bytes += encoded.length;
+					}
+				}
+			}
+
+			final long count = (long)objects.size() * ITERATIONS;
+			System.out.println(name + (compact ? " (EventSourceCodec): " : " (Java): ")
+				+ objects.size() + " objects; average size: " + (bytes / count) + " bytes"
+				+ "; average encoding time: " + (encodeTime / count / 1000) + "us"
+				+ "; average decoding time: " + (decodeTime / count / 1000) + "us");
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
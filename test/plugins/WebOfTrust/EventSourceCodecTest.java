@@ -0,0 +1,84 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/** Tests {@link EventSourceCodec} against the standard Java serialization it replaces. */
+public final class EventSourceCodecTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException,
+			NotTrustedException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		ArrayList<Identity> identities = addRandomIdentities(3, 20);
+		addRandomTrustValues(identities, 60);
+	}
+
+	@Test public void testEncodeDecode() throws IllegalArgumentException, IllegalAccessException {
+		synchronized(mWebOfTrust) {
+			for(Identity identity : mWebOfTrust.getAllIdentities()) {
+				testEncodeDecode(identity);
+			}
+
+			for(Trust trust : mWebOfTrust.getAllTrusts()) {
+				testEncodeDecode(trust);
+			}
+
+			for(Score score : mWebOfTrust.getAllScores()) {
+				final Score decoded = (Score)testEncodeDecode(score);
+				// An OwnIdentity has a Score in itself. The decoded Score shall not contain two
+				// different copies of it.
+				assertEquals(score.getTruster() == score.getTrustee(),
+					decoded.getTruster() == decoded.getTrustee());
+			}
+		}
+	}
+
+	/**
+	 * Checks whether {@link Persistent#serialize()} uses {@link EventSourceCodec}, and whether
+	 * the object it produces is equal to the one which standard Java serialization produces.
+	 * Also checks whether data of the standard Java serialization can still be read.
+	 */
+	private Persistent testEncodeDecode(Persistent original)
+			throws IllegalArgumentException, IllegalAccessException {
+
+		final byte[] encoded = original.serialize();
+		final byte[] legacyEncoded = original.serializeWithJavaSerialization();
+		assertTrue(EventSourceCodec.isEncoded(encoded));
+		assertFalse(EventSourceCodec.isEncoded(legacyEncoded));
+		assertTrue(encoded.length < legacyEncoded.length);
+
+		final Persistent decoded = Persistent.deserialize(mWebOfTrust, encoded);
+		final Persistent legacyDecoded = Persistent.deserialize(mWebOfTrust, legacyEncoded);
+		assertEquals(original, decoded);
+		assertEquals(original, legacyDecoded);
+
+		// equals() does not compare all fields, so compare them all. The two decoded objects
+		// went through the same activation, so this includes the transient fields.
+		testClone(Persistent.class, legacyDecoded, decoded);
+		if(original instanceof OwnIdentity)
+			testClone(Identity.class, legacyDecoded, decoded);
+		testClone(original.getClass(), legacyDecoded, decoded);
+
+		return decoded;
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
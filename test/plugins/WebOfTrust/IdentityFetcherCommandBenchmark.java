@@ -0,0 +1,215 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFetcher.AbortFetchCommand;
+import plugins.WebOfTrust.IdentityFetcher.CommandBuffer;
+import plugins.WebOfTrust.IdentityFetcher.IdentityFetcherCommand;
+import plugins.WebOfTrust.IdentityFetcher.StartFetchCommand;
+import plugins.WebOfTrust.IdentityFetcher.UpdateEditionHintCommand;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark of the throughput of storing and processing
+ * the commands of the {@link IdentityFetcher} as trust list import does it: Each import
+ * transaction stores the commands for the Identitys of one trust list, and the IdentityFetcher
+ * processes all of them later on.<br>
+ * The {@link CommandBuffer} is compared against storing each command as an
+ * {@link IdentityFetcherCommand} in the database, which was done before.<br><br>
+ *
+ * It is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project.
+ */
+public final class IdentityFetcherCommandBenchmark extends AbstractJUnit4BaseTest {
+
+	private static final int IDENTITY_COUNT = 1000;
+
+	/** Amount of commands per transaction, roughly the Identitys of one trust list. */
+	private static final int COMMANDS_PER_TRANSACTION = 256;
+
+	/** Amount of transactions after which the commands are processed. */
+	private static final int TRANSACTIONS = 20;
+
+	/** Amount of times the benchmark is repeated after {@link #WARMUP_ITERATIONS}. */
+	private static final int ITERATIONS = 10;
+
+	/** Amount of iterations which are not measured to give the JIT time to compile the code. */
+	private static final int WARMUP_ITERATIONS = 3;
+
+	private WebOfTrust mWebOfTrust;
+
+	private ExtObjectContainer mDB;
+
+	private ArrayList<Identity> mIdentitys;
+
+
+	@Test public void benchmark() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mDB = mWebOfTrust.getDatabase();
+		mIdentitys = addRandomIdentities(IDENTITY_COUNT);
+
+		final CommandBuffer buffer = new CommandBuffer(new Runnable() {
+			@Override public void run() { }
+		});
+		Persistent.addTransactionListener(mDB, buffer);
+
+		long databaseTime = 0;
+		long bufferTime = 0;
+
+		try {
+			for(int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; ++i) {
+				final boolean measure = i >= WARMUP_ITERATIONS;
+
+				// Both implementations get the same sequence of commands.
+				final int count = COMMANDS_PER_TRANSACTION * TRANSACTIONS;
+				final Identity[] identitys = new Identity[count];
+				final int[] types = new int[count];
+				for(int j = 0; j < count; ++j) {
+					identitys[j] = mIdentitys.get(mRandom.nextInt(mIdentitys.size()));
+					types[j] = mRandom.nextInt(3);
+				}
+
+				long startTime = System.nanoTime();
+				benchmarkDatabase(identitys, types);
+				if(measure)
+					databaseTime += System.nanoTime() - startTime;
+
+				startTime = System.nanoTime();
+				benchmarkCommandBuffer(buffer, identitys, types);
+				if(measure)
+					bufferTime += System.nanoTime() - startTime;
+			}
+		} finally {
+			Persistent.removeTransactionListener(mDB, buffer);
+		}
+
+		final long count = (long)COMMANDS_PER_TRANSACTION * TRANSACTIONS * ITERATIONS;
+		System.out.println("IdentityFetcherCommand (database): "
+			+ (count * 1000000000L / databaseTime) + " commands/s");
+		System.out.println("CommandBuffer: "
+			+ (count * 1000000000L / bufferTime) + " commands/s");
+	}
+
+	@SuppressWarnings("unchecked")
+	private void benchmarkDatabase(Identity[] identitys, int[] types) {
+		int index = 0;
+
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			for(int i = 0; i < TRANSACTIONS; ++i) {
+				for(int j = 0; j < COMMANDS_PER_TRANSACTION; ++j, ++index) {
+					final Identity identity = identitys[index];
+					final String id = identity.getID();
+
+					// Same as what IdentityFetcher's store*CommandWithoutCommit() used to do.
+					switch(types[index]) {
+						case 0:
+							delete(getCommand(AbortFetchCommand.class, id));
+							if(getCommand(StartFetchCommand.class, id) == null)
+								store(new StartFetchCommand(id));
+							break;
+						case 1:
+							delete(getCommand(StartFetchCommand.class, id));
+							if(getCommand(AbortFetchCommand.class, id) == null)
+								store(new AbortFetchCommand(identity));
+							break;
+						case 2:
+							if(getCommand(AbortFetchCommand.class, id) == null
+									&& getCommand(UpdateEditionHintCommand.class, id) == null)
+								store(new UpdateEditionHintCommand(id));
+							break;
+					}
+				}
+
+				Persistent.checkedCommit(mDB, this);
+			}
+
+			// Same as what IdentityFetcher.run() used to do, except for executing the commands.
+			for(Class<? extends IdentityFetcherCommand> type : new Class[] {
+					AbortFetchCommand.class, StartFetchCommand.class,
+					UpdateEditionHintCommand.class }) {
+
+				for(IdentityFetcherCommand command : getCommands(type))
+					command.deleteWithoutCommit();
+			}
+
+			Persistent.checkedCommit(mDB, this);
+		}
+		}
+		}
+	}
+
+	private void benchmarkCommandBuffer(CommandBuffer buffer, Identity[] identitys,
+			int[] types) {
+
+		int index = 0;
+
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			for(int i = 0; i < TRANSACTIONS; ++i) {
+				for(int j = 0; j < COMMANDS_PER_TRANSACTION; ++j, ++index) {
+					final String id = identitys[index].getID();
+
+					switch(types[index]) {
+						case 0: buffer.storeStartFetch(id); break;
+						case 1: buffer.storeAbortFetch(id); break;
+						case 2: buffer.storeUpdateEditionHint(id); break;
+					}
+				}
+
+				Persistent.checkedCommit(mDB, this);
+			}
+
+			buffer.drain();
+		}
+		}
+		}
+	}
+
+	private IdentityFetcherCommand getCommand(Class<? extends IdentityFetcherCommand> type,
+			String identityID) {
+
+		final Query q = mDB.query();
+		q.constrain(type);
+		q.descend("mIdentityID").constrain(identityID);
+		final ObjectSet<IdentityFetcherCommand> result
+			= new Persistent.InitializingObjectSet<IdentityFetcherCommand>(mWebOfTrust, q);
+		return result.hasNext() ? result.next() : null;
+	}
+
+	private ObjectSet<IdentityFetcherCommand> getCommands(
+			Class<? extends IdentityFetcherCommand> type) {
+
+		final Query q = mDB.query();
+		q.constrain(type);
+		return new Persistent.InitializingObjectSet<IdentityFetcherCommand>(mWebOfTrust, q);
+	}
+
+	private void store(IdentityFetcherCommand command) {
+		command.initializeTransient(mWebOfTrust);
+		command.storeWithoutCommit();
+	}
+
+	private void delete(IdentityFetcherCommand command) {
+		if(command != null)
+			command.deleteWithoutCommit();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,148 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFetcher.Command;
+import plugins.WebOfTrust.IdentityFetcher.CommandBuffer;
+
+/** Tests {@link IdentityFetcher.CommandBuffer}. */
+public final class IdentityFetcherCommandBufferTest {
+
+	/** Number of calls to the callback of {@link #mBuffer}. */
+	private int mCommittedCallbacks = 0;
+
+	private final CommandBuffer mBuffer = new CommandBuffer(new Runnable() {
+		@Override public void run() {
+			++mCommittedCallbacks;
+		}
+	});
+
+
+	/**
+	 * Tests whether {@link CommandBuffer#onRollback()} discards the commands of the current
+	 * transaction, and only those.
+	 */
+	@Test public void testRollbackDiscardsCommands() {
+		assertTrue(mBuffer.storeStartFetch("a"));
+		mBuffer.onCommit();
+
+		assertTrue(mBuffer.storeAbortFetch("a"));
+		assertTrue(mBuffer.storeStartFetch("b"));
+		assertTrue(mBuffer.storeUpdateEditionHint("c"));
+		assertEquals(Command.AbortFetch, mBuffer.get("a"));
+		mBuffer.onRollback();
+
+		assertEquals(Command.StartFetch, mBuffer.get("a"));
+		assertNull(mBuffer.get("b"));
+		assertNull(mBuffer.get("c"));
+
+		// The rolled back commands are not committed by the next commit.
+		mBuffer.onCommit();
+		assertEquals(1, mCommittedCallbacks);
+		final HashMap<String, Command> expected = new HashMap<String, Command>();
+		expected.put("a", Command.StartFetch);
+		assertEquals(expected, mBuffer.drain());
+		assertEquals(0, mBuffer.size());
+	}
+
+	/**
+	 * Tests whether only the last command of each Identity is kept, also if the commands were
+	 * committed in different transactions, and whether redundant commands are rejected.
+	 */
+	@Test public void testLastCommandWinsAcrossCommits() {
+		assertTrue(mBuffer.storeStartFetch("a"));
+		assertTrue(mBuffer.storeStartFetch("b"));
+		assertTrue(mBuffer.storeUpdateEditionHint("c"));
+		mBuffer.onCommit();
+		assertEquals(1, mCommittedCallbacks);
+		assertEquals(3, mBuffer.size());
+
+		// Pending already
+		assertFalse(mBuffer.storeStartFetch("a"));
+		// Implied by the pending StartFetch
+		assertFalse(mBuffer.storeUpdateEditionHint("b"));
+
+		assertTrue(mBuffer.storeAbortFetch("a"));
+		assertTrue(mBuffer.storeAbortFetch("c"));
+		mBuffer.onCommit();
+		assertEquals(2, mCommittedCallbacks);
+
+		assertTrue(mBuffer.storeStartFetch("a"));
+		assertFalse(mBuffer.storeAbortFetch("c"));
+		// Useless due to the pending AbortFetch
+		assertFalse(mBuffer.storeUpdateEditionHint("c"));
+		mBuffer.onCommit();
+		assertEquals(3, mCommittedCallbacks);
+
+		// A commit without commands does not run the callback.
+		mBuffer.onCommit();
+		assertEquals(3, mCommittedCallbacks);
+
+		final HashMap<String, Command> expected = new HashMap<String, Command>();
+		expected.put("a", Command.StartFetch);
+		expected.put("b", Command.StartFetch);
+		expected.put("c", Command.AbortFetch);
+		assertEquals(expected, mBuffer.drain());
+
+		// After draining, nothing is pending anymore.
+		assertNull(mBuffer.get("a"));
+		assertTrue(mBuffer.storeUpdateEditionHint("a"));
+	}
+
+	/**
+	 * Tests whether {@link CommandBuffer#requeue(HashMap)} does not override commands which
+	 * were committed after the requeued ones were obtained by {@link CommandBuffer#drain()}.
+	 */
+	@Test public void testRequeueDoesNotOverrideNewerCommits() {
+		assertTrue(mBuffer.storeStartFetch("a"));
+		assertTrue(mBuffer.storeStartFetch("b"));
+		assertTrue(mBuffer.storeAbortFetch("c"));
+		mBuffer.onCommit();
+
+		final HashMap<String, Command> drained = mBuffer.drain();
+		assertEquals(3, drained.size());
+		assertEquals(0, mBuffer.size());
+
+		// Committed while the drained commands were being processed
+		assertTrue(mBuffer.storeAbortFetch("a"));
+		assertTrue(mBuffer.storeStartFetch("c"));
+		mBuffer.onCommit();
+		// Not committed yet
+		assertTrue(mBuffer.storeAbortFetch("b"));
+
+		mBuffer.requeue(drained);
+		assertEquals(Command.AbortFetch, mBuffer.get("a"));
+		assertEquals(Command.StartFetch, mBuffer.get("c"));
+		// The command of the current transaction takes precedence until it is rolled back.
+		assertEquals(Command.AbortFetch, mBuffer.get("b"));
+		mBuffer.onRollback();
+
+		final HashMap<String, Command> expected = new HashMap<String, Command>();
+		expected.put("a", Command.AbortFetch);
+		expected.put("b", Command.StartFetch);
+		expected.put("c", Command.StartFetch);
+		assertEquals(expected, mBuffer.drain());
+	}
+
+	/** Tests whether {@link CommandBuffer#clear()} also deletes uncommitted commands. */
+	@Test public void testClear() {
+		assertTrue(mBuffer.storeStartFetch("a"));
+		mBuffer.onCommit();
+		assertTrue(mBuffer.storeStartFetch("b"));
+
+		mBuffer.clear();
+		assertNull(mBuffer.get("a"));
+		assertNull(mBuffer.get("b"));
+		mBuffer.onCommit();
+		assertEquals(0, mBuffer.size());
+		assertEquals(1, mCommittedCallbacks);
+	}
+
+}
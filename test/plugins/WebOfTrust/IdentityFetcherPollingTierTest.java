@@ -0,0 +1,105 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.*;
+import static plugins.WebOfTrust.IdentityFetcher.getPollingTier;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFetcher.EditionHistory;
+import plugins.WebOfTrust.IdentityFetcher.PollingTier;
+
+/**
+ * Tests {@link IdentityFetcher.EditionHistory} and
+ * {@link IdentityFetcher#getPollingTier(int, EditionHistory, long)}.
+ */
+public final class IdentityFetcherPollingTierTest {
+
+	/** Arbitrary start time, far enough from 0 which {@link EditionHistory} uses as "unknown". */
+	private static final long START = DAYS.toMillis(1000);
+
+	private static final int PRIORITY = IdentityFetcher.LOWEST_FILE_PRIORITY;
+
+
+	@Test public void testEditionHistory() {
+		final EditionHistory history = new EditionHistory(0);
+		assertEquals(0, history.getLastEdition());
+		assertEquals(-1, history.getMedianInterval());
+
+		// The first edition only provides the time of the last edition.
+		history.onEditionFound(START);
+		assertEquals(START, history.getLastEdition());
+		assertEquals(-1, history.getMedianInterval());
+
+		long time = START;
+		for(long hours : new long[] { 5, 1, 100, 3, 2 }) {
+			time += HOURS.toMillis(hours);
+			history.onEditionFound(time);
+			assertEquals(time, history.getLastEdition());
+		}
+		assertEquals(HOURS.toMillis(3), history.getMedianInterval());
+
+		// Editions which are found at once are counted as one.
+		history.onEditionFound(time + MINUTES.toMillis(1));
+		assertEquals(time, history.getLastEdition());
+		assertEquals(HOURS.toMillis(3), history.getMedianInterval());
+
+		// Only the last SIZE intervals are kept.
+		for(int i = 0; i < EditionHistory.SIZE; ++i) {
+			time += DAYS.toMillis(10);
+			history.onEditionFound(time);
+		}
+		assertEquals(DAYS.toMillis(10), history.getMedianInterval());
+	}
+
+	@Test public void testGetPollingTier() {
+		// Nothing is known about Identitys which were never fetched.
+		assertEquals(PollingTier.Normal, getPollingTier(PRIORITY, new EditionHistory(0), START));
+
+		// OwnIdentitys and Identitys which they trust are always active.
+		for(int priority = 0; priority <= IdentityFetcher.ACTIVE_FILE_PRIORITY; ++priority) {
+			assertEquals(PollingTier.Active,
+				getPollingTier(priority, new EditionHistory(0), START));
+			assertEquals(PollingTier.Active,
+				getPollingTier(priority, new EditionHistory(START), START + DAYS.toMillis(365)));
+		}
+
+		// A single edition only tells the age.
+		final EditionHistory single = new EditionHistory(START);
+		assertEquals(PollingTier.Normal, getPollingTier(PRIORITY, single, START));
+		assertEquals(PollingTier.Normal,
+			getPollingTier(PRIORITY, single, START + IdentityFetcher.DORMANT_AGE));
+		assertEquals(PollingTier.Dormant,
+			getPollingTier(PRIORITY, single, START + IdentityFetcher.DORMANT_AGE + 1));
+
+		// Identitys which publish daily are active until they stop publishing for some time.
+		final EditionHistory daily = new EditionHistory(START);
+		long time = START;
+		for(int i = 0; i < EditionHistory.SIZE; ++i) {
+			time += DAYS.toMillis(1);
+			daily.onEditionFound(time);
+		}
+		assertEquals(PollingTier.Active, getPollingTier(PRIORITY, daily, time));
+		assertEquals(PollingTier.Active,
+			getPollingTier(PRIORITY, daily, time + IdentityFetcher.ACTIVE_AGE));
+		assertEquals(PollingTier.Normal,
+			getPollingTier(PRIORITY, daily, time + IdentityFetcher.ACTIVE_AGE + 1));
+		assertEquals(PollingTier.Dormant,
+			getPollingTier(PRIORITY, daily, time + IdentityFetcher.DORMANT_AGE + 1));
+
+		// Identitys which publish weekly are not active.
+		final EditionHistory weekly = new EditionHistory(START);
+		time = START;
+		for(int i = 0; i < EditionHistory.SIZE; ++i) {
+			time += DAYS.toMillis(7);
+			weekly.onEditionFound(time);
+		}
+		assertEquals(PollingTier.Normal, getPollingTier(PRIORITY, weekly, time));
+	}
+
+}
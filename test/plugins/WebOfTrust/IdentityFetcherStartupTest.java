@@ -0,0 +1,175 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.MalformedURLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFetcher.StartupStatistics;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Tests how {@link IdentityFetcher#start()} starts the fetches of all Identitys in batches:
+ * {@link IdentityFetcher#getIdentitiesToFetch()} and {@link IdentityFetcher#startFetchBatch()}.
+ */
+public final class IdentityFetcherStartupTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+	/** Rank 0 */
+	private OwnIdentity mOwner;
+
+	/** Rank 1 */
+	private Identity mTrustee;
+
+	/** Rank 2, trusted by {@link #mTrustee}. */
+	private Identity mTrustee2;
+
+	/** Rank 3, trusted by {@link #mTrustee2}. */
+	private Identity mTrustee3;
+
+	/** Trust value 0 from {@link #mOwner}: Infinite rank, but Score value 0. */
+	private Identity mNeutral;
+
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+
+		// Created in reverse order so the database order does not match the expected order.
+		mTrustee3 = addRandomIdentities(1).get(0);
+		mTrustee2 = addRandomIdentities(1).get(0);
+		mNeutral = addRandomIdentities(1).get(0);
+		mTrustee = addRandomIdentities(1).get(0);
+		mOwner = addRandomOwnIdentities(1).get(0);
+		// Not trusted by anyone, so not fetched.
+		addRandomIdentities(1);
+		// Distrusted, so not fetched.
+		setTrust(mOwner, addRandomIdentities(1).get(0), -100);
+
+		setTrust(mOwner, mTrustee, 100);
+		setTrust(mOwner, mNeutral, 0);
+		setTrust(mTrustee, mTrustee2, 100);
+		setTrust(mTrustee2, mTrustee3, 100);
+	}
+
+	/**
+	 * Tests whether {@link IdentityFetcher#getIdentitiesToFetch()} returns the Identitys to fetch
+	 * ordered by their best rank.
+	 */
+	@Test public void testGetIdentitiesToFetch() {
+		final IdentityFetcher fetcher = mWebOfTrust.getIdentityFetcher();
+
+		synchronized(mWebOfTrust) {
+		synchronized(fetcher) {
+			assertEquals(asList(mOwner.getID(), mTrustee.getID(), mTrustee2.getID(),
+					mTrustee3.getID(), mNeutral.getID()),
+				asList(fetcher.getIdentitiesToFetch()));
+		}}
+	}
+
+	/**
+	 * Tests whether {@link IdentityFetcher#startFetchBatch()} processes
+	 * {@link IdentityFetcher#setStartupBatchSize(int)} Identitys per batch, and whether it skips
+	 * Identitys which were deleted or are not to be fetched anymore since the batches were
+	 * determined.
+	 */
+	@Test public void testStartFetchBatch() throws UnknownIdentityException,
+			InvalidParameterException {
+
+		final IdentityFetcher fetcher = mWebOfTrust.getIdentityFetcher();
+		fetcher.setStartupBatchSize(2);
+		synchronized(mWebOfTrust) {
+		synchronized(fetcher) {
+			fetcher.initializeStartupBatches();
+		}}
+
+		// mOwner, mTrustee
+		assertTrue(fetcher.startFetchBatch());
+		StartupStatistics stats = fetcher.getStartupStatistics();
+		assertEquals(5, stats.mIdentitysToFetch);
+		assertEquals(2, stats.mProcessedIdentitys);
+		assertEquals(2, stats.mStartedFetches);
+		assertEquals(1, stats.mBatches);
+		assertEquals(0, stats.mFinishTime);
+
+		setTrust(mOwner, mNeutral, -100);
+		deleteIdentity(mTrustee3);
+
+		// mTrustee2, mTrustee3 (deleted)
+		assertTrue(fetcher.startFetchBatch());
+		// mNeutral (not fetched anymore)
+		assertFalse(fetcher.startFetchBatch());
+		stats = fetcher.getStartupStatistics();
+		assertEquals(5, stats.mIdentitysToFetch);
+		assertEquals(5, stats.mProcessedIdentitys);
+		assertEquals(3, stats.mStartedFetches);
+		assertEquals(3, stats.mBatches);
+		assertTrue(stats.mFinishTime >= stats.mStartTime);
+
+		// Nothing left to do.
+		assertFalse(fetcher.startFetchBatch());
+		assertEquals(3, fetcher.getStartupStatistics().mBatches);
+	}
+
+	/**
+	 * Tests whether {@link Configuration#IDENTITY_FETCHER_STARTUP_BATCH_SIZE} is used by
+	 * {@link IdentityFetcher#start()}.
+	 */
+	@Test public void testStartupBatchSizeConfiguration() {
+		// Unit tests run all batches in start(), see there.
+		assertEquals(1, mWebOfTrust.getIdentityFetcher().getStartupStatistics().mBatches);
+
+		synchronized(mWebOfTrust) {
+			mWebOfTrust.getConfig().set(Configuration.IDENTITY_FETCHER_STARTUP_BATCH_SIZE, 2);
+			mWebOfTrust.getConfig().storeAndCommit();
+		}
+
+		final File database = mWebOfTrust.getDatabaseFile();
+		mWebOfTrust.terminate();
+		mWebOfTrust = new WebOfTrust(database.toString());
+
+		final StartupStatistics stats = mWebOfTrust.getIdentityFetcher().getStartupStatistics();
+		assertEquals(5, stats.mIdentitysToFetch);
+		assertEquals(5, stats.mStartedFetches);
+		assertEquals(3, stats.mBatches);
+	}
+
+	private void setTrust(Identity truster, Identity trustee, int value)
+			throws InvalidParameterException {
+
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIntroductionPuzzleStore()) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.beginTrustListImport();
+			mWebOfTrust.setTrustWithoutCommit(truster, trustee, (byte)value, "Comment");
+			mWebOfTrust.finishTrustListImport();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		}}}}}
+	}
+
+	private void deleteIdentity(Identity identity) throws UnknownIdentityException {
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIntroductionPuzzleStore()) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.deleteWithoutCommit(mWebOfTrust.getIdentityByID(identity.getID()));
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		}}}}}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,143 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import javax.xml.transform.TransformerException;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFileProcessor.Statistics;
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import freenet.support.PooledExecutor;
+import freenet.support.PrioritizedTicker;
+
+/**
+ * Tests the pipeline of {@link IdentityFileProcessor}: Parsing files on multiple parser threads,
+ * passing them to the import thread and counting them in its {@link Statistics}.
+ *
+ * @see IdentityFileQueueTest Tests the processor together with the real queues.
+ */
+public final class IdentityFileProcessorTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+
+	/**
+	 * Runs more files than the parsed files queue of the {@link IdentityFileProcessor} can hold
+	 * through it with multiple parser threads, some of which cannot be read.
+	 */
+	@Test public void testParallelParsing() throws MalformedURLException,
+			InvalidParameterException, TransformerException, InterruptedException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+
+		final int parserThreads = 3;
+		final int editions = 4;
+		final int failingFiles = 2;
+		final ListQueue queue = new ListQueue();
+		final HashMap<String, Long> newestEditions = new HashMap<String, Long>();
+		int validFiles = 0;
+
+		for(OwnIdentity identity : addRandomOwnIdentities(5)) {
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			mWebOfTrust.getXMLTransformer().exportOwnIdentity(identity, bos);
+
+			for(int i = 1; i <= editions; ++i) {
+				queue.add(new IdentityFileStream(
+					identity.getRequestURI().setSuggestedEdition(identity.getEdition() + i),
+					new ByteArrayInputStream(bos.toByteArray())));
+				++validFiles;
+			}
+			newestEditions.put(identity.getID(), identity.getEdition() + editions);
+		}
+		assertTrue(
+			validFiles > parserThreads * IdentityFileProcessor.PARSED_FILES_PER_PARSER_THREAD);
+
+		for(int i = 0; i < failingFiles; ++i) {
+			queue.add(new IdentityFileStream(getRandomRequestURI(), new InputStream() {
+				@Override public int read() throws IOException {
+					throw new IOException("Simulated read failure");
+				}
+			}));
+		}
+
+		final PrioritizedTicker ticker = new PrioritizedTicker(new PooledExecutor(), 0);
+		ticker.start();
+		final IdentityFileProcessor processor
+			= new IdentityFileProcessor(queue, ticker, mWebOfTrust.getXMLTransformer());
+		processor.setParserThreads(parserThreads);
+		processor.start();
+		processor.triggerExecution(0);
+
+		Statistics stats;
+		do {
+			Thread.sleep(100);
+			stats = processor.getStatistics();
+		} while(stats.mProcessedFiles + stats.mFailedFiles < validFiles + failingFiles);
+
+		processor.terminate();
+		processor.waitForTermination(Long.MAX_VALUE);
+
+		stats = processor.getStatistics();
+		assertNull(queue.poll());
+		assertEquals(validFiles, stats.mProcessedFiles);
+		assertEquals(failingFiles, stats.mFailedFiles);
+		assertTrue(stats.mParsingTimeNanoseconds > 0);
+		assertTrue(stats.mImportTimeNanoseconds > 0);
+		assertTrue(stats.mProcessingTimeNanoseconds
+			>= stats.mParsingTimeNanoseconds + stats.mImportTimeNanoseconds);
+
+		// The parsers may pass the files to the import out of order, but older editions must not
+		// replace newer ones.
+		for(OwnIdentity identity : mWebOfTrust.getAllOwnIdentities())
+			assertEquals((long)newestEditions.get(identity.getID()), identity.getEdition());
+	}
+
+	/**
+	 * {@link IdentityFileQueue} which returns the added streams as they are, in FIFO order, so
+	 * streams which fail upon reading reach the {@link IdentityFileProcessor}. */
+	private static final class ListQueue implements IdentityFileQueue {
+		private final ArrayDeque<IdentityFileStream> mFiles = new ArrayDeque<IdentityFileStream>();
+
+		private BackgroundJob mEventHandler;
+
+		@Override public synchronized void add(IdentityFileStream file) {
+			mFiles.addLast(file);
+
+			if(mEventHandler != null)
+				mEventHandler.triggerExecution();
+		}
+
+		@Override public synchronized IdentityFileStream poll() {
+			return mFiles.pollFirst();
+		}
+
+		@Override public synchronized void registerEventHandler(BackgroundJob handler) {
+			mEventHandler = handler;
+		}
+
+		@Override public synchronized IdentityFileQueueStatistics getStatistics() {
+			final IdentityFileQueueStatistics result = new IdentityFileQueueStatistics();
+			result.mQueuedFiles = mFiles.size();
+			return result;
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,210 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import javax.xml.transform.TransformerException;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.TimeUtil;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark of how quickly the {@link Score}s converge
+ * when WOT starts up with a backlog of fetched identity files, i.e. how long it takes for the
+ * Scores to become stable.<br>
+ * It compares the {@link IdentityFileDiskQueue} with the file priorities which the
+ * {@link IdentityFetcher} assigns against the same queue with all priorities being equal, i.e.
+ * the previous FIFO order.<br><br>
+ *
+ * It is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project.
+ */
+public final class IdentityFileQueueBenchmark extends AbstractJUnit4BaseTest {
+
+	/** Amount of Identitys in the simulated network. */
+	private static final int IDENTITY_COUNT = 200;
+
+	/** Amount of Trusts of the network when it was fetched in the previous session. */
+	private static final int TRUST_COUNT = IDENTITY_COUNT * 8;
+
+	/** Amount of Trusts which changed while WOT was not running. */
+	private static final int CHANGED_TRUST_COUNT = IDENTITY_COUNT * 4;
+
+	/** The simulated network. */
+	private WebOfTrust mWebOfTrust;
+
+
+	@Test public void benchmarkTimeToStableScores()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			UnknownIdentityException, TransformerException, IOException {
+
+		// All Identitys of the network must be OwnIdentitys: Exporting their XML is only possible
+		// for OwnIdentitys.
+		mWebOfTrust = constructEmptyWebOfTrust();
+		ArrayList<OwnIdentity> network = addRandomOwnIdentities(IDENTITY_COUNT);
+		@SuppressWarnings("unchecked")
+		ArrayList<Identity> networkCasted
+			= (ArrayList<Identity>) (ArrayList<? extends Identity>) network;
+
+		addRandomTrustValues(networkCasted, TRUST_COUNT);
+		ArrayList<IdentityFile> previousSession = exportIdentityFiles(network);
+		addRandomTrustValues(networkCasted, CHANGED_TRUST_COUNT);
+		ArrayList<IdentityFile> backlog = exportIdentityFiles(network);
+		// The IdentityFetcher receives files in an arbitrary order.
+		Collections.shuffle(backlog, mRandom);
+
+		for(boolean usePriorities : new boolean[] { false, true }) {
+			// The local WOT only has one OwnIdentity, so the other Identitys have different ranks.
+			WebOfTrust local = constructEmptyWebOfTrust();
+			local.restoreOwnIdentity(network.get(0).getInsertURI());
+			importPreviousSession(local, previousSession);
+
+			IdentityFileDiskQueue queue = new IdentityFileDiskQueue(mTempFolder.newFolder());
+			synchronized(local) {
+				for(IdentityFile file : backlog) {
+					int priority = 0;
+					if(usePriorities) {
+						try {
+							priority = IdentityFetcher.getFilePriority(local,
+								local.getIdentityByURI(file.getURI()));
+						} catch(UnknownIdentityException e) {
+							priority = IdentityFetcher.LOWEST_FILE_PRIORITY;
+						}
+					}
+
+					queue.add(new IdentityFileStream(file.getURI(),
+						new ByteArrayInputStream(file.mXML), priority));
+				}
+			}
+
+			benchmarkImport(local, queue, usePriorities ? "Priority" : "FIFO");
+		}
+	}
+
+	/**
+	 * Imports all files of the queue into the given WebOfTrust and prints how long it took until
+	 * the Scores stopped changing: Both the average across all Scores and the maximum. */
+	private void benchmarkImport(WebOfTrust local, IdentityFileQueue queue, String name)
+			throws IOException {
+
+		HashMap<String, Score> previousScores = getScoreClones(local);
+		// For each Score, the amount of files / nanoseconds after which it changed the last time
+		HashMap<String, Integer> lastChangeFiles = new HashMap<String, Integer>();
+		HashMap<String, Long> lastChangeTime = new HashMap<String, Long>();
+
+		int files = 0;
+		long time = 0;
+		IdentityFileStream file;
+		while((file = queue.poll()) != null) {
+			long startTime = System.nanoTime();
+			local.getXMLTransformer().importIdentity(file.mURI, file.mXMLInputStream);
+			time += System.nanoTime() - startTime;
+			++files;
+			file.mXMLInputStream.close();
+
+			HashMap<String, Score> scores = getScoreClones(local);
+			for(Score score : scores.values()) {
+				if(!score.equals(previousScores.get(score.getID()))) {
+					lastChangeFiles.put(score.getID(), files);
+					lastChangeTime.put(score.getID(), time);
+				}
+			}
+			previousScores = scores;
+		}
+
+		long filesSum = 0, filesMax = 0, timeSum = 0, timeMax = 0;
+		for(String scoreID : previousScores.keySet()) {
+			Integer changeFiles = lastChangeFiles.get(scoreID);
+			Long changeTime = lastChangeTime.get(scoreID);
+			if(changeFiles == null)
+				continue; // Did not change at all
+
+			filesSum += changeFiles;
+			filesMax = Math.max(filesMax, changeFiles);
+			timeSum += changeTime;
+			timeMax = Math.max(timeMax, changeTime);
+		}
+		int count = Math.max(1, lastChangeFiles.size());
+
+		System.out.println(name + ": Imported " + files + " files, "
+			+ lastChangeFiles.size() + " Scores changed.");
+		System.out.println(name + ": Average files until stable Score: "
+			+ ((double)filesSum / count) + "; maximum: " + filesMax);
+		System.out.println(name + ": Average time until stable Score: "
+			+ TimeUtil.formatTime(timeSum / count / 1000000, 3, true) + "; maximum: "
+			+ TimeUtil.formatTime(timeMax / 1000000, 3, true));
+	}
+
+	/**
+	 * Increments the edition of each given {@link OwnIdentity} and returns the XML files of the
+	 * new editions. */
+	private ArrayList<IdentityFile> exportIdentityFiles(ArrayList<OwnIdentity> identities)
+			throws UnknownIdentityException, InvalidParameterException, TransformerException,
+			IOException {
+
+		ArrayList<IdentityFile> result = new ArrayList<IdentityFile>(identities.size());
+
+		for(OwnIdentity identity : identities) {
+			// Re-query since we only have a clone() but db4o needs the original
+			identity = mWebOfTrust.getOwnIdentityByID(identity.getID());
+			identity.setPublishTrustList(true);
+			identity.setEdition(identity.getEdition() + 1);
+			identity.storeAndCommit();
+
+			ByteArrayOutputStream bos
+				= new ByteArrayOutputStream(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1);
+			mWebOfTrust.getXMLTransformer().exportOwnIdentity(identity, bos);
+
+			result.add(IdentityFile.read(new IdentityFileStream(identity.getRequestURI(),
+				new ByteArrayInputStream(bos.toByteArray()))));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Imports the given files into the given WebOfTrust until it knows all Identitys it can
+	 * discover through them: Files of Identitys which are not known yet are ignored by
+	 * {@link XMLTransformer#importIdentity(freenet.keys.FreenetURI, java.io.InputStream)}, so
+	 * their import has to be retried once they were discovered. */
+	private void importPreviousSession(WebOfTrust local, ArrayList<IdentityFile> files) {
+		int identityCount;
+		do {
+			identityCount = local.getAllIdentities().size();
+
+			for(IdentityFile file : files) {
+				local.getXMLTransformer().importIdentity(
+					file.getURI(), new ByteArrayInputStream(file.mXML));
+			}
+		} while(local.getAllIdentities().size() != identityCount);
+	}
+
+	/** Returns clones since db4o would modify the original objects when importing. */
+	private HashMap<String, Score> getScoreClones(WebOfTrust local) {
+		synchronized(local) {
+			HashMap<String, Score> result = new HashMap<String, Score>();
+			for(Score score : local.getAllScores())
+				result.put(score.getID(), score.clone());
+			return result;
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
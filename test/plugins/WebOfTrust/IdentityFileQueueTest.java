@@ -3,15 +3,24 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import javax.xml.transform.TransformerException;
 
@@ -24,18 +33,25 @@ import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
 import freenet.support.PooledExecutor;
 import freenet.support.PrioritizedTicker;
+import freenet.support.io.FileUtil;
+import freenet.support.io.LineReadingInputStream;
 
 /**
- * Test for both implementations of {@link IdentityFileQueue}: {@link IdentityFileDiskQueue} and
- * {@link IdentityFileMemoryQueue}.<br><br>
+ * Test for all implementations of {@link IdentityFileQueue}: {@link IdentityFileDiskQueue},
+ * {@link IdentityFileLogQueue} and {@link IdentityFileMemoryQueue}.<br><br>
  * 
  * They are being tested against each other by feeding the same set of identity files to them, and
  * then checking whether the resulting WOT database is equal.<br><br>
  * 
- * TODO: Ideas for tests:<br>
- * - Test whether deduplication does actually deduplicate stuff.
+ * Deduplication of {@link IdentityFileDiskQueue} is tested separately by
+ * {@link #testDiskQueueDeduplication()}, the way it writes files by
+ * {@link #testStreamingWrite()}.<br>
+ * Deduplication of {@link IdentityFileLogQueue} is tested by
+ * {@link #testLogQueueDeduplication()}, its recovery and compaction by
+ * {@link #testLogQueueRecovery()} and {@link #testLogQueueCompaction()}.
  */
 public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 	
@@ -52,12 +68,15 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 	 * cannot be recycled after {@link InputStream#close()}. */
 	private ArrayList<IdentityFileStream> mIdentityFiles2;
 
+	/** Another copy of {@link #mIdentityFiles1}, see {@link #mIdentityFiles2}. */
+	private ArrayList<IdentityFileStream> mIdentityFiles3;
+
 
 	/**
 	 * Generates random {@link OwnIdentity}s and {@link Trust}s in {@link #mWebOfTrust}.<br>
-	 * Populates {@link #mIdentityFiles1} and {@link #mIdentityFiles2} with {@link IdentityFile}
-	 * dumps of several stages of the generation of {@link #mWebOfTrust}, including the final
-	 * stage.<br>
+	 * Populates {@link #mIdentityFiles1}, {@link #mIdentityFiles2} and {@link #mIdentityFiles3}
+	 * with {@link IdentityFile} dumps of several stages of the generation of {@link #mWebOfTrust},
+	 * including the final stage.<br>
 	 * Those dumps will be used as input for the {@link IdentityFileQueue} implementations
 	 * to validate that they operate correctly.<br><br>
 	 * 
@@ -94,6 +113,7 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 		// Now produce the actual IdentityFile dumps
 		mIdentityFiles1 = new ArrayList<IdentityFileStream>(identityFileCount*ownIdentityCount + 1);
 		mIdentityFiles2 = new ArrayList<IdentityFileStream>(identityFileCount*ownIdentityCount + 1);
+		mIdentityFiles3 = new ArrayList<IdentityFileStream>(identityFileCount*ownIdentityCount + 1);
 		
 		for(int i=0; i < identityFileCount; ++i) {
 			addRandomTrustValues(ownIdentitiesCasted, newTrustsPerFile);
@@ -134,10 +154,13 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 					= new ByteArrayInputStream(bos.toByteArray());
 				ByteArrayInputStream bis2
 					= new ByteArrayInputStream(bos.toByteArray());
+				ByteArrayInputStream bis3
+					= new ByteArrayInputStream(bos.toByteArray());
 				bos.close();
 				
 				mIdentityFiles1.add(new IdentityFileStream(identity.getRequestURI(), bis1));
 				mIdentityFiles2.add(new IdentityFileStream(identity.getRequestURI(), bis2));
+				mIdentityFiles3.add(new IdentityFileStream(identity.getRequestURI(), bis3));
 			}
 		}
 	}
@@ -151,18 +174,23 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 
 		WebOfTrust wot1 = constructEmptyWebOfTrust();
 		WebOfTrust wot2 = constructEmptyWebOfTrust();
+		WebOfTrust wot3 = constructEmptyWebOfTrust();
 		
 		assertEquals(wot1, wot2);
+		assertEquals(wot1, wot3);
 
 		// Copy the OwnIdentitys from the source WOT to our test WOTs to ensure that trust lists
 		// are being imported.
 		for(OwnIdentity ownId : mWebOfTrust.getAllOwnIdentities()) {
 			wot1.restoreOwnIdentity(ownId.getInsertURI());
 			wot2.restoreOwnIdentity(ownId.getInsertURI());
+			wot3.restoreOwnIdentity(ownId.getInsertURI());
 		}
 
 		IdentityFileQueue queue1 = new IdentityFileMemoryQueue();
 		IdentityFileQueue queue2 = new IdentityFileDiskQueue(mTempFolder.newFolder());
+		// Small segments so compaction happens during the test.
+		IdentityFileQueue queue3 = new IdentityFileLogQueue(mTempFolder.newFolder(), 64 * 1024);
 		
 		// TODO: Code quality: Move the Ticker creation to a function. Also search the other unit
 		// tests for similar code to deduplicate then.
@@ -170,6 +198,8 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 			new PrioritizedTicker(new PooledExecutor(), 0), wot1.getXMLTransformer());
 		IdentityFileProcessor proc2 = new IdentityFileProcessor(queue2,
 			new PrioritizedTicker(new PooledExecutor(), 0), wot2.getXMLTransformer());
+		IdentityFileProcessor proc3 = new IdentityFileProcessor(queue3,
+			new PrioritizedTicker(new PooledExecutor(), 0), wot3.getXMLTransformer());
 		
 		@Ignore final class ConcurrentEnqueuer {
 			public void enqueue(final List<IdentityFileStream> files,
@@ -200,24 +230,364 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 
 		new ConcurrentEnqueuer().enqueue(mIdentityFiles1, queue1, proc1);	
 		new ConcurrentEnqueuer().enqueue(mIdentityFiles2, queue2, proc2);
+		new ConcurrentEnqueuer().enqueue(mIdentityFiles3, queue3, proc3);
 		
 		do {
 			Thread.sleep(100);
 		} while(
 				queue1.getStatistics().mQueuedFiles != 0
 			 || queue2.getStatistics().mQueuedFiles != 0
+			 || queue3.getStatistics().mQueuedFiles != 0
 			 || proc1.getStatistics().mProcessedFiles != mIdentityFiles1.size()
 			 // Deduplication can cause us to process less files than mIdentityFiles2.size()
 			 || proc2.getStatistics().mProcessedFiles != queue2.getStatistics().mFinishedFiles
+			 || proc3.getStatistics().mProcessedFiles != queue3.getStatistics().mFinishedFiles
 		 );
 		
 		proc1.terminate();
 		proc2.terminate();
+		proc3.terminate();
 		proc1.waitForTermination(Long.MAX_VALUE);
 		proc2.waitForTermination(Long.MAX_VALUE);
+		proc3.waitForTermination(Long.MAX_VALUE);
 		
 		assertEquals(mWebOfTrust, wot1);
 		assertEquals(mWebOfTrust, wot2);
+		assertEquals(mWebOfTrust, wot3);
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileDiskQueue} drops outdated editions, also for files which
+	 * were queued in a previous session and thus are not in its in-memory index of editions yet.
+	 */
+	@Test public void testDiskQueueDeduplication() throws IOException {
+		File dir = mTempFolder.newFolder();
+		FreenetURI uri = getRandomIdentityFileURI();
+		
+		IdentityFileDiskQueue queue = new IdentityFileDiskQueue(dir);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(2)));
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(1)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(1, queue.getStatistics().mDeduplicatedFiles);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(3)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+		
+		// Simulate a restart: The new queue must read the edition of the queued file from disk.
+		queue = new IdentityFileDiskQueue(dir);
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(2)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(1, queue.getStatistics().mDeduplicatedFiles);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(4)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+		
+		IdentityFileStream polled = queue.poll();
+		assertEquals(4, polled.mURI.getEdition());
+		assertNull(queue.poll());
+		polled.mXMLInputStream.close();
+		assertEquals(0, queue.getStatistics().mProcessingFiles);
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileDiskQueue} polls files in the order of their
+	 * {@link IdentityFileStream#mPriority}, and whether its aging prevents starvation.
+	 */
+	@Test public void testDiskQueuePriority() throws IOException {
+		IdentityFileDiskQueue queue = new IdentityFileDiskQueue(mTempFolder.newFolder());
+		queue.setPriorityAging(2);
+		testPriority(queue);
+	}
+
+	/** Same as {@link #testDiskQueuePriority()} for {@link IdentityFileLogQueue}. */
+	@Test public void testLogQueuePriority() throws IOException {
+		IdentityFileLogQueue queue = new IdentityFileLogQueue(mTempFolder.newFolder());
+		queue.setPriorityAging(2);
+		testPriority(queue);
+	}
+
+	/** Must be called with a queue of which the priority aging was set to 2. */
+	private void testPriority(IdentityFileQueue queue) throws IOException {
+		// The low priority file will be treated as if it was queued after the next 3 * 2 files.
+		FreenetURI lowPriority = getRandomIdentityFileURI();
+		queue.add(getIdentityFileStream(lowPriority, 3));
+		
+		ArrayList<FreenetURI> highPriority = new ArrayList<FreenetURI>();
+		for(int i = 0; i < 10; ++i) {
+			highPriority.add(getRandomIdentityFileURI());
+			queue.add(getIdentityFileStream(highPriority.get(i), 0));
+		}
+		
+		ArrayList<FreenetURI> expected = new ArrayList<FreenetURI>(highPriority.subList(0, 5));
+		// The 6th high priority file has the same key as the low priority one. Equal keys are
+		// polled in FIFO order.
+		expected.add(lowPriority);
+		expected.addAll(highPriority.subList(5, 10));
+		
+		for(FreenetURI uri : expected) {
+			IdentityFileStream polled = queue.poll();
+			assertEquals(uri, polled.mURI);
+			polled.mXMLInputStream.close();
+		}
+		assertNull(queue.poll());
+	}
+
+	/** Same as {@link #testDiskQueueDeduplication()} for {@link IdentityFileLogQueue}. */
+	@Test public void testLogQueueDeduplication() throws IOException {
+		File dir = mTempFolder.newFolder();
+		FreenetURI uri = getRandomIdentityFileURI();
+		
+		IdentityFileLogQueue queue = new IdentityFileLogQueue(dir);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(2)));
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(1)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(1, queue.getStatistics().mDeduplicatedFiles);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(3)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+		
+		// Simulate a restart: The new queue must recover the edition of the queued file.
+		queue = new IdentityFileLogQueue(dir);
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(2)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(1, queue.getStatistics().mDeduplicatedFiles);
+		queue.add(getIdentityFileStream(uri.setSuggestedEdition(4)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+		
+		IdentityFileStream polled = queue.poll();
+		assertEquals(4, polled.mURI.getEdition());
+		assertNull(queue.poll());
+		polled.mXMLInputStream.close();
+		assertEquals(0, queue.getStatistics().mProcessingFiles);
+		
+		// The processed file must not be queued again.
+		queue = new IdentityFileLogQueue(dir);
+		assertEquals(0, queue.getStatistics().mQueuedFiles);
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileLogQueue} recovers the queued files, including the one
+	 * which was being processed, and the priority order at restart, and whether it ignores a
+	 * partially written record at the end of the log.
+	 */
+	@Test public void testLogQueueRecovery() throws IOException {
+		File dir = mTempFolder.newFolder();
+		IdentityFileLogQueue queue = new IdentityFileLogQueue(dir);
+		queue.setPriorityAging(2);
+		
+		ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>();
+		ArrayList<byte[]> xml = new ArrayList<byte[]>();
+		for(int i = 0; i < 10; ++i) {
+			uris.add(getRandomIdentityFileURI());
+			xml.add(getRandomLatinString(100).getBytes(XMLTransformer.XML_CHARSET));
+			// Reverse the order by priority.
+			queue.add(new IdentityFileStream(uris.get(i), new ByteArrayInputStream(xml.get(i)),
+				10 - i));
+		}
+		Collections.reverse(uris);
+		Collections.reverse(xml);
+		
+		// Process the first file, leave the second one in processing.
+		IdentityFileStream polled = queue.poll();
+		assertEquals(uris.get(0), polled.mURI);
+		polled.mXMLInputStream.close();
+		assertEquals(uris.get(1), queue.poll().mURI);
+		
+		// Simulate a crash during appending a record.
+		File[] segments = new File(dir, "IdentityFileLogQueue").listFiles();
+		assertEquals(1, segments.length);
+		FileOutputStream fos = new FileOutputStream(segments[0], true);
+		try {
+			fos.write(new byte[] { 0x57, 0x4f, 0x54, 0x51, 1, 0, 0 });
+		} finally {
+			fos.close();
+		}
+		
+		queue = new IdentityFileLogQueue(dir);
+		assertEquals(9, queue.getStatistics().mQueuedFiles);
+		for(int i = 1; i < 10; ++i) {
+			polled = queue.poll();
+			assertEquals(uris.get(i), polled.mURI);
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			FileUtil.copy(polled.mXMLInputStream, bos, -1);
+			assertArrayEquals(xml.get(i), bos.toByteArray());
+			polled.mXMLInputStream.close();
+		}
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileLogQueue} deletes segments once their records are
+	 * superseded, and whether the files which are still queued survive that.
+	 */
+	@Test public void testLogQueueCompaction() throws IOException {
+		File dir = mTempFolder.newFolder();
+		// The records are roughly 200 bytes large.
+		final int segmentSize = 2 * 1024;
+		IdentityFileLogQueue queue = new IdentityFileLogQueue(dir, segmentSize);
+		
+		FreenetURI[] uris = new FreenetURI[5];
+		for(int i = 0; i < uris.length; ++i)
+			uris[i] = getRandomIdentityFileURI().setSuggestedEdition(0);
+		
+		// Add many editions so lots of segments would be needed without compaction.
+		final int editions = 100;
+		for(int edition = 1; edition <= editions; ++edition) {
+			for(FreenetURI uri : uris)
+				queue.add(getIdentityFileStream(uri.setSuggestedEdition(edition)));
+			
+			assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		}
+		assertEquals(uris.length * (editions - 1), queue.getStatistics().mDeduplicatedFiles);
+		// Each segment except the active one is at least half live, and the live records are
+		// about 1000 bytes large.
+		assertTrue(queue.getSegmentCount() <= 3);
+		
+		queue = new IdentityFileLogQueue(dir, segmentSize);
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		
+		// Compaction changes the order of the records, so the poll() order after a restart is not
+		// the order in which the files were queued.
+		HashSet<FreenetURI> expected = new HashSet<FreenetURI>();
+		for(FreenetURI uri : uris)
+			expected.add(uri.setSuggestedEdition(editions));
+		
+		HashSet<FreenetURI> polledURIs = new HashSet<FreenetURI>();
+		IdentityFileStream polled;
+		while((polled = queue.poll()) != null) {
+			polledURIs.add(polled.mURI);
+			polled.mXMLInputStream.close();
+		}
+		assertEquals(expected, polledURIs);
+		assertTrue(queue.getSegmentCount() <= 3);
+		
+		queue = new IdentityFileLogQueue(dir, segmentSize);
+		assertEquals(0, queue.getStatistics().mQueuedFiles);
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileLogQueue#add(IdentityFileStream)} stores files which are
+	 * empty or larger than its copy buffer, and whether the queued files survive
+	 * {@link IdentityFileLogQueue#close()}.<br>
+	 * Rejecting files which are too large is not tested since failed files trip the assertions of
+	 * {@link IdentityFileQueue.IdentityFileQueueStatistics#checkConsistency()}.
+	 */
+	@Test public void testLogQueueStreamingAddAndClose() throws IOException {
+		File dir = mTempFolder.newFolder();
+		IdentityFileLogQueue queue = new IdentityFileLogQueue(dir);
+		
+		ArrayList<FreenetURI> uris = new ArrayList<FreenetURI>();
+		ArrayList<byte[]> xml = new ArrayList<byte[]>();
+		for(int length : new int[] { 0, 32 * 1024, 32 * 1024 + 1, 100 * 1024 }) {
+			uris.add(getRandomIdentityFileURI());
+			xml.add(getRandomLatinString(length).getBytes(XMLTransformer.XML_CHARSET));
+			queue.add(new IdentityFileStream(uris.get(uris.size() - 1),
+				new ByteArrayInputStream(xml.get(xml.size() - 1))));
+		}
+		
+		queue.close();
+		queue.close(); // Must not fail
+		
+		queue = new IdentityFileLogQueue(dir);
+		assertEquals(uris.size(), queue.getStatistics().mQueuedFiles);
+		for(int i = 0; i < uris.size(); ++i) {
+			IdentityFileStream polled = queue.poll();
+			assertEquals(uris.get(i), polled.mURI);
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			FileUtil.copy(polled.mXMLInputStream, bos, -1);
+			assertArrayEquals(xml.get(i), bos.toByteArray());
+			polled.mXMLInputStream.close();
+		}
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	/**
+	 * Tests whether {@link IdentityFile#write(IdentityFileStream, File, byte[])}, which the
+	 * {@link IdentityFileDiskQueue} uses, writes files which {@link IdentityFile#read(File)}
+	 * reads back as they were, with the CRC32 of the source data, and whether it rejects files
+	 * which are too large. Also tests whether the files survive a round trip through the
+	 * IdentityFileDiskQueue.
+	 */
+	@Test public void testStreamingWrite() throws IOException {
+		// A buffer which is smaller than the files so they are copied in multiple chunks.
+		final byte[] buffer = new byte[7];
+		final IdentityFileDiskQueue queue = new IdentityFileDiskQueue(mTempFolder.newFolder());
+		
+		for(int length : new int[] { 1, 6, 7, 8, 100, 1000 }) {
+			FreenetURI uri = getRandomIdentityFileURI();
+			byte[] xml = getRandomLatinString(length).getBytes(XMLTransformer.XML_CHARSET);
+			File file = mTempFolder.newFile();
+			
+			// Computed in one piece from the source, independent of IdentityFile.
+			CRC32 crc = new CRC32();
+			crc.update(uri.toString().getBytes(XMLTransformer.XML_CHARSET));
+			crc.update(xml);
+			final long expectedCRC = crc.getValue();
+			
+			IdentityFile.write(new IdentityFileStream(uri, new ByteArrayInputStream(xml)), file,
+				buffer);
+			assertEquals(expectedCRC, getStoredCRC32(file));
+			IdentityFile read = IdentityFile.read(file);
+			assertEquals(uri, read.getURI());
+			assertArrayEquals(xml, read.mXML);
+			assertEquals(expectedCRC, read.crc32());
+			
+			queue.add(new IdentityFileStream(uri, new ByteArrayInputStream(xml)));
+			IdentityFileStream polled = queue.poll();
+			IdentityFile fromQueue = IdentityFile.read(polled); // Closes the stream
+			assertEquals(uri, fromQueue.getURI());
+			assertArrayEquals(xml, fromQueue.mXML);
+			assertEquals(expectedCRC, fromQueue.crc32());
+		}
+		assertNull(queue.poll());
+		
+		byte[] tooLarge = new byte[XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1];
+		try {
+			IdentityFile.write(new IdentityFileStream(getRandomIdentityFileURI(),
+				new ByteArrayInputStream(tooLarge)), mTempFolder.newFile(), buffer);
+			fail("Files larger than XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE must be rejected");
+		} catch(RuntimeException e) {
+			assertEquals(IOException.class, e.getCause().getClass());
+		}
+	}
+
+	/** Returns the value of the "CRC32" field of the header of the given {@link IdentityFile}. */
+	private static long getStoredCRC32(File identityFile) throws IOException {
+		final LineReadingInputStream in
+			= new LineReadingInputStream(new FileInputStream(identityFile));
+		try {
+			String line;
+			while((line = in.readLine(1024, 128, true)) != null) {
+				if(line.startsWith("CRC32="))
+					return Long.parseLong(line.substring("CRC32=".length()), 16);
+			}
+		} finally {
+			in.close();
+		}
+		fail("CRC32 not found in " + identityFile);
+		return -1;
+	}
+
+	private FreenetURI getRandomIdentityFileURI() {
+		return getRandomRequestURI().setKeyType("USK").setDocName(WebOfTrustInterface.WOT_NAME)
+			.setSuggestedEdition(mRandom.nextInt(10));
+	}
+
+	/** The {@link IdentityFileQueue}s do not parse the XML, so we can use dummy data. */
+	private IdentityFileStream getIdentityFileStream(FreenetURI uri, int priority) {
+		byte[] xml = getRandomLatinString(100).getBytes(XMLTransformer.XML_CHARSET);
+		return new IdentityFileStream(uri, new ByteArrayInputStream(xml), priority);
+	}
+
+	private IdentityFileStream getIdentityFileStream(FreenetURI uri) {
+		return getIdentityFileStream(uri, 0);
 	}
 
     @Override protected WebOfTrust getWebOfTrust() {
@@ -21,19 +21,20 @@ import plugins.WebOfTrust.util.StopWatch;
 import freenet.support.TimeUtil;
 
 /**
- * Tests whether the 4 implementations of rank computation yield the same results:
+ * Tests whether the 5 implementations of rank computation yield the same results:
  * - {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)}
+ * - {@link WebOfTrust#computeRankFromScratch_BucketQueue(OwnIdentity, Identity, java.util.Map)}
  * - {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeRankFromScratch_Forward(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeAllScoresWithoutCommit()}
  * 
- * For the caching function, tests whether the cache it produces is correct.
+ * For the caching and bucket queue functions, tests whether the cache they produce is correct.
  * Notice: For using this to debug wrong cache entries, you might have to comment out the assert
  * which checks the returned rank before checking the cache. This is because if it produces wrong
  * cache entries, the assert which tests its returned rank value (and determine it
  * to be wrong maybe) could make this test fail before it reaches the stage of testing the cache.
  * 
- * Also measures the execution time per rank for the first 3 of them. The last currently only
+ * Also measures the execution time per rank for the first 4 of them. The last currently only
  * receives measurement of the total time for a Score, which includes more computation than a rank.
  * TODO: Performance: Measure rank computation time of
  * {@link WebOfTrust#computeAllScoresWithoutCommit()}. This requires extracting a function
@@ -75,11 +76,14 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		System.out.println("computeAllScores() avg. time per SCORE: " + computeAllScoresTime);
 		
 		long time_rank_computeRankFromScratch_Caching = 0;
+		long time_rank_computeRankFromScratch_BucketQueue = 0;
 		long time_rank_computeRankFromScratch = 0;
 		long time_rank_computeRankFromScratch_Forward = 0;
 		
 		// For WebOfTrust.computeRankFromScratch_Caching()
 		final HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
+		// For WebOfTrust.computeRankFromScratch_BucketQueue()
+		final HashMap<String, Integer> bucketQueueRankCache = new HashMap<String, Integer>();
 		
 		for(OwnIdentity source : ownIdentitys) {
 			for(Identity target : identitys) {
@@ -97,6 +101,11 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 				
 				// System.out.println("computeRankFromScratch_Caching() time: " + t0);
 				
+				StopWatch t3 = new StopWatch();
+				int rank_computeRankFromScratch_BucketQueue = mWebOfTrust
+					.computeRankFromScratch_BucketQueue(source, target, bucketQueueRankCache);
+				time_rank_computeRankFromScratch_BucketQueue += t3.getNanos();
+				
 				StopWatch t1 = new StopWatch();
 				int rank_computeRankFromScratch
 					= mWebOfTrust.computeRankFromScratch(source, target);
@@ -112,6 +121,7 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 				// System.out.println("computeRankFromScratch_Forward() time: " + t2);
 				
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_Caching);
+				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_BucketQueue);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_Forward);
 				
@@ -123,14 +133,25 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 						assertEquals(-1, cacheEntry.getValue().intValue());
 					}
 				}
+				
+				for(Entry<String, Integer> cacheEntry : bucketQueueRankCache.entrySet()) {
+					try {
+						assertEquals(mWebOfTrust.getScore(cacheEntry.getKey()).getRank(),
+							cacheEntry.getValue().intValue());
+					} catch (NotInTrustTreeException e) {
+						assertEquals(-1, cacheEntry.getValue().intValue());
+					}
+				}
 			}
 		}
 		
 		// Make sure the above for() loop didn't falsely indicate a correct cache when the
 		// cache was just empty and thus invalid.
 		assertEquals(rankCount, rankCache.size());
+		assertEquals(rankCount, bucketQueueRankCache.size());
 		
 		time_rank_computeRankFromScratch_Caching /= rankCount;
+		time_rank_computeRankFromScratch_BucketQueue /= rankCount;
 		time_rank_computeRankFromScratch /= rankCount;
 		time_rank_computeRankFromScratch_Forward /= rankCount;
 		
@@ -138,6 +159,9 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		time_rank_computeRankFromScratch_Caching
 			= TimeUnit.NANOSECONDS.toMillis(time_rank_computeRankFromScratch_Caching);
 
+		time_rank_computeRankFromScratch_BucketQueue
+			= TimeUnit.NANOSECONDS.toMillis(time_rank_computeRankFromScratch_BucketQueue);
+
 		time_rank_computeRankFromScratch
 			= TimeUnit.NANOSECONDS.toMillis(time_rank_computeRankFromScratch);
 
@@ -147,6 +171,9 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		System.out.println("computeRankFromScratch_Caching() avg. time per rank: "
 			+ TimeUtil.formatTime(time_rank_computeRankFromScratch_Caching, 3, true));
 		
+		System.out.println("computeRankFromScratch_BucketQueue() avg. time per rank: "
+			+ TimeUtil.formatTime(time_rank_computeRankFromScratch_BucketQueue, 3, true));
+		
 		System.out.println("computeRankFromScratch() avg. time per rank: "
 			+ TimeUtil.formatTime(time_rank_computeRankFromScratch, 3, true));
 		
@@ -0,0 +1,109 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link ScoreTable} and the {@link ScoreTable.Snapshot}s which it publishes. */
+public final class ScoreTableTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Test public void testConstructor()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		synchronized(mWebOfTrust) {
+			assertTrue(new ScoreTable(getAllScores()).equals(getAllScores()));
+			assertTrue(new ScoreTable(getAllScores()).getSnapshot().equals(getAllScores()));
+			assertTrue(mWebOfTrust.getScoreTable().equals(getAllScores()));
+		}
+	}
+
+	@Test public void testRandomChanges()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		for(int i = 0; i < 10; ++i) {
+			ScoreTable.Snapshot previous = mWebOfTrust.getScoreSnapshot();
+			HashSet<Score> previousScores;
+			synchronized(mWebOfTrust) {
+				// Clones because doRandomChangesToWOT() modifies the objects in the database.
+				previousScores = listToSetWithDuplicateCheck(mWebOfTrust.getAllScores(), true);
+			}
+
+			doRandomChangesToWOT(100);
+
+			synchronized(mWebOfTrust) {
+				assertTrue(mWebOfTrust.getScoreTable().equals(getAllScores()));
+				assertTrue(mWebOfTrust.getScoreSnapshot().equals(getAllScores()));
+				// Snapshots must not be modified by later commits.
+				assertTrue(previous.equals(previousScores));
+			}
+		}
+	}
+
+	@Test public void testRollback()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		ArrayList<OwnIdentity> ownIdentitys = new ArrayList<OwnIdentity>(
+			mWebOfTrust.getAllOwnIdentities());
+
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			ScoreTable.Snapshot snapshot = mWebOfTrust.getScoreSnapshot();
+			assertTrue(snapshot.equals(getAllScores()));
+
+			for(int i = 0; i < 100; ++i) {
+				OwnIdentity truster = ownIdentitys.get(mRandom.nextInt(ownIdentitys.size()));
+				Identity trustee = identitys.get(mRandom.nextInt(identitys.size()));
+
+				if(truster == trustee)
+					continue;
+
+				mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(), "");
+			}
+
+			// Uncommitted changes must not be visible in the snapshot.
+			assertSame(snapshot, mWebOfTrust.getScoreSnapshot());
+
+			Persistent.checkedRollback(mWebOfTrust.getDatabase(), this, null);
+			assertTrue(mWebOfTrust.getScoreTable().equals(getAllScores()));
+			assertSame(snapshot, mWebOfTrust.getScoreSnapshot());
+			assertTrue(snapshot.equals(getAllScores()));
+		}}}}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,100 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionExistsAlreadyException;
+import plugins.WebOfTrust.SubscriptionManager.UnknownClientException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark of how many {@link SubscriptionManager
+ * .Notification}s are queued during bulk trust list imports with and without
+ * {@link SubscriptionManager#setCoalesceNotifications(UUID, boolean)}.<br>
+ * The {@link SubscriptionManager} is not started, so the Notifications stay queued.<br><br>
+ *
+ * It is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project.
+ */
+public final class SubscriptionManagerCoalescingBenchmark extends AbstractJUnit4BaseTest {
+
+	private static final int OWN_IDENTITY_COUNT = 3;
+
+	private static final int IDENTITY_COUNT = 200;
+
+	/** Amount of trust list imports. */
+	private static final int IMPORT_COUNT = 20;
+
+	/** Amount of Trusts which each trust list import adds. */
+	private static final int TRUSTS_PER_IMPORT = 50;
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Test public void benchmarkNotificationCount()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			InterruptedException, SubscriptionExistsAlreadyException, UnknownClientException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		SubscriptionManager subscriptionManager = mWebOfTrust.getSubscriptionManager();
+		ArrayList<Identity> identities = addRandomIdentities(OWN_IDENTITY_COUNT, IDENTITY_COUNT);
+
+		UUID plain = UUID.randomUUID();
+		UUID coalescing = UUID.randomUUID();
+		for(UUID client : new UUID[] { plain, coalescing }) {
+			subscriptionManager.subscribeToIdentities(client);
+			subscriptionManager.subscribeToTrusts(client);
+			subscriptionManager.subscribeToScores(client);
+		}
+		subscriptionManager.setCoalesceNotifications(coalescing, true);
+
+		// The synchronizations are equal for both clients, only count what the imports queue.
+		int plainSynchronization = getPendingNotifications(plain);
+		int coalescingSynchronization = getPendingNotifications(coalescing);
+		assertEquals(plainSynchronization, coalescingSynchronization);
+
+		long startTime = System.nanoTime();
+		for(int i = 0; i < IMPORT_COUNT; ++i)
+			addRandomTrustValues(identities, TRUSTS_PER_IMPORT);
+		long time = System.nanoTime() - startTime;
+
+		int plainCount = getPendingNotifications(plain) - plainSynchronization;
+		int coalescingCount = getPendingNotifications(coalescing) - coalescingSynchronization;
+		assertTrue(coalescingCount <= plainCount);
+
+		System.out.println("Imported " + IMPORT_COUNT * TRUSTS_PER_IMPORT + " Trusts in "
+			+ (time / 1000000) + "ms.");
+		System.out.println("Queued notifications without coalescing: " + plainCount);
+		System.out.println("Queued notifications with coalescing: " + coalescingCount
+			+ " (" + getStatistics(coalescing).mCoalescedNotifications + " changes merged)");
+	}
+
+	private int getPendingNotifications(UUID client) {
+		return getStatistics(client).mPendingNotifications;
+	}
+
+	private ClientStatistics getStatistics(UUID client) {
+		for(ClientStatistics stats : mWebOfTrust.getSubscriptionManager().getClientStatistics()) {
+			if(stats.mFCP_ID.equals(client))
+				return stats;
+		}
+		fail("Unknown client: " + client);
+		return null;
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
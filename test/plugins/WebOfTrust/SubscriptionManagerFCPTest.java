@@ -13,15 +13,23 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
 import plugins.WebOfTrust.SubscriptionManager.Notification;
+import plugins.WebOfTrust.SubscriptionManager.NotificationPayload;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
@@ -34,6 +42,7 @@ import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.IdentityParser
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ScoreParser;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscriptionType;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.TrustParser;
+import com.db4o.query.Query;
 import freenet.clients.fcp.FCPPluginConnection;
 import freenet.clients.fcp.FCPPluginMessage;
 import freenet.node.FSParseException;
@@ -91,6 +100,74 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 
 	}
 	
+	/**
+	 * Client for {@link SubscriptionManagerFCPTest#testSlowClientDoesNotBlockOthers()}: Stores
+	 * the received messages in a thread-safe fashion as the SubscriptionManager deploys them on
+	 * multiple threads.<br>
+	 * If constructed with a latch, it does not reply to any message until the latch is opened.
+	 */
+	@Ignore
+	static final class BlockingReplyReceiver
+			implements FredPluginFCPMessageHandler.ClientSideFCPMessageHandler {
+		
+		final LinkedBlockingQueue<FCPPluginMessage> mResults
+			= new LinkedBlockingQueue<FCPPluginMessage>();
+		
+		/** Is opened once the first message arrives and we start blocking. */
+		final CountDownLatch mBlocked = new CountDownLatch(1);
+		
+		private final CountDownLatch mRelease;
+		
+		BlockingReplyReceiver(CountDownLatch release) {
+			mRelease = release;
+		}
+		
+		@Override public FCPPluginMessage handlePluginFCPMessage(
+				FCPPluginConnection connection, FCPPluginMessage message) {
+			
+			mResults.add(message);
+			
+			if(mRelease != null) {
+				mBlocked.countDown();
+				try {
+					mRelease.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			return message.isReplyMessage() ? null
+				: FCPPluginMessage.constructSuccessReply(message);
+		}
+	}
+
+	/**
+	 * Client for {@link SubscriptionManagerFCPTest#testObjectChangedEventsAfterFailure()}: Stores
+	 * the received messages in a thread-safe fashion as WOT may send multiple messages before
+	 * awaiting the replies. Replies with failure while {@link #mFail} is true.
+	 */
+	@Ignore
+	static final class FailingReplyReceiver
+			implements FredPluginFCPMessageHandler.ClientSideFCPMessageHandler {
+		
+		final LinkedBlockingQueue<FCPPluginMessage> mResults
+			= new LinkedBlockingQueue<FCPPluginMessage>();
+		
+		volatile boolean mFail = false;
+		
+		@Override public FCPPluginMessage handlePluginFCPMessage(
+				FCPPluginConnection connection, FCPPluginMessage message) {
+			
+			mResults.add(message);
+			
+			if(message.isReplyMessage())
+				return null;
+			
+			return mFail ? FCPPluginMessage.constructErrorReply(message, "Test", "Failing")
+				: FCPPluginMessage.constructSuccessReply(message);
+		}
+	}
+
 	ReplyReceiver mReplyReceiver = new ReplyReceiver();
 	
 	FCPPluginConnection mConnection;
@@ -237,6 +314,15 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
         // No further messages should arrive by now.
 		assertFalse(mReplyReceiver.hasNextResult());
 		
+		// All Notifications were deployed, so the statistics must not show any lag.
+		List<ClientStatistics> clients
+			= mWebOfTrust.getSubscriptionManager().getClientStatistics();
+		assertFalse(clients.isEmpty());
+		for(ClientStatistics client : clients) {
+			assertEquals(0, client.mPendingNotifications);
+			assertEquals(0, client.mLagMilliseconds);
+		}
+		
 		// Try to file the same subscription again - should fail because we already are subscribed
 		fcpCall(sfs);
 		final FCPPluginMessage duplicateSubscriptionMessage = mReplyReceiver.getNextResult();
@@ -252,6 +338,260 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		return id;
 	}
 
+	@Test public void testSubscribeWithFilter()
+	        throws FSParseException, IOException, InterruptedException, InvalidParameterException,
+	        MalformedURLException, UnknownIdentityException {
+	    
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", "Identities");
+		sfs.putOverwrite("Filter.Context", "Freetalk");
+		fcpCall(sfs);
+		assertEquals("Subscribed", mReplyReceiver.getNextResult().params.get("Message"));
+		
+		mWebOfTrust.getSubscriptionManager().run();
+		// The database is empty, so the synchronization is.
+		assertEquals("BeginSynchronizationEvent",
+			mReplyReceiver.getNextResult().params.get("Message"));
+		assertEquals("EndSynchronizationEvent",
+			mReplyReceiver.getNextResult().params.get("Message"));
+		assertFalse(mReplyReceiver.hasNextResult());
+		
+		final OwnIdentity matching = mWebOfTrust.createOwnIdentity("a", true, "Freetalk");
+		mWebOfTrust.createOwnIdentity("b", true, "Other");
+		mWebOfTrust.getSubscriptionManager().run();
+		importObjectChangedEvents();
+		
+		assertEquals(1, mReceivedIdentities.size());
+		assertEquals(mWebOfTrust.getIdentityByID(matching.getID()),
+			mReceivedIdentities.get(matching.getID()));
+		
+		// Filters which do not apply to the type of the subscription are rejected.
+		sfs.putOverwrite("To", "Trusts");
+		fcpCall(sfs);
+		final FCPPluginMessage error = mReplyReceiver.getNextResult();
+		assertEquals(false, error.success);
+		assertFalse(mReplyReceiver.hasNextResult());
+	}
+
+	/**
+	 * Tests whether a {@link SubscriptionManager.Client} which is slow at processing its
+	 * notifications does not block the deployment to other Clients, and whether all Clients
+	 * nevertheless receive their notifications in order.
+	 */
+	@Test public void testSlowClientDoesNotBlockOthers()
+			throws IOException, InterruptedException, MalformedURLException, FSParseException,
+			InvalidParameterException {
+		
+		final CountDownLatch releaseSlowClient = new CountDownLatch(1);
+		final BlockingReplyReceiver slowClient = new BlockingReplyReceiver(releaseSlowClient);
+		final BlockingReplyReceiver fastClient = new BlockingReplyReceiver(null);
+		
+		subscribeToIdentities(slowClient);
+		subscribeToIdentities(fastClient);
+		
+		// The database is empty, so the synchronization is, and each of the Identitys will
+		// cause one ObjectChangedEvent.
+		final ArrayList<String> expectedMessages = new ArrayList<String>();
+		expectedMessages.add("BeginSynchronizationEvent");
+		expectedMessages.add("EndSynchronizationEvent");
+		for(Identity identity : addRandomIdentities(5))
+			expectedMessages.add(identity.getID());
+		
+		// Our parent class has stopped the SubscriptionManager, and thereby shut down its own
+		// executor, so we have to provide one for run() to deploy in parallel.
+		final SubscriptionManager subscriptionManager = mWebOfTrust.getSubscriptionManager();
+		final ExecutorService executor
+			= Executors.newFixedThreadPool(SubscriptionManager.DEPLOYMENT_THREADS);
+		subscriptionManager.setDeploymentExecutor(executor);
+		
+		try {
+			subscriptionManager.run();
+			
+			assertTrue(slowClient.mBlocked.await(60, SECONDS));
+			assertEquals(expectedMessages, awaitMessages(fastClient, expectedMessages.size()));
+			// The slow Client must not have been sent a further message before replying.
+			assertEquals(1, slowClient.mResults.size());
+			
+			releaseSlowClient.countDown();
+			assertEquals(expectedMessages, awaitMessages(slowClient, expectedMessages.size()));
+			assertTrue(fastClient.mResults.isEmpty());
+		} finally {
+			releaseSlowClient.countDown();
+			subscriptionManager.setDeploymentExecutor(null);
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, SECONDS));
+		}
+	}
+
+	/**
+	 * Tests whether the {@link SubscriptionManager.NotificationPayload}s which the Notifications
+	 * of multiple Clients share are deleted once all of them have been deployed.
+	 */
+	@Test public void testNotificationPayloadDeletedByDeployment()
+			throws IOException, InterruptedException, MalformedURLException, FSParseException,
+			InvalidParameterException {
+		
+		final BlockingReplyReceiver client1 = new BlockingReplyReceiver(null);
+		final BlockingReplyReceiver client2 = new BlockingReplyReceiver(null);
+		subscribeToIdentities(client1);
+		subscribeToIdentities(client2);
+		
+		final ArrayList<String> expectedMessages = new ArrayList<String>();
+		expectedMessages.add("BeginSynchronizationEvent");
+		expectedMessages.add("EndSynchronizationEvent");
+		for(Identity identity : addRandomIdentities(3))
+			expectedMessages.add(identity.getID());
+		
+		// Each creation has one payload which both Clients share.
+		assertEquals(3, getNotificationPayloadCount());
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		assertEquals(expectedMessages, awaitMessages(client1, expectedMessages.size()));
+		assertEquals(expectedMessages, awaitMessages(client2, expectedMessages.size()));
+		assertEquals(0, getNotificationPayloadCount());
+	}
+
+	/** Files a subscription to "Identities" for the given client on a new connection. */
+	private void subscribeToIdentities(BlockingReplyReceiver client)
+			throws IOException, InterruptedException {
+		
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", "Identities");
+		final FCPPluginMessage reply = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME, client)
+			.sendSynchronous(FCPPluginMessage.construct(sfs, null), SECONDS.toNanos(60));
+		assertEquals("Subscribed", reply.params.get("Message"));
+	}
+
+	/** @return The amount of {@link SubscriptionManager.NotificationPayload}s in the database. */
+	private int getNotificationPayloadCount() {
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+			final Query q = mWebOfTrust.getDatabase().query();
+			q.constrain(NotificationPayload.class);
+			return q.execute().size();
+		}}
+	}
+
+	/**
+	 * Waits for the given amount of messages to arrive at the client.
+	 * @return For each message its "Message" field, or for ObjectChangedEvents the ID of the
+	 *     {@link Identity} after the change. */
+	private ArrayList<String> awaitMessages(BlockingReplyReceiver client, int count)
+			throws InterruptedException, MalformedURLException, FSParseException,
+			InvalidParameterException {
+		
+		final ArrayList<String> result = new ArrayList<String>(count);
+		
+		while(result.size() < count) {
+			final FCPPluginMessage message = client.mResults.poll(60, SECONDS);
+			assertNotNull(message);
+			assertFalse(message.isReplyMessage());
+			
+			final String type = message.params.get("Message");
+			if(type.equals("ObjectChangedEvent")) {
+				result.add(new IdentityParser(mWebOfTrust)
+					.parseObjectChangedEvent(message.params).afterChange.getID());
+			} else
+				result.add(type);
+		}
+		
+		return result;
+	}
+
+	/**
+	 * Subscribes with "MaxEventsPerMessage" and "MaxMessagesInFlight" so WOT sends multiple
+	 * "ObjectChangedEvents" messages before awaiting the replies, and replies with failure to the
+	 * first round of them. Then tests whether WOT re-sends all events in order with new "Index"
+	 * values: A client must reject messages whose "PreviousIndex" has failed, so re-sent messages
+	 * which re-used the index of a failed one would be rejected as well.
+	 */
+	@Test public void testObjectChangedEventsAfterFailure()
+			throws IOException, InterruptedException, MalformedURLException, FSParseException,
+			InvalidParameterException {
+		
+		final int eventsPerMessage = 2;
+		final int messagesInFlight = 3;
+		final int identityCount = 10;
+		
+		final FailingReplyReceiver client = new FailingReplyReceiver();
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", "Identities");
+		sfs.put("MaxEventsPerMessage", eventsPerMessage);
+		sfs.put("MaxMessagesInFlight", messagesInFlight);
+		final FCPPluginMessage reply = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME, client)
+			.sendSynchronous(FCPPluginMessage.construct(sfs, null), SECONDS.toNanos(60));
+		assertEquals("Subscribed", reply.params.get("Message"));
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		final SubscriptionManager subscriptionManager = mWebOfTrust.getSubscriptionManager();
+		subscriptionManager.run();
+		// The database is empty, so the synchronization is.
+		assertEquals("BeginSynchronizationEvent",
+			client.mResults.poll(60, SECONDS).params.get("Message"));
+		assertEquals("EndSynchronizationEvent",
+			client.mResults.poll(60, SECONDS).params.get("Message"));
+		assertTrue(client.mResults.isEmpty());
+		
+		final ArrayList<String> expectedIDs = new ArrayList<String>();
+		for(Identity identity : addRandomIdentities(identityCount))
+			expectedIDs.add(identity.getID());
+		
+		// WOT sends messagesInFlight messages and then awaits the reply to the first, which fails.
+		client.mFail = true;
+		subscriptionManager.run();
+		long highestFailedIndex = -1;
+		for(int i = 0; i < messagesInFlight; ++i) {
+			final FCPPluginMessage failed = client.mResults.poll(60, SECONDS);
+			assertNotNull(failed);
+			assertEquals("ObjectChangedEvents", failed.params.get("Message"));
+			highestFailedIndex = Math.max(highestFailedIndex, failed.params.getLong("Index"));
+		}
+		
+		// Failure does not disconnect the Client, it re-sends all events.
+		client.mFail = false;
+		subscriptionManager.run();
+		final int messageCount = identityCount / eventsPerMessage;
+		final TreeMap<Long, SimpleFieldSet> resent = new TreeMap<Long, SimpleFieldSet>();
+		for(int i = 0; i < messageCount; ++i) {
+			final FCPPluginMessage message = client.mResults.poll(60, SECONDS);
+			assertNotNull(message);
+			assertEquals("ObjectChangedEvents", message.params.get("Message"));
+			final long index = message.params.getLong("Index");
+			assertTrue(index > highestFailedIndex);
+			assertNull(resent.put(index, message.params));
+		}
+		
+		final ArrayList<String> receivedIDs = new ArrayList<String>();
+		long previousIndex = -1;
+		for(Entry<Long, SimpleFieldSet> message : resent.entrySet()) {
+			final long messagePreviousIndex = message.getValue().getLong("PreviousIndex", -1);
+			if(messagePreviousIndex != -1)
+				assertEquals(previousIndex, messagePreviousIndex);
+			previousIndex = message.getKey();
+			
+			final int amount = message.getValue().getInt("Amount");
+			assertEquals(eventsPerMessage, amount);
+			for(int i = 0; i < amount; ++i) {
+				receivedIDs.add(new IdentityParser(mWebOfTrust).parseObjectChangedEvent(
+					message.getValue().getSubset(Integer.toString(i))).afterChange.getID());
+			}
+		}
+		assertEquals(expectedIDs, receivedIDs);
+		
+		final List<ClientStatistics> clients = subscriptionManager.getClientStatistics();
+		assertEquals(1, clients.size());
+		assertEquals(0, clients.get(0).mPendingNotifications);
+		assertTrue(client.mResults.isEmpty());
+	}
+
 	@Test public void testAllRandomized()
 	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
 	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
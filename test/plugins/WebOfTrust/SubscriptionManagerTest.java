@@ -0,0 +1,307 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.SubscriptionManager.BeginSynchronizationNotification;
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
+import plugins.WebOfTrust.SubscriptionManager.EndSynchronizationNotification;
+import plugins.WebOfTrust.SubscriptionManager.Notification;
+import plugins.WebOfTrust.SubscriptionManager.NotificationPayload;
+import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionExistsAlreadyException;
+import plugins.WebOfTrust.SubscriptionManager.UnknownClientException;
+import plugins.WebOfTrust.SubscriptionManager.UnknownSubscriptionException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+import com.db4o.query.Query;
+
+/**
+ * Tests the {@link Notification} queue of the {@link SubscriptionManager} without deploying it:
+ * The SubscriptionManager is not started, so the Notifications stay queued.
+ *
+ * @see SubscriptionManagerFCPTest Tests the deployment.
+ */
+public final class SubscriptionManagerTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+	private SubscriptionManager mSubscriptionManager;
+
+	private OwnIdentity mTruster;
+
+	/** Trustees of {@link #mTruster}, see {@link #setTrust(String, int)}. */
+	private final HashMap<String, Identity> mTrustees = new HashMap<String, Identity>();
+
+	/** Key = {@link Trust#getID()}, value = name of the trustee in {@link #mTrustees}. */
+	private final HashMap<String, String> mTrustNames = new HashMap<String, String>();
+
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mSubscriptionManager = mWebOfTrust.getSubscriptionManager();
+
+		mTruster = addRandomOwnIdentities(1).get(0);
+		final ArrayList<Identity> trustees = addRandomIdentities(3);
+		for(int i = 0; i < trustees.size(); ++i) {
+			final String name = Character.toString((char)('a' + i));
+			final Identity trustee = trustees.get(i);
+			mTrustees.put(name, trustee);
+			mTrustNames.put(mTruster.getID() + "@" + trustee.getID(), name);
+		}
+	}
+
+	/**
+	 * Tests whether consecutive changes to the same object are merged into a single
+	 * {@link ObjectChangedNotification} which has the oldest before-state and the newest
+	 * after-state, and whether Clients which did not request coalescing get all of them.
+	 */
+	@Test public void testCoalescingMergesConsecutiveChanges()
+			throws SubscriptionExistsAlreadyException, UnknownClientException,
+			InterruptedException, UnknownIdentityException,
+			InvalidParameterException {
+
+		setTrust("a", 10);
+		final UUID plain = subscribeToTrusts(false);
+		final UUID coalescing = subscribeToTrusts(true);
+
+		setTrust("a", 20);
+		setTrust("a", 30);
+		setTrust("a", 40);
+
+		assertEquals(asList("Begin", "a:null->10", "End", "a:10->20", "a:20->30", "a:30->40"),
+			describeQueue(plain));
+		assertEquals(asList("Begin", "a:null->10", "End", "a:10->40"),
+			describeQueue(coalescing));
+		assertEquals(2, getCoalescedNotifications(coalescing));
+		assertEquals(0, getCoalescedNotifications(plain));
+	}
+
+	/**
+	 * Tests whether changes are not merged across Notifications which create or delete the
+	 * object, or which are part of the synchronization of the
+	 * {@link SubscriptionManager.Subscription}.
+	 */
+	@Test public void testCoalescingDoesNotMergeCreationDeletionOrSynchronization()
+			throws SubscriptionExistsAlreadyException, UnknownClientException,
+			InterruptedException, UnknownIdentityException,
+			InvalidParameterException {
+
+		setTrust("a", 10);
+		final UUID coalescing = subscribeToTrusts(true);
+
+		// Not merged into the synchronization, but with each other.
+		setTrust("a", 20);
+		setTrust("a", 30);
+		// Deletion is not merged.
+		synchronized(mWebOfTrust) {
+			mWebOfTrust.removeTrust(mTruster.getID(), mTrustees.get("a").getID());
+		}
+		// Creation is not merged into the deletion, but the next change is merged into it since
+		// the object exists from its position on.
+		setTrust("a", 40);
+		setTrust("a", 50);
+
+		assertEquals(
+			asList("Begin", "a:null->10", "End", "a:10->30", "a:30->null", "a:null->50"),
+			describeQueue(coalescing));
+	}
+
+	/**
+	 * Tests whether a merged {@link ObjectChangedNotification} stays at its position in the queue
+	 * so the order of the Notifications of different objects is preserved.
+	 */
+	@Test public void testCoalescingPreservesOrderAcrossObjects()
+			throws SubscriptionExistsAlreadyException, UnknownClientException,
+			InterruptedException, UnknownIdentityException,
+			InvalidParameterException {
+
+		final UUID plain = subscribeToTrusts(false);
+		final UUID coalescing = subscribeToTrusts(true);
+
+		setTrust("a", 10);
+		setTrust("b", 10);
+		setTrust("a", 20);
+		setTrust("c", 10);
+		setTrust("b", 20);
+
+		assertEquals(asList("Begin", "End",
+				"a:null->10", "b:null->10", "a:10->20", "c:null->10", "b:10->20"),
+			describeQueue(plain));
+		assertEquals(asList("Begin", "End", "a:null->20", "b:null->20", "c:null->10"),
+			describeQueue(coalescing));
+	}
+
+	/**
+	 * Tests whether the {@link ObjectChangedNotification}s of all Clients share the
+	 * {@link NotificationPayload}s of a change, and whether a payload is deleted once the last
+	 * Subscription which refers to it is terminated by
+	 * {@link SubscriptionManager#unsubscribe(String)}.
+	 */
+	@Test public void testNotificationPayloadSharingAndUnsubscribe()
+			throws SubscriptionExistsAlreadyException, InterruptedException,
+			UnknownIdentityException, InvalidParameterException, UnknownSubscriptionException {
+
+		final String subscription1 = mSubscriptionManager.subscribeToTrusts(UUID.randomUUID());
+		final String subscription2 = mSubscriptionManager.subscribeToTrusts(UUID.randomUUID());
+		// The synchronizations are empty.
+		assertEquals(0, getNotificationPayloadCount());
+
+		// Creation only has an after-state.
+		setTrust("a", 10);
+		assertEquals(1, getNotificationPayloadCount());
+		setTrust("a", 20);
+		assertEquals(3, getNotificationPayloadCount());
+
+		mSubscriptionManager.unsubscribe(subscription1);
+		assertEquals(3, getNotificationPayloadCount());
+		mSubscriptionManager.unsubscribe(subscription2);
+		assertEquals(0, getNotificationPayloadCount());
+	}
+
+	/**
+	 * Tests whether the after-state {@link NotificationPayload} which coalescing replaces is
+	 * deleted if no other Client refers to it, and kept otherwise.
+	 */
+	@Test public void testNotificationPayloadCoalescing()
+			throws SubscriptionExistsAlreadyException, UnknownClientException,
+			InterruptedException, UnknownIdentityException, InvalidParameterException {
+
+		subscribeToTrusts(true);
+
+		setTrust("a", 10);
+		assertEquals(1, getNotificationPayloadCount());
+		// The after-state is replaced, the before-state of the merged change is not stored.
+		setTrust("a", 20);
+		assertEquals(1, getNotificationPayloadCount());
+
+		final UUID plain = subscribeToTrusts(false);
+		// The synchronization of the new Client does not share the payloads of the queue.
+		assertEquals(2, getNotificationPayloadCount());
+		setTrust("a", 30);
+		// The plain Client stores both states, and shares the after-state.
+		assertEquals(3, getNotificationPayloadCount());
+		setTrust("a", 40);
+		// The replaced after-state is still referenced by the plain Client.
+		assertEquals(5, getNotificationPayloadCount());
+		assertEquals(asList("Begin", "a:null->20", "End", "a:20->30", "a:30->40"),
+			describeQueue(plain));
+	}
+
+	/**
+	 * Tests whether {@link SubscriptionManager#deleteAllClients()} deletes all
+	 * {@link NotificationPayload}s.
+	 */
+	@Test public void testNotificationPayloadDeleteAllClients()
+			throws SubscriptionExistsAlreadyException, UnknownClientException,
+			InterruptedException, UnknownIdentityException, InvalidParameterException {
+
+		setTrust("a", 10);
+		subscribeToTrusts(false);
+		subscribeToTrusts(true);
+		setTrust("a", 20);
+		setTrust("b", 10);
+		assertTrue(getNotificationPayloadCount() > 0);
+
+		mSubscriptionManager.deleteAllClients();
+		assertEquals(0, getNotificationPayloadCount());
+		assertEquals(0, mSubscriptionManager.getClientStatistics().size());
+	}
+
+	/**
+	 * Files a {@link SubscriptionManager.TrustsSubscription} for a new
+	 * {@link SubscriptionManager.Client}.
+	 * @return The FCP ID of the Client. */
+	private UUID subscribeToTrusts(boolean coalesce)
+			throws SubscriptionExistsAlreadyException, UnknownClientException,
+			InterruptedException {
+
+		final UUID client = UUID.randomUUID();
+		mSubscriptionManager.subscribeToTrusts(client);
+		mSubscriptionManager.setCoalesceNotifications(client, coalesce);
+		return client;
+	}
+
+	/** Sets the {@link Trust} of {@link #mTruster} to the given trustee of {@link #mTrustees}. */
+	private void setTrust(String trustee, int value)
+			throws UnknownIdentityException, InvalidParameterException {
+
+		mWebOfTrust.setTrust(mTruster.getID(), mTrustees.get(trustee).getID(), (byte)value,
+			"Comment " + value);
+	}
+
+	/**
+	 * @return For each queued {@link Notification} of the given Client, in the order in
+	 *     which they will be deployed: "Begin" / "End" for the synchronization markers, or
+	 *     "name:before->after" for the {@link Trust} values of {@link ObjectChangedNotification}s,
+	 *     where name is the key of the trustee in {@link #mTrustees}. */
+	private ArrayList<String> describeQueue(UUID client) {
+		final ArrayList<String> result = new ArrayList<String>();
+
+		synchronized(mWebOfTrust) {
+		synchronized(mSubscriptionManager) {
+			final Query q = mWebOfTrust.getDatabase().query();
+			q.constrain(Notification.class);
+			q.descend("mIndex").orderAscending();
+			for(Notification notification
+					: new Persistent.InitializingObjectSet<Notification>(mWebOfTrust, q)) {
+
+				if(!notification.getSubscription().getClient().getFCP_ID().equals(client))
+					continue;
+
+				if(notification instanceof BeginSynchronizationNotification)
+					result.add("Begin");
+				else if(notification instanceof EndSynchronizationNotification)
+					result.add("End");
+				else {
+					final ObjectChangedNotification changed
+						= (ObjectChangedNotification)notification;
+					final Trust before = (Trust)changed.getOldObject();
+					final Trust after = (Trust)changed.getNewObject();
+					result.add(mTrustNames.get((before != null ? before : after).getID())
+						+ ":" + (before != null ? before.getValue() : "null")
+						+ "->" + (after != null ? after.getValue() : "null"));
+				}
+			}
+		}}
+
+		return result;
+	}
+
+	/**
+	 * @return The amount of {@link NotificationPayload}s in the database. */
+	private int getNotificationPayloadCount() {
+		synchronized(mWebOfTrust) {
+		synchronized(mSubscriptionManager) {
+			final Query q = mWebOfTrust.getDatabase().query();
+			q.constrain(NotificationPayload.class);
+			return q.execute().size();
+		}}
+	}
+
+	private long getCoalescedNotifications(UUID client) {
+		for(ClientStatistics stats : mSubscriptionManager.getClientStatistics()) {
+			if(stats.mFCP_ID.equals(client))
+				return stats.mCoalescedNotifications;
+		}
+		fail("Unknown client: " + client);
+		return -1;
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,140 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests whether the {@link TrustGraph} of a {@link WebOfTrust} stays equal to the database. */
+public final class TrustGraphTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Test public void testConstructor()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+		// Identitys without Trusts do not get a vertex.
+		addRandomIdentities(10);
+
+		TrustGraph graph = new TrustGraph(getAllTrusts());
+		assertTrue(graph.equals(getAllTrusts()));
+
+		HashSet<String> trustersAndTrustees = new HashSet<String>();
+		for(Trust trust : getAllTrusts()) {
+			trustersAndTrustees.add(trust.getTruster().getID());
+			trustersAndTrustees.add(trust.getTrustee().getID());
+		}
+		assertEquals(trustersAndTrustees.size(), graph.getVertexCount());
+		assertTrue(trustersAndTrustees.size() < mWebOfTrust.getAllIdentities().size());
+		assertEquals(mWebOfTrust.getAllTrusts().size(), graph.getEdgeCount());
+		assertTrue(mWebOfTrust.getTrustGraph().equals(getAllTrusts()));
+	}
+
+	@Test public void testRandomChanges()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		for(int i = 0; i < 10; ++i) {
+			doRandomChangesToWOT(100);
+
+			synchronized(mWebOfTrust) {
+				assertTrue(mWebOfTrust.getTrustGraph().equals(getAllTrusts()));
+				assertTrue(new TrustGraph(getAllTrusts()).equals(getAllTrusts()));
+			}
+		}
+	}
+
+	@Test public void testSnapshot()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		for(int i = 0; i < 10; ++i) {
+			TrustGraph.Snapshot previous = mWebOfTrust.getTrustSnapshot();
+			HashSet<Trust> previousTrusts;
+			synchronized(mWebOfTrust) {
+				// Clones because doRandomChangesToWOT() modifies the objects in the database.
+				previousTrusts = listToSetWithDuplicateCheck(mWebOfTrust.getAllTrusts(), true);
+			}
+
+			doRandomChangesToWOT(100);
+
+			synchronized(mWebOfTrust) {
+				TrustGraph.Snapshot snapshot = mWebOfTrust.getTrustSnapshot();
+				assertTrue(snapshot.equals(getAllTrusts()));
+				assertEquals(mWebOfTrust.getAllTrusts().size(), snapshot.getEdgeCount());
+				// Snapshots must not be modified by later commits.
+				assertTrue(previous.equals(previousTrusts));
+			}
+		}
+	}
+
+	@Test public void testRollback()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		ArrayList<OwnIdentity> ownIdentitys = new ArrayList<OwnIdentity>(
+			mWebOfTrust.getAllOwnIdentities());
+
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			TrustGraph.Snapshot snapshot = mWebOfTrust.getTrustSnapshot();
+			assertTrue(snapshot.equals(getAllTrusts()));
+
+			for(int i = 0; i < 100; ++i) {
+				OwnIdentity truster = ownIdentitys.get(mRandom.nextInt(ownIdentitys.size()));
+				Identity trustee = identitys.get(mRandom.nextInt(identitys.size()));
+
+				if(truster == trustee)
+					continue;
+
+				if(mRandom.nextBoolean()) {
+					mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(), "");
+				} else {
+					try {
+						mWebOfTrust.removeTrustWithoutCommit(mWebOfTrust.getTrust(truster, trustee));
+					} catch(NotTrustedException e) {}
+				}
+			}
+
+			// Uncommitted changes must not be visible in the snapshot.
+			assertSame(snapshot, mWebOfTrust.getTrustSnapshot());
+
+			Persistent.checkedRollback(mWebOfTrust.getDatabase(), this, null);
+			assertTrue(mWebOfTrust.getTrustGraph().equals(getAllTrusts()));
+			assertSame(snapshot, mWebOfTrust.getTrustSnapshot());
+			assertTrue(snapshot.equals(getAllTrusts()));
+		}}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
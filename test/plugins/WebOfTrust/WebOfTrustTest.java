@@ -6,15 +6,23 @@ package plugins.WebOfTrust;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.IdentifierHashSet;
 
 /**
@@ -120,6 +128,164 @@ public class WebOfTrustTest extends AbstractJUnit4BaseTest {
 		assertEquals(new IdentifierHashSet<Score>(scores), scoreDuplicateCheck);
 	}
 
+	/**
+	 * Tests whether both the parallel and the single-threaded mode of
+	 * {@link WebOfTrust#computeAllScoresWithoutCommit()} correct wrong Scores. */
+	@Test public void testComputeAllScoresWithoutCommit()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 100);
+		addRandomTrustValues(identities, 1000);
+		HashSet<Score> scores = getAllScores();
+		
+		for(boolean parallel : new boolean[] { true, false }) {
+			synchronized(mWebOfTrust) {
+			synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+				for(Score score : mWebOfTrust.getAllScores()) {
+					if(score.getRank() == 0 || !mRandom.nextBoolean())
+						continue;
+					
+					score.setValue(score.getScore() + 1);
+					score.storeWithoutCommit();
+				}
+				Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+			}}
+			
+			mWebOfTrust.setParallelScoreComputation(parallel);
+			assertFalse(mWebOfTrust.verifyAndCorrectStoredScores());
+			assertEquals(scores, getAllScores());
+			assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		}
+	}
+
+	/**
+	 * Tests whether the values which {@link Identity} caches about its {@link Score}s, i.e.
+	 * {@link WebOfTrust#getBestScore(Identity)}, {@link WebOfTrust#getBestCapacity(Identity)} and
+	 * {@link WebOfTrust#shouldFetchIdentity(Identity)}, match the Scores in the database. */
+	@Test public void testUpdateBestScoreWithoutCommit()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 100);
+		addRandomTrustValues(identities, 1000);
+		
+		for(int i = 0; i < 10; ++i) {
+			doRandomChangesToWOT(100);
+			
+			synchronized(mWebOfTrust) {
+				for(Identity identity : mWebOfTrust.getAllIdentities()) {
+					int bestScore = Integer.MIN_VALUE;
+					int bestCapacity = 0;
+					for(Score score : mWebOfTrust.getScores(identity)) {
+						bestScore = Math.max(score.getScore(), bestScore);
+						bestCapacity = Math.max(score.getCapacity(), bestCapacity);
+					}
+					
+					if(bestScore == Integer.MIN_VALUE) {
+						try {
+							mWebOfTrust.getBestScore(identity);
+							fail("getBestScore() should throw if there are no Scores");
+						} catch(NotInTrustTreeException e) {}
+					} else {
+						assertEquals(bestScore, mWebOfTrust.getBestScore(identity));
+						assertEquals(bestCapacity, mWebOfTrust.getBestCapacity(identity));
+					}
+					
+					boolean shouldFetch = identity instanceof OwnIdentity
+						? bestScore == Integer.MAX_VALUE
+						: (bestCapacity > 0 || bestScore >= 0);
+					assertEquals(shouldFetch, mWebOfTrust.shouldFetchIdentity(identity));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests whether both the incremental Score computation and the fallback to a full one of
+	 * {@link WebOfTrust#setTrustListWithoutCommit(Identity, java.util.List)} yield correct
+	 * {@link Trust}s and {@link Score}s. */
+	@Test public void testSetTrustListWithoutCommit()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 100);
+		addRandomTrustValues(identities, 1000);
+		
+		for(int threshold : new int[] { Integer.MAX_VALUE, 0 }) {
+			mWebOfTrust.setTrustListFullScoreComputationThreshold(threshold);
+			final int incrementalCount
+				= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList();
+			final int fullCount = mWebOfTrust.getNumberOfFullScoreRecomputationDueToTrustList();
+			
+			for(int i = 0; i < 10; ++i) {
+				final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				final ArrayList<Trust> trustList = new ArrayList<Trust>();
+				// Key = trustee ID, value = Trust value
+				final HashMap<String, Byte> expectedTrusts = new HashMap<String, Byte>();
+				
+				for(int j = mRandom.nextInt(50); j > 0; --j) {
+					final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+					if(trustee == truster)
+						continue;
+					
+					final Trust trust
+						= new Trust(mWebOfTrust, truster, trustee, getRandomTrustValue(), "");
+					trustList.add(trust);
+					expectedTrusts.put(trustee.getID(), trust.getValue());
+				}
+				
+				synchronized(mWebOfTrust) {
+				synchronized(mWebOfTrust.getIdentityFetcher()) {
+				synchronized(mWebOfTrust.getSubscriptionManager()) {
+				synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+					try {
+						mWebOfTrust.beginTrustListImport();
+						mWebOfTrust.setTrustListWithoutCommit(truster, trustList);
+						mWebOfTrust.finishTrustListImport();
+						Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+					} catch(RuntimeException e) {
+						mWebOfTrust.abortTrustListImport(e);
+						throw e;
+					}
+				}}}}
+				
+				final HashMap<String, Byte> actualTrusts = new HashMap<String, Byte>();
+				for(Trust trust : mWebOfTrust.getGivenTrusts(truster))
+					actualTrusts.put(trust.getTrustee().getID(), trust.getValue());
+				
+				assertEquals(expectedTrusts, actualTrusts);
+				assertTrue(mWebOfTrust.getTrustGraph().equals(getAllTrusts()));
+				assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+			}
+			
+			if(threshold == Integer.MAX_VALUE) {
+				assertEquals(fullCount,
+					mWebOfTrust.getNumberOfFullScoreRecomputationDueToTrustList());
+			} else {
+				assertEquals(incrementalCount,
+					mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList());
+			}
+		}
+	}
+
+	/**
+	 * Tests whether {@link WebOfTrust#setTrustListFullScoreComputationThreshold(int)} is set from
+	 * {@link Configuration#TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD} at startup. */
+	@Test public void testTrustListFullScoreComputationThresholdConfiguration() {
+		assertEquals(WebOfTrust.DEFAULT_TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD,
+			mWebOfTrust.getTrustListFullScoreComputationThreshold());
+		
+		synchronized(mWebOfTrust) {
+			mWebOfTrust.getConfig().set(
+				Configuration.TRUST_LIST_FULL_SCORE_COMPUTATION_THRESHOLD, 17);
+			mWebOfTrust.getConfig().storeAndCommit();
+		}
+		
+		File database = mWebOfTrust.getDatabaseFile();
+		mWebOfTrust.terminate();
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertEquals(17, mWebOfTrust.getTrustListFullScoreComputationThreshold());
+	}
+
 	/**
 	 * Currently empty because {@link ScoreTest#testStoreWithoutCommit()} covers most of what
 	 * this test should do.
@@ -131,6 +297,75 @@ public class WebOfTrustTest extends AbstractJUnit4BaseTest {
 		
 	}
 
+	/**
+	 * Tests {@link WebOfTrust#getAllIdentitiesAfterID(String)},
+	 * {@link WebOfTrust#getAllTrustsAfterID(String)} and
+	 * {@link WebOfTrust#getAllScoresAfterID(String)} by paging through the database and checking
+	 * whether each object is returned exactly once.
+	 */
+	@Test public void testGetAllAfterID()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(3, 30);
+		addRandomTrustValues(identities, 100);
+		
+		synchronized(mWebOfTrust) {
+			HashSet<Persistent> all = new HashSet<Persistent>();
+			all.addAll(mWebOfTrust.getAllIdentities());
+			all.addAll(mWebOfTrust.getAllTrusts());
+			all.addAll(mWebOfTrust.getAllScores());
+			
+			HashSet<Persistent> paged = new HashSet<Persistent>();
+			for(int pageSize : new int[] { 1, 7, Integer.MAX_VALUE }) {
+				paged.clear();
+				
+				String afterID = null;
+				List<Identity> identityPage;
+				do {
+					identityPage = mWebOfTrust.getAllIdentitiesAfterID(afterID);
+					afterID = getAllAfterIDPage(identityPage, pageSize, paged);
+				} while(afterID != null);
+				
+				List<Trust> trustPage;
+				do {
+					trustPage = mWebOfTrust.getAllTrustsAfterID(afterID);
+					afterID = getAllAfterIDPage(trustPage, pageSize, paged);
+				} while(afterID != null);
+				
+				List<Score> scorePage;
+				do {
+					scorePage = mWebOfTrust.getAllScoresAfterID(afterID);
+					afterID = getAllAfterIDPage(scorePage, pageSize, paged);
+				} while(afterID != null);
+				
+				assertEquals(all, paged);
+			}
+		}
+	}
+
+	/**
+	 * Adds the first pageSize objects of the given result of a getAll*AfterID() to the given set
+	 * while checking that they are sorted by ID and not contained in the set yet.
+	 * 
+	 * @return The ID to pass to the next getAll*AfterID(), or null if this was the last page.
+	 */
+	private String getAllAfterIDPage(List<? extends Persistent> page, int pageSize,
+			HashSet<Persistent> paged) {
+		
+		String lastID = null;
+		int i = 0;
+		for(Persistent p : page) {
+			if(i++ == pageSize)
+				return lastID;
+			
+			if(lastID != null)
+				assertTrue(lastID.compareTo(p.getID()) < 0);
+			assertTrue(paged.add(p));
+			lastID = p.getID();
+		}
+		return null;
+	}
+
 	@Override protected WebOfTrust getWebOfTrust() {
 		return mWebOfTrust;
 	}
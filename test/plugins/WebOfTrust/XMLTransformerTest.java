@@ -5,8 +5,12 @@ package plugins.WebOfTrust;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.xml.transform.TransformerException;
 
@@ -119,6 +123,146 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 		/* End of "remove-this" part */
 	}
 
+	/**
+	 * Tests whether the streaming {@link XMLTransformer#parseIdentityXML(java.io.InputStream)}
+	 * yields the same results as the reference implementation
+	 * {@link XMLTransformer#parseIdentityXMLWithDOM(java.io.InputStream)}: For valid XML exported
+	 * by {@link XMLTransformer#exportOwnIdentity(OwnIdentity, java.io.OutputStream)}, for
+	 * randomly corrupted versions of it and for XML which exceeds
+	 * {@link XMLTransformer#MAX_IDENTITY_XML_TRUSTEE_AMOUNT}. */
+	public void testParseIdentityXML() throws Exception {
+		final ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(5);
+		final ArrayList<Identity> identities = addRandomIdentities(20);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, 200);
+		
+		for(OwnIdentity ownIdentity : ownIdentities) {
+			for(int i = mRandom.nextInt(5); i > 0; --i)
+				ownIdentity.addContext(getRandomLatinString(Identity.MAX_CONTEXT_NAME_LENGTH));
+			for(int i = mRandom.nextInt(5); i > 0; --i) {
+				ownIdentity.setProperty(getRandomLatinString(Identity.MAX_PROPERTY_NAME_LENGTH),
+					getRandomLatinString(Identity.MAX_PROPERTY_VALUE_LENGTH));
+			}
+			ownIdentity.storeAndCommit();
+			
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			mTransformer.exportOwnIdentity(ownIdentity, os);
+			final byte[] xml = os.toByteArray();
+			
+			XMLTransformer.ParsedIdentityXML parsed
+				= mTransformer.parseIdentityXML(new ByteArrayInputStream(xml));
+			assertNull(parsed.parseError);
+			assertEquals(ownIdentity.getNickname(), parsed.identityName);
+			assertEquals(ownIdentity.doesPublishTrustList(),
+				(boolean)parsed.identityPublishesTrustList);
+			assertParsedIdentityXMLEquals(
+				mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml)), parsed);
+			
+			for(int i = 0; i < 10; ++i) {
+				final byte[] corrupted = Arrays.copyOf(xml, 1 + mRandom.nextInt(xml.length));
+				for(int j = mRandom.nextInt(3); j > 0; --j)
+					corrupted[mRandom.nextInt(corrupted.length)] = (byte)mRandom.nextInt(128);
+				
+				assertParsedIdentityXMLEquals(
+					mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(corrupted)),
+					mTransformer.parseIdentityXML(new ByteArrayInputStream(corrupted)));
+			}
+		}
+		
+		for(int trusteeCount : new int[] { XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT,
+				XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT + 1 }) {
+			
+			final StringBuilder xml = new StringBuilder();
+			xml.append("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>");
+			xml.append("<" + WebOfTrustInterface.WOT_NAME + " Version=\"1\">");
+			xml.append("<Identity Name=\"a\" PublishesTrustList=\"true\" Version=\"1\">");
+			xml.append("<TrustList>");
+			for(int i = 0; i < trusteeCount; ++i) {
+				xml.append("<Trust Comment=\"\" Identity=\"" + getRandomRequestURI()
+					+ "\" Value=\"" + (mRandom.nextInt(201) - 100) + "\"/>");
+			}
+			xml.append("</TrustList></Identity></" + WebOfTrustInterface.WOT_NAME + ">");
+			final byte[] bytes = xml.toString().getBytes("UTF-8");
+			
+			XMLTransformer.ParsedIdentityXML parsed
+				= mTransformer.parseIdentityXML(new ByteArrayInputStream(bytes));
+			assertEquals(trusteeCount > XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT,
+				parsed.parseError != null);
+			assertParsedIdentityXMLEquals(
+				mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(bytes)), parsed);
+		}
+	}
+	
+	/**
+	 * Tests whether {@link XMLTransformer#parseIdentityXML(java.io.InputStream)} rejects XML with
+	 * a DOCTYPE, and does not expand external entities declared in it: Remote Identitys could
+	 * otherwise make us read local files into the database, or fetch URLs. */
+	public void testParseIdentityXMLRejectsDOCTYPE() throws Exception {
+		final String secret = getRandomLatinString(32);
+		final File secretFile = File.createTempFile("XMLTransformerTest", ".txt");
+		secretFile.deleteOnExit();
+		final FileOutputStream fos = new FileOutputStream(secretFile);
+		try {
+			fos.write(secret.getBytes("UTF-8"));
+		} finally {
+			fos.close();
+		}
+		
+		for(String entity : new String[] {
+				"<!ENTITY secret SYSTEM \"" + secretFile.toURI() + "\">",
+				"<!ENTITY secret \"" + secret + "\">" }) {
+			
+			final String xml = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>"
+				+ "<!DOCTYPE " + WebOfTrustInterface.WOT_NAME + " [" + entity + "]>"
+				+ "<" + WebOfTrustInterface.WOT_NAME + " Version=\"1\">"
+				+ "<Identity Name=\"&secret;\" PublishesTrustList=\"false\" Version=\"1\">"
+				+ "<Context Name=\"&secret;\"/>"
+				+ "</Identity></" + WebOfTrustInterface.WOT_NAME + ">";
+			final byte[] bytes = xml.getBytes("UTF-8");
+			
+			XMLTransformer.ParsedIdentityXML parsed
+				= mTransformer.parseIdentityXML(new ByteArrayInputStream(bytes));
+			assertNotNull(parsed.parseError);
+			assertFalse(secret.equals(parsed.identityName));
+			assertTrue(parsed.identityContexts == null
+				|| !parsed.identityContexts.contains(secret));
+			
+			// The reference implementation must reject it as well.
+			assertNotNull(mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(bytes))
+				.parseError);
+		}
+	}
+	
+	private void assertParsedIdentityXMLEquals(XMLTransformer.ParsedIdentityXML expected,
+			XMLTransformer.ParsedIdentityXML actual) {
+		
+		assertEquals(expected.parseError != null, actual.parseError != null);
+		if(expected.parseError != null)
+			return; // The remaining fields are undefined then.
+		
+		assertEquals(expected.identityName, actual.identityName);
+		assertEquals(expected.identityPublishesTrustList, actual.identityPublishesTrustList);
+		assertEquals(expected.identityContexts, actual.identityContexts);
+		assertEquals(expected.identityProperties, actual.identityProperties);
+		
+		if(expected.identityTrustList == null) {
+			assertNull(actual.identityTrustList);
+			return;
+		}
+		
+		assertEquals(expected.identityTrustList.size(), actual.identityTrustList.size());
+		for(int i = 0; i < expected.identityTrustList.size(); ++i) {
+			XMLTransformer.ParsedIdentityXML.TrustListEntry expectedEntry
+				= expected.identityTrustList.get(i);
+			XMLTransformer.ParsedIdentityXML.TrustListEntry actualEntry
+				= actual.identityTrustList.get(i);
+			
+			assertEquals(expectedEntry.mTrusteeURI, actualEntry.mTrusteeURI);
+			assertEquals(expectedEntry.mTrustValue, actualEntry.mTrustValue);
+			assertEquals(expectedEntry.mTrustComment, actualEntry.mTrustComment);
+		}
+	}
+
 	public void testImportIdentity() throws Exception {
 		//fail("Not yet implemented"); // TODO
 	}
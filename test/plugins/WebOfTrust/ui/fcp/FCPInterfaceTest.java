@@ -0,0 +1,538 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.ui.fcp;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.AbstractSingleNodeTest;
+import plugins.WebOfTrust.Configuration;
+import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.MessageStatistics;
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.node.FSParseException;
+import freenet.pluginmanager.FredPluginFCPMessageHandler;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Tests the message handlers of {@link FCPInterface} by sending FCP messages to the WOT of a
+ * single node.
+ *
+ * @see plugins.WebOfTrust.SubscriptionManagerFCPTest Tests the "Subscribe" message.
+ */
+public final class FCPInterfaceTest extends AbstractSingleNodeTest {
+
+	private FCPPluginConnection mConnection;
+
+
+	@Before public void setUpConnection() throws Exception {
+
+		// Delete the seed identities since the tests assume the WOT database to be empty.
+		deleteSeedIdentities();
+
+		// We only use sendSynchronous(), whose replies are not passed to the handler.
+		mConnection = mWebOfTrust.getPluginRespirator().connectToOtherPlugin(
+			FCPClientReferenceImplementation.WOT_FCP_NAME,
+			new FredPluginFCPMessageHandler.ClientSideFCPMessageHandler() {
+				@Override public FCPPluginMessage handlePluginFCPMessage(
+						FCPPluginConnection connection, FCPPluginMessage message) {
+					return null;
+				}});
+	}
+
+	/** Sends the given message to WOT and returns its reply. */
+	private FCPPluginMessage fcpCall(SimpleFieldSet params)
+			throws IOException, InterruptedException {
+
+		// Use a lengthy 60 second timeout because Gradle runs multiple unit tests in parallel.
+		return mConnection.sendSynchronous(
+			FCPPluginMessage.construct(params, null), SECONDS.toNanos(60));
+	}
+
+	/**
+	 * Tests whether paging through "GetIdentities" with "Limit" and "Continuation" returns each
+	 * identity exactly once, with and without "Context".
+	 */
+	@Test public void testGetIdentitiesPaging()
+			throws IOException, InterruptedException, FSParseException, MalformedURLException,
+			InvalidParameterException {
+
+		final HashSet<String> withContext = new HashSet<String>();
+		for(int i = 0; i < 5; ++i)
+			withContext.add(mWebOfTrust.createOwnIdentity("p" + i, true, "Paged").getID());
+
+		final HashSet<String> all = new HashSet<String>(withContext);
+		for(Identity identity : addRandomIdentities(7))
+			all.add(identity.getID());
+
+		assertEquals(all, getIdentitiesPaged(null, 5, 5));
+		assertEquals(withContext, getIdentitiesPaged("Paged", 2, 2));
+		assertEquals(withContext, getIdentitiesPaged("Paged", 100, 100));
+	}
+
+	/**
+	 * Tests whether a page of "GetIdentities" with "Context" stops at
+	 * {@link FCPInterface#setMaxIdentitiesScannedPerPage(int)} identities and returns a
+	 * "Continuation" even if it contains less than "Limit" identities.
+	 */
+	@Test public void testGetIdentitiesPagingScanLimit()
+			throws IOException, InterruptedException, FSParseException, MalformedURLException,
+			InvalidParameterException {
+
+		final HashSet<String> withContext = new HashSet<String>();
+		for(int i = 0; i < 3; ++i)
+			withContext.add(mWebOfTrust.createOwnIdentity("p" + i, true, "Paged").getID());
+		addRandomIdentities(9);
+
+		mWebOfTrust.getFCPInterface().setMaxIdentitiesScannedPerPage(3);
+		// 12 identities need at least 4 pages of 3 scanned ones.
+		final HashSet<String> result = new HashSet<String>();
+		assertTrue(getIdentitiesPaged("Paged", 100, 3, result) >= 4);
+		assertEquals(withContext, result);
+	}
+
+	/** Tests whether invalid values of "Limit" are rejected with InvalidParameterException. */
+	@Test public void testGetIdentitiesInvalidLimit() throws IOException, InterruptedException {
+		for(String limit : new String[] { "abc", "0", "-1" }) {
+			final SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Message", "GetIdentities");
+			sfs.putOverwrite("Limit", limit);
+
+			final FCPPluginMessage reply = fcpCall(sfs);
+			assertFalse(reply.success);
+			assertEquals("Error", reply.params.get("Message"));
+			assertTrue(reply.errorMessage,
+				reply.errorMessage.startsWith(InvalidParameterException.class.getName()));
+		}
+	}
+
+	/**
+	 * Tests whether "Fields" makes GetIdentities, GetTrusts, GetScores and GetIdentitiesByID only
+	 * return the selected fields plus the always included ones, and whether names which the
+	 * objects of the message do not have are rejected.
+	 */
+	@Test public void testFieldSelection()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, UnknownIdentityException {
+
+		final OwnIdentity truster = mWebOfTrust.createOwnIdentity("a", true, "Selected");
+		final Identity trustee = addRandomIdentities(1).get(0);
+		mWebOfTrust.setTrust(truster.getID(), trustee.getID(), (byte)50, "Comment");
+
+		SimpleFieldSet sfs = message("GetIdentities");
+		sfs.putOverwrite("Fields", "Nickname, Contexts");
+		SimpleFieldSet reply = fcpCall(sfs).params;
+		assertEquals("2", reply.get("Identities.Amount"));
+		assertEquals("a", reply.get("Identities." + indexOf(reply, "Identities", truster.getID())
+			+ ".Nickname"));
+		assertSelectedFields(reply, "Identities", "Type", "ID", "Nickname", "Contexts");
+		assertNotNull(reply.get("Identities.0.Contexts.Amount"));
+		assertNull(reply.get("Identities.0.Properties.Amount"));
+
+		sfs = batchMessage("GetIdentitiesByID", null, new String[] { trustee.getID() });
+		sfs.putOverwrite("Fields", "RequestURI");
+		reply = fcpCall(sfs).params;
+		assertEquals(trustee.getRequestURI().toString(), reply.get("Identities.0.RequestURI"));
+		// Success is added by GetIdentitiesByID itself.
+		assertSelectedFields(reply, "Identities", "Type", "ID", "RequestURI", "Success");
+
+		sfs = message("GetTrusts");
+		sfs.putOverwrite("Fields", "Value");
+		reply = fcpCall(sfs).params;
+		assertEquals("1", reply.get("Trusts.Amount"));
+		assertEquals("50", reply.get("Trusts.0.Value"));
+		assertSelectedFields(reply, "Trusts", "Truster", "Trustee", "Value");
+
+		sfs = message("GetScores");
+		sfs.putOverwrite("Fields", "Rank,Capacity");
+		reply = fcpCall(sfs).params;
+		assertEquals("2", reply.get("Scores.Amount"));
+		assertSelectedFields(reply, "Scores", "Truster", "Trustee", "Rank", "Capacity");
+
+		// Capacity and Comment exist, but only for the objects of the other message.
+		final String[][] invalid = {
+			{ "GetIdentities", "Nickname,Nicknam" },
+			{ "GetTrusts", "Capacity" },
+			{ "GetScores", "Comment" },
+			{ "GetIdentitiesByID", "Value" } };
+		for(String[] messageAndFields : invalid) {
+			sfs = batchMessage(messageAndFields[0], null, new String[] { trustee.getID() });
+			sfs.putOverwrite("Fields", messageAndFields[1]);
+			final FCPPluginMessage failed = fcpCall(sfs);
+			assertFalse(failed.success);
+			assertTrue(failed.errorMessage,
+				failed.errorMessage.startsWith(InvalidParameterException.class.getName()));
+		}
+	}
+
+	/**
+	 * Tests whether "GetIdentitiesByID" returns an entry for each requested ID in order, including
+	 * unknown ones, and whether the Trusts.X / Scores.X entries match the Identities.X entries.
+	 */
+	@Test public void testGetIdentitiesByID()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, UnknownIdentityException, FSParseException {
+
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final Identity trusted = addRandomIdentities(1).get(0);
+		final Identity untrusted = addRandomIdentities(1).get(0);
+		mWebOfTrust.setTrust(truster.getID(), trusted.getID(), (byte)50, "Comment");
+		final String unknownID = "UnknownIdentityID";
+		final String[] ids = { trusted.getID(), unknownID, untrusted.getID() };
+
+		SimpleFieldSet reply = fcpCall(batchMessage("GetIdentitiesByID", null, ids)).params;
+		assertEquals("IdentitiesByID", reply.get("Message"));
+		assertEquals(3, reply.getInt("Identities.Amount"));
+		assertNull(reply.get("Trusts.Amount"));
+		assertNull(reply.get("Scores.Amount"));
+		for(int i = 0; i < ids.length; ++i)
+			assertEquals(ids[i], reply.get("Identities." + i + ".ID"));
+		assertTrue(reply.getBoolean("Identities.0.Success"));
+		assertEquals("Identity", reply.get("Identities.0.Type"));
+		assertFalse(reply.getBoolean("Identities.1.Success"));
+		assertEquals("UnknownIdentity", reply.get("Identities.1.ErrorCode"));
+		assertTrue(reply.getBoolean("Identities.2.Success"));
+
+		reply = fcpCall(batchMessage("GetIdentitiesByID", truster.getID(), ids)).params;
+		assertEquals(3, reply.getInt("Identities.Amount"));
+		assertEquals(3, reply.getInt("Trusts.Amount"));
+		assertEquals(3, reply.getInt("Scores.Amount"));
+		assertFalse(reply.getBoolean("Identities.1.Success"));
+		assertEquals("50", reply.get("Trusts.0.Value"));
+		assertEquals("50", reply.get("Scores.0.Value"));
+		for(int i = 1; i < ids.length; ++i) {
+			assertEquals("Nonexistent", reply.get("Trusts." + i + ".Value"));
+			assertEquals("Nonexistent", reply.get("Scores." + i + ".Value"));
+		}
+	}
+
+	/**
+	 * Tests whether "GetScoresByID" returns an entry for each requested ID in order, and marks
+	 * unknown identities and identities outside of the trust tree as failed.
+	 */
+	@Test public void testGetScoresByID()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, UnknownIdentityException, FSParseException {
+
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final Identity trusted = addRandomIdentities(1).get(0);
+		final Identity untrusted = addRandomIdentities(1).get(0);
+		mWebOfTrust.setTrust(truster.getID(), trusted.getID(), (byte)50, "Comment");
+		final String[] ids = { untrusted.getID(), trusted.getID(), "UnknownIdentityID" };
+
+		final SimpleFieldSet reply
+			= fcpCall(batchMessage("GetScoresByID", truster.getID(), ids)).params;
+		assertEquals("ScoresByID", reply.get("Message"));
+		assertEquals(3, reply.getInt("Scores.Amount"));
+		for(int i = 0; i < ids.length; ++i)
+			assertEquals(ids[i], reply.get("Scores." + i + ".Trustee"));
+		assertFalse(reply.getBoolean("Scores.0.Success"));
+		assertEquals("NotInTrustTree", reply.get("Scores.0.ErrorCode"));
+		assertTrue(reply.getBoolean("Scores.1.Success"));
+		assertEquals(truster.getID(), reply.get("Scores.1.Truster"));
+		assertEquals("50", reply.get("Scores.1.Value"));
+		assertEquals("1", reply.get("Scores.1.Rank"));
+		assertFalse(reply.getBoolean("Scores.2.Success"));
+		assertEquals("UnknownIdentity", reply.get("Scores.2.ErrorCode"));
+
+		// The Truster is mandatory.
+		assertFalse(fcpCall(batchMessage("GetScoresByID", null, ids)).success);
+	}
+
+	/**
+	 * Tests whether "GetIdentitiesByID" and "GetScoresByID" accept
+	 * {@link FCPInterface#MAX_BATCH_SIZE} IDs, and reject larger and invalid amounts.
+	 */
+	@Test public void testBatchSizeLimit()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, FSParseException {
+
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final String[] ids = new String[FCPInterface.MAX_BATCH_SIZE];
+		for(int i = 0; i < ids.length; ++i)
+			ids[i] = truster.getID();
+
+		FCPPluginMessage reply = fcpCall(batchMessage("GetIdentitiesByID", null, ids));
+		assertTrue(reply.success);
+		assertEquals(ids.length, reply.params.getInt("Identities.Amount"));
+		reply = fcpCall(batchMessage("GetScoresByID", truster.getID(), ids));
+		assertTrue(reply.success);
+		assertEquals(ids.length, reply.params.getInt("Scores.Amount"));
+
+		for(String message : new String[] { "GetIdentitiesByID", "GetScoresByID" }) {
+			for(String amount : new String[] {
+					Integer.toString(FCPInterface.MAX_BATCH_SIZE + 1), "-1", "abc" }) {
+
+				final SimpleFieldSet sfs = batchMessage(message, truster.getID(), ids);
+				sfs.putOverwrite("Identities.Amount", amount);
+				reply = fcpCall(sfs);
+				assertFalse(reply.success);
+				assertTrue(reply.errorMessage,
+					reply.errorMessage.startsWith(InvalidParameterException.class.getName()));
+			}
+		}
+	}
+
+	/**
+	 * Tests whether messages are dispatched to the handler of their "Message" field, and whether
+	 * the handlers count the calls and errors in their {@link MessageStatistics}.
+	 */
+	@Test public void testMessageDispatchAndStatistics()
+			throws IOException, InterruptedException {
+
+		final FCPInterface fcp = mWebOfTrust.getFCPInterface();
+		final List<MessageStatistics> before = fcp.getStatistics();
+		// Sorted by name, one entry per message.
+		for(int i = 1; i < before.size(); ++i)
+			assertTrue(before.get(i - 1).mMessage.compareTo(before.get(i).mMessage) < 0);
+
+		for(int i = 0; i < 3; ++i) {
+			final FCPPluginMessage reply = fcpCall(message("Ping"));
+			assertTrue(reply.success);
+			assertEquals("Pong", reply.params.get("Message"));
+		}
+
+		// Lacks the mandatory "Identity" field.
+		assertFalse(fcpCall(message("GetIdentity")).success);
+
+		final FCPPluginMessage unknown = fcpCall(message("NoSuchMessage"));
+		assertFalse(unknown.success);
+		assertEquals("Error", unknown.params.get("Message"));
+
+		final List<MessageStatistics> after = fcp.getStatistics();
+		assertEquals(before.size(), after.size());
+		assertNull(getStatistics(after, "NoSuchMessage"));
+
+		final MessageStatistics ping = getStatistics(after, "Ping");
+		assertEquals(getStatistics(before, "Ping").mCalls + 3, ping.mCalls);
+		assertEquals(getStatistics(before, "Ping").mErrors, ping.mErrors);
+		final MessageStatistics getIdentity = getStatistics(after, "GetIdentity");
+		assertEquals(getStatistics(before, "GetIdentity").mCalls + 1, getIdentity.mCalls);
+		assertEquals(getStatistics(before, "GetIdentity").mErrors + 1, getIdentity.mErrors);
+
+		long callsBefore = 0, callsAfter = 0;
+		for(MessageStatistics stats : before)
+			callsBefore += stats.mCalls;
+		for(MessageStatistics stats : after) {
+			callsAfter += stats.mCalls;
+			// Not measured unless Configuration.MEASURE_FCP_LOCK_WAIT_TIME is enabled.
+			assertEquals(0, stats.mLockWaitTimeNanoseconds);
+		}
+		assertEquals(callsBefore + 4, callsAfter);
+	}
+
+	/** Tests the histograms, percentiles and averages of {@link MessageStatistics}. */
+	@Test public void testMessageStatisticsHistogram() {
+		assertEquals(0, MessageStatistics.getHistogramBucket(0));
+		assertEquals(0, MessageStatistics.getHistogramBucket(MILLISECONDS.toNanos(1) - 1));
+		assertEquals(1, MessageStatistics.getHistogramBucket(MILLISECONDS.toNanos(1)));
+		assertEquals(2, MessageStatistics.getHistogramBucket(MILLISECONDS.toNanos(3)));
+		assertEquals(3, MessageStatistics.getHistogramBucket(MILLISECONDS.toNanos(4)));
+		assertEquals(MessageStatistics.HISTOGRAM_BUCKETS - 1,
+			MessageStatistics.getHistogramBucket(DAYS.toNanos(1)));
+
+		assertEquals(1, MessageStatistics.getHistogramBucketLimit(0));
+		assertEquals(4, MessageStatistics.getHistogramBucketLimit(2));
+		assertEquals(Long.MAX_VALUE,
+			MessageStatistics.getHistogramBucketLimit(MessageStatistics.HISTOGRAM_BUCKETS - 1));
+
+		final MessageStatistics stats = new MessageStatistics("Test");
+		assertEquals(0, stats.getAverageExecutionTime(), 0);
+		for(int i = 0; i < 3; ++i)
+			stats.addCall(0, MILLISECONDS.toNanos(1), false);
+		stats.addCall(MILLISECONDS.toNanos(10), MILLISECONDS.toNanos(100), true);
+
+		assertEquals(4, stats.mCalls);
+		assertEquals(1, stats.mErrors);
+		assertEquals(25.75, stats.getAverageExecutionTime(), 0);
+		assertEquals(2.5, stats.getAverageLockWaitTime(), 0);
+		assertEquals(2, stats.getExecutionTimePercentile(0.5));
+		assertEquals(128, stats.getExecutionTimePercentile(0.9));
+		assertEquals(1, stats.getLockWaitTimePercentile(0.5));
+		assertEquals(16, stats.getLockWaitTimePercentile(1.0));
+
+		final MessageStatistics clone = stats.clone();
+		stats.addCall(0, MILLISECONDS.toNanos(1), false);
+		assertEquals(4, clone.mCalls);
+		assertEquals(3, clone.mExecutionHistogram[1]);
+		assertEquals(3, clone.mLockWaitHistogram[0]);
+	}
+
+	/**
+	 * Tests whether {@link Configuration#MEASURE_FCP_LOCK_WAIT_TIME} enables measuring the lock
+	 * wait time, and whether {@link FCPInterface#stop()} disables the JVM-wide thread contention
+	 * monitoring again.
+	 */
+	@Test public void testLockWaitTimeMeasurement() throws InterruptedException {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean.isThreadContentionMonitoringSupported());
+		// Otherwise we cannot test whether the previous setting is restored.
+		assumeFalse(bean.isThreadContentionMonitoringEnabled());
+
+		final Configuration config = mWebOfTrust.getConfig();
+		assertFalse(config.getBoolean(Configuration.MEASURE_FCP_LOCK_WAIT_TIME));
+		final FCPInterface fcp;
+		try {
+			config.set(Configuration.MEASURE_FCP_LOCK_WAIT_TIME, true);
+			fcp = new FCPInterface(mWebOfTrust);
+		} finally {
+			config.set(Configuration.MEASURE_FCP_LOCK_WAIT_TIME, false);
+		}
+		assertTrue(bean.isThreadContentionMonitoringEnabled());
+
+		try {
+			final FCPPluginMessage message
+				= FCPPluginMessage.construct(message("GetOwnIdentities"), null);
+			final Thread thread = new Thread(new Runnable() {
+				@Override public void run() {
+					assertTrue(fcp.handlePluginFCPMessage(null, message).success);
+				}});
+
+			// Keep the thread blocked at synchronized(mWebOfTrust) of the handler.
+			synchronized(mWebOfTrust) {
+				thread.start();
+				while(thread.getState() != Thread.State.BLOCKED)
+					Thread.sleep(10);
+				Thread.sleep(100);
+			}
+			thread.join();
+
+			final MessageStatistics stats = getStatistics(fcp.getStatistics(), "GetOwnIdentities");
+			assertEquals(1, stats.mCalls);
+			assertEquals(0, stats.mErrors);
+			assertTrue(stats.mLockWaitTimeNanoseconds >= MILLISECONDS.toNanos(50));
+		} finally {
+			fcp.stop();
+		}
+		assertFalse(bean.isThreadContentionMonitoringEnabled());
+	}
+
+	/** @return The entry of the given message, or null if there is none. */
+	private static MessageStatistics getStatistics(List<MessageStatistics> statistics,
+			String message) {
+
+		for(MessageStatistics stats : statistics) {
+			if(stats.mMessage.equals(message))
+				return stats;
+		}
+		return null;
+	}
+
+	/**
+	 * @param trusterID Value of the "Truster" field, or null to omit it.
+	 * @return A "GetIdentitiesByID" / "GetScoresByID" message which requests the given IDs. */
+	private static SimpleFieldSet batchMessage(String message, String trusterID,
+			String[] identityIDs) {
+
+		final SimpleFieldSet sfs = message(message);
+		if(trusterID != null)
+			sfs.putOverwrite("Truster", trusterID);
+		sfs.put("Identities.Amount", identityIDs.length);
+		for(int i = 0; i < identityIDs.length; ++i)
+			sfs.putOverwrite("Identities." + i + ".ID", identityIDs[i]);
+		return sfs;
+	}
+
+	/**
+	 * Asserts that the entries PREFIX.X.* of the given reply only contain the given fields.
+	 * Subfields such as PREFIX.X.Contexts.0.Name belong to their field, here "Contexts". */
+	private static void assertSelectedFields(SimpleFieldSet reply, String prefix,
+			String... fields) {
+
+		final HashSet<String> allowed = new HashSet<String>(Arrays.asList(fields));
+		final Iterator<String> keys = reply.keyIterator();
+		while(keys.hasNext()) {
+			final String[] key = keys.next().split("\\.");
+			if(!key[0].equals(prefix) || key[1].equals("Amount"))
+				continue;
+
+			assertTrue(Arrays.toString(key), key.length > 2 && allowed.contains(key[2]));
+		}
+	}
+
+	/** @return X of the entry PREFIX.X.ID which has the given ID. */
+	private static int indexOf(SimpleFieldSet reply, String prefix, String id) {
+		for(int i = 0; reply.get(prefix + "." + i + ".ID") != null; ++i) {
+			if(reply.get(prefix + "." + i + ".ID").equals(id))
+				return i;
+		}
+		fail("Not found: " + id);
+		return -1;
+	}
+
+	/** @return A message which only contains the "Message" field. */
+	private static SimpleFieldSet message(String message) {
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", message);
+		return sfs;
+	}
+
+	/** @see #getIdentitiesPaged(String, int, int, HashSet) */
+	private HashSet<String> getIdentitiesPaged(String context, int limit, int maxPageSize)
+			throws IOException, InterruptedException, FSParseException {
+
+		final HashSet<String> result = new HashSet<String>();
+		getIdentitiesPaged(context, limit, maxPageSize, result);
+		return result;
+	}
+
+	/**
+	 * Fetches all pages of "GetIdentities" and adds the IDs of the identities to the given set.
+	 * Checks whether each page contains at most maxPageSize identities, and whether no identity
+	 * is returned twice.
+	 *
+	 * @return The amount of pages. */
+	private int getIdentitiesPaged(String context, int limit, int maxPageSize,
+			HashSet<String> result) throws IOException, InterruptedException, FSParseException {
+
+		String continuation = null;
+		int pages = 0;
+
+		do {
+			final SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Message", "GetIdentities");
+			sfs.put("Limit", limit);
+			if(context != null)
+				sfs.putOverwrite("Context", context);
+			if(continuation != null)
+				sfs.putOverwrite("Continuation", continuation);
+
+			final FCPPluginMessage reply = fcpCall(sfs);
+			assertTrue(reply.success);
+			assertEquals("Identities", reply.params.get("Message"));
+			++pages;
+
+			final int amount = reply.params.getInt("Identities.Amount");
+			assertTrue(amount <= maxPageSize);
+			for(int i = 0; i < amount; ++i) {
+				assertTrue(result.add(reply.params.get("Identities." + i + ".ID")));
+			}
+
+			continuation = reply.params.get("Continuation");
+		} while(continuation != null);
+
+		return pages;
+	}
+
+}